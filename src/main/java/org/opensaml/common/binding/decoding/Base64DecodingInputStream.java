@@ -0,0 +1,176 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.common.binding.decoding;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream which Base64 decodes a string as it is read, so that the decoded data never has to be held in memory
+ * as a whole. Whitespace within the encoded data is ignored; any other character outside of the Base64 alphabet, and
+ * any data following padding, causes an {@link IOException} when it is reached.
+ */
+public class Base64DecodingInputStream extends InputStream {
+
+    /** Value of each character of the Base64 alphabet, -1 for characters outside of it. */
+    private static final byte[] DECODING_TABLE = new byte[128];
+
+    /** Encoded data. */
+    private final CharSequence encoded;
+
+    /** Position of the next character of the encoded data to decode. */
+    private int position;
+
+    /** Bytes of the most recently decoded quantum. */
+    private final byte[] quantum;
+
+    /** Number of valid bytes in the most recently decoded quantum. */
+    private int quantumLength;
+
+    /** Position of the next byte of the most recently decoded quantum to return. */
+    private int quantumPosition;
+
+    /** Whether padding, which ends the encoded data, has been read. */
+    private boolean padded;
+
+    static {
+        for (int i = 0; i < DECODING_TABLE.length; i++) {
+            DECODING_TABLE[i] = -1;
+        }
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODING_TABLE[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param encodedData the Base64 encoded data
+     */
+    public Base64DecodingInputStream(CharSequence encodedData) {
+        if (encodedData == null) {
+            throw new IllegalArgumentException("Encoded data may not be null");
+        }
+        encoded = encodedData;
+        quantum = new byte[3];
+    }
+
+    /** {@inheritDoc} */
+    public int read() throws IOException {
+        if (quantumPosition == quantumLength && !decodeQuantum()) {
+            return -1;
+        }
+        return quantum[quantumPosition++] & 0xFF;
+    }
+
+    /** {@inheritDoc} */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        int read = 0;
+        while (read < len) {
+            if (quantumPosition == quantumLength && !decodeQuantum()) {
+                break;
+            }
+            int available = Math.min(quantumLength - quantumPosition, len - read);
+            System.arraycopy(quantum, quantumPosition, b, off + read, available);
+            quantumPosition += available;
+            read += available;
+        }
+        return read == 0 ? -1 : read;
+    }
+
+    /** {@inheritDoc} */
+    public int available() {
+        return quantumLength - quantumPosition;
+    }
+
+    /**
+     * Decodes the next quantum, of up to four characters, of the encoded data.
+     * 
+     * @return true if a quantum was decoded, false if the end of the encoded data was reached
+     * 
+     * @throws IOException thrown if the encoded data is not valid Base64
+     */
+    private boolean decodeQuantum() throws IOException {
+        quantumPosition = 0;
+        quantumLength = 0;
+
+        int bits = 0;
+        int characters = 0;
+        int padding = 0;
+        while (characters + padding < 4) {
+            int c = nextCharacter();
+            if (c == -1) {
+                break;
+            }
+            if (c == '=') {
+                if (characters < 2) {
+                    throw new IOException("Invalid Base64 padding at position " + (position - 1));
+                }
+                padding++;
+                continue;
+            }
+            if (padding > 0 || padded) {
+                throw new IOException("Base64 data continues after padding at position " + (position - 1));
+            }
+            byte value = c < DECODING_TABLE.length ? DECODING_TABLE[c] : -1;
+            if (value == -1) {
+                throw new IOException("Invalid Base64 character at position " + (position - 1));
+            }
+            bits = (bits << 6) | value;
+            characters++;
+        }
+
+        if (padding > 0) {
+            padded = true;
+        }
+        if (characters == 0) {
+            return false;
+        }
+        if (characters == 1) {
+            throw new IOException("Truncated Base64 data");
+        }
+
+        bits <<= 6 * (4 - characters);
+        quantum[0] = (byte) (bits >> 16);
+        quantum[1] = (byte) (bits >> 8);
+        quantum[2] = (byte) bits;
+        quantumLength = characters - 1;
+        return true;
+    }
+
+    /**
+     * Gets the next non-whitespace character of the encoded data.
+     * 
+     * @return the next non-whitespace character, or -1 if the end of the encoded data was reached
+     */
+    private int nextCharacter() {
+        while (position < encoded.length()) {
+            char c = encoded.charAt(position++);
+            if (!Character.isWhitespace(c)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+}
@@ -16,8 +16,7 @@
 
 package org.opensaml.common.binding.decoding;
 
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.URISyntaxException;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -42,9 +41,13 @@ public abstract class BaseSAMLMessageDecoder extends BaseMessageDecoder implemen
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(BaseSAMLMessageDecoder.class);
 
+    /** Comparator used to check the intended message destination against the receiver endpoint. */
+    private URIComparator uriComparator;
+
     /** Constructor. */
     public BaseSAMLMessageDecoder() {
         super();
+        uriComparator = new BasicURLComparator();
     }
 
     /**
@@ -54,6 +57,30 @@ public abstract class BaseSAMLMessageDecoder extends BaseMessageDecoder implemen
      */
     public BaseSAMLMessageDecoder(ParserPool pool) {
         super(pool);
+        uriComparator = new BasicURLComparator();
+    }
+
+    /**
+     * Gets the comparator used to check the intended message destination endpoint URI against the receiver endpoint
+     * URI.
+     * 
+     * @return the endpoint URI comparator
+     */
+    public URIComparator getURIComparator() {
+        return uriComparator;
+    }
+
+    /**
+     * Sets the comparator used to check the intended message destination endpoint URI against the receiver endpoint
+     * URI.
+     * 
+     * @param comparator the endpoint URI comparator
+     */
+    public void setURIComparator(URIComparator comparator) {
+        if (comparator == null) {
+            throw new IllegalArgumentException("URI comparator may not be null");
+        }
+        uriComparator = comparator;
     }
 
     /**
@@ -129,8 +156,9 @@ public abstract class BaseSAMLMessageDecoder extends BaseMessageDecoder implemen
     /**
      * Compare the message endpoint URI's specified.
      * 
-     * <p>This default implementation handles endpoint URI's that are URL's.  Comparison is handled
-     * via constructing {@link URL} instances and using that implementation's equals() method.</p>
+     * <p>This default implementation delegates to the configured {@link URIComparator}, by default a
+     * {@link BasicURLComparator} which handles endpoint URI's that are URL's without resolving their
+     * host names.</p>
      * 
      * <p>Subclasses should override if binding-specific behavior is required, or to support other
      * types of URI's.  In this case, see also {@link #getActualReceiverEndpointURI(SAMLMessageContext)}.</p>
@@ -143,23 +171,16 @@ public abstract class BaseSAMLMessageDecoder extends BaseMessageDecoder implemen
     protected boolean compareEndpointURIs(String messageDestination, String receiverEndpoint) 
             throws MessageDecodingException {
         
-        URL messageURL = null;
         try {
-            messageURL = new URL(messageDestination);
-        } catch (MalformedURLException e) {
+            return uriComparator.compare(messageDestination, receiverEndpoint);
+        } catch (URISyntaxException e) {
+            if (DatatypeHelper.safeEquals(e.getInput(), receiverEndpoint)) {
+                log.error("Recipient endpoint URL was malformed in destination check: {}", e.getMessage());
+                throw new MessageDecodingException("Recipient endpoint URL was malformed in destination check");
+            }
             log.error("Message destination URL was malformed in destination check: {}", e.getMessage());
             throw new MessageDecodingException("Message destination URL was malformed in destination check");
         }
-        
-        URL endpointURL = null;
-        try {
-            endpointURL = new URL(receiverEndpoint);
-        } catch (MalformedURLException e) {
-            log.error("Recipient endpoint URL was malformed in destination check: {}", e.getMessage());
-            throw new MessageDecodingException("Recipient endpoint URL was malformed in destination check");
-        }
-        
-        return messageURL.equals(endpointURL);
     }
     
     /**
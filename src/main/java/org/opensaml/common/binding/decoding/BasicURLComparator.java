@@ -0,0 +1,288 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.common.binding.decoding;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.opensaml.xml.util.DatatypeHelper;
+
+/**
+ * A {@link URIComparator} for endpoint URIs that are URLs, which compares them purely syntactically and so, unlike
+ * {@link java.net.URL#equals(Object)}, never resolves host names.
+ * 
+ * Two URLs are equivalent if they have the same scheme and host, compared case-insensitively, the same port, where an
+ * omitted port and the default port of the scheme are the same, the same percent-decoded path, where an empty path
+ * and "/" are the same, and the same user information, query and fragment.
+ * 
+ * The parsed form of receiver endpoint URLs is cached. As a receiver endpoint may be reconstructed from the request,
+ * for example from its Host header, the cache holds at most {@link #getMaxCachedEndpoints()} endpoints and evicts the
+ * least recently used one when full.
+ */
+public class BasicURLComparator implements URIComparator {
+
+    /** Default maximum number of cached receiver endpoints. */
+    public static final int DEFAULT_MAX_CACHED_ENDPOINTS = 256;
+
+    /** Maximum number of cached receiver endpoints. */
+    private final int maxCachedEndpoints;
+
+    /** Parsed receiver endpoints, indexed by their string form, in least recently used order. */
+    private final Map<String, NormalizedURL> endpointCache;
+
+    /** Constructor. */
+    public BasicURLComparator() {
+        this(DEFAULT_MAX_CACHED_ENDPOINTS);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param maxEndpoints maximum number of receiver endpoints whose parsed form is cached, 0 to disable caching
+     */
+    public BasicURLComparator(int maxEndpoints) {
+        if (maxEndpoints < 0) {
+            throw new IllegalArgumentException("Maximum number of cached endpoints may not be negative");
+        }
+        maxCachedEndpoints = maxEndpoints;
+        endpointCache = new LinkedHashMap<String, NormalizedURL>(16, 0.75f, true) {
+
+            /** Serial version UID. */
+            private static final long serialVersionUID = 4913785402573512069L;
+
+            /** {@inheritDoc} */
+            protected boolean removeEldestEntry(Map.Entry<String, NormalizedURL> eldest) {
+                return size() > maxCachedEndpoints;
+            }
+        };
+    }
+
+    /**
+     * Gets the maximum number of receiver endpoints whose parsed form is cached.
+     * 
+     * @return maximum number of cached receiver endpoints
+     */
+    public int getMaxCachedEndpoints() {
+        return maxCachedEndpoints;
+    }
+
+    /**
+     * Gets the number of receiver endpoints whose parsed form is currently cached.
+     * 
+     * @return number of cached receiver endpoints
+     */
+    public int getCachedEndpointCount() {
+        synchronized (endpointCache) {
+            return endpointCache.size();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean compare(String messageDestination, String receiverEndpoint) throws URISyntaxException {
+        NormalizedURL endpointURL = getReceiverEndpoint(receiverEndpoint);
+        return normalize(messageDestination).equals(endpointURL);
+    }
+
+    /**
+     * Gets the parsed form of a receiver endpoint, from the cache if possible.
+     * 
+     * @param receiverEndpoint the receiver endpoint URL
+     * 
+     * @return the parsed receiver endpoint
+     * 
+     * @throws URISyntaxException thrown if the receiver endpoint is not a valid URL
+     */
+    private NormalizedURL getReceiverEndpoint(String receiverEndpoint) throws URISyntaxException {
+        if (maxCachedEndpoints == 0) {
+            return normalize(receiverEndpoint);
+        }
+
+        NormalizedURL endpointURL;
+        synchronized (endpointCache) {
+            endpointURL = endpointCache.get(receiverEndpoint);
+        }
+        if (endpointURL == null) {
+            endpointURL = normalize(receiverEndpoint);
+            synchronized (endpointCache) {
+                endpointCache.put(receiverEndpoint, endpointURL);
+            }
+        }
+        return endpointURL;
+    }
+
+    /**
+     * Parses and normalizes a URL.
+     * 
+     * @param url the URL
+     * 
+     * @return the normalized URL
+     * 
+     * @throws URISyntaxException thrown if the URL can not be parsed or is not an absolute, hierarchical URL with an
+     *             authority
+     */
+    protected NormalizedURL normalize(String url) throws URISyntaxException {
+        if (url == null) {
+            throw new URISyntaxException("null", "URL may not be null");
+        }
+
+        URI uri = new URI(url);
+        if (uri.getScheme() == null || uri.isOpaque() || uri.getRawAuthority() == null) {
+            throw new URISyntaxException(url, "Not an absolute URL with an authority");
+        }
+        String scheme = uri.getScheme().toLowerCase(Locale.ENGLISH);
+
+        String userInfo;
+        String host;
+        int port;
+        if (uri.getHost() != null) {
+            userInfo = uri.getRawUserInfo();
+            host = uri.getHost();
+            port = uri.getPort();
+        } else {
+            // registry based authority, for example a host name containing an underscore
+            String authority = uri.getRawAuthority();
+            int userInfoEnd = authority.lastIndexOf('@');
+            userInfo = userInfoEnd < 0 ? null : authority.substring(0, userInfoEnd);
+            host = authority.substring(userInfoEnd + 1);
+            port = -1;
+            int portStart = host.lastIndexOf(':');
+            if (portStart >= 0 && host.indexOf(']') < portStart) {
+                String portString = host.substring(portStart + 1);
+                host = host.substring(0, portStart);
+                if (portString.length() > 0) {
+                    try {
+                        port = Integer.parseInt(portString);
+                    } catch (NumberFormatException e) {
+                        throw new URISyntaxException(url, "Invalid port");
+                    }
+                }
+            }
+        }
+        if (host.length() == 0) {
+            throw new URISyntaxException(url, "URL has no host");
+        }
+        host = host.toLowerCase(Locale.ENGLISH);
+        if (port == getDefaultPort(scheme)) {
+            port = -1;
+        }
+
+        String path = uri.getPath();
+        if (path == null || path.length() == 0) {
+            path = "/";
+        }
+
+        return new NormalizedURL(scheme, userInfo, host, port, path, uri.getRawQuery(), uri.getRawFragment());
+    }
+
+    /**
+     * Gets the default port of a URL scheme.
+     * 
+     * @param scheme the lower case scheme
+     * 
+     * @return the default port of the scheme, or -1 if not known
+     */
+    protected int getDefaultPort(String scheme) {
+        if ("http".equals(scheme)) {
+            return 80;
+        } else if ("https".equals(scheme)) {
+            return 443;
+        }
+        return -1;
+    }
+
+    /**
+     * The normalized components of a URL.
+     */
+    protected static final class NormalizedURL {
+
+        /** Lower case scheme. */
+        private final String scheme;
+
+        /** Raw user information, may be null. */
+        private final String userInfo;
+
+        /** Lower case host. */
+        private final String host;
+
+        /** Port, -1 if it is the default port of the scheme. */
+        private final int port;
+
+        /** Percent-decoded path. */
+        private final String path;
+
+        /** Raw query, may be null. */
+        private final String query;
+
+        /** Raw fragment, may be null. */
+        private final String fragment;
+
+        /**
+         * Constructor.
+         * 
+         * @param urlScheme lower case scheme
+         * @param urlUserInfo raw user information, may be null
+         * @param urlHost lower case host
+         * @param urlPort port, -1 if it is the default port of the scheme
+         * @param urlPath percent-decoded path
+         * @param urlQuery raw query, may be null
+         * @param urlFragment raw fragment, may be null
+         */
+        public NormalizedURL(String urlScheme, String urlUserInfo, String urlHost, int urlPort, String urlPath,
+                String urlQuery, String urlFragment) {
+            scheme = urlScheme;
+            userInfo = urlUserInfo;
+            host = urlHost;
+            port = urlPort;
+            path = urlPath;
+            query = urlQuery;
+            fragment = urlFragment;
+        }
+
+        /** {@inheritDoc} */
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            if (!(obj instanceof NormalizedURL)) {
+                return false;
+            }
+
+            NormalizedURL other = (NormalizedURL) obj;
+            return port == other.port && scheme.equals(other.scheme) && host.equals(other.host)
+                    && path.equals(other.path) && DatatypeHelper.safeEquals(userInfo, other.userInfo)
+                    && DatatypeHelper.safeEquals(query, other.query)
+                    && DatatypeHelper.safeEquals(fragment, other.fragment);
+        }
+
+        /** {@inheritDoc} */
+        public int hashCode() {
+            int hash = scheme.hashCode();
+            hash = 31 * hash + host.hashCode();
+            hash = 31 * hash + port;
+            hash = 31 * hash + path.hashCode();
+            return hash;
+        }
+
+        /** {@inheritDoc} */
+        public String toString() {
+            return scheme + "://" + (userInfo == null ? "" : userInfo + "@") + host + (port == -1 ? "" : ":" + port)
+                    + path + (query == null ? "" : "?" + query) + (fragment == null ? "" : "#" + fragment);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.common.binding.decoding;
+
+import java.net.URISyntaxException;
+
+/**
+ * Compares the intended destination endpoint URI of a SAML message with the endpoint URI at which the message was
+ * received. Implementations must be safe for concurrent use and should not perform any network I/O, such as DNS
+ * lookups, since they are invoked for every inbound message.
+ */
+public interface URIComparator {
+
+    /**
+     * Compares the intended destination endpoint URI of a message with the endpoint URI at which it was received.
+     * 
+     * @param messageDestination the intended message destination endpoint URI
+     * @param receiverEndpoint the endpoint URI at which the message was received
+     * 
+     * @return true if the endpoints are equivalent, false otherwise
+     * 
+     * @throws URISyntaxException thrown if either URI can not be parsed, the input of the exception is the offending
+     *             URI
+     */
+    public boolean compare(String messageDestination, String receiverEndpoint) throws URISyntaxException;
+}
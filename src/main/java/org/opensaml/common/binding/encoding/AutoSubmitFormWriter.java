@@ -0,0 +1,274 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.common.binding.encoding;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Writes, as UTF-8, an XHTML page containing a form of hidden controls that is automatically submitted by the browser
+ * via POST, as used by the HTTP POST based bindings.
+ *
+ * The markup is fixed, only the form action and the names and values of the controls vary, and is written straight to
+ * the output stream, with the variable parts HTML escaped. The value of a control may also be streamed through the
+ * writer returned by {@link #startControl(String)}, so that a large value, such as an encoded SAML message, never has
+ * to be held in memory as a whole. Deployments that need custom markup may instead use a Velocity template with the
+ * encoders that support it.
+ */
+public class AutoSubmitFormWriter {
+
+    /** Markup preceding the form action. */
+    private static final String FORM_START = "<html xmlns=\"http://www.w3.org/1999/xhtml\" xml:lang=\"en\">\n"
+            + "    <body onload=\"document.forms[0].submit()\">\n"
+            + "        <noscript>\n"
+            + "            <p>\n"
+            + "                <strong>Note:</strong> Since your browser does not support JavaScript,\n"
+            + "                you must press the Continue button once to proceed.\n"
+            + "            </p>\n"
+            + "        </noscript>\n"
+            + "        <form action=\"";
+
+    /** Markup between the form action and the first control. */
+    private static final String FORM_ACTION_END = "\" method=\"post\">\n            <div>\n";
+
+    /** Markup preceding the name of a control. */
+    private static final String CONTROL_START = "                <input type=\"hidden\" name=\"";
+
+    /** Markup between the name and the value of a control. */
+    private static final String CONTROL_VALUE = "\" value=\"";
+
+    /** Markup following the value of a control. */
+    private static final String CONTROL_END = "\"/>\n";
+
+    /** Markup following the last control. */
+    private static final String FORM_END = "            </div>\n"
+            + "            <noscript>\n"
+            + "                <div>\n"
+            + "                    <input type=\"submit\" value=\"Continue\"/>\n"
+            + "                </div>\n"
+            + "            </noscript>\n"
+            + "        </form>\n"
+            + "    </body>\n"
+            + "</html>\n";
+
+    /** UTF-8 character set. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Writer encoding the page to the output stream. */
+    private final Writer writer;
+
+    /** Writer escaping the value of a control, created on first use. */
+    private Writer controlValueWriter;
+
+    /**
+     * Constructor.
+     *
+     * @param out stream the page is written to, it is flushed but not closed by this writer
+     */
+    public AutoSubmitFormWriter(OutputStream out) {
+        if (out == null) {
+            throw new IllegalArgumentException("Output stream may not be null");
+        }
+        writer = new OutputStreamWriter(out, UTF8);
+    }
+
+    /**
+     * Writes a complete page.
+     *
+     * @param action the URL the form is submitted to
+     * @param controls names and values of the hidden form controls, controls with a null value are omitted
+     *
+     * @throws IOException thrown if the page can not be written
+     */
+    public void writeForm(String action, Map<String, String> controls) throws IOException {
+        startForm(action);
+        for (Entry<String, String> control : controls.entrySet()) {
+            if (control.getValue() != null) {
+                writeControl(control.getKey(), control.getValue());
+            }
+        }
+        endForm();
+    }
+
+    /**
+     * Writes the markup preceding the form controls.
+     *
+     * @param action the URL the form is submitted to
+     *
+     * @throws IOException thrown if the markup can not be written
+     */
+    public void startForm(String action) throws IOException {
+        writer.write(FORM_START);
+        writeEscaped(writer, action);
+        writer.write(FORM_ACTION_END);
+    }
+
+    /**
+     * Writes a hidden form control.
+     *
+     * @param name name of the control
+     * @param value value of the control
+     *
+     * @throws IOException thrown if the control can not be written
+     */
+    public void writeControl(String name, String value) throws IOException {
+        startControl(name);
+        writeEscaped(writer, value);
+        endControl();
+    }
+
+    /**
+     * Writes the markup preceding the value of a hidden form control. The value is then written, HTML escaped, through
+     * the returned writer, followed by a call to {@link #endControl()}. Closing the returned writer has no effect.
+     *
+     * @param name name of the control
+     *
+     * @return writer the value of the control is written to
+     *
+     * @throws IOException thrown if the markup can not be written
+     */
+    public Writer startControl(String name) throws IOException {
+        writer.write(CONTROL_START);
+        writeEscaped(writer, name);
+        writer.write(CONTROL_VALUE);
+        if (controlValueWriter == null) {
+            controlValueWriter = new EscapingWriter();
+        }
+        return controlValueWriter;
+    }
+
+    /**
+     * Writes the markup following the value of a hidden form control.
+     *
+     * @throws IOException thrown if the markup can not be written
+     */
+    public void endControl() throws IOException {
+        writer.write(CONTROL_END);
+    }
+
+    /**
+     * Writes the markup following the form controls and flushes the page to the output stream.
+     *
+     * @throws IOException thrown if the markup can not be written
+     */
+    public void endForm() throws IOException {
+        writer.write(FORM_END);
+        writer.flush();
+    }
+
+    /**
+     * Writes a string, escaping the characters that are markup in HTML attribute values and text.
+     *
+     * @param out writer the string is written to
+     * @param value the string to write
+     *
+     * @throws IOException thrown if the string can not be written
+     */
+    protected static void writeEscaped(Writer out, String value) throws IOException {
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            String entity = getEntity(value.charAt(i));
+            if (entity != null) {
+                out.write(value, start, i - start);
+                out.write(entity);
+                start = i + 1;
+            }
+        }
+        out.write(value, start, value.length() - start);
+    }
+
+    /**
+     * Writes characters, escaping those that are markup in HTML attribute values and text.
+     *
+     * @param out writer the characters are written to
+     * @param value array containing the characters to write
+     * @param off offset of the first character to write
+     * @param len number of characters to write
+     *
+     * @throws IOException thrown if the characters can not be written
+     */
+    protected static void writeEscaped(Writer out, char[] value, int off, int len) throws IOException {
+        int start = off;
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            String entity = getEntity(value[i]);
+            if (entity != null) {
+                out.write(value, start, i - start);
+                out.write(entity);
+                start = i + 1;
+            }
+        }
+        out.write(value, start, end - start);
+    }
+
+    /**
+     * Gets the entity reference replacing a character that is markup in HTML attribute values and text.
+     *
+     * @param c the character
+     *
+     * @return the entity reference or null if the character need not be escaped
+     */
+    protected static String getEntity(char c) {
+        switch (c) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '"':
+                return "&quot;";
+            case '\'':
+                return "&#39;";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Writer HTML escaping the characters written to it before passing them on to the writer of the page.
+     */
+    private class EscapingWriter extends Writer {
+
+        /** {@inheritDoc} */
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off + len > cbuf.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            writeEscaped(writer, cbuf, off, len);
+        }
+
+        /** {@inheritDoc} */
+        public void write(String str, int off, int len) throws IOException {
+            writeEscaped(writer, str.substring(off, off + len));
+        }
+
+        /** {@inheritDoc} */
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        /** {@inheritDoc} */
+        public void close() {
+            // the page is completed by endControl and endForm
+        }
+    }
+}
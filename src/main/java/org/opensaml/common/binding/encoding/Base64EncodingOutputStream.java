@@ -0,0 +1,196 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.common.binding.encoding;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * An output stream which Base64 encodes the bytes written to it and writes the encoded characters, without line
+ * breaks, to a {@link Writer}. Encoded characters are collected in a small, fixed size buffer before being handed to
+ * the writer, so the data being encoded never has to be held in memory as a whole.
+ * 
+ * The final, padded, quantum is only written by {@link #finish()} or {@link #close()}.
+ */
+public class Base64EncodingOutputStream extends OutputStream {
+
+    /** Default size, in characters, of the buffer of encoded characters. */
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /** The Base64 alphabet. */
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    /** Writer the encoded characters are written to. */
+    private final Writer out;
+
+    /** Buffer of encoded characters not yet written to the writer. */
+    private final char[] buffer;
+
+    /** Number of characters in the buffer. */
+    private int bufferLength;
+
+    /** Bytes of the current, incomplete, quantum. */
+    private int bits;
+
+    /** Number of bytes in the current quantum. */
+    private int quantumLength;
+
+    /** Whether the final quantum has been written. */
+    private boolean finished;
+
+    /**
+     * Constructor.
+     * 
+     * @param writer writer the encoded characters are written to
+     */
+    public Base64EncodingOutputStream(Writer writer) {
+        this(writer, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param writer writer the encoded characters are written to
+     * @param bufferSize size, in characters, of the buffer of encoded characters, at least 4
+     */
+    public Base64EncodingOutputStream(Writer writer, int bufferSize) {
+        if (writer == null) {
+            throw new IllegalArgumentException("Writer may not be null");
+        }
+        if (bufferSize < 4) {
+            throw new IllegalArgumentException("Buffer size must be at least 4 characters");
+        }
+        out = writer;
+        buffer = new char[bufferSize - bufferSize % 4];
+    }
+
+    /** {@inheritDoc} */
+    public void write(int b) throws IOException {
+        if (finished) {
+            throw new IOException("Base64 encoding has already been finished");
+        }
+        bits = (bits << 8) | (b & 0xFF);
+        quantumLength++;
+        if (quantumLength == 3) {
+            encodeQuantum();
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (finished) {
+            throw new IOException("Base64 encoding has already been finished");
+        }
+
+        int end = off + len;
+        int i = off;
+        while (i < end && quantumLength != 0) {
+            write(b[i++]);
+        }
+        while (end - i >= 3) {
+            if (bufferLength == buffer.length) {
+                flushBuffer();
+            }
+            int quantum = ((b[i] & 0xFF) << 16) | ((b[i + 1] & 0xFF) << 8) | (b[i + 2] & 0xFF);
+            buffer[bufferLength++] = ALPHABET[quantum >>> 18];
+            buffer[bufferLength++] = ALPHABET[(quantum >>> 12) & 0x3F];
+            buffer[bufferLength++] = ALPHABET[(quantum >>> 6) & 0x3F];
+            buffer[bufferLength++] = ALPHABET[quantum & 0x3F];
+            i += 3;
+        }
+        while (i < end) {
+            write(b[i++]);
+        }
+    }
+
+    /**
+     * Writes any buffered characters to the writer and flushes it. The current quantum is not padded, so more bytes
+     * may still be written.
+     * 
+     * @throws IOException thrown if the characters can not be written
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    /**
+     * Writes the final, padded, quantum and any buffered characters to the writer, without closing it. No more bytes
+     * may be written afterwards.
+     * 
+     * @throws IOException thrown if the characters can not be written
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (quantumLength > 0) {
+            int padding = 3 - quantumLength;
+            bits <<= 8 * padding;
+            quantumLength = 3;
+            encodeQuantum();
+            for (int i = 0; i < padding; i++) {
+                buffer[bufferLength - 1 - i] = '=';
+            }
+        }
+        finished = true;
+        flushBuffer();
+    }
+
+    /**
+     * Finishes the encoding and closes the writer.
+     * 
+     * @throws IOException thrown if the characters can not be written or the writer can not be closed
+     */
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    /**
+     * Encodes the current, complete, quantum into the buffer.
+     * 
+     * @throws IOException thrown if the buffer was full and could not be written
+     */
+    private void encodeQuantum() throws IOException {
+        if (bufferLength == buffer.length) {
+            flushBuffer();
+        }
+        buffer[bufferLength++] = ALPHABET[(bits >>> 18) & 0x3F];
+        buffer[bufferLength++] = ALPHABET[(bits >>> 12) & 0x3F];
+        buffer[bufferLength++] = ALPHABET[(bits >>> 6) & 0x3F];
+        buffer[bufferLength++] = ALPHABET[bits & 0x3F];
+        bits = 0;
+        quantumLength = 0;
+    }
+
+    /**
+     * Writes the buffered characters to the writer.
+     * 
+     * @throws IOException thrown if the characters can not be written
+     */
+    private void flushBuffer() throws IOException {
+        if (bufferLength > 0) {
+            out.write(buffer, 0, bufferLength);
+            bufferLength = 0;
+        }
+    }
+}
@@ -16,7 +16,6 @@
 
 package org.opensaml.common.xml;
 
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -43,16 +42,18 @@ import org.xml.sax.SAXException;
  * Schemas may use a schema location attribute. These schema locations will be resolved by the {@link ClasspathResolver}.
  * If schema locations are used they will be resolved and will meet the aformentioned schema ordering requirement.
  * 
- * The schema objects produced here are thread safe and should be re-used, to that end the schema builder will cache
- * created schema using {@link SoftReference}s, allowing the VM to reclaim the memory used by schemas if necessary.
+ * The schema objects produced here are thread safe and should be re-used, to that end the schema builder caches the
+ * created schema. A cached schema is only discarded, and rebuilt on its next use, when the set of registered extension
+ * schemas changes. Schemas are held strongly so that they are not reclaimed, and expensively recompiled, when memory
+ * is short. {@link #initialize()} may be used to compile the schemas eagerly, for example at startup.
  */
 public final class SAMLSchemaBuilder {
 
     /** SAML 1_0 Schema with SAML 2_0 schemas and extensions. */
-    private static SoftReference<Schema> saml10Schema;
+    private static Schema saml10Schema;
 
-    /** SAML 1_0 Schema with SAML 2_0 schemas and extensions. */
-    private static SoftReference<Schema> saml11Schema;
+    /** SAML 1_1 Schema with SAML 2_0 schemas and extensions. */
+    private static Schema saml11Schema;
 
     /** Classpath relative location of basic XML schemas. */
     private static String[] baseXMLSchemas = { "/schema/xml.xsd", "/schema/XMLSchema.xsd",
@@ -112,11 +113,11 @@ public final class SAMLSchemaBuilder {
      * @throws SAXException thrown if a schema object can not be created
      */
     public static synchronized Schema getSAML10Schema() throws SAXException {
-        if (saml10Schema == null || saml10Schema.get() == null) {
-            saml10Schema = new SoftReference<Schema>(buildSchema(saml10Schemas));
+        if (saml10Schema == null) {
+            saml10Schema = buildSchema(saml10Schemas);
         }
 
-        return saml10Schema.get();
+        return saml10Schema;
     }
 
     /**
@@ -127,11 +128,21 @@ public final class SAMLSchemaBuilder {
      * @throws SAXException thrown if a schema object can not be created
      */
     public static synchronized Schema getSAML11Schema() throws SAXException {
-        if (saml11Schema == null || saml11Schema.get() == null) {
-            saml11Schema = new SoftReference<Schema>(buildSchema(saml11Schemas));
+        if (saml11Schema == null) {
+            saml11Schema = buildSchema(saml11Schemas);
         }
 
-        return saml11Schema.get();
+        return saml11Schema;
+    }
+
+    /**
+     * Compiles, if they are not already cached, the SAML 1.0 and SAML 1.1 schemas.
+     * 
+     * @throws SAXException thrown if a schema object can not be created
+     */
+    public static synchronized void initialize() throws SAXException {
+        getSAML10Schema();
+        getSAML11Schema();
     }
 
     /**
@@ -139,16 +150,21 @@ public final class SAMLSchemaBuilder {
      * 
      * @return unmodifiable list of currently registered schema extension
      */
-    public static List<String> getExtensionSchema() {
-        return Collections.unmodifiableList(extensionSchema);
+    public static synchronized List<String> getExtensionSchema() {
+        return Collections.unmodifiableList(new ArrayList<String>(extensionSchema));
     }
 
     /**
-     * Registers a new schema extension. The schema location will be searched for on the classpath.
+     * Registers a new schema extension. The schema location will be searched for on the classpath. Registering a
+     * schema extension that is already registered has no effect and does not cause the cached schemas to be rebuilt.
      * 
      * @param schema new schema extension
      */
-    public static void addExtensionSchema(String schema) {
+    public static synchronized void addExtensionSchema(String schema) {
+        if (extensionSchema.contains(schema)) {
+            return;
+        }
+
         extensionSchema.add(schema);
 
         saml10Schema = null;
@@ -161,16 +177,14 @@ public final class SAMLSchemaBuilder {
      * 
      * @param schema currently registered schema
      */
-    public static void removeSchema(String schema) {
-        extensionSchema.remove(schema);
-
-        synchronized (saml10Schema) {
-            saml10Schema = null;
+    public static synchronized void removeSchema(String schema) {
+        if (!extensionSchema.remove(schema)) {
+            return;
         }
 
-        synchronized (saml11Schema) {
-            saml11Schema = null;
-        }
+        saml10Schema = null;
+
+        saml11Schema = null;
     }
 
     /**
@@ -301,10 +301,10 @@ public abstract class BaseSAML1MessageDecoder extends BaseSAMLMessageDecoder {
 
                 QName relyingPartyRole = messageContext.getPeerEntityRole();
                 if (relyingPartyMD != null && relyingPartyRole != null) {
-                    List<RoleDescriptor> roles = relyingPartyMD.getRoleDescriptors(relyingPartyRole,
+                    RoleDescriptor role = relyingPartyMD.getRoleDescriptor(relyingPartyRole,
                             SAMLConstants.SAML11P_NS);
-                    if (roles != null && roles.size() > 0) {
-                        messageContext.setPeerEntityRoleMetadata(roles.get(0));
+                    if (role != null) {
+                        messageContext.setPeerEntityRoleMetadata(role);
                     }
                 }
             }
@@ -16,19 +16,21 @@
 
 package org.opensaml.saml2.binding.decoding;
 
-import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.LinkedList;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 import org.opensaml.common.SAMLObject;
 import org.opensaml.common.binding.SAMLMessageContext;
+import org.opensaml.common.binding.decoding.Base64DecodingInputStream;
 import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.ws.message.MessageContext;
 import org.opensaml.ws.message.decoder.MessageDecodingException;
 import org.opensaml.ws.transport.http.HTTPInTransport;
 import org.opensaml.xml.parse.ParserPool;
-import org.opensaml.xml.util.Base64;
 import org.opensaml.xml.util.DatatypeHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,15 +39,38 @@ import org.slf4j.LoggerFactory;
  * SAML 2.0 HTTP Redirect decoder using the DEFLATE encoding method.
  * 
  * This decoder only supports DEFLATE compression.
+ * 
+ * The message is Base64 decoded and inflated as it is parsed, without first decoding it into a byte array. Inflaters
+ * are pooled and reused across messages, and the native resources of inflaters that are not returned to the pool are
+ * released immediately. A message which inflates to more than {@link #getMaxInflatedMessageSize()} bytes is rejected as
+ * soon as that size is exceeded.
  */
 public class HTTPRedirectDeflateDecoder extends BaseSAML2MessageDecoder {
 
+    /** Default maximum size, in bytes, of an inflated message. */
+    public static final int DEFAULT_MAX_INFLATED_MESSAGE_SIZE = 256 * 1024;
+
+    /** Default maximum number of idle inflaters kept in the pool. */
+    public static final int DEFAULT_MAX_POOLED_INFLATERS = 16;
+
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(HTTPRedirectDeflateDecoder.class);
 
+    /** Maximum size, in bytes, of an inflated message. */
+    private int maxInflatedMessageSize;
+
+    /** Maximum number of idle inflaters kept in the pool. */
+    private int maxPooledInflaters;
+
+    /** Idle inflaters. */
+    private final LinkedList<Inflater> inflaterPool;
+
     /** Constructor. */
     public HTTPRedirectDeflateDecoder() {
         super();
+        maxInflatedMessageSize = DEFAULT_MAX_INFLATED_MESSAGE_SIZE;
+        maxPooledInflaters = DEFAULT_MAX_POOLED_INFLATERS;
+        inflaterPool = new LinkedList<Inflater>();
     }
 
     /**
@@ -55,6 +80,51 @@ public class HTTPRedirectDeflateDecoder extends BaseSAML2MessageDecoder {
      */
     public HTTPRedirectDeflateDecoder(ParserPool pool) {
         super(pool);
+        maxInflatedMessageSize = DEFAULT_MAX_INFLATED_MESSAGE_SIZE;
+        maxPooledInflaters = DEFAULT_MAX_POOLED_INFLATERS;
+        inflaterPool = new LinkedList<Inflater>();
+    }
+
+    /**
+     * Gets the maximum size of an inflated message.
+     * 
+     * @return maximum size, in bytes, of an inflated message
+     */
+    public int getMaxInflatedMessageSize() {
+        return maxInflatedMessageSize;
+    }
+
+    /**
+     * Sets the maximum size of an inflated message.
+     * 
+     * @param size maximum size, in bytes, of an inflated message
+     */
+    public void setMaxInflatedMessageSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Maximum inflated message size must be greater than 0");
+        }
+        maxInflatedMessageSize = size;
+    }
+
+    /**
+     * Gets the maximum number of idle inflaters kept in the pool.
+     * 
+     * @return maximum number of idle inflaters kept in the pool
+     */
+    public int getMaxPooledInflaters() {
+        return maxPooledInflaters;
+    }
+
+    /**
+     * Sets the maximum number of idle inflaters kept in the pool.
+     * 
+     * @param max maximum number of idle inflaters kept in the pool, 0 to disable pooling
+     */
+    public void setMaxPooledInflaters(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("Maximum number of pooled inflaters may not be negative");
+        }
+        maxPooledInflaters = max;
     }
 
     /** {@inheritDoc} */
@@ -102,7 +172,16 @@ public class HTTPRedirectDeflateDecoder extends BaseSAML2MessageDecoder {
                     "No SAMLRequest or SAMLResponse query path parameter, invalid SAML 2 HTTP Redirect message");
         }
 
-        SAMLObject samlMessage = (SAMLObject) unmarshallMessage(samlMessageIns);
+        SAMLObject samlMessage;
+        try {
+            samlMessage = (SAMLObject) unmarshallMessage(samlMessageIns);
+        } finally {
+            try {
+                samlMessageIns.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
         samlMsgCtx.setInboundSAMLMessage(samlMessage);
         samlMsgCtx.setInboundMessage(samlMessage);
         log.debug("Decoded SAML message");
@@ -118,7 +197,9 @@ public class HTTPRedirectDeflateDecoder extends BaseSAML2MessageDecoder {
     }
 
     /**
-     * Base64 decodes the SAML message and then decompresses the message.
+     * Returns a stream which Base64 decodes and then decompresses the message as it is read. Errors in the encoding
+     * of the message, and messages exceeding the maximum inflated size, are reported as {@link IOException}s when
+     * the stream is read. The stream must be closed once read so that its inflater is returned to the pool.
      * 
      * @param message Base64 encoded, DEFALTE compressed, SAML message
      * 
@@ -129,19 +210,119 @@ public class HTTPRedirectDeflateDecoder extends BaseSAML2MessageDecoder {
     protected InputStream decodeMessage(String message) throws MessageDecodingException {
         log.debug("Base64 decoding and inflating SAML message");
 
-        byte[] decodedBytes = Base64.decode(message);
-        if(decodedBytes == null){
-            log.error("Unable to Base64 decode incoming message");
-            throw new MessageDecodingException("Unable to Base64 decode incoming message");
-        }
-        
+        Inflater inflater = borrowInflater();
         try {
-            ByteArrayInputStream bytesIn = new ByteArrayInputStream(decodedBytes);
-            InflaterInputStream inflater = new InflaterInputStream(bytesIn, new Inflater(true));
-            return inflater;
-        } catch (Exception e) {
+            InputStream decodedIn = new Base64DecodingInputStream(message);
+            return new BoundedInflaterInputStream(new InflaterInputStream(decodedIn, inflater, 512), inflater);
+        } catch (RuntimeException e) {
+            inflater.end();
             log.error("Unable to Base64 decode and inflate SAML message", e);
             throw new MessageDecodingException("Unable to Base64 decode and inflate SAML message", e);
         }
     }
+
+    /**
+     * Gets an idle inflater from the pool, or creates a new one if none is available.
+     * 
+     * @return an inflater for raw DEFLATE data
+     */
+    private Inflater borrowInflater() {
+        synchronized (inflaterPool) {
+            if (!inflaterPool.isEmpty()) {
+                return inflaterPool.removeFirst();
+            }
+        }
+        return new Inflater(true);
+    }
+
+    /**
+     * Resets an inflater and returns it to the pool, or releases its native resources if the pool is full.
+     * 
+     * @param inflater the inflater
+     */
+    private void returnInflater(Inflater inflater) {
+        inflater.reset();
+        synchronized (inflaterPool) {
+            if (inflaterPool.size() < maxPooledInflaters) {
+                inflaterPool.addFirst(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+    /**
+     * A stream of an inflated message which fails once more than the maximum inflated message size has been read, and
+     * which returns its inflater to the pool when closed.
+     */
+    private class BoundedInflaterInputStream extends FilterInputStream {
+
+        /** Inflater used by the underlying stream. */
+        private Inflater inflater;
+
+        /** Number of inflated bytes read. */
+        private long count;
+
+        /**
+         * Constructor.
+         * 
+         * @param in the inflating stream
+         * @param streamInflater the inflater used by the inflating stream
+         */
+        public BoundedInflaterInputStream(InputStream in, Inflater streamInflater) {
+            super(in);
+            inflater = streamInflater;
+        }
+
+        /** {@inheritDoc} */
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                count(1);
+            }
+            return read;
+        }
+
+        /** {@inheritDoc} */
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        /** {@inheritDoc} */
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        /** {@inheritDoc} */
+        public void close() throws IOException {
+            super.close();
+            Inflater closedInflater = inflater;
+            inflater = null;
+            if (closedInflater != null) {
+                returnInflater(closedInflater);
+            }
+        }
+
+        /**
+         * Adds to the number of inflated bytes read.
+         * 
+         * @param read number of inflated bytes read
+         * 
+         * @throws IOException thrown if the maximum inflated message size has been exceeded
+         */
+        private void count(long read) throws IOException {
+            count += read;
+            if (count > maxInflatedMessageSize) {
+                log.error("Inflated SAML message exceeds the maximum size of {} bytes", maxInflatedMessageSize);
+                throw new IOException("Inflated SAML message exceeds the maximum size of " + maxInflatedMessageSize
+                        + " bytes");
+            }
+        }
+    }
 }
\ No newline at end of file
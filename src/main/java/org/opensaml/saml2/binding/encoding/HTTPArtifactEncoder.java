@@ -17,13 +17,18 @@
 package org.opensaml.saml2.binding.encoding;
 
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
 import org.opensaml.Configuration;
 import org.opensaml.common.binding.SAMLMessageContext;
 import org.opensaml.common.binding.artifact.SAMLArtifactMap;
+import org.opensaml.common.binding.encoding.AutoSubmitFormWriter;
 import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.saml2.binding.artifact.AbstractSAML2Artifact;
 import org.opensaml.saml2.binding.artifact.SAML2ArtifactBuilder;
@@ -40,6 +45,10 @@ import org.slf4j.LoggerFactory;
 
 /**
  * SAML 2 Artifact Binding encoder, support both HTTP GET and POST.
+ * 
+ * When POST encoding is used, the POST body is written with an {@link AutoSubmitFormWriter} unless a Velocity engine
+ * and template are given. A given Velocity template is loaded from the engine once, on first use, and reused for every
+ * message.
  */
 public class HTTPArtifactEncoder extends BaseSAML2MessageEncoder {
 
@@ -55,12 +64,24 @@ public class HTTPArtifactEncoder extends BaseSAML2MessageEncoder {
     /** ID of the velocity template used when performing POST encoding. */
     private String velocityTemplateId;
 
+    /** Velocity template used when performing POST encoding, loaded on first use. */
+    private volatile Template velocityTemplate;
+
     /** SAML artifact map used to store created artifacts for later retrieval. */
     private SAMLArtifactMap artifactMap;
 
     /** Default artifact type to use when encoding messages. */
     private byte[] defaultArtifactType;
 
+    /**
+     * Constructor.
+     * 
+     * @param map artifact map used to store artifact/message bindings
+     */
+    public HTTPArtifactEncoder(SAMLArtifactMap map) {
+        this(null, null, map);
+    }
+
     /**
      * Constructor.
      * 
@@ -147,25 +168,62 @@ public class HTTPArtifactEncoder extends BaseSAML2MessageEncoder {
             throws MessageEncodingException {
         log.debug("Performing HTTP POST SAML 2 artifact encoding");
 
+        String endpointURL = getEndpointURL(artifactContext);
+        String encodedArtifact = buildArtifact(artifactContext).base64Encode();
+        String relayState = null;
+        if (checkRelayState(artifactContext.getRelayState())) {
+            relayState = HTTPTransportUtils.urlEncode(artifactContext.getRelayState());
+        }
+
+        if (velocityEngine == null) {
+            Map<String, String> formControls = new LinkedHashMap<String, String>();
+            formControls.put("RelayState", relayState);
+            formControls.put("SAMLart", encodedArtifact);
+            try {
+                log.debug("Writing POST form");
+                new AutoSubmitFormWriter(outTransport.getOutgoingStream()).writeForm(endpointURL, formControls);
+            } catch (Exception e) {
+                log.error("Error writing POST form", e);
+                throw new MessageEncodingException("Error creating output document", e);
+            }
+            return;
+        }
+
         log.debug("Creating velocity context");
         VelocityContext context = new VelocityContext();
-        context.put("action", getEndpointURL(artifactContext));
-        context.put("SAMLArt", buildArtifact(artifactContext).base64Encode());
-
-        if (checkRelayState(artifactContext.getRelayState())) {
-            context.put("RelayState", HTTPTransportUtils.urlEncode(artifactContext.getRelayState()));
+        context.put("action", endpointURL);
+        context.put("SAMLArt", encodedArtifact);
+        if (relayState != null) {
+            context.put("RelayState", relayState);
         }
 
         try {
             log.debug("Invoking velocity template");
-            OutputStreamWriter outWriter = new OutputStreamWriter(outTransport.getOutgoingStream());
-            velocityEngine.mergeTemplate(velocityTemplateId, "UTF-8", context, outWriter);
+            Writer outWriter = new OutputStreamWriter(outTransport.getOutgoingStream(), "UTF-8");
+            getVelocityTemplate().merge(context, outWriter);
+            outWriter.flush();
         } catch (Exception e) {
             log.error("Error invoking velocity template to create POST form", e);
             throw new MessageEncodingException("Error creating output document", e);
         }
     }
 
+    /**
+     * Gets the Velocity template used to create the POST form, loading it from the Velocity engine on first use.
+     * 
+     * @return the Velocity template
+     * 
+     * @throws Exception thrown if the template can not be loaded
+     */
+    private Template getVelocityTemplate() throws Exception {
+        Template template = velocityTemplate;
+        if (template == null) {
+            template = velocityEngine.getTemplate(velocityTemplateId, "UTF-8");
+            velocityTemplate = template;
+        }
+        return template;
+    }
+
     /**
      * Performs HTTP GET based encoding.
      * 
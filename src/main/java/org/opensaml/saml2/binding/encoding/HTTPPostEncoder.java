@@ -16,13 +16,22 @@
 
 package org.opensaml.saml2.binding.encoding;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
 
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
 import org.opensaml.common.SAMLObject;
 import org.opensaml.common.binding.SAMLMessageContext;
+import org.opensaml.common.binding.encoding.AutoSubmitFormWriter;
+import org.opensaml.common.binding.encoding.Base64EncodingOutputStream;
 import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.saml2.core.RequestAbstractType;
 import org.opensaml.saml2.core.StatusResponseType;
@@ -30,13 +39,17 @@ import org.opensaml.ws.message.MessageContext;
 import org.opensaml.ws.message.encoder.MessageEncodingException;
 import org.opensaml.ws.transport.http.HTTPOutTransport;
 import org.opensaml.ws.transport.http.HTTPTransportUtils;
-import org.opensaml.xml.util.Base64;
 import org.opensaml.xml.util.XMLHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * SAML 2.0 HTTP Post binding message encoder.
+ * 
+ * Unless a Velocity engine and template are given, the POST body is written with an {@link AutoSubmitFormWriter}.
+ * In that case the message is, where possible, serialized as UTF-8 and Base64 encoded straight into the POST body, so
+ * that neither the serialized nor the encoded message is ever held in memory as a whole. A given Velocity template is
+ * loaded from the engine once, on first use, and reused for every message.
  */
 public class HTTPPostEncoder extends BaseSAML2MessageEncoder {
 
@@ -49,6 +62,14 @@ public class HTTPPostEncoder extends BaseSAML2MessageEncoder {
     /** ID of the Velocity template used when performing POST encoding. */
     private String velocityTemplateId;
 
+    /** Velocity template used when performing POST encoding, loaded on first use. */
+    private volatile Template velocityTemplate;
+
+    /** Constructor. */
+    public HTTPPostEncoder() {
+        super();
+    }
+
     /**
      * Constructor.
      * 
@@ -117,19 +138,37 @@ public class HTTPPostEncoder extends BaseSAML2MessageEncoder {
      * @throws MessageEncodingException thrown if there is a problem encoding the message
      */
     protected void postEncode(SAMLMessageContext messageContext, String endpointURL) throws MessageEncodingException {
+        if (velocityEngine == null && isMessageStreamable(messageContext)) {
+            log.debug("Streaming POST body");
+            streamPostBody(messageContext, endpointURL);
+            return;
+        }
+
+        if (velocityEngine == null) {
+            log.debug("Writing POST body");
+            Map<String, String> formControls = new LinkedHashMap<String, String>();
+            populateFormControls(formControls, messageContext, endpointURL);
+
+            try {
+                HTTPOutTransport outTransport = prepareOutTransport(messageContext);
+                new AutoSubmitFormWriter(outTransport.getOutgoingStream()).writeForm(endpointURL, formControls);
+            } catch (Exception e) {
+                log.error("Error writing POST body", e);
+                throw new MessageEncodingException("Error creating output document", e);
+            }
+            return;
+        }
+
         log.debug("Invoking Velocity template to create POST body");
         try {
             VelocityContext context = new VelocityContext();
 
             populateVelocityContext(context, messageContext, endpointURL);
 
-            HTTPOutTransport outTransport = (HTTPOutTransport) messageContext.getOutboundMessageTransport();
-            HTTPTransportUtils.addNoCacheHeaders(outTransport);
-            HTTPTransportUtils.setUTF8Encoding(outTransport);
-            HTTPTransportUtils.setContentType(outTransport, "text/html");
+            HTTPOutTransport outTransport = prepareOutTransport(messageContext);
 
             Writer out = new OutputStreamWriter(outTransport.getOutgoingStream(), "UTF-8");
-            velocityEngine.mergeTemplate(velocityTemplateId, "UTF-8", context, out);
+            getVelocityTemplate().merge(context, out);
             out.flush();
         } catch (Exception e) {
             log.error("Error invoking Velocity template", e);
@@ -137,9 +176,95 @@ public class HTTPPostEncoder extends BaseSAML2MessageEncoder {
         }
     }
 
+    /**
+     * Gets whether, when no Velocity template is used, the message may be serialized and encoded straight into the
+     * POST body. The streamed POST body only contains the relay state and the message, so subclasses that populate
+     * additional form controls must return false whenever they do.
+     * 
+     * @param messageContext current message context
+     * 
+     * @return true if the message may be streamed into the POST body
+     */
+    protected boolean isMessageStreamable(SAMLMessageContext messageContext) {
+        return true;
+    }
+
+    /**
+     * Writes the POST body, serializing and Base64 encoding the message straight into it.
+     * 
+     * @param messageContext current message context
+     * @param endpointURL endpoint URL to which to encode message
+     * 
+     * @throws MessageEncodingException thrown if there is a problem encoding the message
+     */
+    private void streamPostBody(SAMLMessageContext messageContext, String endpointURL)
+            throws MessageEncodingException {
+        SAMLObject message = messageContext.getOutboundSAMLMessage();
+        String controlName = getMessageControlName(message);
+        if (message.getDOM() == null) {
+            marshallMessage(message);
+        }
+
+        try {
+            HTTPOutTransport outTransport = prepareOutTransport(messageContext);
+            AutoSubmitFormWriter form = new AutoSubmitFormWriter(outTransport.getOutgoingStream());
+            form.startForm(endpointURL);
+
+            String relayState = messageContext.getRelayState();
+            if (checkRelayState(relayState)) {
+                log.debug("Encoding relay state of: {}", relayState);
+                form.writeControl("RelayState", relayState);
+            }
+
+            Base64EncodingOutputStream base64Stream = new Base64EncodingOutputStream(form.startControl(controlName));
+            writeMessage(message, base64Stream);
+            base64Stream.finish();
+            form.endControl();
+
+            form.endForm();
+        } catch (IOException e) {
+            log.error("Error writing POST body", e);
+            throw new MessageEncodingException("Error creating output document", e);
+        }
+    }
+
+    /**
+     * Sets the headers of the outbound transport for the POST body.
+     * 
+     * @param messageContext current message context
+     * 
+     * @return the outbound transport
+     */
+    private HTTPOutTransport prepareOutTransport(SAMLMessageContext messageContext) {
+        HTTPOutTransport outTransport = (HTTPOutTransport) messageContext.getOutboundMessageTransport();
+        HTTPTransportUtils.addNoCacheHeaders(outTransport);
+        HTTPTransportUtils.setUTF8Encoding(outTransport);
+        HTTPTransportUtils.setContentType(outTransport, "text/html");
+        return outTransport;
+    }
+
+    /**
+     * Gets the Velocity template used to create the POST body, loading it from the Velocity engine on first use.
+     * 
+     * @return the Velocity template
+     * 
+     * @throws Exception thrown if the template can not be loaded
+     */
+    private Template getVelocityTemplate() throws Exception {
+        Template template = velocityTemplate;
+        if (template == null) {
+            template = velocityEngine.getTemplate(velocityTemplateId, "UTF-8");
+            velocityTemplate = template;
+        }
+        return template;
+    }
+
     /**
      * Populate the Velocity context instance which will be used to render the POST body.
      * 
+     * The context contains the endpoint URL as <code>action</code> and each of the form controls populated by
+     * {@link #populateFormControls(Map, SAMLMessageContext, String)}.
+     * 
      * @param velocityContext the Velocity context instance to populate with data
      * @param messageContext the SAML message context source of data
      * @param endpointURL endpoint URL to which to encode message
@@ -151,25 +276,80 @@ public class HTTPPostEncoder extends BaseSAML2MessageEncoder {
         log.debug("Encoding action url of: {}", endpointURL);
         velocityContext.put("action", endpointURL);
 
+        Map<String, String> formControls = new LinkedHashMap<String, String>();
+        populateFormControls(formControls, messageContext, endpointURL);
+        for (Entry<String, String> formControl : formControls.entrySet()) {
+            velocityContext.put(formControl.getKey(), formControl.getValue());
+        }
+    }
+
+    /**
+     * Populates the names and values of the hidden controls of the POST form.
+     * 
+     * @param formControls map, in form order, of control names to values, to populate
+     * @param messageContext the SAML message context source of data
+     * @param endpointURL endpoint URL to which to encode message
+     * @throws MessageEncodingException thrown if there is a problem encoding the message
+     */
+    protected void populateFormControls(Map<String, String> formControls, SAMLMessageContext messageContext,
+            String endpointURL) throws MessageEncodingException {
+
+        String relayState = messageContext.getRelayState();
+        if (checkRelayState(relayState)) {
+            log.debug("Encoding relay state of: {}", relayState);
+            formControls.put("RelayState", relayState);
+        }
+
+        SAMLObject message = messageContext.getOutboundSAMLMessage();
+        String controlName = getMessageControlName(message);
+
         log.debug("Marshalling and Base64 encoding SAML message");
-        if(messageContext.getOutboundSAMLMessage().getDOM() == null){
-            marshallMessage(messageContext.getOutboundSAMLMessage());
+        if (message.getDOM() == null) {
+            marshallMessage(message);
         }
-        String messageXML = XMLHelper.nodeToString(messageContext.getOutboundSAMLMessage().getDOM());
-        String encodedMessage = Base64.encodeBytes(messageXML.getBytes(), Base64.DONT_BREAK_LINES);        
-        if (messageContext.getOutboundSAMLMessage() instanceof RequestAbstractType) {
-            velocityContext.put("SAMLRequest", encodedMessage);
-        } else if (messageContext.getOutboundSAMLMessage() instanceof StatusResponseType) {
-            velocityContext.put("SAMLResponse", encodedMessage);
+        StringWriter encodedMessage = new StringWriter();
+        try {
+            Base64EncodingOutputStream base64Stream = new Base64EncodingOutputStream(encodedMessage);
+            writeMessage(message, base64Stream);
+            base64Stream.finish();
+        } catch (IOException e) {
+            throw new MessageEncodingException("Unable to Base64 encode SAML message", e);
+        }
+        formControls.put(controlName, encodedMessage.toString());
+    }
+
+    /**
+     * Gets the name of the form control carrying the given message.
+     * 
+     * @param message the SAML message
+     * 
+     * @return SAMLRequest or SAMLResponse
+     * 
+     * @throws MessageEncodingException thrown if the SAML message is neither a RequestAbstractType or
+     *             StatusResponseType
+     */
+    protected String getMessageControlName(SAMLObject message) throws MessageEncodingException {
+        if (message instanceof RequestAbstractType) {
+            return "SAMLRequest";
+        } else if (message instanceof StatusResponseType) {
+            return "SAMLResponse";
         } else {
             throw new MessageEncodingException(
                     "SAML message is neither a SAML RequestAbstractType or StatusResponseType");
         }
+    }
 
-        String relayState = messageContext.getRelayState();
-        if (checkRelayState(relayState)) {
-            log.debug("Encoding relay state of: {}", relayState);
-            velocityContext.put("RelayState", relayState);
-        }
+    /**
+     * Serializes the DOM of a marshalled message as UTF-8.
+     * 
+     * @param message the marshalled SAML message
+     * @param out stream the serialized message is written to, it is flushed but not closed
+     * 
+     * @throws IOException thrown if the serialized message can not be written
+     */
+    private void writeMessage(SAMLObject message, OutputStream out) throws IOException {
+        Writer messageWriter = new OutputStreamWriter(out, "UTF-8");
+        XMLHelper.writeNode(message.getDOM(), messageWriter);
+        messageWriter.flush();
     }
 }
\ No newline at end of file
@@ -17,6 +17,8 @@
 package org.opensaml.saml2.binding.encoding;
 
 import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
@@ -62,6 +64,23 @@ public class HTTPPostSimpleSignEncoder extends HTTPPostEncoder {
      */
     private boolean signProtocolMessageWithXMLDSIG;
 
+    /** Constructor. */
+    public HTTPPostSimpleSignEncoder() {
+        super();
+        signProtocolMessageWithXMLDSIG = false;
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param signXMLProtocolMessage if true, the protocol message will be signed according to the XML Signature
+     *            specification, in addition to the HTTP-POST-SimpleSign binding specification
+     */
+    public HTTPPostSimpleSignEncoder(boolean signXMLProtocolMessage) {
+        super();
+        signProtocolMessageWithXMLDSIG = signXMLProtocolMessage;
+    }
+
     /**
      * Constructor.
      * 
@@ -99,10 +118,27 @@ public class HTTPPostSimpleSignEncoder extends HTTPPostEncoder {
     }
 
     /** {@inheritDoc} */
+    protected boolean isMessageStreamable(SAMLMessageContext messageContext) {
+        return messageContext.getOuboundSAMLMessageSigningCredential() == null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * @deprecated the SimpleSign form controls are populated by
+     *             {@link #populateFormControls(Map, SAMLMessageContext, String)}, which is used whether or not the POST
+     *             body is rendered with a Velocity template
+     */
     protected void populateVelocityContext(VelocityContext velocityContext, SAMLMessageContext messageContext,
             String endpointURL) throws MessageEncodingException {
-
         super.populateVelocityContext(velocityContext, messageContext, endpointURL);
+    }
+
+    /** {@inheritDoc} */
+    protected void populateFormControls(Map<String, String> formControls, SAMLMessageContext messageContext,
+            String endpointURL) throws MessageEncodingException {
+
+        super.populateFormControls(formControls, messageContext, endpointURL);
 
         Credential signingCredential = messageContext.getOuboundSAMLMessageSigningCredential();
         if (signingCredential == null) {
@@ -113,16 +149,17 @@ public class HTTPPostSimpleSignEncoder extends HTTPPostEncoder {
         // TODO pull SecurityConfiguration from SAMLMessageContext? needs to be added
         // TODO pull binding-specific keyInfoGenName from encoder setting, etc?
         String sigAlgURI = getSignatureAlgorithmURI(signingCredential, null);
-        velocityContext.put("SigAlg", sigAlgURI);
+        formControls.put("SigAlg", sigAlgURI);
 
-        String formControlData = buildFormDataToSign(velocityContext, sigAlgURI);
-        velocityContext.put("Signature", generateSignature(signingCredential, sigAlgURI, formControlData));
+        // the context is backed by the form controls, so subclasses overriding either variant are honoured
+        String formControlData = buildFormDataToSign(new VelocityContext(formControls), sigAlgURI);
+        formControls.put("Signature", generateSignature(signingCredential, sigAlgURI, formControlData));
 
         KeyInfoGenerator kiGenerator = SecurityHelper.getKeyInfoGenerator(signingCredential, null, null);
         if (kiGenerator != null) {
             String kiBase64 = buildKeyInfo(signingCredential, kiGenerator);
             if (!DatatypeHelper.isEmpty(kiBase64)) {
-                velocityContext.put("KeyInfo", kiBase64);
+                formControls.put("KeyInfo", kiBase64);
             }
         }
     }
@@ -169,20 +206,41 @@ public class HTTPPostSimpleSignEncoder extends HTTPPostEncoder {
      * @param sigAlgURI the signature algorithm URI
      * 
      * @return the form control data string for signature computation
+     * 
+     * @deprecated use {@link #buildFormDataToSign(Map, String)}
      */
     protected String buildFormDataToSign(VelocityContext velocityContext, String sigAlgURI) {
+        Map<String, String> formControls = new HashMap<String, String>();
+        for (String name : new String[] {"SAMLRequest", "SAMLResponse", "RelayState"}) {
+            if (velocityContext.get(name) != null) {
+                formControls.put(name, (String) velocityContext.get(name));
+            }
+        }
+        return buildFormDataToSign(formControls, sigAlgURI);
+    }
+
+    /**
+     * Build the form control data string over which the signature is computed.
+     * 
+     * @param formControls the form controls which are already populated with the values for SAML message and relay
+     *            state
+     * @param sigAlgURI the signature algorithm URI
+     * 
+     * @return the form control data string for signature computation
+     */
+    protected String buildFormDataToSign(Map<String, String> formControls, String sigAlgURI) {
         StringBuilder builder = new StringBuilder();
 
         boolean isRequest = false;
-        if (velocityContext.get("SAMLRequest") != null) {
+        if (formControls.get("SAMLRequest") != null) {
             isRequest = true;
         }
 
         String msgB64;
         if (isRequest) {
-            msgB64 = (String) velocityContext.get("SAMLRequest");
+            msgB64 = formControls.get("SAMLRequest");
         } else {
-            msgB64 = (String) velocityContext.get("SAMLResponse");
+            msgB64 = formControls.get("SAMLResponse");
         }
 
         String msg = null;
@@ -198,8 +256,8 @@ public class HTTPPostSimpleSignEncoder extends HTTPPostEncoder {
             builder.append("SAMLResponse=" + msg);
         }
 
-        if (velocityContext.get("RelayState") != null) {
-            builder.append("&RelayState=" + HTTPTransportUtils.urlDecode((String) velocityContext.get("RelayState")));
+        if (formControls.get("RelayState") != null) {
+            builder.append("&RelayState=" + HTTPTransportUtils.urlDecode(formControls.get("RelayState")));
         }
 
         builder.append("&SigAlg=" + sigAlgURI);
@@ -16,9 +16,11 @@
 
 package org.opensaml.saml2.binding.encoding;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.List;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
@@ -26,6 +28,7 @@ import java.util.zip.DeflaterOutputStream;
 import org.opensaml.common.SAMLObject;
 import org.opensaml.common.SignableSAMLObject;
 import org.opensaml.common.binding.SAMLMessageContext;
+import org.opensaml.common.binding.encoding.Base64EncodingOutputStream;
 import org.opensaml.common.xml.SAMLConstants;
 import org.opensaml.saml2.core.RequestAbstractType;
 import org.opensaml.saml2.core.StatusResponseType;
@@ -50,9 +53,26 @@ import org.slf4j.LoggerFactory;
  * SAML 2.0 HTTP Redirect encoder using the DEFLATE encoding method.
  * 
  * This encoder only supports DEFLATE compression and DSA-SHA1 and RSA-SHA1 signatures.
+ * 
+ * The marshalled message is serialized as UTF-8 straight into a DEFLATE compressor and Base64 encoder, so that neither
+ * the serialized nor the compressed message is ever held in memory as a whole. Each thread reuses its own
+ * {@link Deflater}.
  */
 public class HTTPRedirectDeflateEncoder extends BaseSAML2MessageEncoder {
 
+    /** Size, in bytes, of the buffer between the compressor and the Base64 encoder. */
+    private static final int DEFLATER_BUFFER_SIZE = 512;
+
+    /** Initial size, in characters, of the buffer receiving the encoded message. */
+    private static final int ENCODED_MESSAGE_BUFFER_SIZE = 1024;
+
+    /** Compressor reused by each thread. */
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFLATED, true);
+        }
+    };
+
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(HTTPRedirectDeflateEncoder.class);
 
@@ -133,18 +153,25 @@ public class HTTPRedirectDeflateEncoder extends BaseSAML2MessageEncoder {
      */
     protected String deflateAndBase64Encode(SAMLObject message) throws MessageEncodingException {
         log.debug("Deflating and Base64 encoding SAML message");
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
         try {
-            String messageStr = XMLHelper.nodeToString(marshallMessage(message));
-
-            ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-            Deflater deflater = new Deflater(Deflater.DEFLATED, true);
-            DeflaterOutputStream deflaterStream = new DeflaterOutputStream(bytesOut, deflater);
-            deflaterStream.write(messageStr.getBytes());
+            StringWriter encodedMessage = new StringWriter(ENCODED_MESSAGE_BUFFER_SIZE);
+            Base64EncodingOutputStream base64Stream = new Base64EncodingOutputStream(encodedMessage);
+            DeflaterOutputStream deflaterStream = new DeflaterOutputStream(base64Stream, deflater,
+                    DEFLATER_BUFFER_SIZE);
+            Writer messageWriter = new OutputStreamWriter(deflaterStream, "UTF-8");
+
+            XMLHelper.writeNode(marshallMessage(message), messageWriter);
+            messageWriter.flush();
             deflaterStream.finish();
+            base64Stream.finish();
 
-            return Base64.encodeBytes(bytesOut.toByteArray(), Base64.DONT_BREAK_LINES);
+            return encodedMessage.toString();
         } catch (IOException e) {
             throw new MessageEncodingException("Unable to DEFLATE and Base64 encode SAML message", e);
+        } finally {
+            deflater.reset();
         }
     }
 
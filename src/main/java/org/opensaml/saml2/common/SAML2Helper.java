@@ -39,9 +39,12 @@ public class SAML2Helper {
             }
         }
 
-        for (XMLObject child : xmlObject.getOrderedChildren()) {
-            if (!isValid(child)) {
-                return false;
+        List<XMLObject> children = xmlObject.getOrderedChildren();
+        if (children != null) {
+            for (XMLObject child : children) {
+                if (child != null && !isValid(child)) {
+                    return false;
+                }
             }
         }
 
@@ -116,11 +119,11 @@ public class SAML2Helper {
         if (children != null) {
             for (XMLObject child : xmlObject.getOrderedChildren()) {
                 if(child != null){
-                    earliestExpiration = getEarliestExpiration(child, earliestExpiration, now);
+                    expirationTime = getEarliestExpiration(child, expirationTime, now);
                 }
             }
         }
 
-        return earliestExpiration;
+        return expirationTime;
     }
 }
\ No newline at end of file
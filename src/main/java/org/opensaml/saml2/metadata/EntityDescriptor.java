@@ -120,10 +120,22 @@ public interface EntityDescriptor extends SignableSAMLObject, TimeBoundSAMLObjec
      * @param typeOrName the name of the role
      * @param supportedProtocol the supported protocol
      * 
-     * @return the list of role descriptors that support the given protocol
+     * @return a new list of the role descriptors that support the given protocol, changes to it do not affect this
+     *         entity descriptor
      */
     public List<RoleDescriptor> getRoleDescriptors(QName typeOrName, String supportedProtocol);
 
+    /**
+     * Gets the first role descriptor for this entity that matches the supplied QName parameter and supports the given
+     * protocol.
+     * 
+     * @param typeOrName the name of the role
+     * @param supportedProtocol the supported protocol
+     * 
+     * @return the first role descriptor that supports the given protocol, or null if there is none
+     */
+    public RoleDescriptor getRoleDescriptor(QName typeOrName, String supportedProtocol);
+
     /**
      * Gets the first {@link IDPSSODescriptor} role descriptor for this entity that supports the given protocol.
      * 
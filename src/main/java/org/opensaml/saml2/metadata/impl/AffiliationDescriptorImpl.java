@@ -102,7 +102,11 @@ public class AffiliationDescriptorImpl extends AbstractSignableSAMLObject implem
 
     /** {@inheritDoc} */
     public boolean isValid() {
-        return validUntil.isBeforeNow();
+        if (null == validUntil) {
+            return true;
+        }
+
+        return validUntil.isAfterNow();
     }
 
     /** {@inheritDoc} */
@@ -18,7 +18,9 @@ package org.opensaml.saml2.metadata.impl;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.xml.namespace.QName;
 
@@ -64,6 +66,12 @@ public class EntityDescriptorImpl extends AbstractSignableSAMLObject implements
     /** Role descriptors for this entity. */
     private final IndexedXMLObjectChildrenList<RoleDescriptor> roleDescriptors;
 
+    /** Index of the role descriptors by role and supported protocol, rebuilt when out of date. */
+    private volatile RoleIndex roleIndex;
+
+    /** Number of modifications made to the role descriptors, or to their supported protocols. */
+    private volatile int roleModificationCount;
+
     /** Affiliatition descriptor for this entity. */
     private AffiliationDescriptor affiliationDescriptor;
 
@@ -88,7 +96,7 @@ public class EntityDescriptorImpl extends AbstractSignableSAMLObject implements
      */
     protected EntityDescriptorImpl(String namespaceURI, String elementLocalName, String namespacePrefix) {
         super(namespaceURI, elementLocalName, namespacePrefix);
-        roleDescriptors = new IndexedXMLObjectChildrenList<RoleDescriptor>(this);
+        roleDescriptors = new RoleDescriptorList();
         contactPersons = new XMLObjectChildrenList<ContactPerson>(this);
         additionalMetadata = new XMLObjectChildrenList<AdditionalMetadataLocation>(this);
         unknownAttributes = new AttributeMap(this);
@@ -171,19 +179,43 @@ public class EntityDescriptorImpl extends AbstractSignableSAMLObject implements
 
     /** {@inheritDoc} */
     public List<RoleDescriptor> getRoleDescriptors(QName type, String supportedProtocol) {
-        ArrayList<RoleDescriptor> supportingRoleDescriptors = new ArrayList<RoleDescriptor>();
-        for (RoleDescriptor descriptor : roleDescriptors.subList(type)) {
-            if (descriptor.isSupportedProtocol(supportedProtocol)) {
-                supportingRoleDescriptors.add(descriptor);
-            }
+        return new ArrayList<RoleDescriptor>(getIndexedRoleDescriptors(type, supportedProtocol));
+    }
+
+    /** {@inheritDoc} */
+    public RoleDescriptor getRoleDescriptor(QName type, String supportedProtocol) {
+        List<RoleDescriptor> descriptors = getIndexedRoleDescriptors(type, supportedProtocol);
+        if (descriptors.size() > 0) {
+            return descriptors.get(0);
+        }
+
+        return null;
+    }
+
+    /**
+     * Gets the role descriptors of a given role that support a given protocol from the role index, rebuilding the
+     * index if the roles or their supported protocols have changed since it was built.
+     * 
+     * @param type the element name or schema type of the role
+     * @param supportedProtocol the supported protocol
+     * 
+     * @return unmodifiable list, shared by all lookups until the roles change, of the matching role descriptors
+     */
+    private List<RoleDescriptor> getIndexedRoleDescriptors(QName type, String supportedProtocol) {
+        RoleIndex index = roleIndex;
+        int modificationCount = roleModificationCount;
+        if (index == null || index.getModificationCount() != modificationCount) {
+            index = new RoleIndex(modificationCount, roleDescriptors);
+            roleIndex = index;
         }
 
-        return supportingRoleDescriptors;
+        return index.get(type, supportedProtocol);
     }
 
     /** {@inheritDoc} */
     public IDPSSODescriptor getIDPSSODescriptor(String supportedProtocol) {
-        List<RoleDescriptor> descriptors = getRoleDescriptors(IDPSSODescriptor.DEFAULT_ELEMENT_NAME, supportedProtocol);
+        List<RoleDescriptor> descriptors = getIndexedRoleDescriptors(IDPSSODescriptor.DEFAULT_ELEMENT_NAME,
+                supportedProtocol);
         if (descriptors.size() > 0) {
             return (IDPSSODescriptor) descriptors.get(0);
         }
@@ -193,7 +225,8 @@ public class EntityDescriptorImpl extends AbstractSignableSAMLObject implements
 
     /** {@inheritDoc} */
     public SPSSODescriptor getSPSSODescriptor(String supportedProtocol) {
-        List<RoleDescriptor> descriptors = getRoleDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME, supportedProtocol);
+        List<RoleDescriptor> descriptors = getIndexedRoleDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME,
+                supportedProtocol);
         if (descriptors.size() > 0) {
             return (SPSSODescriptor) descriptors.get(0);
         }
@@ -203,7 +236,7 @@ public class EntityDescriptorImpl extends AbstractSignableSAMLObject implements
 
     /** {@inheritDoc} */
     public AuthnAuthorityDescriptor getAuthnAuthorityDescriptor(String supportedProtocol) {
-        List<RoleDescriptor> descriptors = getRoleDescriptors(AuthnAuthorityDescriptor.DEFAULT_ELEMENT_NAME,
+        List<RoleDescriptor> descriptors = getIndexedRoleDescriptors(AuthnAuthorityDescriptor.DEFAULT_ELEMENT_NAME,
                 supportedProtocol);
         if (descriptors.size() > 0) {
             return (AuthnAuthorityDescriptor) descriptors.get(0);
@@ -214,7 +247,7 @@ public class EntityDescriptorImpl extends AbstractSignableSAMLObject implements
 
     /** {@inheritDoc} */
     public AttributeAuthorityDescriptor getAttributeAuthorityDescriptor(String supportedProtocol) {
-        List<RoleDescriptor> descriptors = getRoleDescriptors(AttributeAuthorityDescriptor.DEFAULT_ELEMENT_NAME,
+        List<RoleDescriptor> descriptors = getIndexedRoleDescriptors(AttributeAuthorityDescriptor.DEFAULT_ELEMENT_NAME,
                 supportedProtocol);
         if (descriptors.size() > 0) {
             return (AttributeAuthorityDescriptor) descriptors.get(0);
@@ -225,7 +258,8 @@ public class EntityDescriptorImpl extends AbstractSignableSAMLObject implements
 
     /** {@inheritDoc} */
     public PDPDescriptor getPDPDescriptor(String supportedProtocol) {
-        List<RoleDescriptor> descriptors = getRoleDescriptors(PDPDescriptor.DEFAULT_ELEMENT_NAME, supportedProtocol);
+        List<RoleDescriptor> descriptors = getIndexedRoleDescriptors(PDPDescriptor.DEFAULT_ELEMENT_NAME,
+                supportedProtocol);
         if (descriptors.size() > 0) {
             return (PDPDescriptor) descriptors.get(0);
         }
@@ -291,4 +325,157 @@ public class EntityDescriptorImpl extends AbstractSignableSAMLObject implements
 
         return Collections.unmodifiableList(children);
     }
+
+    /**
+     * Marks the role and protocol index of this entity as out of date. Called whenever a role descriptor is added or
+     * removed and whenever the supported protocols of a contained role descriptor change.
+     */
+    void roleDescriptorsChanged() {
+        roleModificationCount++;
+    }
+
+    /**
+     * Role descriptor list that marks the role and protocol index as out of date whenever it is modified. All other
+     * modifications, including those made through sublists and iterators, are performed through these methods.
+     */
+    private class RoleDescriptorList extends IndexedXMLObjectChildrenList<RoleDescriptor> {
+
+        /** Constructor. */
+        public RoleDescriptorList() {
+            super(EntityDescriptorImpl.this);
+        }
+
+        /** {@inheritDoc} */
+        public boolean add(RoleDescriptor element) {
+            boolean result = super.add(element);
+            roleDescriptorsChanged();
+            return result;
+        }
+
+        /** {@inheritDoc} */
+        public void add(int index, RoleDescriptor element) {
+            super.add(index, element);
+            roleDescriptorsChanged();
+        }
+
+        /** {@inheritDoc} */
+        public RoleDescriptor set(int index, RoleDescriptor element) {
+            RoleDescriptor replaced = super.set(index, element);
+            roleDescriptorsChanged();
+            return replaced;
+        }
+
+        /** {@inheritDoc} */
+        public RoleDescriptor remove(int index) {
+            RoleDescriptor removed = super.remove(index);
+            roleDescriptorsChanged();
+            return removed;
+        }
+
+        /** {@inheritDoc} */
+        public boolean remove(RoleDescriptor element) {
+            boolean result = super.remove(element);
+            roleDescriptorsChanged();
+            return result;
+        }
+
+        /** {@inheritDoc} */
+        public void clear() {
+            super.clear();
+            roleDescriptorsChanged();
+        }
+    }
+
+    /**
+     * Immutable index of the role descriptors of an entity by role, that is element name or schema type, and
+     * supported protocol. Lookups against the index do not allocate.
+     */
+    private static final class RoleIndex {
+
+        /** Role modification count of the entity when the index was built. */
+        private final int modificationCount;
+
+        /** Role descriptors indexed by role and then by supported protocol, in document order. */
+        private final Map<QName, Map<String, List<RoleDescriptor>>> roles;
+
+        /**
+         * Constructor.
+         * 
+         * @param count role modification count of the entity at the time the index is built
+         * @param descriptors the role descriptors of the entity
+         */
+        public RoleIndex(int count, List<RoleDescriptor> descriptors) {
+            modificationCount = count;
+
+            Map<QName, Map<String, List<RoleDescriptor>>> index;
+            index = new HashMap<QName, Map<String, List<RoleDescriptor>>>();
+            for (RoleDescriptor descriptor : descriptors) {
+                indexRole(index, descriptor.getElementQName(), descriptor);
+                QName schemaType = descriptor.getSchemaType();
+                if (schemaType != null && !schemaType.equals(descriptor.getElementQName())) {
+                    indexRole(index, schemaType, descriptor);
+                }
+            }
+
+            for (Map<String, List<RoleDescriptor>> protocols : index.values()) {
+                for (Map.Entry<String, List<RoleDescriptor>> entry : protocols.entrySet()) {
+                    entry.setValue(Collections.unmodifiableList(entry.getValue()));
+                }
+            }
+            roles = index;
+        }
+
+        /**
+         * Gets the role modification count of the entity at the time this index was built.
+         * 
+         * @return role modification count of the entity at the time this index was built
+         */
+        public int getModificationCount() {
+            return modificationCount;
+        }
+
+        /**
+         * Gets the role descriptors of the given role that support the given protocol.
+         * 
+         * @param role element name or schema type of the role
+         * @param protocol the supported protocol
+         * 
+         * @return unmodifiable list of the matching role descriptors, never null
+         */
+        public List<RoleDescriptor> get(QName role, String protocol) {
+            Map<String, List<RoleDescriptor>> protocols = roles.get(role);
+            if (protocols != null) {
+                List<RoleDescriptor> descriptors = protocols.get(protocol);
+                if (descriptors != null) {
+                    return descriptors;
+                }
+            }
+            return Collections.emptyList();
+        }
+
+        /**
+         * Adds a role descriptor to the index, under each protocol it supports.
+         * 
+         * @param index the index being built
+         * @param role element name or schema type of the role
+         * @param descriptor the role descriptor
+         */
+        private void indexRole(Map<QName, Map<String, List<RoleDescriptor>>> index, QName role,
+                RoleDescriptor descriptor) {
+            Map<String, List<RoleDescriptor>> protocols = index.get(role);
+            if (protocols == null) {
+                protocols = new HashMap<String, List<RoleDescriptor>>();
+                index.put(role, protocols);
+            }
+
+            for (String protocol : descriptor.getSupportedProtocols()) {
+                List<RoleDescriptor> supportingDescriptors = protocols.get(protocol);
+                if (supportingDescriptors == null) {
+                    supportingDescriptors = new ArrayList<RoleDescriptor>(1);
+                    protocols.put(protocol, supportingDescriptors);
+                }
+                supportingDescriptors.add(descriptor);
+            }
+        }
+    }
 }
\ No newline at end of file
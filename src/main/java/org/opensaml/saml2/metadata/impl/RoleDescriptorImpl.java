@@ -98,7 +98,7 @@ public abstract class RoleDescriptorImpl extends AbstractSignableSAMLObject impl
     /** {@inheritDoc} */
     public boolean isValid() {
         if (validUntil != null) {
-            return validUntil.isBeforeNow();
+            return validUntil.isAfterNow();
         } else {
             return true;
         }
@@ -140,6 +140,7 @@ public abstract class RoleDescriptorImpl extends AbstractSignableSAMLObject impl
         if (protocol != null && !supportedProtocols.contains(protocol)) {
             releaseThisandParentDOM();
             supportedProtocols.add(protocol);
+            supportedProtocolsChanged();
         }
     }
 
@@ -149,6 +150,7 @@ public abstract class RoleDescriptorImpl extends AbstractSignableSAMLObject impl
         if (protocol != null && supportedProtocols.contains(protocol)) {
             releaseThisandParentDOM();
             supportedProtocols.remove(protocol);
+            supportedProtocolsChanged();
         }
     }
 
@@ -161,8 +163,20 @@ public abstract class RoleDescriptorImpl extends AbstractSignableSAMLObject impl
 
     /** {@inheritDoc} */
     public void removeAllSupportedProtocols() {
-        for (String protocol : supportedProtocols) {
-            removeSupportedProtocol(protocol);
+        if (!supportedProtocols.isEmpty()) {
+            releaseThisandParentDOM();
+            supportedProtocols.clear();
+            supportedProtocolsChanged();
+        }
+    }
+
+    /**
+     * Informs the parent entity, if any, that the protocols supported by this role have changed so that it may update
+     * its role and protocol index.
+     */
+    private void supportedProtocolsChanged() {
+        if (getParent() instanceof EntityDescriptorImpl) {
+            ((EntityDescriptorImpl) getParent()).roleDescriptorsChanged();
         }
     }
 
@@ -0,0 +1,623 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml2.common.SAML2Helper;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.XMLParserException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+/**
+ * Base class for metadata providers that resolve the metadata of individual entities on demand, rather than loading
+ * a complete metadata document.
+ *
+ * Resolved entity descriptors are filtered, with the metadata filter of this provider, and kept in a size bounded,
+ * least recently used, cache. An entity is cached until the earliest of its validUntil and cacheDuration based
+ * expiration, but for no longer than the maximum, and no shorter than the minimum, cache duration. Entities which are
+ * unknown to the metadata source are remembered for the negative cache duration, in a {@link NegativeLookupCache}
+ * bounded separately, so that requests for many unknown, for example spoofed, entity IDs can not evict the known
+ * entities from the cache. Concurrent requests for an entity
+ * that is not cached result in a single fetch whose result is shared by all of them. Since entities of different IDs
+ * are resolved concurrently the metadata filter must be safe for concurrent use.
+ *
+ * These providers have no metadata document, {@link #getMetadata()} always returns null and entities descriptors can
+ * not be looked up. An observer change event is emitted when a cached entity is replaced by a newly fetched version or
+ * removed from the cache.
+ */
+public abstract class AbstractDynamicMetadataProvider extends AbstractObservableMetadataProvider {
+
+    /** Template placeholder replaced with the URL encoded entity ID. */
+    public static final String ENTITY_ID_PLACEHOLDER = "{entityID}";
+
+    /** Template placeholder replaced with the hex encoded SHA-1 digest of the entity ID. */
+    public static final String SHA1_PLACEHOLDER = "{sha1}";
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(AbstractDynamicMetadataProvider.class);
+
+    /** Maximum number of known entities kept in the cache. */
+    private int maxCacheSize;
+
+    /** Maximum number of unknown entities remembered. */
+    private int maxNegativeCacheSize;
+
+    /** Maximum time, in milliseconds, an entity is cached. */
+    private long maxCacheDuration;
+
+    /** Minimum time, in milliseconds, an entity is cached. */
+    private long minCacheDuration;
+
+    /** Time, in milliseconds, an unknown entity is remembered. */
+    private long negativeCacheDuration;
+
+    /** Cached entities, in least recently used order. */
+    private final LinkedHashMap<String, CachedEntity> cache;
+
+    /** IDs of the entities unknown to the metadata source, null if unknown entities are not remembered. */
+    private volatile NegativeLookupCache unknownEntities;
+
+    /** Fetches currently in progress, by entity ID. */
+    private final ConcurrentHashMap<String, FutureTask<CachedEntity>> pendingFetches;
+
+    /** Constructor. */
+    public AbstractDynamicMetadataProvider() {
+        super();
+        maxCacheSize = 1000;
+        maxNegativeCacheSize = 1000;
+        // 8 hours
+        maxCacheDuration = 8 * 60 * 60 * 1000;
+        // 5 minutes
+        minCacheDuration = 5 * 60 * 1000;
+        // 10 minutes
+        negativeCacheDuration = 10 * 60 * 1000;
+        pendingFetches = new ConcurrentHashMap<String, FutureTask<CachedEntity>>();
+        cache = new LinkedHashMap<String, CachedEntity>(16, 0.75f, true) {
+
+            /** Serial version UID. */
+            private static final long serialVersionUID = 4420618741216930633L;
+
+            /** {@inheritDoc} */
+            protected boolean removeEldestEntry(Map.Entry<String, CachedEntity> eldest) {
+                return size() > maxCacheSize;
+            }
+        };
+        unknownEntities = new NegativeLookupCache(maxNegativeCacheSize, negativeCacheDuration);
+    }
+
+    /**
+     * Gets the maximum number of known entities kept in the cache.
+     *
+     * @return maximum number of known entities kept in the cache
+     */
+    public int getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of known entities kept in the cache.
+     *
+     * @param size maximum number of known entities kept in the cache
+     */
+    public void setMaxCacheSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Maximum cache size must be greater than 0");
+        }
+        synchronized (cache) {
+            maxCacheSize = size;
+        }
+    }
+
+    /**
+     * Gets the maximum number of entities unknown to the metadata source that are remembered.
+     *
+     * @return maximum number of unknown entities remembered
+     */
+    public int getMaxNegativeCacheSize() {
+        return maxNegativeCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of entities unknown to the metadata source that are remembered. Changing the size
+     * forgets all currently remembered unknown entities.
+     *
+     * @param size maximum number of unknown entities remembered
+     */
+    public void setMaxNegativeCacheSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Maximum negative cache size must be greater than 0");
+        }
+        maxNegativeCacheSize = size;
+        resetNegativeCache();
+    }
+
+    /**
+     * Gets the maximum time an entity is cached.
+     *
+     * @return maximum time, in milliseconds, an entity is cached
+     */
+    public long getMaxCacheDuration() {
+        return maxCacheDuration;
+    }
+
+    /**
+     * Sets the maximum time an entity is cached.
+     *
+     * @param duration maximum time, in milliseconds, an entity is cached
+     */
+    public void setMaxCacheDuration(long duration) {
+        if (duration <= 0) {
+            throw new IllegalArgumentException("Maximum cache duration must be greater than 0");
+        }
+        maxCacheDuration = duration;
+    }
+
+    /**
+     * Gets the minimum time an entity is cached, regardless of its validUntil or cacheDuration.
+     *
+     * @return minimum time, in milliseconds, an entity is cached
+     */
+    public long getMinCacheDuration() {
+        return minCacheDuration;
+    }
+
+    /**
+     * Sets the minimum time an entity is cached, regardless of its validUntil or cacheDuration. This limits how often
+     * an expired entity is fetched again; if valid metadata is required the expired entity is not returned.
+     *
+     * @param duration minimum time, in milliseconds, an entity is cached
+     */
+    public void setMinCacheDuration(long duration) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("Minimum cache duration may not be negative");
+        }
+        minCacheDuration = duration;
+    }
+
+    /**
+     * Gets the time an entity unknown to the metadata source is remembered.
+     *
+     * @return time, in milliseconds, an unknown entity is remembered
+     */
+    public long getNegativeCacheDuration() {
+        return negativeCacheDuration;
+    }
+
+    /**
+     * Sets the time an entity unknown to the metadata source is remembered. Changing the duration forgets all
+     * currently remembered unknown entities.
+     *
+     * @param duration time, in milliseconds, an unknown entity is remembered, 0 disables negative caching
+     */
+    public void setNegativeCacheDuration(long duration) {
+        if (duration < 0) {
+            throw new IllegalArgumentException("Negative cache duration may not be negative");
+        }
+        negativeCacheDuration = duration;
+        resetNegativeCache();
+    }
+
+    /**
+     * Gets the number of known entities currently cached.
+     *
+     * @return number of known entities currently cached
+     */
+    public int getCacheSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Gets the number of entities unknown to the metadata source currently remembered, including expired ones not yet
+     * removed.
+     *
+     * @return number of unknown entities currently remembered
+     */
+    public int getNegativeCacheSize() {
+        NegativeLookupCache unknown = unknownEntities;
+        if (unknown == null) {
+            return 0;
+        }
+        return unknown.getSize();
+    }
+
+    /**
+     * Removes an entity from the cache, so that it is fetched again when next requested.
+     *
+     * @param entityID ID of the entity to remove
+     */
+    public void removeCachedEntity(String entityID) {
+        NegativeLookupCache unknown = unknownEntities;
+        if (unknown != null) {
+            unknown.remove(entityID);
+        }
+
+        CachedEntity removed;
+        synchronized (cache) {
+            removed = cache.remove(entityID);
+        }
+        if (removed != null) {
+            List<String> noEntities = Collections.emptyList();
+            emitChangeEvent(new MetadataChangeEvent(noEntities, Collections.singletonList(entityID), noEntities));
+        }
+    }
+
+    /** Removes all entities from the cache. */
+    public void clearCache() {
+        NegativeLookupCache unknown = unknownEntities;
+        if (unknown != null) {
+            unknown.clear();
+        }
+
+        List<String> removed;
+        synchronized (cache) {
+            removed = new ArrayList<String>(cache.keySet());
+            cache.clear();
+        }
+        List<String> noEntities = Collections.emptyList();
+        emitChangeEvent(new MetadataChangeEvent(noEntities, removed, noEntities));
+    }
+
+    /**
+     * Always returns null, dynamic metadata providers have no metadata document.
+     *
+     * {@inheritDoc}
+     */
+    public XMLObject getMetadata() throws MetadataProviderException {
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    public EntityDescriptor getEntityDescriptor(String entityID) throws MetadataProviderException {
+        if (entityID == null) {
+            return null;
+        }
+
+        EntityDescriptor descriptor = null;
+        CachedEntity entity = getCachedEntity(entityID);
+        if (entity != null) {
+            descriptor = entity.getDescriptor();
+        } else {
+            NegativeLookupCache unknown = unknownEntities;
+            if (unknown == null || !unknown.contains(entityID)) {
+                descriptor = resolveEntity(entityID).getDescriptor();
+            }
+        }
+
+        recordLookup(descriptor != null);
+        if (descriptor == null) {
+            log.debug("Metadata source does not contain an entity descriptor with the ID {}", entityID);
+            return null;
+        }
+
+        if (!isValid(descriptor)) {
+            log.debug("Entity descriptor for the ID {} is not valid, returning null", entityID);
+            return null;
+        }
+
+        return descriptor;
+    }
+
+    /**
+     * Fetches the metadata of an entity from the metadata source. The returned metadata may either be the entity's
+     * EntityDescriptor or an EntitiesDescriptor containing it.
+     *
+     * @param entityID ID of the entity
+     *
+     * @return stream from which the metadata can be read, or null if the entity is unknown to the metadata source
+     *
+     * @throws IOException thrown if the metadata can not be fetched
+     */
+    protected abstract InputStream fetchEntityMetadata(String entityID) throws IOException;
+
+    /**
+     * Replaces the {@value #ENTITY_ID_PLACEHOLDER} and {@value #SHA1_PLACEHOLDER} placeholders in a template with,
+     * respectively, the URL encoded entity ID and the lower case hex encoded SHA-1 digest of the UTF-8 encoded entity
+     * ID.
+     *
+     * @param template the template
+     * @param entityID the entity ID
+     *
+     * @return the expanded template
+     */
+    protected String expandTemplate(String template, String entityID) {
+        String expanded = template;
+        try {
+            if (expanded.indexOf(ENTITY_ID_PLACEHOLDER) >= 0) {
+                expanded = expanded.replace(ENTITY_ID_PLACEHOLDER, URLEncoder.encode(entityID, "UTF-8"));
+            }
+
+            if (expanded.indexOf(SHA1_PLACEHOLDER) >= 0) {
+                byte[] digest = MessageDigest.getInstance("SHA-1").digest(entityID.getBytes("UTF-8"));
+                StringBuilder hexDigest = new StringBuilder(digest.length * 2);
+                for (byte digestByte : digest) {
+                    hexDigest.append(Character.forDigit((digestByte >> 4) & 0xF, 16));
+                    hexDigest.append(Character.forDigit(digestByte & 0xF, 16));
+                }
+                expanded = expanded.replace(SHA1_PLACEHOLDER, hexDigest.toString());
+            }
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException("UTF-8 encoding is not supported", e);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-1 is always supported
+            throw new IllegalStateException("SHA-1 digest is not supported", e);
+        }
+
+        return expanded;
+    }
+
+    /** Replaces the cache of unknown entities, to apply its current size and duration. */
+    private void resetNegativeCache() {
+        if (negativeCacheDuration > 0) {
+            unknownEntities = new NegativeLookupCache(maxNegativeCacheSize, negativeCacheDuration);
+        } else {
+            unknownEntities = null;
+        }
+    }
+
+    /**
+     * Gets an unexpired cached entity.
+     *
+     * @param entityID ID of the entity
+     *
+     * @return the cached entity or null if the entity is not cached or its cache entry has expired
+     */
+    private CachedEntity getCachedEntity(String entityID) {
+        synchronized (cache) {
+            CachedEntity entity = cache.get(entityID);
+            if (entity != null && entity.getExpiration() > System.currentTimeMillis()) {
+                return entity;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Resolves an entity that is not cached. If the entity is already being fetched the result of that fetch is
+     * awaited, otherwise the entity is fetched by the calling thread.
+     *
+     * @param entityID ID of the entity
+     *
+     * @return the resolved entity
+     *
+     * @throws MetadataProviderException thrown if the entity's metadata can not be fetched
+     */
+    private CachedEntity resolveEntity(String entityID) throws MetadataProviderException {
+        FutureTask<CachedEntity> fetch = new FutureTask<CachedEntity>(new EntityFetch(entityID));
+        FutureTask<CachedEntity> pendingFetch = pendingFetches.putIfAbsent(entityID, fetch);
+        if (pendingFetch == null) {
+            try {
+                fetch.run();
+            } finally {
+                pendingFetches.remove(entityID, fetch);
+            }
+            pendingFetch = fetch;
+        } else {
+            log.debug("Metadata for entity {} is already being fetched, waiting for it", entityID);
+        }
+
+        try {
+            return pendingFetch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MetadataProviderException("Interrupted while waiting for metadata of entity " + entityID, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MetadataProviderException) {
+                throw (MetadataProviderException) e.getCause();
+            }
+            throw new MetadataProviderException("Unable to fetch metadata of entity " + entityID, e.getCause());
+        }
+    }
+
+    /**
+     * Fetches, unmarshalls and filters the metadata of an entity and caches the result. An unknown entity is
+     * remembered in the cache of unknown entities, and removed from the cache of known entities.
+     *
+     * @param entityID ID of the entity
+     *
+     * @return the resolved entity, whose descriptor is null if the entity is unknown
+     *
+     * @throws MetadataProviderException thrown if the entity's metadata can not be fetched, unmarshalled or filtered
+     */
+    private CachedEntity loadEntity(String entityID) throws MetadataProviderException {
+        NegativeLookupCache unknown = unknownEntities;
+        long lookupGeneration = 0;
+        if (unknown != null) {
+            lookupGeneration = unknown.getGeneration();
+        }
+
+        log.debug("Fetching metadata for entity {}", entityID);
+        InputStream metadataInput;
+        try {
+            metadataInput = fetchEntityMetadata(entityID);
+        } catch (IOException e) {
+            String errorMsg = "Unable to fetch metadata of entity " + entityID;
+            log.error(errorMsg, e);
+            throw new MetadataProviderException(errorMsg, e);
+        }
+
+        EntityDescriptor descriptor = null;
+        if (metadataInput != null) {
+            descriptor = unmarshallEntity(entityID, metadataInput);
+        }
+
+        long now = System.currentTimeMillis();
+        List<String> noEntities = Collections.emptyList();
+        if (descriptor == null) {
+            if (unknown != null) {
+                unknown.add(entityID, lookupGeneration);
+            }
+            CachedEntity removed;
+            synchronized (cache) {
+                removed = cache.remove(entityID);
+            }
+            if (removed != null) {
+                emitChangeEvent(new MetadataChangeEvent(noEntities, Collections.singletonList(entityID), noEntities));
+            }
+            return new CachedEntity(null, now);
+        }
+
+        DateTime expiration = SAML2Helper.getEarliestExpiration(descriptor, new DateTime(now + maxCacheDuration),
+                new DateTime(now));
+        CachedEntity entity = new CachedEntity(descriptor, Math.max(expiration.getMillis(), now + minCacheDuration));
+
+        CachedEntity replaced;
+        synchronized (cache) {
+            replaced = cache.put(entityID, entity);
+        }
+        if (replaced != null) {
+            emitChangeEvent(new MetadataChangeEvent(noEntities, noEntities, Collections.singletonList(entityID)));
+        }
+
+        return entity;
+    }
+
+    /**
+     * Parses, unmarshalls and filters fetched metadata and extracts the descriptor of the requested entity.
+     *
+     * @param entityID ID of the requested entity
+     * @param metadataInput the fetched metadata, closed by this method
+     *
+     * @return the entity descriptor or null if the metadata does not contain it after filtering
+     *
+     * @throws MetadataProviderException thrown if the metadata can not be parsed, unmarshalled or filtered
+     */
+    private EntityDescriptor unmarshallEntity(String entityID, InputStream metadataInput)
+            throws MetadataProviderException {
+        try {
+            Document metadataDocument = getParserPool().parse(metadataInput);
+            Unmarshaller unmarshaller = unmarshallerFactory.getUnmarshaller(metadataDocument.getDocumentElement());
+            if (unmarshaller == null) {
+                throw new UnmarshallingException("No unmarshaller registered for metadata of entity " + entityID);
+            }
+            XMLObject metadata = unmarshaller.unmarshall(metadataDocument.getDocumentElement());
+            filterMetadata(metadata);
+            releaseMetadataDOM(metadata);
+
+            EntityDescriptor descriptor = new MetadataIndex(metadata).getEntityDescriptor(entityID);
+            if (descriptor == null) {
+                log.warn("Metadata fetched for entity {} does not contain its entity descriptor", entityID);
+            }
+            return descriptor;
+        } catch (XMLParserException e) {
+            String errorMsg = "Unable to parse metadata of entity " + entityID;
+            log.error(errorMsg, e);
+            throw new MetadataProviderException(errorMsg, e);
+        } catch (UnmarshallingException e) {
+            String errorMsg = "Unable to unmarshall metadata of entity " + entityID;
+            log.error(errorMsg, e);
+            throw new MetadataProviderException(errorMsg, e);
+        } catch (FilterException e) {
+            String errorMsg = "Unable to filter metadata of entity " + entityID;
+            log.error(errorMsg, e);
+            throw new MetadataProviderException(errorMsg, e);
+        } finally {
+            try {
+                metadataInput.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Task which fetches the metadata of a single entity.
+     */
+    private class EntityFetch implements Callable<CachedEntity> {
+
+        /** ID of the entity. */
+        private String entityID;
+
+        /**
+         * Constructor.
+         *
+         * @param id ID of the entity
+         */
+        public EntityFetch(String id) {
+            entityID = id;
+        }
+
+        /** {@inheritDoc} */
+        public CachedEntity call() throws MetadataProviderException {
+            return loadEntity(entityID);
+        }
+    }
+
+    /**
+     * A cached entity descriptor, or the knowledge that an entity is unknown, with its expiration time.
+     */
+    private static class CachedEntity {
+
+        /** The entity descriptor, null if the entity is unknown. */
+        private final EntityDescriptor descriptor;
+
+        /** Time, in milliseconds since the epoch, at which the cache entry expires. */
+        private final long expiration;
+
+        /**
+         * Constructor.
+         *
+         * @param entityDescriptor the entity descriptor, null if the entity is unknown
+         * @param expirationTime time, in milliseconds since the epoch, at which the cache entry expires
+         */
+        public CachedEntity(EntityDescriptor entityDescriptor, long expirationTime) {
+            descriptor = entityDescriptor;
+            expiration = expirationTime;
+        }
+
+        /**
+         * Gets the entity descriptor.
+         *
+         * @return the entity descriptor, null if the entity is unknown
+         */
+        public EntityDescriptor getDescriptor() {
+            return descriptor;
+        }
+
+        /**
+         * Gets the time at which the cache entry expires.
+         *
+         * @return time, in milliseconds since the epoch, at which the cache entry expires
+         */
+        public long getExpiration() {
+            return expiration;
+        }
+    }
+}
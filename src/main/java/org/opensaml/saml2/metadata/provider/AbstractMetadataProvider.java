@@ -18,9 +18,16 @@ package org.opensaml.saml2.metadata.provider;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import javax.xml.namespace.QName;
 
@@ -32,37 +39,94 @@ import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.io.Unmarshaller;
 import org.opensaml.xml.io.UnmarshallingException;
 import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.opensaml.xml.util.Base64;
 import org.opensaml.xml.util.DatatypeHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
 
 /**
  * An abstract, base, implementation of a metadata provider.
+ * 
+ * If streaming ingestion is enabled, via {@link #setStreamingIngestion(boolean)}, metadata is read with a
+ * {@link StreamingMetadataReader} instead of being parsed into a single DOM. Each EntityDescriptor is then
+ * unmarshalled, filtered, and released from its DOM one at a time so the DOM of the complete metadata document is
+ * never held in memory. In this mode every metadata filter must be an {@link EntityScopedMetadataFilter}; each
+ * EntityDescriptor is filtered with {@link EntityScopedMetadataFilter#filterEntity(EntityDescriptor)} and, once the
+ * whole document has been read, the metadata is rejected unless every filter reports itself entity scoped for it. As
+ * a result metadata containing a signed EntitiesDescriptor, or metadata whose signature is required, can not be
+ * streamed through a {@link SignatureValidationFilter}. An error filtering any entity fails the whole refresh, as it
+ * would without streaming.
+ * 
+ * If entity change tracking is enabled, via {@link #setTrackEntityChanges(boolean)}, a digest of the filtered content
+ * of each EntityDescriptor is computed from its DOM just before the DOM is released. Whenever new metadata is indexed
+ * the digests are compared with those of the previously indexed metadata, and the resulting
+ * {@link MetadataChangeEvent} is made available through {@link #takeEntityChangeEvent()}. An EntityDescriptor whose
+ * DOM was already released, for example because a filter modified it, has no digest and is always reported as
+ * modified.
  */
 public abstract class AbstractMetadataProvider extends BaseMetadataProvider {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(AbstractMetadataProvider.class);
 
-    /** Cache of entity IDs to their descriptors. */
-    private HashMap<String, EntityDescriptor> indexedDescriptors;
+    /** Index of the entity and entities descriptors within the current metadata. */
+    private volatile MetadataIndex descriptorIndex;
+
+    /** Lock used to ensure only one thread at a time builds the descriptor index. */
+    private final Object indexLock;
 
     /** Pool of parsers used to process XML. */
     private ParserPool parser;
 
+    /** Whether metadata is read, unmarshalled and filtered one entity at a time. */
+    private boolean streamingIngestion;
+
+    /** Metadata returned by the last streaming unmarshall, it has already been filtered. */
+    private XMLObject streamFilteredMetadata;
+
+    /** Whether the entities added, removed or modified by each metadata change are determined. */
+    private boolean trackEntityChanges;
+
+    /** Digests of the EntityDescriptors whose DOM has been released but which have not yet been indexed. */
+    private final Map<EntityDescriptor, String> pendingEntityDigests;
+
+    /** Digests of the EntityDescriptors of the currently indexed metadata, by entity ID; null if not yet indexed. */
+    private Map<String, String> entityDigests;
+
+    /** Entity changes determined when the current metadata was indexed, not yet taken. */
+    private MetadataChangeEvent entityChangeEvent;
+
     /** Constructor. */
     public AbstractMetadataProvider() {
         super();
-        indexedDescriptors = new HashMap<String, EntityDescriptor>();
+        indexLock = new Object();
+        pendingEntityDigests = new WeakHashMap<EntityDescriptor, String>();
     }
 
     /** {@inheritDoc} */
     public EntitiesDescriptor getEntitiesDescriptor(String name) throws MetadataProviderException {
         XMLObject metadata = getMetadata();
         if (metadata instanceof EntitiesDescriptor) {
-            EntitiesDescriptor descriptor = (EntitiesDescriptor) metadata;
-            return getEntitiesDescriptorByName(name, descriptor);
+            MetadataIndex index = getDescriptorIndex(metadata);
+            EntitiesDescriptor descriptor = index.getEntitiesDescriptor(name);
+            if (descriptor == null) {
+                return null;
+            }
+            if (isValid(index, descriptor)) {
+                return descriptor;
+            }
+
+            // another entities descriptor with the same name may still be valid
+            for (EntitiesDescriptor duplicate : index.getEntitiesDescriptors(name)) {
+                if (duplicate != descriptor && isValid(index, duplicate)) {
+                    return duplicate;
+                }
+            }
         }
 
         return null;
@@ -73,6 +137,7 @@ public abstract class AbstractMetadataProvider extends BaseMetadataProvider {
         log.debug("Getting descriptor for entity {}", entityID);
         XMLObject metadata = getMetadata();
         EntityDescriptor descriptor = getEntityDescriptorById(entityID, metadata);
+        recordLookup(descriptor != null);
         if (descriptor == null) {
             log.debug("Metadata document does not contain an entity descriptor with the ID {}", entityID);
             return null;
@@ -94,21 +159,12 @@ public abstract class AbstractMetadataProvider extends BaseMetadataProvider {
     /** {@inheritDoc} */
     public RoleDescriptor getRole(String entityID, QName roleName, String supportedProtocol)
             throws MetadataProviderException {
-        List<RoleDescriptor> roles = getRole(entityID, roleName);
-        if (roles == null) {
+        EntityDescriptor entity = getEntityDescriptor(entityID);
+        if (entity == null) {
             return null;
         }
 
-        Iterator<RoleDescriptor> rolesItr = roles.iterator();
-        RoleDescriptor role;
-        while (rolesItr.hasNext()) {
-            role = rolesItr.next();
-            if (role.isSupportedProtocol(supportedProtocol)) {
-                return role;
-            }
-        }
-
-        return null;
+        return entity.getRoleDescriptor(roleName, supportedProtocol);
     }
 
     /**
@@ -129,11 +185,154 @@ public abstract class AbstractMetadataProvider extends BaseMetadataProvider {
         parser = pool;
     }
 
+    /**
+     * Gets whether metadata is read, unmarshalled and filtered one entity at a time rather than being parsed into a
+     * single DOM.
+     * 
+     * @return whether metadata is read one entity at a time
+     */
+    public boolean isStreamingIngestion() {
+        return streamingIngestion;
+    }
+
+    /**
+     * Sets whether metadata is read, unmarshalled and filtered one entity at a time rather than being parsed into a
+     * single DOM.
+     * 
+     * @param streaming whether metadata is read one entity at a time
+     */
+    public void setStreamingIngestion(boolean streaming) {
+        streamingIngestion = streaming;
+    }
+
+    /**
+     * Gets whether the entities added, removed or modified by each metadata change are determined.
+     * 
+     * @return whether the entities added, removed or modified by each metadata change are determined
+     */
+    public boolean trackEntityChanges() {
+        return trackEntityChanges;
+    }
+
+    /**
+     * Sets whether the entities added, removed or modified by each metadata change are determined.
+     * 
+     * @param track whether the entities added, removed or modified by each metadata change are determined
+     */
+    public void setTrackEntityChanges(boolean track) {
+        trackEntityChanges = track;
+    }
+
+    /**
+     * Gets, and clears, the entity changes determined when the current metadata was indexed.
+     * 
+     * @return the entity changes, or null if entity changes are not tracked or have already been taken
+     */
+    protected MetadataChangeEvent takeEntityChangeEvent() {
+        synchronized (pendingEntityDigests) {
+            MetadataChangeEvent event = entityChangeEvent;
+            entityChangeEvent = null;
+            return event;
+        }
+    }
+
     /**
      * Clears the entity ID to entity descriptor index.
      */
     protected void clearDescriptorIndex() {
-        indexedDescriptors.clear();
+        descriptorIndex = null;
+    }
+
+    /**
+     * Builds, and publishes, the descriptor index for the given metadata. Providers should call this method once
+     * their newly refreshed metadata has been cached so that the index is not built on the request path.
+     * 
+     * @param metadata the newly cached metadata
+     */
+    protected void indexMetadata(XMLObject metadata) {
+        long indexStart = System.nanoTime();
+        MetadataIndex index = getDescriptorIndex(metadata);
+        if (trackEntityChanges()) {
+            computeEntityChanges(index);
+        }
+        recordRefreshPhase(MetadataRefreshMetrics.INDEX_PHASE, indexStart);
+
+        MetadataRefreshMetrics metrics = getRefreshMetrics();
+        if (metrics != null) {
+            metrics.setEntityCount(index.getEntityDescriptors().size());
+        }
+    }
+
+    /**
+     * Compares the digests of the EntityDescriptors of newly indexed metadata with those of the previously indexed
+     * metadata and records the resulting entity changes.
+     * 
+     * @param index the index of the newly cached metadata
+     */
+    private void computeEntityChanges(MetadataIndex index) {
+        synchronized (pendingEntityDigests) {
+            Map<String, String> currentDigests = new HashMap<String, String>();
+            for (Map.Entry<String, EntityDescriptor> entity : index.getEntityDescriptors().entrySet()) {
+                currentDigests.put(entity.getKey(), pendingEntityDigests.get(entity.getValue()));
+            }
+            pendingEntityDigests.clear();
+
+            Map<String, String> previousDigests = entityDigests;
+            if (previousDigests == null) {
+                previousDigests = new HashMap<String, String>();
+            }
+
+            List<String> added = new ArrayList<String>();
+            List<String> modified = new ArrayList<String>();
+            for (Map.Entry<String, String> entity : currentDigests.entrySet()) {
+                if (!previousDigests.containsKey(entity.getKey())) {
+                    added.add(entity.getKey());
+                } else {
+                    String previousDigest = previousDigests.get(entity.getKey());
+                    if (entity.getValue() == null || !entity.getValue().equals(previousDigest)) {
+                        modified.add(entity.getKey());
+                    }
+                }
+            }
+            List<String> removed = new ArrayList<String>();
+            for (String entityID : previousDigests.keySet()) {
+                if (!currentDigests.containsKey(entityID)) {
+                    removed.add(entityID);
+                }
+            }
+
+            entityDigests = currentDigests;
+            entityChangeEvent = new MetadataChangeEvent(added, removed, modified);
+            log.debug("Metadata entity changes: {} added, {} removed, {} modified", new Object[] { added.size(),
+                    removed.size(), modified.size() });
+        }
+    }
+
+    /**
+     * Gets the descriptor index for the given metadata. If the currently published index was not built from the given
+     * metadata a new index is built and published.
+     * 
+     * Lookups against an already published index require no locking.
+     * 
+     * @param metadata the metadata whose index is to be returned
+     * 
+     * @return the index for the given metadata
+     */
+    protected MetadataIndex getDescriptorIndex(XMLObject metadata) {
+        MetadataIndex index = descriptorIndex;
+        if (index != null && index.getMetadata() == metadata) {
+            return index;
+        }
+
+        synchronized (indexLock) {
+            index = descriptorIndex;
+            if (index == null || index.getMetadata() != metadata) {
+                log.debug("Building entity descriptor index for metadata");
+                index = new MetadataIndex(metadata);
+                descriptorIndex = index;
+            }
+            return index;
+        }
     }
 
     /**
@@ -147,13 +346,21 @@ public abstract class AbstractMetadataProvider extends BaseMetadataProvider {
      * @throws UnmarshallingException thrown if the metadata can no be unmarshalled
      */
     protected XMLObject unmarshallMetadata(InputStream metadataInput) throws UnmarshallingException {
+        if (streamingIngestion) {
+            return streamMetadata(metadataInput);
+        }
+
         try {
             log.trace("Parsing retrieved metadata into a DOM object");
+            long parseStart = System.nanoTime();
             Document mdDocument = parser.parse(metadataInput);
+            recordRefreshPhase(MetadataRefreshMetrics.PARSE_PHASE, parseStart);
 
             log.trace("Unmarshalling and caching metdata DOM");
+            long unmarshallStart = System.nanoTime();
             Unmarshaller unmarshaller = unmarshallerFactory.getUnmarshaller(mdDocument.getDocumentElement());
             XMLObject metadata = unmarshaller.unmarshall(mdDocument.getDocumentElement());
+            recordRefreshPhase(MetadataRefreshMetrics.UNMARSHALL_PHASE, unmarshallStart);
             return metadata;
         } catch (Exception e) {
             throw new UnmarshallingException(e);
@@ -167,16 +374,120 @@ public abstract class AbstractMetadataProvider extends BaseMetadataProvider {
     }
 
     /**
-     * Filters the given metadata.
+     * Reads the metadata from the given stream one entity at a time. Each entity is unmarshalled and filtered, and its
+     * DOM released, before the next one is read. The stream is closed by this method and the returned metadata has
+     * released its DOM representation. If the document element of the metadata is an EntityDescriptor it is returned
+     * unfiltered, with its DOM, exactly as {@link #unmarshallMetadata(InputStream)} would.
+     * 
+     * @param metadataInput the input reader to the metadata
+     * 
+     * @return the unmarshalled metadata
+     * 
+     * @throws UnmarshallingException thrown if the metadata can not be read or unmarshalled
+     */
+    protected XMLObject streamMetadata(InputStream metadataInput) throws UnmarshallingException {
+        streamFilteredMetadata = null;
+        long streamStart = System.nanoTime();
+        try {
+            List<EntityScopedMetadataFilter> filters = getStreamingFilters();
+
+            log.trace("Streaming retrieved metadata one entity at a time");
+            StreamingEntityProcessor entityProcessor = new StreamingEntityProcessor(filters);
+            Document skeleton = new StreamingMetadataReader(parser).read(metadataInput, entityProcessor);
+
+            XMLObject metadata;
+            Element skeletonRoot = skeleton.getDocumentElement();
+            if (skeletonRoot == null) {
+                metadata = entityProcessor.getRootEntity();
+            } else {
+                log.trace("Unmarshalling metadata groups and attaching their entities");
+                Unmarshaller unmarshaller = unmarshallerFactory.getUnmarshaller(skeletonRoot);
+                metadata = unmarshaller.unmarshall(skeletonRoot);
+                if (!(metadata instanceof EntitiesDescriptor)) {
+                    throw new UnmarshallingException("Metadata root element was neither an EntityDescriptor nor an "
+                            + "EntitiesDescriptor");
+                }
+                entityProcessor.attachEntities((EntitiesDescriptor) metadata);
+                for (EntityScopedMetadataFilter filter : filters) {
+                    if (!filter.isEntityScoped(metadata)) {
+                        throw new UnmarshallingException("Metadata filter " + filter.getClass().getName()
+                                + " can not be applied to this metadata one entity at a time, for example because it "
+                                + "contains a signed EntitiesDescriptor, metadata can not be streamed");
+                    }
+                }
+                releaseMetadataDOM(metadata);
+                streamFilteredMetadata = metadata;
+            }
+
+            return metadata;
+        } catch (XMLParserException e) {
+            if (e.getCause() instanceof UnmarshallingException) {
+                throw (UnmarshallingException) e.getCause();
+            }
+            throw new UnmarshallingException(e);
+        } finally {
+            recordRefreshPhase(MetadataRefreshMetrics.STREAM_PHASE, streamStart);
+            try {
+                metadataInput.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Gets the filters applied to each entity of streamed metadata.
+     * 
+     * @return the configured metadata filter, or the members of the configured filter chain
+     * 
+     * @throws UnmarshallingException thrown if a configured filter is not an {@link EntityScopedMetadataFilter}
+     */
+    private List<EntityScopedMetadataFilter> getStreamingFilters() throws UnmarshallingException {
+        List<MetadataFilter> configuredFilters = new ArrayList<MetadataFilter>();
+        MetadataFilter filter = getMetadataFilter();
+        if (filter instanceof MetadataFilterChain) {
+            configuredFilters.addAll(((MetadataFilterChain) filter).getFilters());
+        } else if (filter != null) {
+            configuredFilters.add(filter);
+        }
+
+        List<EntityScopedMetadataFilter> filters = new ArrayList<EntityScopedMetadataFilter>();
+        for (MetadataFilter configuredFilter : configuredFilters) {
+            if (!(configuredFilter instanceof EntityScopedMetadataFilter)) {
+                throw new UnmarshallingException("Metadata filter " + configuredFilter.getClass().getName()
+                        + " can not be applied one entity at a time, metadata can not be streamed");
+            }
+            filters.add((EntityScopedMetadataFilter) configuredFilter);
+        }
+        return filters;
+    }
+
+    /**
+     * Filters the given metadata. Metadata returned by {@link #streamMetadata(InputStream)} has already been filtered
+     * and is not filtered again. The time taken by each filter of a {@link MetadataFilterChain} is recorded
+     * separately in the metrics of the refresh in progress.
      * 
      * @param metadata the metadata to be filtered
      * 
      * @throws FilterException thrown if there is an error filtering the metadata
      */
     protected void filterMetadata(XMLObject metadata) throws FilterException {
-        if (getMetadataFilter() != null) {
+        if (metadata != null && metadata == streamFilteredMetadata) {
+            log.debug("Metadata was filtered while it was streamed, skipping metadata filter");
+            streamFilteredMetadata = null;
+            return;
+        }
+
+        MetadataFilter filter = getMetadataFilter();
+        if (filter != null) {
             log.debug("Applying metadata filter");
-            getMetadataFilter().doFilter(metadata);
+            if (filter instanceof MetadataFilterChain) {
+                ((MetadataFilterChain) filter).doFilter(metadata, getRefreshMetrics());
+            } else {
+                long filterStart = System.nanoTime();
+                filter.doFilter(metadata);
+                recordRefreshPhase(MetadataRefreshMetrics.getFilterPhase(filter), filterStart);
+            }
         }
     }
 
@@ -187,13 +498,123 @@ public abstract class AbstractMetadataProvider extends BaseMetadataProvider {
      */
     protected void releaseMetadataDOM(XMLObject metadata) {
         if (metadata != null) {
+            if (trackEntityChanges()) {
+                recordEntityDigests(metadata);
+            }
             metadata.releaseDOM();
             metadata.releaseChildrenDOM(true);
         }
     }
 
     /**
-     * Gets the EntityDescriptor with the given ID from the cached metadata.
+     * Records the digest of every EntityDescriptor, within the given metadata, that still has its DOM.
+     * 
+     * @param metadata the metadata
+     */
+    private void recordEntityDigests(XMLObject metadata) {
+        if (metadata instanceof EntitiesDescriptor) {
+            EntitiesDescriptor entitiesDescriptor = (EntitiesDescriptor) metadata;
+            for (EntitiesDescriptor child : entitiesDescriptor.getEntitiesDescriptors()) {
+                recordEntityDigests(child);
+            }
+            for (EntityDescriptor child : entitiesDescriptor.getEntityDescriptors()) {
+                recordEntityDigests(child);
+            }
+        } else if (metadata instanceof EntityDescriptor && metadata.getDOM() != null) {
+            String digest = computeDigest(metadata.getDOM());
+            if (digest != null) {
+                synchronized (pendingEntityDigests) {
+                    pendingEntityDigests.put((EntityDescriptor) metadata, digest);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes a digest of the content of an element. The digest covers the names of the element and its descendant
+     * elements, their attributes, in a canonical order, and their text content.
+     * 
+     * @param element the element
+     * 
+     * @return the digest, or null if it can not be computed
+     */
+    private String computeDigest(Element element) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            updateDigest(digest, element);
+            return Base64.encodeBytes(digest.digest(), Base64.DONT_BREAK_LINES);
+        } catch (NoSuchAlgorithmException e) {
+            log.error("SHA-1 is not supported, unable to compute entity digests", e);
+        } catch (UnsupportedEncodingException e) {
+            log.error("UTF-8 is not supported, unable to compute entity digests", e);
+        }
+        return null;
+    }
+
+    /**
+     * Adds a node, and its descendants, to a digest.
+     * 
+     * @param digest the digest
+     * @param node the node
+     * 
+     * @throws UnsupportedEncodingException thrown if UTF-8 is not supported
+     */
+    private void updateDigest(MessageDigest digest, Node node) throws UnsupportedEncodingException {
+        switch (node.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                digest.update((byte) 1);
+                updateDigest(digest, node.getNamespaceURI());
+                updateDigest(digest, node.getLocalName() != null ? node.getLocalName() : node.getNodeName());
+
+                NamedNodeMap attributes = node.getAttributes();
+                String[] attributeValues = new String[attributes.getLength()];
+                for (int i = 0; i < attributeValues.length; i++) {
+                    Node attribute = attributes.item(i);
+                    attributeValues[i] = "{" + attribute.getNamespaceURI() + "}" + attribute.getNodeName() + "="
+                            + attribute.getNodeValue();
+                }
+                Arrays.sort(attributeValues);
+                for (String attributeValue : attributeValues) {
+                    digest.update((byte) 2);
+                    updateDigest(digest, attributeValue);
+                }
+
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    updateDigest(digest, child);
+                }
+                digest.update((byte) 3);
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+                digest.update((byte) 4);
+                updateDigest(digest, node.getNodeValue());
+                break;
+            default:
+                // comments and processing instructions are not content
+        }
+    }
+
+    /**
+     * Adds a string, that may be null, to a digest.
+     * 
+     * @param digest the digest
+     * @param value the string
+     * 
+     * @throws UnsupportedEncodingException thrown if UTF-8 is not supported
+     */
+    private void updateDigest(MessageDigest digest, String value) throws UnsupportedEncodingException {
+        if (value == null) {
+            digest.update((byte) 0);
+        } else {
+            digest.update((byte) 1);
+            digest.update(value.getBytes("UTF-8"));
+            digest.update((byte) 0);
+        }
+    }
+
+    /**
+     * Gets the EntityDescriptor with the given ID from the cached metadata. If more than one EntityDescriptor carries
+     * the ID the first valid one, in the order described by {@link MetadataIndex}, is returned.
      * 
      * @param entityID the ID of the entity to get the descriptor for
      * @param metadata metadata associated with the entity
@@ -201,41 +622,30 @@ public abstract class AbstractMetadataProvider extends BaseMetadataProvider {
      * @return the EntityDescriptor
      */
     protected EntityDescriptor getEntityDescriptorById(String entityID, XMLObject metadata) {
-        EntityDescriptor descriptor = null;
+        if (metadata == null) {
+            return null;
+        }
 
         log.debug("Searching for entity descriptor with an entity ID of {}", entityID);
-        if (indexedDescriptors.containsKey(entityID)) {
-            log.debug("Entity descriptor for the ID {} was found in index cache, returning", entityID);
-            descriptor = indexedDescriptors.get(entityID);
-            if (isValid(descriptor)) {
-                return descriptor;
-            } else {
-                indexedDescriptors.remove(descriptor);
-            }
+        MetadataIndex index = getDescriptorIndex(metadata);
+        EntityDescriptor descriptor = index.getEntityDescriptor(entityID);
+        if (descriptor == null) {
+            return null;
         }
 
-        if (metadata != null) {
-            if (metadata instanceof EntityDescriptor) {
-                log.debug("Metadata root is an entity descriptor, checking if it's the one we're looking for.");
-                descriptor = (EntityDescriptor) metadata;
-                if (!descriptor.getEntityID().equals(entityID) || !isValid(descriptor)) {
-                    log.debug("Entity descriptor does not have the correct entity ID or is not valid, returning null");
-                    descriptor = null;
-                }
-            } else {
-                log.debug("Metadata was an EntitiesDescriptor, checking if any of its descendant EntityDescriptor elements is the one we're looking for.");
-                if (metadata instanceof EntitiesDescriptor) {
-                    descriptor = getEntityDescriptorById(entityID, (EntitiesDescriptor) metadata);
-                }
-            }
+        if (isValid(index, descriptor)) {
+            return descriptor;
         }
 
-        if (descriptor != null) {
-            log.debug("Located entity descriptor, creating an index to it for faster lookups");
-            indexedDescriptors.put(entityID, descriptor);
+        // another entity descriptor with the same ID may still be valid
+        for (EntityDescriptor duplicate : index.getEntityDescriptors(entityID)) {
+            if (duplicate != descriptor && isValid(index, duplicate)) {
+                return duplicate;
+            }
         }
 
-        return descriptor;
+        log.debug("Entity descriptor for the ID {} is not valid, returning null", entityID);
+        return null;
     }
 
     /**
@@ -245,6 +655,9 @@ public abstract class AbstractMetadataProvider extends BaseMetadataProvider {
      * @param descriptor the entities descriptor
      * 
      * @return the entity descriptor
+     * 
+     * @deprecated entity descriptors are looked up in the {@link MetadataIndex} of the metadata, which returns the same
+     *             descriptor, and this method is no longer called; overriding it has no effect
      */
     protected EntityDescriptor getEntityDescriptorById(String entityID, EntitiesDescriptor descriptor) {
         log.trace("Checking to see if any of the child entity descriptors of entities descriptor {} is the requested descriptor", descriptor.getName());
@@ -282,6 +695,9 @@ public abstract class AbstractMetadataProvider extends BaseMetadataProvider {
      * @param rootDescriptor the root descriptor to search in
      * 
      * @return the EntitiesDescriptor with the given name
+     * 
+     * @deprecated entities descriptors are looked up in the {@link MetadataIndex} of the metadata, which returns the
+     *             same descriptor, and this method is no longer called; overriding it has no effect
      */
     protected EntitiesDescriptor getEntitiesDescriptorByName(String name, EntitiesDescriptor rootDescriptor) {
         EntitiesDescriptor descriptor = null;
@@ -317,4 +733,128 @@ public abstract class AbstractMetadataProvider extends BaseMetadataProvider {
 
         return SAML2Helper.isValid(descriptor);
     }
+
+    /**
+     * Returns whether the given indexed descriptor is valid, using the validity precomputed when the metadata was
+     * indexed. If valid metadata is not required this method always returns true.
+     * 
+     * @param index the index of the metadata containing the descriptor
+     * @param descriptor the descriptor to check
+     * 
+     * @return true if valid metadata is not required or the given descriptor is valid, false otherwise
+     */
+    protected boolean isValid(MetadataIndex index, XMLObject descriptor) {
+        if (!requireValidMetadata()) {
+            return true;
+        }
+
+        return index.isValid(descriptor, System.currentTimeMillis());
+    }
+
+    /**
+     * Entity processor that unmarshalls, filters and releases the DOM of each streamed entity and, once the metadata
+     * groups have been unmarshalled, attaches each entity to its group.
+     */
+    private class StreamingEntityProcessor implements StreamingMetadataReader.EntityProcessor {
+
+        /** Skeleton elements of the groups containing the processed entities, in document order. */
+        private ArrayList<Element> entityParents;
+
+        /** Processed entities, in document order. */
+        private ArrayList<EntityDescriptor> entities;
+
+        /** Entity that was the document element of the metadata. */
+        private EntityDescriptor rootEntity;
+
+        /** Filters applied to each entity. */
+        private List<EntityScopedMetadataFilter> entityFilters;
+
+        /**
+         * Constructor.
+         * 
+         * @param filters filters applied to each entity
+         */
+        public StreamingEntityProcessor(List<EntityScopedMetadataFilter> filters) {
+            entityParents = new ArrayList<Element>();
+            entities = new ArrayList<EntityDescriptor>();
+            entityFilters = filters;
+        }
+
+        /**
+         * Gets the entity that was the document element of the metadata.
+         * 
+         * @return the entity that was the document element of the metadata, or null
+         */
+        public EntityDescriptor getRootEntity() {
+            return rootEntity;
+        }
+
+        /** {@inheritDoc} */
+        public void processEntity(Element entityElement, Element parentElement) throws XMLParserException {
+            EntityDescriptor entity;
+            try {
+                Unmarshaller unmarshaller = unmarshallerFactory.getUnmarshaller(entityElement);
+                entity = (EntityDescriptor) unmarshaller.unmarshall(entityElement);
+            } catch (UnmarshallingException e) {
+                throw new XMLParserException("Unable to unmarshall entity descriptor", e);
+            }
+
+            if (parentElement == null) {
+                // filtered by the provider, as a whole, like non-streamed metadata
+                rootEntity = entity;
+                return;
+            }
+
+            for (EntityScopedMetadataFilter filter : entityFilters) {
+                try {
+                    if (!filter.filterEntity(entity)) {
+                        log.debug("Entity descriptor {} was removed from metadata by filter {}", entity.getEntityID(),
+                                filter.getClass().getName());
+                        return;
+                    }
+                } catch (FilterException e) {
+                    log.error("Entity descriptor {} failed metadata filtering", entity.getEntityID());
+                    throw new XMLParserException("Error filtering entity descriptor " + entity.getEntityID(), e);
+                }
+            }
+
+            releaseMetadataDOM(entity);
+            entityParents.add(parentElement);
+            entities.add(entity);
+        }
+
+        /**
+         * Attaches each processed entity to the unmarshalled group whose skeleton element contained it.
+         * 
+         * @param root the unmarshalled metadata groups, must still have their DOM
+         */
+        public void attachEntities(EntitiesDescriptor root) {
+            IdentityHashMap<Element, EntitiesDescriptor> groups = new IdentityHashMap<Element, EntitiesDescriptor>();
+            mapGroups(root, groups);
+
+            EntitiesDescriptor group;
+            for (int i = 0; i < entities.size(); i++) {
+                group = groups.get(entityParents.get(i));
+                if (group == null) {
+                    log.warn("Unable to locate the group containing entity descriptor {}, ignoring entity", entities
+                            .get(i).getEntityID());
+                    continue;
+                }
+                group.getEntityDescriptors().add(entities.get(i));
+            }
+        }
+
+        /**
+         * Maps the DOM element of the given group, and of all its descendant groups, to the group.
+         * 
+         * @param group the group
+         * @param groups the map being populated
+         */
+        private void mapGroups(EntitiesDescriptor group, IdentityHashMap<Element, EntitiesDescriptor> groups) {
+            groups.put(group.getDOM(), group);
+            for (EntitiesDescriptor child : group.getEntitiesDescriptors()) {
+                mapGroups(child, groups);
+            }
+        }
+    }
 }
\ No newline at end of file
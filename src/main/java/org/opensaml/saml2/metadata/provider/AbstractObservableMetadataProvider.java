@@ -33,7 +33,6 @@ public abstract class AbstractObservableMetadataProvider extends AbstractMetadat
     public AbstractObservableMetadataProvider() {
         super();
         observers = new ArrayList<Observer>();
-        observers.add(new DescriptorIndexClearingObserver());
     }
 
     /** {@inheritDoc} */
@@ -44,26 +43,31 @@ public abstract class AbstractObservableMetadataProvider extends AbstractMetadat
     /**
      * Helper method for calling
      * {@link org.opensaml.saml2.metadata.provider.ObservableMetadataProvider.Observer#onEvent(MetadataProvider)} on
-     * every registered Observer passing in this provider.
+     * every registered Observer passing in this provider. The entity changes determined when the current metadata was
+     * indexed, if any, are passed to every registered {@link ChangeObserver}.
      */
     protected void emitChangeEvent() {
+        emitChangeEvent(takeEntityChangeEvent());
+    }
+
+    /**
+     * Helper method for calling
+     * {@link org.opensaml.saml2.metadata.provider.ObservableMetadataProvider.Observer#onEvent(MetadataProvider)} on
+     * every registered Observer, and
+     * {@link ChangeObserver#onEvent(MetadataProvider, MetadataChangeEvent)} on every registered ChangeObserver,
+     * passing in this provider.
+     * 
+     * @param event the entities that changed, or null if it is not known which entities changed
+     */
+    protected void emitChangeEvent(MetadataChangeEvent event) {
         synchronized (observers) {
             for (Observer observer : observers) {
-                if (observer != null) {
+                if (observer instanceof ChangeObserver) {
+                    ((ChangeObserver) observer).onEvent(this, event);
+                } else if (observer != null) {
                     observer.onEvent(this);
                 }
             }
         }
     }
-
-    /**
-     * Observer that clears the descriptor index of this provider.
-     */
-    private class DescriptorIndexClearingObserver implements Observer {
-
-        /** {@inheritDoc} */
-        public void onEvent(MetadataProvider provider) {
-            ((AbstractMetadataProvider) provider).clearDescriptorIndex();
-        }
-    }
 }
\ No newline at end of file
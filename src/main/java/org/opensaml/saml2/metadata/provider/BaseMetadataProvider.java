@@ -16,14 +16,26 @@
 
 package org.opensaml.saml2.metadata.provider;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import org.opensaml.xml.Configuration;
 import org.opensaml.xml.io.UnmarshallerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Base class for metadata providers.
+ * 
+ * Providers record the metrics of each refresh of their metadata, and each entity lookup, in the
+ * {@link MetadataProviderStatistics} returned by {@link #getStatistics()}, which may be registered as a JMX MBean. The
+ * metrics of every completed refresh are also passed to the registered {@link MetadataMetricsListener}s.
  */
 public abstract class BaseMetadataProvider implements MetadataProvider {
 
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(BaseMetadataProvider.class);
+
     /** Whether metadata is required to be valid. */
     private boolean requireValidMetadata;
 
@@ -33,10 +45,25 @@ public abstract class BaseMetadataProvider implements MetadataProvider {
     /** Filter applied to all metadata. */
     private MetadataFilter mdFilter;
 
+    /** Statistics about the refreshes of, and lookups against, the metadata of this provider. */
+    private final MetadataProviderStatistics statistics;
+
+    /** Listeners notified of the metrics of every completed refresh. */
+    private final List<MetadataMetricsListener> metricsListeners;
+
+    /**
+     * Metrics of the refresh in progress on each thread, confined to the refreshing thread so that refreshes run by a
+     * background timer and on a request thread can not record into each other's metrics.
+     */
+    private final ThreadLocal<MetadataRefreshMetrics> refreshMetrics;
+
     /** Constructor. */
     public BaseMetadataProvider() {
         requireValidMetadata = false;
         unmarshallerFactory = Configuration.getUnmarshallerFactory();
+        statistics = new MetadataProviderStatistics();
+        metricsListeners = new CopyOnWriteArrayList<MetadataMetricsListener>();
+        refreshMetrics = new ThreadLocal<MetadataRefreshMetrics>();
     }
 
     /** {@inheritDoc} */
@@ -58,4 +85,91 @@ public abstract class BaseMetadataProvider implements MetadataProvider {
     public void setMetadataFilter(MetadataFilter newFilter) throws MetadataProviderException {
         mdFilter = newFilter;
     }
+
+    /**
+     * Gets the statistics about the refreshes of, and lookups against, the metadata of this provider.
+     * 
+     * @return the statistics of this provider
+     */
+    public MetadataProviderStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Gets the list of listeners notified of the metrics of every completed refresh. The list may be modified at any
+     * time.
+     * 
+     * @return the list of metrics listeners
+     */
+    public List<MetadataMetricsListener> getMetricsListeners() {
+        return metricsListeners;
+    }
+
+    /**
+     * Starts recording the metrics of a refresh run by the calling thread. Providers must call
+     * {@link #endRefreshMetrics(boolean)}, on the same thread, once the refresh completes, successfully or not.
+     * 
+     * @return the metrics of the refresh
+     */
+    protected MetadataRefreshMetrics beginRefreshMetrics() {
+        MetadataRefreshMetrics metrics = new MetadataRefreshMetrics();
+        refreshMetrics.set(metrics);
+        return metrics;
+    }
+
+    /**
+     * Gets the metrics of the refresh in progress on the calling thread.
+     * 
+     * @return the metrics of the refresh in progress, or null if the calling thread is not running a refresh
+     */
+    protected MetadataRefreshMetrics getRefreshMetrics() {
+        return refreshMetrics.get();
+    }
+
+    /**
+     * Records the duration of a phase of the refresh in progress on the calling thread, if any.
+     * 
+     * @param phase the name of the phase
+     * @param phaseStart value of {@link System#nanoTime()} when the phase started
+     */
+    protected void recordRefreshPhase(String phase, long phaseStart) {
+        MetadataRefreshMetrics metrics = refreshMetrics.get();
+        if (metrics != null) {
+            metrics.recordPhase(phase, (System.nanoTime() - phaseStart) / 1000000);
+        }
+    }
+
+    /**
+     * Completes the metrics of the refresh in progress on the calling thread, adds them to the statistics of this
+     * provider and passes them to the metrics listeners.
+     * 
+     * @param successful whether the refresh completed successfully
+     */
+    protected void endRefreshMetrics(boolean successful) {
+        MetadataRefreshMetrics metrics = refreshMetrics.get();
+        refreshMetrics.remove();
+        if (metrics == null) {
+            return;
+        }
+
+        metrics.complete(successful);
+        log.debug("Metadata refresh completed: {}", metrics);
+        statistics.recordRefresh(metrics);
+        for (MetadataMetricsListener listener : metricsListeners) {
+            try {
+                listener.refreshCompleted(this, metrics);
+            } catch (RuntimeException e) {
+                log.error("Metadata metrics listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Records an entity lookup in the statistics of this provider.
+     * 
+     * @param found whether the entity was found
+     */
+    protected void recordLookup(boolean found) {
+        statistics.recordLookup(found);
+    }
 }
\ No newline at end of file
@@ -18,14 +18,20 @@ package org.opensaml.saml2.metadata.provider;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.xml.namespace.QName;
 
+import org.joda.time.DateTime;
 import org.opensaml.common.SAMLObjectBuilder;
+import org.opensaml.saml2.common.SAML2Helper;
 import org.opensaml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml2.metadata.RoleDescriptor;
@@ -45,9 +51,31 @@ import org.slf4j.LoggerFactory;
  * contained provider emits a change this provider will also emit a change to observers registered with it. As such,
  * developers should be careful not to register a the same observer with both container providers and this provider.
  * Doing so will result in an observer being notified twice for each change.
+ * 
+ * If the merged index is enabled, via {@link #setMergedIndexEnabled(boolean)}, this provider keeps an index of the
+ * entity and entities descriptors of every registered provider and answers entity and entities descriptor queries
+ * from that index, without locking and without querying each provider in turn. The same descriptor is returned as
+ * when querying the providers in order. The index is replaced, re-indexing only the providers that changed, on the
+ * first query after a contained provider emits a change event or the set of registered providers changes. As such,
+ * in this mode, contained providers should be {@link ObservableMetadataProvider}s that refresh their metadata on their
+ * own, such as an {@link HTTPMetadataProvider} in refresh ahead mode, because their metadata is otherwise only read
+ * when they report a change. Providers that refresh their metadata when it is retrieved, such as an
+ * {@link HTTPMetadataProvider} not in refresh ahead mode, are re-indexed on the first query after their metadata
+ * expires, which is when their metadata would have been refreshed had they been queried directly. Providers without a
+ * metadata document, such as an {@link AbstractDynamicMetadataProvider}, can not be indexed; they are queried in turn,
+ * at their position in the provider order, whenever a query is not answered from the index of the providers before
+ * them.
+ * 
+ * If a {@link NegativeLookupCache} is set, entity IDs for which no registered provider has a descriptor are
+ * remembered, so that repeated lookups of an unknown entity, such as a spoofed issuer, are rejected without querying
+ * every provider. The cache is cleared whenever a contained provider emits a change event or the set of registered
+ * providers changes; changes to providers that are not observable are only seen once an entry expires.
  */
 public class ChainingMetadataProvider extends BaseMetadataProvider implements ObservableMetadataProvider {
 
+    /** Delay, in milliseconds, before metadata that had already expired when it was indexed is indexed again. */
+    private static final long EXPIRED_METADATA_REINDEX_DELAY = 60 * 1000;
+
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(ChainingMetadataProvider.class);
 
@@ -60,14 +88,85 @@ public class ChainingMetadataProvider extends BaseMetadataProvider implements Ob
     /** Lock used to block reads during write and vice versa. */
     private ReadWriteLock providerLock;
 
+    /** Whether queries are answered from the merged index. */
+    private volatile boolean mergedIndexEnabled;
+
+    /** Merged index of the descriptors of the registered providers, null until first built. */
+    private volatile MergedIndex mergedIndex;
+
+    /** Whether the merged index must be rebuilt before it is next used. */
+    private volatile boolean mergedIndexStale;
+
+    /** Providers that emitted a change event since the merged index was last built. */
+    private final ConcurrentLinkedQueue<MetadataProvider> changedProviders;
+
+    /** Lock used to serialize merged index rebuilds. */
+    private final Object mergedIndexLock;
+
+    /** Cache of entity IDs no registered provider has a descriptor for, may be null. */
+    private volatile NegativeLookupCache negativeLookupCache;
+
     /** Constructor. */
     public ChainingMetadataProvider() {
         super();
         observers = new ArrayList<Observer>();
         providers = new ArrayList<MetadataProvider>();
         providerLock = new ReentrantReadWriteLock(true);
+        changedProviders = new ConcurrentLinkedQueue<MetadataProvider>();
+        mergedIndexLock = new Object();
     }
 
+    /**
+     * Gets whether entity and entities descriptor queries are answered from a merged index of the registered
+     * providers.
+     * 
+     * @return whether queries are answered from the merged index
+     */
+    public boolean isMergedIndexEnabled() {
+        return mergedIndexEnabled;
+    }
+
+    /**
+     * Sets whether entity and entities descriptor queries are answered from a merged index of the registered
+     * providers.
+     * 
+     * @param enabled whether queries are answered from the merged index
+     */
+    public void setMergedIndexEnabled(boolean enabled) {
+        mergedIndexEnabled = enabled;
+        mergedIndex = null;
+        mergedIndexStale = true;
+
+        if (enabled) {
+            Lock readLock = providerLock.readLock();
+            readLock.lock();
+            try {
+                for (MetadataProvider provider : providers) {
+                    checkIndexable(provider);
+                }
+            } finally {
+                readLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Gets the cache of entity IDs no registered provider has a descriptor for.
+     * 
+     * @return the cache of unknown entity IDs, may be null
+     */
+    public NegativeLookupCache getNegativeLookupCache() {
+        return negativeLookupCache;
+    }
+
+    /**
+     * Sets the cache of entity IDs no registered provider has a descriptor for.
+     * 
+     * @param cache the cache of unknown entity IDs, may be null
+     */
+    public void setNegativeLookupCache(NegativeLookupCache cache) {
+        negativeLookupCache = cache;
+    }
     /**
      * Gets an immutable the list of currently registered providers.
      * 
@@ -85,7 +184,15 @@ public class ChainingMetadataProvider extends BaseMetadataProvider implements Ob
      * @throws MetadataProviderException thrown if there is a problem adding the metadata provider
      */
     public void setProviders(List<MetadataProvider> newProviders) throws MetadataProviderException {
-        providers.clear();
+        Lock writeLock = providerLock.writeLock();
+        writeLock.lock();
+        try {
+            providers.clear();
+        } finally {
+            writeLock.unlock();
+        }
+        providersChanged();
+
         for (MetadataProvider provider : newProviders) {
             addMetadataProvider(provider);
         }
@@ -106,8 +213,18 @@ public class ChainingMetadataProvider extends BaseMetadataProvider implements Ob
             if (newProvider instanceof ObservableMetadataProvider) {
                 ((ObservableMetadataProvider) newProvider).getObservers().add(new ContainedProviderObserver());
             }
+            if (isMergedIndexEnabled()) {
+                checkIndexable(newProvider);
+            }
 
-            providers.add(newProvider);
+            Lock writeLock = providerLock.writeLock();
+            writeLock.lock();
+            try {
+                providers.add(newProvider);
+            } finally {
+                writeLock.unlock();
+            }
+            providersChanged();
         }
     }
 
@@ -117,12 +234,20 @@ public class ChainingMetadataProvider extends BaseMetadataProvider implements Ob
      * @param provider provider to be removed
      */
     public void removeMetadataProvider(MetadataProvider provider) {
-        providers.remove(provider);
+        Lock writeLock = providerLock.writeLock();
+        writeLock.lock();
+        try {
+            providers.remove(provider);
+        } finally {
+            writeLock.unlock();
+        }
+        providersChanged();
     }
 
     /** {@inheritDoc} */
     public void setRequireValidMetadata(boolean requireValidMetadata) {
         super.setRequireValidMetadata(requireValidMetadata);
+        clearNegativeLookupCache();
 
         Lock writeLock = providerLock.writeLock();
         writeLock.lock();
@@ -184,6 +309,10 @@ public class ChainingMetadataProvider extends BaseMetadataProvider implements Ob
 
     /** {@inheritDoc} */
     public EntitiesDescriptor getEntitiesDescriptor(String name) throws MetadataProviderException {
+        if (isMergedIndexEnabled()) {
+            return getMergedIndex().getEntitiesDescriptor(name, requireValidMetadata());
+        }
+
         Lock readLock = providerLock.readLock();
         readLock.lock();
 
@@ -207,6 +336,39 @@ public class ChainingMetadataProvider extends BaseMetadataProvider implements Ob
 
     /** {@inheritDoc} */
     public EntityDescriptor getEntityDescriptor(String entityID) throws MetadataProviderException {
+        NegativeLookupCache unknownEntities = negativeLookupCache;
+        long lookupGeneration = 0;
+        if (unknownEntities != null) {
+            if (unknownEntities.contains(entityID)) {
+                log.debug("Entity ID {} was recently not found in any metadata provider", entityID);
+                return null;
+            }
+            // read before the lookup, so that a miss in metadata replaced meanwhile is not remembered
+            lookupGeneration = unknownEntities.getGeneration();
+        }
+
+        EntityDescriptor descriptor = lookupEntityDescriptor(entityID);
+        if (descriptor == null && unknownEntities != null) {
+            unknownEntities.add(entityID, lookupGeneration);
+        }
+
+        return descriptor;
+    }
+
+    /**
+     * Gets the entity descriptor of the first registered provider that has one for the given entity ID.
+     * 
+     * @param entityID the entity ID
+     * 
+     * @return the entity descriptor or null
+     * 
+     * @throws MetadataProviderException thrown if a provider can not be queried
+     */
+    private EntityDescriptor lookupEntityDescriptor(String entityID) throws MetadataProviderException {
+        if (isMergedIndexEnabled()) {
+            return getMergedIndex().getEntityDescriptor(entityID, requireValidMetadata());
+        }
+
         Lock readLock = providerLock.readLock();
         readLock.lock();
 
@@ -246,12 +408,7 @@ public class ChainingMetadataProvider extends BaseMetadataProvider implements Ob
             return null;
         }
 
-        List<RoleDescriptor> roles = entityMetadata.getRoleDescriptors(roleName, supportedProtocol);
-        if (roles != null && !roles.isEmpty()) {
-            return roles.get(0);
-        }
-
-        return null;
+        return entityMetadata.getRoleDescriptor(roleName, supportedProtocol);
     }
 
     /** {@inheritDoc} */
@@ -265,9 +422,24 @@ public class ChainingMetadataProvider extends BaseMetadataProvider implements Ob
      * every registered Observer passing in this provider.
      */
     protected void emitChangeEvent() {
+        emitChangeEvent(null);
+    }
+
+    /**
+     * Convenience method for calling
+     * {@link org.opensaml.saml2.metadata.provider.ObservableMetadataProvider.Observer#onEvent(MetadataProvider)} on
+     * every registered Observer, and
+     * {@link ChangeObserver#onEvent(MetadataProvider, MetadataChangeEvent)} on every registered ChangeObserver,
+     * passing in this provider.
+     * 
+     * @param event the entities that changed, or null if it is not known which entities changed
+     */
+    protected void emitChangeEvent(MetadataChangeEvent event) {
         synchronized (observers) {
             for (Observer observer : observers) {
-                if (observer != null) {
+                if (observer instanceof ChangeObserver) {
+                    ((ChangeObserver) observer).onEvent(this, event);
+                } else if (observer != null) {
                     observer.onEvent(this);
                 }
             }
@@ -275,13 +447,508 @@ public class ChainingMetadataProvider extends BaseMetadataProvider implements Ob
     }
 
     /**
-     * Observer that clears the descriptor index of this provider.
+     * Warns if changes to the metadata of a provider may not be seen by the merged index.
+     * 
+     * @param provider the provider
      */
-    private class ContainedProviderObserver implements Observer {
+    private void checkIndexable(MetadataProvider provider) {
+        if (!(provider instanceof ObservableMetadataProvider)) {
+            log.warn("Metadata provider {} is not observable, changes to its metadata will only be indexed once it "
+                    + "expires", provider);
+        } else if (provider instanceof FilesystemMetadataProvider
+                && !((FilesystemMetadataProvider) provider).isBackgroundRefresh()) {
+            log.warn("Metadata provider {} is not in background refresh mode, changes to its metadata file will only "
+                    + "be indexed once its metadata expires", provider);
+        }
+    }
+
+    /**
+     * Invalidates everything derived from the set of registered providers.
+     */
+    private void providersChanged() {
+        mergedIndexStale = true;
+        clearNegativeLookupCache();
+    }
+
+    /** Clears the cache of unknown entity IDs, if any. */
+    private void clearNegativeLookupCache() {
+        NegativeLookupCache unknownEntities = negativeLookupCache;
+        if (unknownEntities != null) {
+            unknownEntities.clear();
+        }
+    }
+
+    /**
+     * Gets the current merged index, rebuilding it first if it is stale.
+     * 
+     * @return the current merged index
+     * 
+     * @throws MetadataProviderException thrown if the metadata of a registered provider can not be retrieved
+     */
+    protected MergedIndex getMergedIndex() throws MetadataProviderException {
+        MergedIndex index = mergedIndex;
+        if (index == null || mergedIndexStale || index.isExpired(System.currentTimeMillis())) {
+            index = rebuildMergedIndex();
+        }
+        return index;
+    }
+
+    /**
+     * Rebuilds the merged index. The descriptor indexes of providers that have not emitted a change event since the
+     * last rebuild, and whose metadata has not expired since it was indexed, are reused.
+     * 
+     * The providers' metadata is retrieved, which may cause them to refresh, while holding only the rebuild lock so
+     * that change events emitted by those refreshes, which only mark providers as changed, can not deadlock.
+     * 
+     * @return the rebuilt merged index
+     * 
+     * @throws MetadataProviderException thrown if the metadata of a registered provider can not be retrieved
+     */
+    private MergedIndex rebuildMergedIndex() throws MetadataProviderException {
+        synchronized (mergedIndexLock) {
+            long now = System.currentTimeMillis();
+            MergedIndex currentIndex = mergedIndex;
+            if (currentIndex != null && !mergedIndexStale && !currentIndex.isExpired(now)) {
+                return currentIndex;
+            }
+            mergedIndexStale = false;
+
+            IdentityHashMap<MetadataProvider, Boolean> changed = new IdentityHashMap<MetadataProvider, Boolean>();
+            MetadataProvider changedProvider = changedProviders.poll();
+            while (changedProvider != null) {
+                changed.put(changedProvider, Boolean.TRUE);
+                changedProvider = changedProviders.poll();
+            }
+
+            List<MetadataProvider> currentProviders;
+            Lock readLock = providerLock.readLock();
+            readLock.lock();
+            try {
+                currentProviders = new ArrayList<MetadataProvider>(providers);
+            } finally {
+                readLock.unlock();
+            }
+
+            List<MetadataIndex> providerIndexes = new ArrayList<MetadataIndex>(currentProviders.size());
+            List<Long> reindexTimes = new ArrayList<Long>(currentProviders.size());
+            try {
+                for (MetadataProvider provider : currentProviders) {
+                    MetadataIndex providerIndex = null;
+                    long reindexTime = Long.MAX_VALUE;
+                    if (currentIndex != null && !changed.containsKey(provider)
+                            && !currentIndex.isExpired(provider, now)) {
+                        providerIndex = currentIndex.getProviderIndex(provider);
+                        reindexTime = currentIndex.getReindexTime(provider);
+                    }
+                    if (providerIndex == null) {
+                        log.debug("Indexing metadata of contained provider {}", provider);
+                        XMLObject metadata = provider.getMetadata();
+                        providerIndex = indexProvider(provider, metadata);
+                        reindexTime = getReindexTime(provider, metadata, now);
+                    }
+                    providerIndexes.add(providerIndex);
+                    reindexTimes.add(reindexTime);
+                }
+            } catch (MetadataProviderException e) {
+                changedProviders.addAll(changed.keySet());
+                mergedIndexStale = true;
+                throw e;
+            }
+
+            MergedIndex index = new MergedIndex(currentProviders, providerIndexes, reindexTimes);
+            if (index.hasQueriedProviders()) {
+                log.debug("Metadata providers without a metadata document will be queried in turn");
+            }
+            mergedIndex = index;
+            return index;
+        }
+    }
+
+    /**
+     * Gets the descriptor index of the current metadata of a contained provider.
+     * 
+     * @param provider the contained provider
+     * @param metadata the current metadata of the provider
+     * 
+     * @return the descriptor index of the provider's metadata, or null if the provider has no metadata document
+     */
+    private MetadataIndex indexProvider(MetadataProvider provider, XMLObject metadata) {
+        if (metadata == null) {
+            return null;
+        }
+        if (provider instanceof AbstractMetadataProvider) {
+            return ((AbstractMetadataProvider) provider).getDescriptorIndex(metadata);
+        }
+        return new MetadataIndex(metadata);
+    }
+
+    /**
+     * Gets the time at which the metadata of a contained provider must be indexed again, because the provider would
+     * refresh it if it were retrieved. Providers that refresh their metadata on their own, and report the change, are
+     * never re-indexed because of expiration.
+     * 
+     * @param provider the contained provider
+     * @param metadata the current metadata of the provider
+     * @param now the current time
+     * 
+     * @return time, in milliseconds since the epoch, at which the provider's metadata must be indexed again
+     */
+    private long getReindexTime(MetadataProvider provider, XMLObject metadata, long now) {
+        if (metadata == null) {
+            return Long.MAX_VALUE;
+        }
+
+        DateTime expirationTime;
+        if (provider instanceof HTTPMetadataProvider) {
+            HTTPMetadataProvider httpProvider = (HTTPMetadataProvider) provider;
+            if (httpProvider.isRefreshAhead()) {
+                return Long.MAX_VALUE;
+            }
+            expirationTime = httpProvider.getExpirationTime();
+        } else if (provider instanceof FilesystemMetadataProvider
+                && ((FilesystemMetadataProvider) provider).isBackgroundRefresh()) {
+            return Long.MAX_VALUE;
+        } else {
+            expirationTime = SAML2Helper.getEarliestExpiration(metadata);
+        }
+
+        if (expirationTime == null) {
+            return Long.MAX_VALUE;
+        }
+        if (expirationTime.getMillis() <= now) {
+            // the provider could not refresh its expired metadata, do not retrieve it again on every query
+            return now + EXPIRED_METADATA_REINDEX_DELAY;
+        }
+        return expirationTime.getMillis();
+    }
+
+    /**
+     * Observer that marks the emitting provider as changed, so that it is re-indexed, and propagates the event, and
+     * the entities that changed if known, to the observers of this provider.
+     */
+    private class ContainedProviderObserver implements ChangeObserver {
 
         /** {@inheritDoc} */
         public void onEvent(MetadataProvider provider) {
-            emitChangeEvent();
+            onEvent(provider, null);
+        }
+
+        /** {@inheritDoc} */
+        public void onEvent(MetadataProvider provider, MetadataChangeEvent event) {
+            changedProviders.add(provider);
+            mergedIndexStale = true;
+            clearNegativeLookupCache();
+            emitChangeEvent(event);
         }
     }
+
+    /**
+     * An immutable index merging the descriptor indexes of the registered providers. Each entity ID, and entities
+     * descriptor name, maps to the matching descriptors of every provider, in provider order, so that an invalid
+     * descriptor of one provider can fall through to the next one exactly as when querying the providers in turn.
+     * Providers that have no metadata document, and so no index, are queried at their position in the provider order.
+     * The index expires once the metadata of one of the indexed providers must be indexed again.
+     */
+    protected static class MergedIndex {
+
+        /** Descriptor index of each provider. */
+        private final Map<MetadataProvider, MetadataIndex> providerIndexes;
+
+        /** Time at which the descriptor index of each provider must be rebuilt. */
+        private final Map<MetadataProvider, Long> reindexTimes;
+
+        /** Earliest time at which the descriptor index of a provider must be rebuilt. */
+        private final long expirationTime;
+
+        /** Providers that have no index and are queried in turn, in provider order. */
+        private final List<MetadataProvider> queriedProviders;
+
+        /** Position, in the provider order, of each queried provider. */
+        private final List<Integer> queriedPositions;
+
+        /** Entity descriptors, with the index containing them, by entity ID. */
+        private final Map<String, List<IndexedDescriptor<EntityDescriptor>>> entityDescriptors;
+
+        /** Entities descriptors, with the index containing them, by name. */
+        private final Map<String, List<IndexedDescriptor<EntitiesDescriptor>>> entitiesDescriptors;
+
+        /**
+         * Constructor.
+         * 
+         * @param indexedProviders the registered providers, in order
+         * @param indexes the descriptor index of each provider, in the same order, null for a provider which has no
+         *            metadata document and is to be queried in turn
+         * @param providerReindexTimes the time, in milliseconds since the epoch, at which the descriptor index of each
+         *            provider, in the same order, must be rebuilt
+         */
+        public MergedIndex(List<MetadataProvider> indexedProviders, List<MetadataIndex> indexes,
+                List<Long> providerReindexTimes) {
+            providerIndexes = new IdentityHashMap<MetadataProvider, MetadataIndex>();
+            reindexTimes = new IdentityHashMap<MetadataProvider, Long>();
+            queriedProviders = new ArrayList<MetadataProvider>();
+            queriedPositions = new ArrayList<Integer>();
+            entityDescriptors = new HashMap<String, List<IndexedDescriptor<EntityDescriptor>>>();
+            entitiesDescriptors = new HashMap<String, List<IndexedDescriptor<EntitiesDescriptor>>>();
+
+            long earliestReindexTime = Long.MAX_VALUE;
+            for (int i = 0; i < indexedProviders.size(); i++) {
+                MetadataIndex index = indexes.get(i);
+                if (index == null) {
+                    queriedProviders.add(indexedProviders.get(i));
+                    queriedPositions.add(i);
+                    continue;
+                }
+                providerIndexes.put(indexedProviders.get(i), index);
+                reindexTimes.put(indexedProviders.get(i), providerReindexTimes.get(i));
+                earliestReindexTime = Math.min(earliestReindexTime, providerReindexTimes.get(i));
+                for (String entityID : index.getEntityDescriptors().keySet()) {
+                    merge(index, i, entityID, index.getEntityDescriptors(entityID), entityDescriptors);
+                }
+                for (String name : index.getEntitiesDescriptors().keySet()) {
+                    merge(index, i, name, index.getEntitiesDescriptors(name), entitiesDescriptors);
+                }
+            }
+            expirationTime = earliestReindexTime;
+        }
+
+        /**
+         * Gets whether the descriptor index of some provider must be rebuilt.
+         * 
+         * @param now the current time, in milliseconds since the epoch
+         * 
+         * @return whether the descriptor index of some provider must be rebuilt
+         */
+        public boolean isExpired(long now) {
+            return now >= expirationTime;
+        }
+
+        /**
+         * Gets whether the descriptor index of a provider must be rebuilt.
+         * 
+         * @param provider the provider
+         * @param now the current time, in milliseconds since the epoch
+         * 
+         * @return whether the descriptor index of the provider must be rebuilt
+         */
+        public boolean isExpired(MetadataProvider provider, long now) {
+            return now >= getReindexTime(provider);
+        }
+
+        /**
+         * Gets the time at which the descriptor index of a provider must be rebuilt.
+         * 
+         * @param provider the provider
+         * 
+         * @return the time, in milliseconds since the epoch, at which the descriptor index of the provider must be
+         *         rebuilt, {@link Long#MAX_VALUE} if the provider is not indexed
+         */
+        public long getReindexTime(MetadataProvider provider) {
+            Long reindexTime = reindexTimes.get(provider);
+            if (reindexTime == null) {
+                return Long.MAX_VALUE;
+            }
+            return reindexTime;
+        }
+
+        /**
+         * Gets whether some providers have no index and are queried in turn.
+         * 
+         * @return whether some providers are queried in turn
+         */
+        public boolean hasQueriedProviders() {
+            return !queriedProviders.isEmpty();
+        }
+
+        /**
+         * Gets the descriptor index of a provider.
+         * 
+         * @param provider the provider
+         * 
+         * @return the provider's descriptor index or null if the provider is not indexed
+         */
+        public MetadataIndex getProviderIndex(MetadataProvider provider) {
+            return providerIndexes.get(provider);
+        }
+
+        /**
+         * Gets the entity descriptor of the first provider that has one for the given entity ID.
+         * 
+         * @param entityID the entity ID
+         * @param requireValid whether only valid descriptors are returned
+         * 
+         * @return the entity descriptor or null
+         * 
+         * @throws MetadataProviderException thrown if a provider which is queried in turn can not be queried
+         */
+        public EntityDescriptor getEntityDescriptor(final String entityID, boolean requireValid)
+                throws MetadataProviderException {
+            List<IndexedDescriptor<EntityDescriptor>> candidates = entityDescriptors.get(entityID);
+            if (queriedProviders.isEmpty()) {
+                return lookup(candidates, requireValid);
+            }
+            return lookup(candidates, requireValid, new DescriptorQuery<EntityDescriptor>() {
+                /** {@inheritDoc} */
+                public EntityDescriptor query(MetadataProvider provider) throws MetadataProviderException {
+                    return provider.getEntityDescriptor(entityID);
+                }
+            });
+        }
+
+        /**
+         * Gets the entities descriptor of the first provider that has one with the given name.
+         * 
+         * @param name the name
+         * @param requireValid whether only valid descriptors are returned
+         * 
+         * @return the entities descriptor or null
+         * 
+         * @throws MetadataProviderException thrown if a provider which is queried in turn can not be queried
+         */
+        public EntitiesDescriptor getEntitiesDescriptor(final String name, boolean requireValid)
+                throws MetadataProviderException {
+            List<IndexedDescriptor<EntitiesDescriptor>> candidates = entitiesDescriptors.get(name);
+            if (queriedProviders.isEmpty()) {
+                return lookup(candidates, requireValid);
+            }
+            return lookup(candidates, requireValid, new DescriptorQuery<EntitiesDescriptor>() {
+                /** {@inheritDoc} */
+                public EntitiesDescriptor query(MetadataProvider provider) throws MetadataProviderException {
+                    return provider.getEntitiesDescriptor(name);
+                }
+            });
+        }
+
+        /**
+         * Gets the first, and if required valid, descriptor from the given candidates, or from the providers which
+         * are queried in turn, in provider order.
+         * 
+         * @param <T> type of descriptor
+         * @param candidates the candidate descriptors, in provider order, may be null
+         * @param requireValid whether only valid descriptors are returned
+         * @param query the query run on the providers which are queried in turn
+         * 
+         * @return the descriptor or null
+         * 
+         * @throws MetadataProviderException thrown if a provider which is queried in turn can not be queried
+         */
+        private <T extends XMLObject> T lookup(List<IndexedDescriptor<T>> candidates, boolean requireValid,
+                DescriptorQuery<T> query) throws MetadataProviderException {
+            long now = System.currentTimeMillis();
+            int nextCandidate = 0;
+            for (int i = 0; i < queriedProviders.size(); i++) {
+                int position = queriedPositions.get(i);
+                while (candidates != null && nextCandidate < candidates.size()
+                        && candidates.get(nextCandidate).position < position) {
+                    IndexedDescriptor<T> candidate = candidates.get(nextCandidate++);
+                    if (!requireValid || candidate.index.isValid(candidate.descriptor, now)) {
+                        return candidate.descriptor;
+                    }
+                }
+
+                T descriptor = query.query(queriedProviders.get(i));
+                if (descriptor != null) {
+                    return descriptor;
+                }
+            }
+
+            if (candidates != null) {
+                return lookup(candidates.subList(nextCandidate, candidates.size()), requireValid);
+            }
+            return null;
+        }
+
+        /**
+         * Gets the first, and if required valid, descriptor from the given candidates.
+         * 
+         * @param <T> type of descriptor
+         * @param candidates the candidate descriptors, in provider order, may be null
+         * @param requireValid whether only valid descriptors are returned
+         * 
+         * @return the descriptor or null
+         */
+        private <T extends XMLObject> T lookup(List<IndexedDescriptor<T>> candidates, boolean requireValid) {
+            if (candidates == null) {
+                return null;
+            }
+
+            long now = System.currentTimeMillis();
+            for (IndexedDescriptor<T> candidate : candidates) {
+                if (!requireValid || candidate.index.isValid(candidate.descriptor, now)) {
+                    return candidate.descriptor;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Adds the descriptors of one provider with the given entity ID, or name, to the merged map.
+         * 
+         * @param <T> type of descriptor
+         * @param index the provider's descriptor index
+         * @param position the provider's position in the provider order
+         * @param key the entity ID or name
+         * @param descriptors the provider's descriptors with the entity ID or name, in search order
+         * @param mergedDescriptors the merged map
+         */
+        private <T extends XMLObject> void merge(MetadataIndex index, int position, String key, List<T> descriptors,
+                Map<String, List<IndexedDescriptor<T>>> mergedDescriptors) {
+            List<IndexedDescriptor<T>> candidates = mergedDescriptors.get(key);
+            if (candidates == null) {
+                candidates = new ArrayList<IndexedDescriptor<T>>(descriptors.size());
+                mergedDescriptors.put(key, candidates);
+            }
+            for (T descriptor : descriptors) {
+                candidates.add(new IndexedDescriptor<T>(index, position, descriptor));
+            }
+        }
+    }
+
+    /**
+     * A descriptor together with the index, of the provider, containing it.
+     * 
+     * @param <T> type of descriptor
+     */
+    private static class IndexedDescriptor<T extends XMLObject> {
+
+        /** Index containing the descriptor. */
+        private final MetadataIndex index;
+
+        /** Position, in the provider order, of the provider of the index. */
+        private final int position;
+
+        /** The descriptor. */
+        private final T descriptor;
+
+        /**
+         * Constructor.
+         * 
+         * @param containingIndex index containing the descriptor
+         * @param providerPosition position, in the provider order, of the provider of the index
+         * @param indexedDescriptor the descriptor
+         */
+        public IndexedDescriptor(MetadataIndex containingIndex, int providerPosition, T indexedDescriptor) {
+            index = containingIndex;
+            position = providerPosition;
+            descriptor = indexedDescriptor;
+        }
+    }
+
+    /**
+     * A query of a single descriptor run on a provider which is queried in turn.
+     * 
+     * @param <T> type of descriptor
+     */
+    private interface DescriptorQuery<T extends XMLObject> {
+
+        /**
+         * Queries a provider for the descriptor.
+         * 
+         * @param provider the provider
+         * 
+         * @return the descriptor or null
+         * 
+         * @throws MetadataProviderException thrown if the provider can not be queried
+         */
+        public T query(MetadataProvider provider) throws MetadataProviderException;
+    }
 }
\ No newline at end of file
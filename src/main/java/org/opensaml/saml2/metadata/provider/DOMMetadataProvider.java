@@ -79,6 +79,7 @@ public class DOMMetadataProvider extends AbstractObservableMetadataProvider impl
             filterMetadata(metadataTemp);
             releaseMetadataDOM(metadataTemp);
             metadata = metadataTemp;
+            indexMetadata(metadata);
             emitChangeEvent();
         } catch (UnmarshallingException e) {
             String errorMsg = "Unable to unmarshall metadata element";
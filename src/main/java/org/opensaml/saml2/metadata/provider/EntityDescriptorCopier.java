@@ -0,0 +1,100 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.Configuration;
+import org.opensaml.xml.io.Unmarshaller;
+import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.util.XMLConstants;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Helper which copies EntityDescriptors into DOM documents of their own, so that they can be processed on threads
+ * other than the one which owns the metadata document. DOM implementations, Xerces in particular, are not safe for
+ * concurrent use even when only read, so the EntityDescriptors of a single document must not be processed in
+ * parallel.
+ */
+final class EntityDescriptorCopier {
+
+    /** Constructor. */
+    private EntityDescriptorCopier() {
+    }
+
+    /**
+     * Copies the cached DOM of the given EntityDescriptor into a new document. The namespace declarations and xml:
+     * attributes the EntityDescriptor inherits from its ancestors are declared on the copy, so that the copy is
+     * canonicalized, and its signature verified, exactly as the original.
+     * 
+     * This method reads the document of the original and so must be called on the thread which owns it.
+     * 
+     * @param entityDescriptor the EntityDescriptor to copy
+     * 
+     * @return the root element of the copy, or null if the EntityDescriptor has no cached DOM
+     */
+    static Element copyDOM(EntityDescriptor entityDescriptor) {
+        Element entityElement = entityDescriptor.getDOM();
+        if (entityElement == null) {
+            return null;
+        }
+
+        Document copyDocument = entityElement.getOwnerDocument().getImplementation().createDocument(null, null, null);
+        Element copy = (Element) copyDocument.importNode(entityElement, true);
+        copyDocument.appendChild(copy);
+
+        Node ancestor = entityElement.getParentNode();
+        while (ancestor != null && ancestor.getNodeType() == Node.ELEMENT_NODE) {
+            NamedNodeMap attributes = ancestor.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Attr attribute = (Attr) attributes.item(i);
+                String namespace = attribute.getNamespaceURI();
+                if ((XMLConstants.XMLNS_NS.equals(namespace) || XMLConstants.XML_NS.equals(namespace))
+                        && !copy.hasAttributeNS(namespace, attribute.getLocalName())) {
+                    copy.setAttributeNodeNS((Attr) copyDocument.importNode(attribute, false));
+                }
+            }
+            ancestor = ancestor.getParentNode();
+        }
+
+        return copy;
+    }
+
+    /**
+     * Unmarshalls a copy made by {@link #copyDOM(EntityDescriptor)}. This method may be called on any thread.
+     * 
+     * @param copy the root element of the copy
+     * 
+     * @return the unmarshalled EntityDescriptor
+     * 
+     * @throws FilterException thrown if the copy can not be unmarshalled
+     */
+    static EntityDescriptor unmarshallCopy(Element copy) throws FilterException {
+        Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(copy);
+        if (unmarshaller == null) {
+            throw new FilterException("No unmarshaller registered for EntityDescriptor copy");
+        }
+        try {
+            return (EntityDescriptor) unmarshaller.unmarshall(copy);
+        } catch (UnmarshallingException e) {
+            throw new FilterException("Unable to unmarshall EntityDescriptor copy", e);
+        }
+    }
+}
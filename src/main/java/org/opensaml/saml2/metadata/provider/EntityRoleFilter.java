@@ -43,8 +43,11 @@ import org.slf4j.LoggerFactory;
  * If and entities descriptor does not contains any entity descriptors after filter it may, optionally, be removed as
  * well. If the root element of the metadata document is an entities descriptor it will never be removed, regardless of
  * of whether it still contains entity descriptors.
+ * 
+ * The filter is entity scoped unless empty entities descriptors are to be removed and the metadata contains nested
+ * entities descriptors.
  */
-public class EntityRoleFilter implements MetadataFilter {
+public class EntityRoleFilter implements EntityScopedMetadataFilter {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(EntityRoleFilter.class);
@@ -139,6 +142,28 @@ public class EntityRoleFilter implements MetadataFilter {
         }
     }
 
+    /** {@inheritDoc} */
+    public boolean isEntityScoped(XMLObject metadata) {
+        if (!getRemoveEmptyEntitiesDescriptors() || !(metadata instanceof EntitiesDescriptor)) {
+            return true;
+        }
+        List<EntitiesDescriptor> entitiesDescriptors = ((EntitiesDescriptor) metadata).getEntitiesDescriptors();
+        return entitiesDescriptors == null || entitiesDescriptors.isEmpty();
+    }
+
+    /** {@inheritDoc} */
+    public boolean filterEntity(EntityDescriptor entityDescriptor) throws FilterException {
+        filterEntityDescriptor(entityDescriptor);
+        if (getRemoveRolelessEntityDescriptors()) {
+            List<RoleDescriptor> entityRoles = entityDescriptor.getRoleDescriptors();
+            if (entityRoles == null || entityRoles.isEmpty()) {
+                log.trace("Filtering out entity descriptor {}", entityDescriptor.getEntityID());
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Filters entities descriptor.
      * 
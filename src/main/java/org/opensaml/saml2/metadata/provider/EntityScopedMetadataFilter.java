@@ -0,0 +1,53 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.XMLObject;
+
+/**
+ * A metadata filter that may act independently on each EntityDescriptor of a metadata document.
+ *
+ * When such a filter is entity scoped for a given EntitiesDescriptor, filtering the EntitiesDescriptor with
+ * {@link #doFilter(XMLObject)} must be equivalent to filtering each of its EntityDescriptor descendants with
+ * {@link #filterEntity(EntityDescriptor)} and removing those for which false is returned. This allows a
+ * {@link MetadataFilterChain} to run all its entity scoped filters on one entity at a time, possibly concurrently on
+ * different entities, instead of having each filter traverse the whole document.
+ */
+public interface EntityScopedMetadataFilter extends MetadataFilter {
+
+    /**
+     * Gets whether this filter acts independently on each EntityDescriptor of the given metadata.
+     *
+     * @param metadata the metadata to be filtered
+     *
+     * @return true if this filter may be applied to the metadata one EntityDescriptor at a time
+     */
+    public boolean isEntityScoped(XMLObject metadata);
+
+    /**
+     * Filters a single EntityDescriptor. Entities of the same metadata document may be filtered concurrently, so an
+     * implementation must only read and modify the given EntityDescriptor.
+     *
+     * @param entityDescriptor the EntityDescriptor to be filtered
+     *
+     * @return true if the EntityDescriptor is to be kept, false if it is to be removed from its EntitiesDescriptor
+     *
+     * @throws FilterException thrown if an error occurs during the filtering process
+     */
+    public boolean filterEntity(EntityDescriptor entityDescriptor) throws FilterException;
+}
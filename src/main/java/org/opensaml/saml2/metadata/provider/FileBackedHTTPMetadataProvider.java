@@ -16,19 +16,32 @@
 
 package org.opensaml.saml2.metadata.provider;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
 
 import org.opensaml.Configuration;
 import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.io.Marshaller;
 import org.opensaml.xml.io.MarshallingException;
+import org.opensaml.xml.io.Unmarshaller;
 import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.parse.XMLParserException;
 import org.opensaml.xml.util.XMLHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
 /**
@@ -36,6 +49,16 @@ import org.w3c.dom.Element;
  * may not be pulled from the URL it may be pulled from disk using the last fetched data. If the backing file does not
  * already exist it will be created.
  * 
+ * Optionally, via {@link #setSnapshotFile(String)}, the provider also keeps a {@link MetadataSnapshot} of the metadata
+ * as it was after filtering. When initialized in refresh-ahead mode a valid, and unless expired metadata is maintained
+ * unexpired, snapshot is loaded without filtering it again and served immediately while the metadata is revalidated
+ * against the remote server in the background. Because the snapshot is not filtered again, and so for example its
+ * signatures are not verified again, the snapshot file must be protected against modification.
+ * 
+ * When streaming ingestion is enabled the fetched metadata has already been filtered, and its DOM released, by the
+ * time it is returned, so the backup file is written with the raw bytes of the response as they are read rather than
+ * by serializing the metadata.
+ * 
  * It is the responsibility of the caller to re-initialize, via {@link #initialize()}, if any properties of this
  * provider are changed.
  */
@@ -47,6 +70,12 @@ public class FileBackedHTTPMetadataProvider extends HTTPMetadataProvider {
     /** File containing the backup of the metadata. */
     private File metadataBackupFile;
 
+    /** File containing the snapshot of the filtered metadata, null if no snapshot is kept. */
+    private File snapshotFile;
+
+    /** Temporary file receiving the raw bytes of the metadata being fetched, null if none. */
+    private File pendingBackupFile;
+
     /**
      * Constructor.
      * 
@@ -85,10 +114,110 @@ public class FileBackedHTTPMetadataProvider extends HTTPMetadataProvider {
         }
     }
 
+    /**
+     * Gets the file containing the snapshot of the filtered metadata.
+     * 
+     * @return file containing the snapshot of the filtered metadata, null if no snapshot is kept
+     */
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /**
+     * Sets the file containing the snapshot of the filtered metadata.
+     * 
+     * @param snapshotFilePath path of the file containing the snapshot of the filtered metadata, null if no snapshot
+     *            is to be kept
+     * 
+     * @throws MetadataProviderException thrown if the given path is a directory
+     */
+    public void setSnapshotFile(String snapshotFilePath) throws MetadataProviderException {
+        if (snapshotFilePath == null) {
+            snapshotFile = null;
+            return;
+        }
+
+        File file = new File(snapshotFilePath);
+        if (file.isDirectory()) {
+            throw new MetadataProviderException("Filepath " + snapshotFilePath
+                    + " is a directory and may not be used as a metadata snapshot file");
+        }
+        snapshotFile = file;
+    }
+
+    /** {@inheritDoc} */
+    protected boolean warmStart() throws MetadataProviderException {
+        if (snapshotFile == null || !snapshotFile.exists()) {
+            return false;
+        }
+
+        try {
+            MetadataSnapshot snapshot = MetadataSnapshot.read(snapshotFile);
+            if (!maintainExpiredMetadata() && snapshot.getExpirationTime() != null
+                    && snapshot.getExpirationTime().isBeforeNow()) {
+                log.debug("Metadata snapshot {} has expired, ignoring it", snapshotFile.getAbsolutePath());
+                return false;
+            }
+
+            Document snapshotDocument = getParserPool().parse(
+                    new InputStreamReader(snapshot.getMetadataStream(), "UTF-8"));
+            Unmarshaller unmarshaller = Configuration.getUnmarshallerFactory().getUnmarshaller(
+                    snapshotDocument.getDocumentElement());
+            if (unmarshaller == null) {
+                log.warn("Metadata snapshot {} contains unsupported metadata, ignoring it", snapshotFile
+                        .getAbsolutePath());
+                return false;
+            }
+            XMLObject metadata = unmarshaller.unmarshall(snapshotDocument.getDocumentElement());
+
+            HashSet<String> restoredEntityIDs = new HashSet<String>(new MetadataIndex(metadata)
+                    .getEntityDescriptors().keySet());
+            if (!restoredEntityIDs.equals(new HashSet<String>(snapshot.getEntityIDs()))) {
+                log.warn("Metadata snapshot {} is inconsistent, ignoring it", snapshotFile.getAbsolutePath());
+                return false;
+            }
+
+            log.debug("Restoring metadata from snapshot {}", snapshotFile.getAbsolutePath());
+            restoreMetadata(metadata, snapshot.getExpirationTime(), snapshot.getETag(), snapshot.getLastModified());
+            return true;
+        } catch (IOException e) {
+            log.warn("Unable to read metadata snapshot " + snapshotFile.getAbsolutePath() + ", ignoring it", e);
+        } catch (XMLParserException e) {
+            log.warn("Unable to parse metadata snapshot " + snapshotFile.getAbsolutePath() + ", ignoring it", e);
+        } catch (UnmarshallingException e) {
+            log.warn("Unable to unmarshall metadata snapshot " + snapshotFile.getAbsolutePath() + ", ignoring it", e);
+        }
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    protected void processFilteredMetadata(XMLObject metadata) {
+        if (snapshotFile == null) {
+            return;
+        }
+
+        log.debug("Writing filtered metadata to snapshot file {}", snapshotFile.getAbsolutePath());
+        try {
+            ByteArrayOutputStream serializedMetadata = new ByteArrayOutputStream();
+            Writer writer = new OutputStreamWriter(serializedMetadata, "UTF-8");
+            XMLHelper.writeNode(getMetadataElement(metadata), writer);
+            writer.flush();
+
+            MetadataSnapshot snapshot = new MetadataSnapshot(serializedMetadata.toByteArray(),
+                    new ArrayList<String>(new MetadataIndex(metadata).getEntityDescriptors().keySet()),
+                    getExpirationTime(), getFetchedMetadataETag(), getFetchedMetadataLastModified());
+            snapshot.write(snapshotFile);
+        } catch (IOException e) {
+            log.error("Unable to write metadata snapshot file " + snapshotFile.getAbsolutePath(), e);
+        } catch (MarshallingException e) {
+            log.error("Unable to marshall metadata in order to write it to snapshot file", e);
+        }
+    }
+
     /**
      * Fetches the metadata from the remote server or from the local filesystem if it can not be retrieved remotely.
      * 
-     * @return the unmarshalled metadata
+     * @return the unmarshalled metadata or null if the server reported that the metadata has not been modified
      * 
      * @throws IOException thrown if the metadata can not be fetched from the remote server or local filesystems
      * @throws UnmarshallingException thrown if the metadata can not be unmarshalled
@@ -98,15 +227,33 @@ public class FileBackedHTTPMetadataProvider extends HTTPMetadataProvider {
         try {
             metadata = super.fetchMetadata();
         } catch (Exception e) {
+            discardPendingBackupFile();
+            clearFetchedMetadataValidators();
             log.warn("Unable to read metadata from remote server, attempting to read it from local backup", e);
+            MetadataRefreshMetrics metrics = getRefreshMetrics();
+            if (metrics != null) {
+                metrics.setLoadedFromBackup(true);
+            }
             return getLocalMetadata();
         }
 
+        if (metadata == null) {
+            // The backup file already holds the unmodified metadata
+            discardPendingBackupFile();
+            return null;
+        }
+
         // If we read the metadata from the remote server then write it to disk
         log.debug("Writting retrieved metadata to backup file {}", metadataBackupFile.getAbsolutePath());
         try {
-            writeMetadataToFile(metadata);
+            if (pendingBackupFile != null) {
+                replaceBackupFile();
+            } else {
+                writeMetadataToFile(metadata);
+            }
         } catch (Exception e) {
+            discardPendingBackupFile();
+            clearFetchedMetadataValidators();
             log.error("Unable to write metadata to backup file", e);
             throw new IOException("Unable to write metadata to backup file: " + e.getMessage());
         }
@@ -114,6 +261,53 @@ public class FileBackedHTTPMetadataProvider extends HTTPMetadataProvider {
         return metadata;
     }
 
+    /**
+     * Copies the raw bytes of streamed metadata to a temporary file, which replaces the backup file once the metadata
+     * has been successfully unmarshalled.
+     * 
+     * @param metadataStream the decoded response body
+     * 
+     * @return the stream from which the metadata is unmarshalled
+     * 
+     * @throws IOException thrown if the temporary file can not be created
+     */
+    protected InputStream wrapMetadataStream(InputStream metadataStream) throws IOException {
+        if (!isStreamingIngestion()) {
+            return metadataStream;
+        }
+
+        discardPendingBackupFile();
+        pendingBackupFile = File.createTempFile(metadataBackupFile.getName(), ".tmp", metadataBackupFile
+                .getAbsoluteFile().getParentFile());
+        return new CopyingInputStream(metadataStream, new FileOutputStream(pendingBackupFile));
+    }
+
+    /**
+     * Replaces the backup file with the temporary file holding the raw bytes of the fetched metadata.
+     * 
+     * @throws IOException thrown if the backup file can not be replaced
+     */
+    private void replaceBackupFile() throws IOException {
+        File rawMetadataFile = pendingBackupFile;
+        pendingBackupFile = null;
+        if (!rawMetadataFile.renameTo(metadataBackupFile)) {
+            if (!metadataBackupFile.delete() || !rawMetadataFile.renameTo(metadataBackupFile)) {
+                rawMetadataFile.delete();
+                throw new IOException("Unable to replace metadata backup file " + metadataBackupFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /** Deletes the temporary file holding the raw bytes of the metadata being fetched, if any. */
+    private void discardPendingBackupFile() {
+        if (pendingBackupFile != null) {
+            if (!pendingBackupFile.delete()) {
+                log.warn("Unable to delete temporary metadata file {}", pendingBackupFile.getAbsolutePath());
+            }
+            pendingBackupFile = null;
+        }
+    }
+
     /**
      * Reads filtered metadata from the backup file.
      * 
@@ -143,16 +337,7 @@ public class FileBackedHTTPMetadataProvider extends HTTPMetadataProvider {
         }
 
         try {
-            Element metadataElement;
-
-            // The metadata object should still have its DOM
-            // but we'll create it if it doesn't
-            if (metadata.getDOM() != null) {
-                metadataElement = metadata.getDOM();
-            } else {
-                Marshaller marshaller = Configuration.getMarshallerFactory().getMarshaller(metadata);
-                metadataElement = marshaller.marshall(metadata);
-            }
+            Element metadataElement = getMetadataElement(metadata);
 
             if (log.isDebugEnabled()) {
                 log.debug("Converting DOM to a string");
@@ -166,4 +351,98 @@ public class FileBackedHTTPMetadataProvider extends HTTPMetadataProvider {
             throw new MetadataProviderException("Unable to marshall metadata in order to write it to file");
         }
     }
+
+    /**
+     * Gets the DOM of the metadata, marshalling the metadata if it no longer has its DOM.
+     * 
+     * @param metadata the metadata
+     * 
+     * @return the DOM of the metadata
+     * 
+     * @throws MarshallingException thrown if the metadata can not be marshalled
+     */
+    private Element getMetadataElement(XMLObject metadata) throws MarshallingException {
+        // The metadata object should still have its DOM
+        // but we'll create it if it doesn't
+        if (metadata.getDOM() != null) {
+            return metadata.getDOM();
+        }
+
+        Marshaller marshaller = Configuration.getMarshallerFactory().getMarshaller(metadata);
+        return marshaller.marshall(metadata);
+    }
+
+    /**
+     * Input stream that copies every byte read from it to an output stream. When closed the rest of the underlying
+     * stream is copied before both streams are closed.
+     */
+    private static class CopyingInputStream extends FilterInputStream {
+
+        /** Stream the bytes read are copied to. */
+        private final OutputStream copy;
+
+        /**
+         * Constructor.
+         * 
+         * @param in the underlying stream
+         * @param out stream the bytes read are copied to
+         */
+        public CopyingInputStream(InputStream in, OutputStream out) {
+            super(in);
+            copy = out;
+        }
+
+        /** {@inheritDoc} */
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        /** {@inheritDoc} */
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                copy.write(b, off, read);
+            }
+            return read;
+        }
+
+        /** {@inheritDoc} */
+        public long skip(long n) throws IOException {
+            byte[] buffer = new byte[(int) Math.min(n, 4096)];
+            long skipped = 0;
+            while (skipped < n) {
+                int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        /** {@inheritDoc} */
+        public boolean markSupported() {
+            return false;
+        }
+
+        /** {@inheritDoc} */
+        public void close() throws IOException {
+            try {
+                byte[] buffer = new byte[4096];
+                while (read(buffer, 0, buffer.length) != -1) {
+                    // copy the remainder of the stream
+                }
+            } finally {
+                try {
+                    super.close();
+                } finally {
+                    copy.close();
+                }
+            }
+        }
+    }
 }
\ No newline at end of file
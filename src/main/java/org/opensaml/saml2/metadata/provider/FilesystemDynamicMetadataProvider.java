@@ -0,0 +1,117 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.opensaml.xml.util.DatatypeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A dynamic metadata provider that reads the metadata of each entity from its own file within a directory. The name
+ * of an entity's file is built from a template whose {@value #ENTITY_ID_PLACEHOLDER} and {@value #SHA1_PLACEHOLDER}
+ * placeholders are replaced with, respectively, the URL encoded entity ID and the hex encoded SHA-1 digest of the
+ * entity ID. The default template is <code>{sha1}.xml</code>.
+ * 
+ * An entity whose file does not exist is unknown.
+ */
+public class FilesystemDynamicMetadataProvider extends AbstractDynamicMetadataProvider {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(FilesystemDynamicMetadataProvider.class);
+
+    /** Directory containing the entity metadata files. */
+    private File metadataDirectory;
+
+    /** Template of the names of the entity metadata files. */
+    private String fileNameTemplate;
+
+    /**
+     * Constructor.
+     * 
+     * @param directory directory containing the entity metadata files
+     * 
+     * @throws MetadataProviderException thrown if the directory is null, does not exist or is not a readable
+     *             directory
+     */
+    public FilesystemDynamicMetadataProvider(File directory) throws MetadataProviderException {
+        this(directory, SHA1_PLACEHOLDER + ".xml");
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param directory directory containing the entity metadata files
+     * @param template template of the names of the entity metadata files
+     * 
+     * @throws MetadataProviderException thrown if the directory is null, does not exist or is not a readable
+     *             directory, or if the template is empty
+     */
+    public FilesystemDynamicMetadataProvider(File directory, String template) throws MetadataProviderException {
+        super();
+
+        if (directory == null) {
+            throw new MetadataProviderException("Metadata directory may not be null");
+        }
+        if (!directory.isDirectory() || !directory.canRead()) {
+            throw new MetadataProviderException("Metadata directory " + directory.getAbsolutePath()
+                    + " is not a readable directory");
+        }
+        metadataDirectory = directory;
+
+        fileNameTemplate = DatatypeHelper.safeTrimOrNullString(template);
+        if (fileNameTemplate == null) {
+            throw new MetadataProviderException("Metadata file name template may not be null or empty");
+        }
+    }
+
+    /**
+     * Gets the directory containing the entity metadata files.
+     * 
+     * @return directory containing the entity metadata files
+     */
+    public File getMetadataDirectory() {
+        return metadataDirectory;
+    }
+
+    /**
+     * Gets the file containing the metadata of an entity.
+     * 
+     * @param entityID ID of the entity
+     * 
+     * @return file containing the metadata of the entity
+     */
+    public File getMetadataFile(String entityID) {
+        return new File(metadataDirectory, expandTemplate(fileNameTemplate, entityID));
+    }
+
+    /** {@inheritDoc} */
+    protected InputStream fetchEntityMetadata(String entityID) throws IOException {
+        File metadataFile = getMetadataFile(entityID);
+        if (!metadataFile.isFile()) {
+            log.debug("Metadata file {} for entity {} does not exist", metadataFile.getAbsolutePath(), entityID);
+            return null;
+        }
+
+        log.debug("Reading metadata for entity {} from file {}", entityID, metadataFile.getAbsolutePath());
+        return new FileInputStream(metadataFile);
+    }
+}
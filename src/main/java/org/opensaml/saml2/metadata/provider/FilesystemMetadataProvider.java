@@ -19,6 +19,8 @@ package org.opensaml.saml2.metadata.provider;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import org.joda.time.DateTime;
 import org.opensaml.saml2.common.SAML2Helper;
@@ -31,6 +33,12 @@ import org.slf4j.LoggerFactory;
  * A metadata provider that pulls metadata from a file on the local filesystem. Metadata is cached and automatically
  * refreshed when the file changes.
  * 
+ * By default every call to {@link #getMetadata()} checks the file's last modification time. In background refresh
+ * mode, enabled via {@link #setBackgroundRefresh(boolean)}, the file is instead polled by a background task and
+ * {@link #getMetadata()} only returns the cached metadata. A changed file is only reloaded once both its length and its
+ * modification time have remained unchanged for the settle delay, so that a file that is still being written is not
+ * read. Files replaced by an atomic rename are detected in the same way.
+ * 
  * It is the responsibility of the caller to re-initialize, via {@link #initialize()}, if any properties of this
  * provider are changed.
  */
@@ -46,10 +54,28 @@ public class FilesystemMetadataProvider extends AbstractObservableMetadataProvid
     private boolean maintainExpiredMetadata;
 
     /** Last time the cached metadata was updated. */
-    private long lastUpdate;
+    private volatile long lastUpdate;
 
     /** Cached metadata. */
-    private XMLObject cachedMetadata;
+    private volatile XMLObject cachedMetadata;
+
+    /** Whether the file is polled for changes by a background task rather than on every metadata access. */
+    private boolean backgroundRefresh;
+
+    /** Interval, in milliseconds, between background polls of the file. */
+    private long pollInterval;
+
+    /** Time, in milliseconds, a changed file's length and modification time must remain unchanged before reloading. */
+    private long settleDelay;
+
+    /** Timer used to schedule the background poll task. */
+    private Timer taskTimer;
+
+    /** Whether the task timer was created, and so must be cancelled, by this provider. */
+    private boolean ownsTaskTimer;
+
+    /** Currently scheduled background poll task. */
+    private PollMetadataFileTask pollTask;
 
     /**
      * Constructor.
@@ -60,7 +86,27 @@ public class FilesystemMetadataProvider extends AbstractObservableMetadataProvid
      *             file, or if the metadata can not be parsed
      */
     public FilesystemMetadataProvider(File metadata) throws MetadataProviderException {
+        this(null, metadata);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param backgroundTaskTimer timer used to schedule the background poll task when in background refresh mode, if
+     *            null a timer is created, and cancelled by {@link #destroy()}, by this provider
+     * @param metadata the metadata file
+     * 
+     * @throws MetadataProviderException thrown if the given file path is null, does not exist, does not represent a
+     *             file, or if the metadata can not be parsed
+     */
+    public FilesystemMetadataProvider(Timer backgroundTaskTimer, File metadata) throws MetadataProviderException {
         super();
+        taskTimer = backgroundTaskTimer;
+        backgroundRefresh = false;
+        // 30 seconds
+        pollInterval = 30 * 1000;
+        // 2 seconds
+        settleDelay = 2 * 1000;
 
         if (metadata == null) {
             throw new MetadataProviderException("Give metadata file may not be null");
@@ -89,8 +135,95 @@ public class FilesystemMetadataProvider extends AbstractObservableMetadataProvid
      * 
      * @throws MetadataProviderException thrown if there is a problem reading, parsing, or validating the metadata
      */
-    public void initialize() throws MetadataProviderException {
+    public synchronized void initialize() throws MetadataProviderException {
+        cancelPollTask();
         refreshMetadata();
+
+        if (backgroundRefresh) {
+            if (taskTimer == null) {
+                taskTimer = new Timer("FilesystemMetadataProvider refresh of " + metadataFile, true);
+                ownsTaskTimer = true;
+            }
+            log.debug("Polling metadata file {} for changes every {}ms", metadataFile, pollInterval);
+            pollTask = new PollMetadataFileTask();
+            taskTimer.schedule(pollTask, pollInterval, pollInterval);
+        }
+    }
+
+    /**
+     * Stops the background poll task. If the background task timer was created by this provider it is cancelled as
+     * well. Once destroyed a provider in background refresh mode no longer refreshes its metadata unless it is
+     * re-initialized.
+     */
+    public synchronized void destroy() {
+        cancelPollTask();
+        if (ownsTaskTimer && taskTimer != null) {
+            taskTimer.cancel();
+            taskTimer = null;
+            ownsTaskTimer = false;
+        }
+    }
+
+    /**
+     * Gets whether the file is polled for changes by a background task rather than on every metadata access.
+     * 
+     * @return whether the file is polled for changes by a background task
+     */
+    public boolean isBackgroundRefresh() {
+        return backgroundRefresh;
+    }
+
+    /**
+     * Sets whether the file is polled for changes by a background task rather than on every metadata access. The
+     * provider must be re-initialized for a change to take effect.
+     * 
+     * @param background whether the file is polled for changes by a background task
+     */
+    public void setBackgroundRefresh(boolean background) {
+        backgroundRefresh = background;
+    }
+
+    /**
+     * Gets the interval between background polls of the file.
+     * 
+     * @return interval, in milliseconds, between background polls of the file
+     */
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+    /**
+     * Sets the interval between background polls of the file.
+     * 
+     * @param interval interval, in milliseconds, between background polls of the file
+     */
+    public void setPollInterval(long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Poll interval must be greater than 0");
+        }
+        pollInterval = interval;
+    }
+
+    /**
+     * Gets the time a changed file's length and modification time must remain unchanged before it is reloaded.
+     * 
+     * @return settle delay, in milliseconds
+     */
+    public long getSettleDelay() {
+        return settleDelay;
+    }
+
+    /**
+     * Sets the time a changed file's length and modification time must remain unchanged before it is reloaded. A
+     * changed file is never reloaded before it has been seen unchanged by two consecutive polls.
+     * 
+     * @param delay settle delay, in milliseconds
+     */
+    public void setSettleDelay(long delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Settle delay may not be negative");
+        }
+        settleDelay = delay;
     }
 
     /**
@@ -113,7 +246,7 @@ public class FilesystemMetadataProvider extends AbstractObservableMetadataProvid
 
     /** {@inheritDoc} */
     public XMLObject getMetadata() throws MetadataProviderException {
-        if (lastUpdate < metadataFile.lastModified()) {
+        if (!backgroundRefresh && lastUpdate < metadataFile.lastModified()) {
             refreshMetadata();
         }
 
@@ -134,9 +267,13 @@ public class FilesystemMetadataProvider extends AbstractObservableMetadataProvid
         }
 
         log.debug("Refreshing metadata from file {}", metadataFile);
+        MetadataRefreshMetrics metrics = beginRefreshMetrics();
+        boolean successful = false;
         try {
+            metrics.setDocumentSize(metadataFile.length());
             XMLObject metadata = unmarshallMetadata(new FileInputStream(metadataFile));
             DateTime expirationTime = SAML2Helper.getEarliestExpiration(metadata);
+            metrics.setExpirationTime(expirationTime);
             if (expirationTime != null && !maintainExpiredMetadata() && expirationTime.isBeforeNow()) {
                 log.debug(
                         "Metadata from file {} is expired and provider is configured not to retain expired metadata.",
@@ -146,6 +283,7 @@ public class FilesystemMetadataProvider extends AbstractObservableMetadataProvid
                 filterMetadata(metadata);
                 releaseMetadataDOM(metadata);
                 cachedMetadata = metadata;
+                indexMetadata(metadata);
             }
 
             // Note: this doesn't really avoid re-reading the metadata file unnecessarily on later refreshes
@@ -155,6 +293,7 @@ public class FilesystemMetadataProvider extends AbstractObservableMetadataProvid
             // (case where the file changed after the contents were read above, but before here).
             // To do this exactly correctly, we need to make use of OS filesystem-level file locking.
             lastUpdate = metadataFileLastModified;
+            successful = true;
             
             emitChangeEvent();
         } catch (FileNotFoundException e) {
@@ -169,6 +308,64 @@ public class FilesystemMetadataProvider extends AbstractObservableMetadataProvid
             String errorMsg = "Unable to filter metadata";
             log.error(errorMsg, e);
             throw new MetadataProviderException(errorMsg, e);
+        } finally {
+            endRefreshMetrics(successful);
+        }
+    }
+
+    /** Cancels the currently scheduled background poll task, if any. */
+    private synchronized void cancelPollTask() {
+        if (pollTask != null) {
+            pollTask.cancel();
+            pollTask = null;
+        }
+    }
+
+    /**
+     * Background task that polls the metadata file and reloads it once a change has settled. If the reload fails the
+     * previously cached metadata continues to be used and the reload is retried on the next poll.
+     */
+    private class PollMetadataFileTask extends TimerTask {
+
+        /** Modification time of the changed file when first observed, or -1 if no change is pending. */
+        private long pendingLastModified = -1;
+
+        /** Length of the changed file when first observed. */
+        private long pendingLength;
+
+        /** Time, in milliseconds since the epoch, since which the pending change has been observed unchanged. */
+        private long pendingSince;
+
+        /** {@inheritDoc} */
+        public void run() {
+            long fileLastModified = metadataFile.lastModified();
+            long fileLength = metadataFile.length();
+            if (fileLastModified == 0 || fileLastModified <= lastUpdate) {
+                // unchanged, or absent while being replaced
+                pendingLastModified = -1;
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            if (fileLastModified != pendingLastModified || fileLength != pendingLength) {
+                log.debug("Metadata file {} changed, waiting for it to settle before reloading", metadataFile);
+                pendingLastModified = fileLastModified;
+                pendingLength = fileLength;
+                pendingSince = now;
+                return;
+            }
+
+            if (now - pendingSince < settleDelay) {
+                return;
+            }
+
+            try {
+                refreshMetadata();
+                pendingLastModified = -1;
+            } catch (Exception e) {
+                log.error("Background refresh of metadata from file " + metadataFile
+                        + " failed, continuing to use previously cached metadata", e);
+            }
         }
     }
 }
\ No newline at end of file
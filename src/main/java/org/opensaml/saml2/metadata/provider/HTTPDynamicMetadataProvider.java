@@ -0,0 +1,208 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.opensaml.xml.util.DatatypeHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A dynamic metadata provider that fetches the metadata of each entity from a URL built from a template, for example
+ * a metadata query service. The {@value #ENTITY_ID_PLACEHOLDER} and {@value #SHA1_PLACEHOLDER} placeholders of the
+ * template are replaced with, respectively, the URL encoded entity ID and the hex encoded SHA-1 digest of the entity
+ * ID, for example <code>https://mdq.example.org/entities/{entityID}</code>.
+ * 
+ * A HTTP 404 (Not Found) response indicates the entity is unknown, any other response except 200 (OK) is an error.
+ * Responses larger than the maximum response size, 1MB by default, are an error as well. At most 20 entities are
+ * fetched concurrently by default, further fetches wait for a connection to the metadata server.
+ */
+public class HTTPDynamicMetadataProvider extends AbstractDynamicMetadataProvider {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(HTTPDynamicMetadataProvider.class);
+
+    /** Template of the URL from which entity metadata is fetched. */
+    private String urlTemplate;
+
+    /** HTTP Client used to fetch entity metadata. */
+    private HttpClient httpClient;
+
+    /** Manager of the connections used by the HTTP client. */
+    private MultiThreadedHttpConnectionManager connectionManager;
+
+    /** Maximum size, in bytes, of the metadata of an entity. */
+    private int maxResponseSize;
+
+    /**
+     * Constructor.
+     * 
+     * @param metadataURLTemplate template of the URL from which entity metadata is fetched
+     * @param requestTimeout the time, in milliseconds, to wait for the metadata server to respond
+     * 
+     * @throws MetadataProviderException thrown if the URL template is empty
+     */
+    public HTTPDynamicMetadataProvider(String metadataURLTemplate, int requestTimeout)
+            throws MetadataProviderException {
+        super();
+
+        urlTemplate = DatatypeHelper.safeTrimOrNullString(metadataURLTemplate);
+        if (urlTemplate == null) {
+            throw new MetadataProviderException("Metadata URL template may not be null or empty");
+        }
+
+        // entities are fetched concurrently so the connection manager must support concurrent use
+        connectionManager = new MultiThreadedHttpConnectionManager();
+        httpClient = new HttpClient(connectionManager);
+        httpClient.getParams().setSoTimeout(requestTimeout);
+        maxResponseSize = 1024 * 1024;
+        // the default of 2 connections per host would serialize fetches from a single metadata server
+        setMaxConnections(20);
+    }
+
+    /**
+     * Gets the template of the URL from which entity metadata is fetched.
+     * 
+     * @return template of the URL from which entity metadata is fetched
+     */
+    public String getMetadataURLTemplate() {
+        return urlTemplate;
+    }
+
+    /**
+     * Gets the maximum size of the metadata of an entity.
+     * 
+     * @return maximum size, in bytes, of the metadata of an entity
+     */
+    public int getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    /**
+     * Sets the maximum size of the metadata of an entity. Larger responses are not read and fail the fetch.
+     * 
+     * @param size maximum size, in bytes, of the metadata of an entity
+     */
+    public void setMaxResponseSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Maximum response size must be greater than 0");
+        }
+        maxResponseSize = size;
+    }
+
+    /**
+     * Gets the maximum number of concurrent connections to the metadata server.
+     * 
+     * @return maximum number of concurrent connections to the metadata server
+     */
+    public int getMaxConnections() {
+        return connectionManager.getParams().getDefaultMaxConnectionsPerHost();
+    }
+
+    /**
+     * Sets the maximum number of concurrent connections to the metadata server. Fetches beyond this number wait for a
+     * connection to be released.
+     * 
+     * @param connections maximum number of concurrent connections to the metadata server
+     */
+    public void setMaxConnections(int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("Maximum number of connections must be greater than 0");
+        }
+        connectionManager.getParams().setDefaultMaxConnectionsPerHost(connections);
+        connectionManager.getParams().setMaxTotalConnections(connections);
+    }
+
+    /**
+     * Gets the URL from which the metadata of an entity is fetched.
+     * 
+     * @param entityID ID of the entity
+     * 
+     * @return URL from which the metadata of the entity is fetched
+     */
+    public String getMetadataURL(String entityID) {
+        return expandTemplate(urlTemplate, entityID);
+    }
+
+    /** {@inheritDoc} */
+    protected InputStream fetchEntityMetadata(String entityID) throws IOException {
+        String metadataURL = getMetadataURL(entityID);
+        log.debug("Fetching metadata for entity {} from URL {}", entityID, metadataURL);
+
+        GetMethod getMethod = new GetMethod(metadataURL);
+        getMethod.setRequestHeader("Accept", "application/samlmetadata+xml, application/xml, text/xml");
+        try {
+            int status = httpClient.executeMethod(getMethod);
+            if (status == HttpStatus.SC_NOT_FOUND) {
+                log.debug("Metadata server does not know entity {}", entityID);
+                return null;
+            }
+            if (status != HttpStatus.SC_OK) {
+                throw new IOException("Metadata server returned HTTP status code " + status + " for entity "
+                        + entityID);
+            }
+
+            return new ByteArrayInputStream(readResponseBody(getMethod, entityID));
+        } finally {
+            getMethod.releaseConnection();
+        }
+    }
+
+    /**
+     * Reads the body of a response, up to the maximum response size.
+     * 
+     * @param getMethod the executed request
+     * @param entityID ID of the entity whose metadata was requested
+     * 
+     * @return the response body
+     * 
+     * @throws IOException thrown if the body can not be read or is larger than the maximum response size
+     */
+    private byte[] readResponseBody(GetMethod getMethod, String entityID) throws IOException {
+        if (getMethod.getResponseContentLength() > maxResponseSize) {
+            getMethod.abort();
+            throw new IOException("Metadata of entity " + entityID + " is larger than the maximum response size of "
+                    + maxResponseSize + " bytes");
+        }
+
+        InputStream body = getMethod.getResponseBodyAsStream();
+        if (body == null) {
+            return new byte[0];
+        }
+
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = body.read(buffer)) != -1) {
+            if (bodyBytes.size() + read > maxResponseSize) {
+                getMethod.abort();
+                throw new IOException("Metadata of entity " + entityID
+                        + " is larger than the maximum response size of " + maxResponseSize + " bytes");
+            }
+            bodyBytes.write(buffer, 0, read);
+        }
+        return bodyBytes.toByteArray();
+    }
+}
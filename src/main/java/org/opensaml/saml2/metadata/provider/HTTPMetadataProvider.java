@@ -16,11 +16,20 @@
 
 package org.opensaml.saml2.metadata.provider;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
+import org.apache.commons.httpclient.Header;
 import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.apache.commons.httpclient.auth.AuthScope;
 import org.apache.commons.httpclient.methods.GetMethod;
@@ -31,6 +40,7 @@ import org.joda.time.DateTime;
 import org.opensaml.saml2.common.SAML2Helper;
 import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.io.UnmarshallingException;
+import org.opensaml.xml.util.DatatypeHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,16 +52,27 @@ import org.slf4j.LoggerFactory;
  * <li>The maximum cache duration is exceeded</li>
  * </ul>
  * 
+ * When refreshing, the provider sends the entity tag and last modification date of the currently cached metadata to
+ * the server. If the server reports that the metadata has not been modified the cached metadata is kept and only its
+ * expiration time is recalculated; it is not parsed, filtered or re-verified. The provider also accepts gzip and
+ * deflate compressed responses unless compression is disabled via {@link #setCompressionEnabled(boolean)}.
+ * 
  * Metadata is filtered prior to determining the cache expiration data. This allows a filter to remove XMLObjects that
  * may effect the cache duration but for which the user of this provider does not care about.
  * 
+ * By default stale metadata is refreshed on the thread that requests it. If refresh-ahead mode is enabled, via
+ * {@link #setRefreshAhead(boolean)}, metadata is instead refreshed by a background task scheduled before the cached
+ * metadata expires. The delay until the next refresh is the time remaining until expiration multiplied by the
+ * refresh delay factor, less a random jitter, and bounded by the minimum and maximum refresh delays. In this mode
+ * requesting threads never perform I/O and continue to be served the last good metadata while a refresh is running.
+ * 
  * It is the responsibility of the caller to re-initialize, via {@link #initialize()}, if any properties of this
  * provider are changed.
  */
 public class HTTPMetadataProvider extends AbstractObservableMetadataProvider {
 
     /** Cached, filtered, unmarshalled metadata. */
-    private XMLObject cachedMetadata;
+    private volatile XMLObject cachedMetadata;
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(HTTPMetadataProvider.class);
@@ -72,7 +93,58 @@ public class HTTPMetadataProvider extends AbstractObservableMetadataProvider {
     private int maxCacheDuration;
 
     /** When the cached metadata becomes stale. */
-    private DateTime mdExpirationTime;
+    private volatile DateTime mdExpirationTime;
+
+    /** Whether metadata is refreshed, ahead of its expiration, by a background task. */
+    private boolean refreshAhead;
+
+    /** Timer used to schedule background refresh tasks. */
+    private Timer taskTimer;
+
+    /** Whether the task timer was created by this provider and must therefore be cancelled by it. */
+    private boolean ownsTaskTimer;
+
+    /** Currently scheduled background refresh task. */
+    private RefreshMetadataTask refreshTask;
+
+    /** Minimum amount of time, in milliseconds, to wait between background refreshes. */
+    private long minRefreshDelay;
+
+    /** Maximum amount of time, in milliseconds, to wait between background refreshes. */
+    private long maxRefreshDelay;
+
+    /** Fraction of the time remaining until the metadata expires to wait before refreshing it. */
+    private float refreshDelayFactor;
+
+    /** Maximum fraction of the refresh delay that is randomly subtracted from it. */
+    private float refreshDelayJitter;
+
+    /** Source of randomness for the refresh delay jitter. */
+    private Random jitterSource;
+
+    /** Whether the server may send compressed metadata. */
+    private boolean compressionEnabled;
+
+    /** Whether conditional GET requests are used to determine if the metadata has changed. */
+    private boolean conditionalGetEnabled;
+
+    /** Entity tag of the currently cached metadata. */
+    private String cachedMetadataETag;
+
+    /** Last modification date, as sent by the server, of the currently cached metadata. */
+    private String cachedMetadataLastModified;
+
+    /** Entity tag of the most recently fetched metadata. */
+    private String fetchedMetadataETag;
+
+    /** Last modification date, as sent by the server, of the most recently fetched metadata. */
+    private String fetchedMetadataLastModified;
+
+    /** Number of completed metadata refreshes, including those where the metadata had not been modified. */
+    private volatile long refreshCount;
+
+    /** Number of refreshes skipped because the server reported the metadata had not been modified. */
+    private volatile long notModifiedRefreshCount;
 
     /**
      * Constructor.
@@ -84,7 +156,35 @@ public class HTTPMetadataProvider extends AbstractObservableMetadataProvider {
      *             the URL
      */
     public HTTPMetadataProvider(String metadataURL, int requestTimeout) throws MetadataProviderException {
+        this(null, metadataURL, requestTimeout);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param backgroundTaskTimer timer used to schedule background refreshes when in refresh-ahead mode, if null a
+     *            timer is created, and cancelled by {@link #destroy()}, by this provider
+     * @param metadataURL the URL to fetch the metadata
+     * @param requestTimeout the time, in milliseconds, to wait for the metadata server to respond
+     * 
+     * @throws MetadataProviderException thrown if the URL is not a valid URL or the metadata can not be retrieved from
+     *             the URL
+     */
+    public HTTPMetadataProvider(Timer backgroundTaskTimer, String metadataURL, int requestTimeout)
+            throws MetadataProviderException {
         super();
+        taskTimer = backgroundTaskTimer;
+        refreshAhead = false;
+        // 5 minutes
+        minRefreshDelay = 5 * 60 * 1000;
+        // 4 hours
+        maxRefreshDelay = 4 * 60 * 60 * 1000;
+        refreshDelayFactor = 0.75f;
+        refreshDelayJitter = 0.1f;
+        jitterSource = new Random();
+        compressionEnabled = true;
+        conditionalGetEnabled = true;
+
         try {
             metadataURI = new URI(metadataURL);
             maintainExpiredMetadata = true;
@@ -106,8 +206,45 @@ public class HTTPMetadataProvider extends AbstractObservableMetadataProvider {
      * 
      * @throws MetadataProviderException thrown if there is a problem fetching, parsing, or processing the metadata
      */
-    public void initialize() throws MetadataProviderException {
-        refreshMetadata();
+    public synchronized void initialize() throws MetadataProviderException {
+        cancelRefreshTask();
+
+        if (!refreshAhead) {
+            refreshMetadata();
+            return;
+        }
+
+        if (taskTimer == null) {
+            taskTimer = new Timer("HTTPMetadataProvider refresh of " + getMetadataURI(), true);
+            ownsTaskTimer = true;
+        }
+
+        try {
+            if (warmStart()) {
+                log.debug("Serving restored metadata, revalidating it against URL {} in the background", metadataURI);
+                scheduleRefresh(0);
+                return;
+            }
+            loadMetadata();
+            scheduleRefresh(computeRefreshDelay());
+        } catch (MetadataProviderException e) {
+            scheduleRefresh(minRefreshDelay);
+            throw e;
+        }
+    }
+
+    /**
+     * Stops any scheduled background refresh. If the background task timer was created by this provider it is
+     * cancelled as well. Once destroyed a provider in refresh-ahead mode no longer refreshes its metadata unless it is
+     * re-initialized.
+     */
+    public synchronized void destroy() {
+        cancelRefreshTask();
+        if (ownsTaskTimer && taskTimer != null) {
+            taskTimer.cancel();
+            taskTimer = null;
+            ownsTaskTimer = false;
+        }
     }
 
     /**
@@ -194,9 +331,184 @@ public class HTTPMetadataProvider extends AbstractObservableMetadataProvider {
         maxCacheDuration = newDuration;
     }
 
+    /**
+     * Gets whether metadata is refreshed, ahead of its expiration, by a background task rather than on the thread that
+     * requests stale metadata.
+     * 
+     * @return whether metadata is refreshed by a background task
+     */
+    public boolean isRefreshAhead() {
+        return refreshAhead;
+    }
+
+    /**
+     * Sets whether metadata is refreshed, ahead of its expiration, by a background task rather than on the thread that
+     * requests stale metadata.
+     * 
+     * @param enabled whether metadata is refreshed by a background task
+     */
+    public void setRefreshAhead(boolean enabled) {
+        refreshAhead = enabled;
+    }
+
+    /**
+     * Gets the minimum amount of time, in milliseconds, to wait between background refreshes. This is also the delay
+     * used to retry a failed refresh.
+     * 
+     * @return minimum amount of time, in milliseconds, to wait between background refreshes
+     */
+    public long getMinRefreshDelay() {
+        return minRefreshDelay;
+    }
+
+    /**
+     * Sets the minimum amount of time, in milliseconds, to wait between background refreshes. This is also the delay
+     * used to retry a failed refresh.
+     * 
+     * @param delay minimum amount of time, in milliseconds, to wait between background refreshes
+     */
+    public void setMinRefreshDelay(long delay) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("Minimum refresh delay must be greater than 0");
+        }
+        minRefreshDelay = delay;
+    }
+
+    /**
+     * Gets the maximum amount of time, in milliseconds, to wait between background refreshes.
+     * 
+     * @return maximum amount of time, in milliseconds, to wait between background refreshes
+     */
+    public long getMaxRefreshDelay() {
+        return maxRefreshDelay;
+    }
+
+    /**
+     * Sets the maximum amount of time, in milliseconds, to wait between background refreshes.
+     * 
+     * @param delay maximum amount of time, in milliseconds, to wait between background refreshes
+     */
+    public void setMaxRefreshDelay(long delay) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("Maximum refresh delay must be greater than 0");
+        }
+        maxRefreshDelay = delay;
+    }
+
+    /**
+     * Gets the fraction of the time remaining until the cached metadata expires to wait before refreshing it.
+     * 
+     * @return fraction of the time remaining until expiration to wait before refreshing
+     */
+    public float getRefreshDelayFactor() {
+        return refreshDelayFactor;
+    }
+
+    /**
+     * Sets the fraction of the time remaining until the cached metadata expires to wait before refreshing it.
+     * 
+     * @param factor fraction, greater than 0 and less than 1, of the time remaining until expiration to wait before
+     *            refreshing
+     */
+    public void setRefreshDelayFactor(float factor) {
+        if (factor <= 0 || factor >= 1) {
+            throw new IllegalArgumentException("Refresh delay factor must be greater than 0 and less than 1");
+        }
+        refreshDelayFactor = factor;
+    }
+
+    /**
+     * Gets the maximum fraction of the refresh delay that is randomly subtracted from it. Jitter keeps a group of nodes
+     * started at the same time from refreshing their metadata in lock step.
+     * 
+     * @return maximum fraction of the refresh delay that is randomly subtracted from it
+     */
+    public float getRefreshDelayJitter() {
+        return refreshDelayJitter;
+    }
+
+    /**
+     * Sets the maximum fraction of the refresh delay that is randomly subtracted from it. Jitter keeps a group of nodes
+     * started at the same time from refreshing their metadata in lock step.
+     * 
+     * @param jitter fraction, from 0 (no jitter) up to, but not including, 1, of the refresh delay
+     */
+    public void setRefreshDelayJitter(float jitter) {
+        if (jitter < 0 || jitter >= 1) {
+            throw new IllegalArgumentException("Refresh delay jitter must be at least 0 and less than 1");
+        }
+        refreshDelayJitter = jitter;
+    }
+
+    /**
+     * Gets whether the server may send gzip or deflate compressed metadata.
+     * 
+     * @return whether the server may send compressed metadata
+     */
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Sets whether the server may send gzip or deflate compressed metadata.
+     * 
+     * @param enabled whether the server may send compressed metadata
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        compressionEnabled = enabled;
+    }
+
+    /**
+     * Gets whether conditional GET requests, using the ETag and Last-Modified headers of the cached metadata, are used
+     * to determine if the metadata has changed.
+     * 
+     * @return whether conditional GET requests are used
+     */
+    public boolean isConditionalGetEnabled() {
+        return conditionalGetEnabled;
+    }
+
+    /**
+     * Sets whether conditional GET requests, using the ETag and Last-Modified headers of the cached metadata, are used
+     * to determine if the metadata has changed.
+     * 
+     * @param enabled whether conditional GET requests are used
+     */
+    public void setConditionalGetEnabled(boolean enabled) {
+        conditionalGetEnabled = enabled;
+    }
+
+    /**
+     * Gets the number of completed metadata refreshes, including those skipped because the metadata had not been
+     * modified.
+     * 
+     * @return number of completed metadata refreshes
+     */
+    public long getRefreshCount() {
+        return refreshCount;
+    }
+
+    /**
+     * Gets the number of refreshes skipped because the server reported that the metadata had not been modified.
+     * 
+     * @return number of refreshes skipped because the metadata had not been modified
+     */
+    public long getNotModifiedRefreshCount() {
+        return notModifiedRefreshCount;
+    }
+
+    /**
+     * Gets the time at which the currently cached metadata becomes stale.
+     * 
+     * @return time at which the currently cached metadata becomes stale, may be null if no metadata has been loaded
+     */
+    public DateTime getExpirationTime() {
+        return mdExpirationTime;
+    }
+
     /** {@inheritDoc} */
     public XMLObject getMetadata() throws MetadataProviderException {
-        if (mdExpirationTime.isBeforeNow()) {
+        if (!refreshAhead && mdExpirationTime.isBeforeNow()) {
             log.debug("Cached metadata is stale, refreshing");
             refreshMetadata();
         }
@@ -214,8 +526,7 @@ public class HTTPMetadataProvider extends AbstractObservableMetadataProvider {
     }
 
     /**
-     * Refreshes the metadata cache. Metadata is fetched from the URL through an HTTP get, unmarshalled, and then
-     * filtered. This method also clears out the entity ID to entity descriptor cache.
+     * Refreshes the metadata cache if the currently cached metadata is stale.
      * 
      * @throws MetadataProviderException thrown if the metadata can not be read, unmarshalled, and filtered
      */
@@ -225,11 +536,45 @@ public class HTTPMetadataProvider extends AbstractObservableMetadataProvider {
             return;
         }
 
+        loadMetadata();
+    }
+
+    /**
+     * Loads the metadata into the cache, regardless of whether the currently cached metadata is stale. Metadata is
+     * fetched from the URL through an HTTP get, unmarshalled, filtered, and then swapped in for the currently cached
+     * metadata. The entity ID to entity descriptor index is rebuilt for the new metadata. If the server reports that
+     * the metadata has not been modified only the expiration time of the cached metadata is recalculated.
+     * 
+     * @throws MetadataProviderException thrown if the metadata can not be read, unmarshalled, and filtered
+     */
+    protected synchronized void loadMetadata() throws MetadataProviderException {
         log.debug("Refreshing cache of metadata from URL {}, max cache duration set to {}ms", metadataURI,
                 maxCacheDuration);
+        MetadataRefreshMetrics metrics = beginRefreshMetrics();
+        boolean successful = false;
         try {
             XMLObject metadata = fetchMetadata();
 
+            if (metadata == null) {
+                metrics.setMetadataUnchanged(true);
+                log.debug("Metadata from URL {} has not been modified, retaining cached metadata", metadataURI);
+                DateTime now = new DateTime();
+                mdExpirationTime = SAML2Helper.getEarliestExpiration(cachedMetadata, now.plus(maxCacheDuration * 1000),
+                        now);
+                log.debug("Metadata cache expires on " + mdExpirationTime);
+                notModifiedRefreshCount++;
+                refreshCount++;
+                metrics.setExpirationTime(mdExpirationTime);
+                successful = true;
+
+                if (mdExpirationTime != null && !maintainExpiredMetadata() && mdExpirationTime.isBeforeNow()) {
+                    cachedMetadata = null;
+                    clearCachedMetadataValidators();
+                    emitChangeEvent();
+                }
+                return;
+            }
+
             log.debug("Calculating expiration time");
             DateTime now = new DateTime();
             mdExpirationTime = SAML2Helper.getEarliestExpiration(metadata, now.plus(maxCacheDuration * 1000), now);
@@ -237,11 +582,19 @@ public class HTTPMetadataProvider extends AbstractObservableMetadataProvider {
 
             if (mdExpirationTime != null && !maintainExpiredMetadata() && mdExpirationTime.isBeforeNow()) {
                 cachedMetadata = null;
+                clearCachedMetadataValidators();
             } else {
                 filterMetadata(metadata);
+                processFilteredMetadata(metadata);
                 releaseMetadataDOM(metadata);
                 cachedMetadata = metadata;
+                indexMetadata(metadata);
+                cachedMetadataETag = fetchedMetadataETag;
+                cachedMetadataLastModified = fetchedMetadataLastModified;
             }
+            refreshCount++;
+            metrics.setExpirationTime(mdExpirationTime);
+            successful = true;
 
             emitChangeEvent();
         } catch (IOException e) {
@@ -256,33 +609,353 @@ public class HTTPMetadataProvider extends AbstractObservableMetadataProvider {
             String errorMsg = "Unable to filter metadata";
             log.error(errorMsg, e);
             throw new MetadataProviderException(errorMsg, e);
+        } finally {
+            endRefreshMetrics(successful);
         }
     }
 
     /**
      * Fetches the metadata from the remote server and unmarshalls it.
      * 
-     * @return the unmarshalled metadata
+     * If metadata is currently cached, and conditional GETs are enabled, the request is made conditional on the
+     * metadata having been modified since it was cached.
+     * 
+     * @return the unmarshalled metadata or null if the server reported that the metadata has not been modified
      * 
      * @throws IOException thrown if the metadata can not be fetched from the remote server
      * @throws UnmarshallingException thrown if the metadata can not be unmarshalled
      */
     protected XMLObject fetchMetadata() throws IOException, UnmarshallingException {
         log.debug("Fetching metadata document from remote server");
+        fetchedMetadataETag = null;
+        fetchedMetadataLastModified = null;
+
         GetMethod getMethod = new GetMethod(getMetadataURI());
         if (httpClient.getState().getCredentials(authScope) != null) {
             log.debug("Using BASIC authentication when retrieving metadata");
             getMethod.setDoAuthentication(true);
         }
-        httpClient.executeMethod(getMethod);
+        if (compressionEnabled) {
+            getMethod.setRequestHeader("Accept-Encoding", "gzip,deflate");
+        }
+        if (conditionalGetEnabled && cachedMetadata != null) {
+            if (cachedMetadataETag != null) {
+                getMethod.setRequestHeader("If-None-Match", cachedMetadataETag);
+            }
+            if (cachedMetadataLastModified != null) {
+                getMethod.setRequestHeader("If-Modified-Since", cachedMetadataLastModified);
+            }
+        }
+
+        try {
+            long fetchStart = System.nanoTime();
+            int status = httpClient.executeMethod(getMethod);
+            recordRefreshPhase(MetadataRefreshMetrics.FETCH_PHASE, fetchStart);
+            if (status == HttpStatus.SC_NOT_MODIFIED) {
+                log.debug("Metadata server reported that the metadata has not been modified");
+                return null;
+            }
+            if (status != HttpStatus.SC_OK) {
+                throw new IOException("Metadata server returned HTTP status code " + status);
+            }
+
+            String eTag = getResponseHeaderValue(getMethod, "ETag");
+            String lastModified = getResponseHeaderValue(getMethod, "Last-Modified");
+
+            String contentEncoding = getResponseHeaderValue(getMethod, "Content-Encoding");
+            if (log.isTraceEnabled() && contentEncoding == null) {
+                log.trace("Retrieved the following metadata document\n{}", getMethod.getResponseBodyAsString());
+            }
+            CountingInputStream responseBody = new CountingInputStream(getMethod.getResponseBodyAsStream());
+            CountingInputStream decodedBody = responseBody;
+            if (contentEncoding != null) {
+                decodedBody = new CountingInputStream(getDecodedResponseBody(responseBody, contentEncoding));
+            }
+            XMLObject metadata = unmarshallMetadata(wrapMetadataStream(decodedBody));
+            // only metadata that was successfully unmarshalled may be revalidated with a conditional GET
+            fetchedMetadataETag = eTag;
+            fetchedMetadataLastModified = lastModified;
+
+            MetadataRefreshMetrics metrics = getRefreshMetrics();
+            if (metrics != null) {
+                metrics.setBytesDownloaded(responseBody.getCount());
+                metrics.setDocumentSize(decodedBody.getCount());
+            }
+            log.debug("Unmarshalled metadata from remote server");
+            return metadata;
+        } finally {
+            getMethod.releaseConnection();
+        }
+    }
+
+    /**
+     * Gets the value of a response header.
+     * 
+     * @param getMethod the executed method
+     * @param headerName the name of the header
+     * 
+     * @return the header value or null if the response did not contain the header
+     */
+    private String getResponseHeaderValue(GetMethod getMethod, String headerName) {
+        Header header = getMethod.getResponseHeader(headerName);
+        if (header == null) {
+            return null;
+        }
+        return DatatypeHelper.safeTrimOrNullString(header.getValue());
+    }
+
+    /**
+     * Wraps the response body in a decoding stream appropriate for the given content encoding.
+     * 
+     * @param responseBody the raw response body
+     * @param contentEncoding the content encoding of the response, may be null
+     * 
+     * @return the decoded response body
+     * 
+     * @throws IOException thrown if the content encoding is not supported or the decoding stream can not be created
+     */
+    private InputStream getDecodedResponseBody(InputStream responseBody, String contentEncoding) throws IOException {
+        if (contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding)) {
+            return responseBody;
+        }
+
+        log.debug("Metadata was sent with content encoding {}", contentEncoding);
+        if ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(responseBody);
+        } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+            return new InflaterInputStream(responseBody);
+        }
+
+        responseBody.close();
+        throw new IOException("Metadata was sent with unsupported content encoding " + contentEncoding);
+    }
+
+    /**
+     * Called with the decoded body of a successful response before it is unmarshalled. The returned stream is read, and
+     * closed, in place of the given one. This implementation returns the given stream.
+     * 
+     * @param metadataStream the decoded response body
+     * 
+     * @return the stream from which the metadata is unmarshalled
+     * 
+     * @throws IOException thrown if the stream can not be wrapped
+     */
+    protected InputStream wrapMetadataStream(InputStream metadataStream) throws IOException {
+        return metadataStream;
+    }
+
+    /**
+     * Restores previously fetched and filtered metadata when this provider is initialized in refresh-ahead mode. If
+     * metadata is restored it is served immediately and revalidated against the remote server in the background.
+     * Implementations should use {@link #restoreMetadata(XMLObject, DateTime, String, String)} to restore the
+     * metadata. This implementation restores nothing.
+     * 
+     * @return true if metadata was restored, false if it must be fetched from the remote server
+     * 
+     * @throws MetadataProviderException thrown if there is a problem restoring the metadata
+     */
+    protected boolean warmStart() throws MetadataProviderException {
+        return false;
+    }
+
+    /**
+     * Caches previously fetched and filtered metadata as if it had just been fetched. The metadata is not filtered
+     * again.
+     * 
+     * @param metadata the metadata
+     * @param expirationTime the time at which the metadata becomes stale
+     * @param eTag the HTTP entity tag of the metadata, may be null
+     * @param lastModified the HTTP last modification date of the metadata, may be null
+     */
+    protected synchronized void restoreMetadata(XMLObject metadata, DateTime expirationTime, String eTag,
+            String lastModified) {
+        releaseMetadataDOM(metadata);
+        mdExpirationTime = expirationTime;
+        cachedMetadata = metadata;
+        indexMetadata(metadata);
+        cachedMetadataETag = eTag;
+        cachedMetadataLastModified = lastModified;
+        emitChangeEvent();
+    }
+
+    /**
+     * Called with newly fetched metadata once it has been filtered, and its expiration time computed, but before its
+     * DOM is released and it is cached. This implementation does nothing.
+     * 
+     * @param metadata the filtered metadata
+     */
+    protected void processFilteredMetadata(XMLObject metadata) {
+        // nothing to do by default
+    }
+
+    /**
+     * Gets the HTTP entity tag of the most recently fetched metadata.
+     * 
+     * @return the HTTP entity tag of the most recently fetched metadata, may be null
+     */
+    protected String getFetchedMetadataETag() {
+        return fetchedMetadataETag;
+    }
+
+    /**
+     * Gets the HTTP last modification date of the most recently fetched metadata.
+     * 
+     * @return the HTTP last modification date of the most recently fetched metadata, may be null
+     */
+    protected String getFetchedMetadataLastModified() {
+        return fetchedMetadataLastModified;
+    }
+
+    /**
+     * Forgets the entity tag and last modification date of the most recently fetched metadata. Must be called when the
+     * metadata returned by {@link #fetchMetadata()} is not the metadata fetched from the remote server, so that it is
+     * never revalidated with a conditional GET.
+     */
+    protected void clearFetchedMetadataValidators() {
+        fetchedMetadataETag = null;
+        fetchedMetadataLastModified = null;
+    }
+
+    /**
+     * Forgets the entity tag and last modification date of the cached metadata.
+     */
+    private void clearCachedMetadataValidators() {
+        cachedMetadataETag = null;
+        cachedMetadataLastModified = null;
+    }
+
+    /**
+     * Computes the delay until the next background refresh from the expiration time of the currently cached metadata.
+     * 
+     * @return delay, in milliseconds, until the next background refresh
+     */
+    protected long computeRefreshDelay() {
+        DateTime expirationTime = mdExpirationTime;
+        if (expirationTime == null) {
+            return minRefreshDelay;
+        }
+
+        long delay = (long) ((expirationTime.getMillis() - System.currentTimeMillis()) * refreshDelayFactor);
+        delay = Math.min(delay, maxRefreshDelay);
+        if (refreshDelayJitter > 0) {
+            delay -= (long) (delay * refreshDelayJitter * jitterSource.nextFloat());
+        }
+
+        return Math.max(delay, minRefreshDelay);
+    }
+
+    /**
+     * Schedules the next background refresh.
+     * 
+     * @param delay delay, in milliseconds, until the refresh
+     */
+    private synchronized void scheduleRefresh(long delay) {
+        if (taskTimer == null) {
+            return;
+        }
 
-        if (log.isTraceEnabled()) {
-            log.trace("Retrieved the following metadata document\n{}", getMethod.getResponseBodyAsString());
+        log.debug("Next refresh of metadata from URL {} scheduled in {}ms", metadataURI, delay);
+        refreshTask = new RefreshMetadataTask();
+        taskTimer.schedule(refreshTask, delay);
+    }
+
+    /**
+     * Discards the cached metadata if it has expired and expired metadata is not to be maintained.
+     */
+    private synchronized void discardExpiredMetadata() {
+        if (!maintainExpiredMetadata() && mdExpirationTime != null && mdExpirationTime.isBeforeNow()) {
+            log.debug("Cached metadata from URL {} is expired, discarding it", metadataURI);
+            cachedMetadata = null;
+            clearCachedMetadataValidators();
+            emitChangeEvent();
         }
-        XMLObject metadata = unmarshallMetadata(getMethod.getResponseBodyAsStream());
+    }
+
+    /** Cancels the currently scheduled background refresh, if any. */
+    private synchronized void cancelRefreshTask() {
+        if (refreshTask != null) {
+            refreshTask.cancel();
+            refreshTask = null;
+        }
+    }
 
-        log.debug("Unmarshalled metadata from remote server");
-        return metadata;
+    /**
+     * An input stream that counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        /** Number of bytes read. */
+        private long count;
+
+        /**
+         * Constructor.
+         * 
+         * @param in the stream to read from
+         */
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
 
+        /**
+         * Gets the number of bytes read.
+         * 
+         * @return number of bytes read
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /** {@inheritDoc} */
+        public int read() throws IOException {
+            int read = super.read();
+            if (read != -1) {
+                count++;
+            }
+            return read;
+        }
+
+        /** {@inheritDoc} */
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        /** {@inheritDoc} */
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Background task that refreshes the metadata and then schedules the next refresh. If the refresh fails the
+     * previously cached metadata continues to be used, unless it has expired and expired metadata is not to be
+     * maintained, and a new refresh is attempted after the minimum refresh delay.
+     */
+    private class RefreshMetadataTask extends TimerTask {
+
+        /** {@inheritDoc} */
+        public void run() {
+            long nextRefreshDelay;
+            try {
+                loadMetadata();
+                nextRefreshDelay = computeRefreshDelay();
+            } catch (Exception e) {
+                log.error("Background refresh of metadata from URL " + metadataURI
+                        + " failed, continuing to use previously cached metadata", e);
+                discardExpiredMetadata();
+                nextRefreshDelay = minRefreshDelay;
+            }
+
+            synchronized (HTTPMetadataProvider.this) {
+                if (refreshTask == this) {
+                    scheduleRefresh(nextRefreshDelay);
+                }
+            }
+        }
     }
 }
\ No newline at end of file
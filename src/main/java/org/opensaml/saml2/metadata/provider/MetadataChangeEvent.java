@@ -0,0 +1,108 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Describes a change of the metadata of a provider in terms of the entities that were added, removed or modified.
+ *
+ * An entity listed as added may have been served by another provider, for example a later member of a
+ * {@link ChainingMetadataProvider}, before the change, so observers caching information about entities should treat
+ * every listed entity as changed.
+ */
+public class MetadataChangeEvent {
+
+    /** IDs of the entities added to the metadata. */
+    private final Set<String> addedEntityIDs;
+
+    /** IDs of the entities removed from the metadata. */
+    private final Set<String> removedEntityIDs;
+
+    /** IDs of the entities whose metadata was modified. */
+    private final Set<String> modifiedEntityIDs;
+
+    /**
+     * Constructor.
+     *
+     * @param added IDs of the entities added to the metadata
+     * @param removed IDs of the entities removed from the metadata
+     * @param modified IDs of the entities whose metadata was modified
+     */
+    public MetadataChangeEvent(Collection<String> added, Collection<String> removed, Collection<String> modified) {
+        addedEntityIDs = Collections.unmodifiableSet(new HashSet<String>(added));
+        removedEntityIDs = Collections.unmodifiableSet(new HashSet<String>(removed));
+        modifiedEntityIDs = Collections.unmodifiableSet(new HashSet<String>(modified));
+    }
+
+    /**
+     * Gets the IDs of the entities added to the metadata.
+     *
+     * @return unmodifiable set of the IDs of the entities added to the metadata
+     */
+    public Set<String> getAddedEntityIDs() {
+        return addedEntityIDs;
+    }
+
+    /**
+     * Gets the IDs of the entities removed from the metadata.
+     *
+     * @return unmodifiable set of the IDs of the entities removed from the metadata
+     */
+    public Set<String> getRemovedEntityIDs() {
+        return removedEntityIDs;
+    }
+
+    /**
+     * Gets the IDs of the entities whose metadata was modified.
+     *
+     * @return unmodifiable set of the IDs of the entities whose metadata was modified
+     */
+    public Set<String> getModifiedEntityIDs() {
+        return modifiedEntityIDs;
+    }
+
+    /**
+     * Gets the IDs of all entities that were added, removed or modified.
+     *
+     * @return the IDs of all entities that were added, removed or modified
+     */
+    public Set<String> getChangedEntityIDs() {
+        HashSet<String> changed = new HashSet<String>(addedEntityIDs);
+        changed.addAll(removedEntityIDs);
+        changed.addAll(modifiedEntityIDs);
+        return changed;
+    }
+
+    /**
+     * Gets whether no entity was added, removed or modified.
+     *
+     * @return true if no entity was added, removed or modified
+     */
+    public boolean isEmpty() {
+        return addedEntityIDs.isEmpty() && removedEntityIDs.isEmpty() && modifiedEntityIDs.isEmpty();
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        return "MetadataChangeEvent[added=" + addedEntityIDs.size() + ", removed=" + removedEntityIDs.size()
+                + ", modified=" + modifiedEntityIDs.size() + "]";
+    }
+}
@@ -17,19 +17,47 @@
 package org.opensaml.saml2.metadata.provider;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.xml.XMLObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
 
 /**
  * A filter that allows the composition of {@link MetadataFilter}s. Filters will be executed on the given metadata
  * document in the order they were added to the chain.
+ * 
+ * Consecutive filters that are {@link EntityScopedMetadataFilter}s, and that are entity scoped for the filtered
+ * EntitiesDescriptor, are run together: the EntityDescriptors of the document are collected once and each of them is
+ * passed through all these filters, in chain order, before the next one is. If a filter executor is set, via
+ * {@link #setFilterExecutor(ExecutorService)}, the EntityDescriptors are filtered in parallel on that executor. As the
+ * DOM of the metadata document is not safe for concurrent use, each EntityDescriptor is then filtered as a copy with a
+ * DOM of its own, and the copies modified by a filter replace the original EntityDescriptors. The EntityDescriptors
+ * rejected by a filter are removed once all have been filtered. All other filters are run on the whole document, as
+ * they would be outside of a chain.
  */
 public class MetadataFilterChain implements MetadataFilter {
 
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(MetadataFilterChain.class);
+
     /** Registered filters. */
     private ArrayList<MetadataFilter> filters;
 
+    /** Executor used to run entity scoped filters on EntityDescriptors in parallel, may be null. */
+    private ExecutorService filterExecutor;
+
     /**
      * Constructor.
      */
@@ -39,9 +67,44 @@ public class MetadataFilterChain implements MetadataFilter {
 
     /** {@inheritDoc} */
     public final void doFilter(XMLObject xmlObject) throws FilterException {
+        doFilter(xmlObject, null);
+    }
+
+    /**
+     * Filters the given metadata, recording the time taken by each filter in the given refresh metrics. The time taken
+     * by entity scoped filters that are run together is recorded as a single phase named after all of them.
+     * 
+     * @param xmlObject the metadata to be filtered
+     * @param metrics the metrics of the refresh during which the metadata is filtered, may be null
+     * 
+     * @throws FilterException thrown if an error occurs during the filtering process
+     */
+    public final void doFilter(XMLObject xmlObject, MetadataRefreshMetrics metrics) throws FilterException {
         synchronized (filters) {
-            for (MetadataFilter filter : filters) {
-                filter.doFilter(xmlObject);
+            int current = 0;
+            while (current < filters.size()) {
+                int end = current;
+                if (xmlObject instanceof EntitiesDescriptor) {
+                    while (end < filters.size() && isEntityScoped(filters.get(end), xmlObject)) {
+                        end++;
+                    }
+                }
+
+                long filterStart = System.nanoTime();
+                String phase;
+                if (end - current > 1 || (end > current && getFilterExecutor() != null)) {
+                    List<MetadataFilter> entityFilters = filters.subList(current, end);
+                    filterEntities((EntitiesDescriptor) xmlObject, entityFilters);
+                    phase = getFilterPhase(entityFilters);
+                    current = end;
+                } else {
+                    filters.get(current).doFilter(xmlObject);
+                    phase = MetadataRefreshMetrics.getFilterPhase(filters.get(current));
+                    current++;
+                }
+                if (metrics != null) {
+                    metrics.recordPhase(phase, (System.nanoTime() - filterStart) / 1000000);
+                }
             }
         }
     }
@@ -67,4 +130,261 @@ public class MetadataFilterChain implements MetadataFilter {
             filters.addAll(newFilters);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Gets the executor used to run entity scoped filters on EntityDescriptors in parallel.
+     * 
+     * @return the executor, or null if EntityDescriptors are filtered one after the other
+     */
+    public ExecutorService getFilterExecutor() {
+        return filterExecutor;
+    }
+
+    /**
+     * Sets the executor used to run entity scoped filters on EntityDescriptors in parallel. The entity scoped
+     * filters of this chain must be safe for concurrent use when an executor is set. The executor is not shut down by
+     * this chain.
+     * 
+     * @param executor the executor, or null to filter EntityDescriptors one after the other
+     */
+    public void setFilterExecutor(ExecutorService executor) {
+        filterExecutor = executor;
+    }
+
+    /**
+     * Gets the name of the refresh phase during which the given filters are run together.
+     * 
+     * @param entityFilters the filters
+     * 
+     * @return the name of the phase
+     */
+    private String getFilterPhase(List<MetadataFilter> entityFilters) {
+        StringBuilder phase = new StringBuilder();
+        for (MetadataFilter filter : entityFilters) {
+            if (phase.length() == 0) {
+                phase.append(MetadataRefreshMetrics.getFilterPhase(filter));
+            } else {
+                phase.append('+').append(
+                        MetadataRefreshMetrics.getFilterPhase(filter).substring(
+                                MetadataRefreshMetrics.FILTER_PHASE_PREFIX.length()));
+            }
+        }
+        return phase.toString();
+    }
+
+    /**
+     * Checks whether a filter is entity scoped for the given metadata.
+     * 
+     * @param filter the filter
+     * @param metadata the metadata to be filtered
+     * 
+     * @return true if the filter may be applied to the metadata one EntityDescriptor at a time
+     */
+    private boolean isEntityScoped(MetadataFilter filter, XMLObject metadata) {
+        return filter instanceof EntityScopedMetadataFilter
+                && ((EntityScopedMetadataFilter) filter).isEntityScoped(metadata);
+    }
+
+    /**
+     * Runs the given entity scoped filters on each EntityDescriptor descendant of the given EntitiesDescriptor and
+     * removes the EntityDescriptors rejected by any of them.
+     * 
+     * @param entitiesDescriptor the EntitiesDescriptor to filter
+     * @param entityFilters the entity scoped filters to run
+     * 
+     * @throws FilterException thrown if a filter fails, or if the filtering is interrupted
+     */
+    protected void filterEntities(EntitiesDescriptor entitiesDescriptor, List<MetadataFilter> entityFilters)
+            throws FilterException {
+        List<EntityDescriptor> entities = new ArrayList<EntityDescriptor>();
+        collectEntityDescriptors(entitiesDescriptor, entities);
+
+        Map<EntityDescriptor, EntityDescriptor> updatedEntities =
+                new IdentityHashMap<EntityDescriptor, EntityDescriptor>();
+        int rejected = 0;
+        if (getFilterExecutor() != null) {
+            rejected = filterEntitiesInParallel(entities, entityFilters, updatedEntities);
+        } else {
+            for (EntityDescriptor entity : entities) {
+                if (!filterEntity(entity, entityFilters)) {
+                    updatedEntities.put(entity, null);
+                    rejected++;
+                }
+            }
+        }
+
+        log.debug("Ran {} entity scoped filters on {} EntityDescriptors, {} were removed", new Object[] {
+                entityFilters.size(), entities.size(), rejected, });
+        if (!updatedEntities.isEmpty()) {
+            updateEntityDescriptors(entitiesDescriptor, updatedEntities);
+        }
+    }
+
+    /**
+     * Runs the given entity scoped filters on the given EntityDescriptors in parallel, using the filter executor. Each
+     * EntityDescriptor which has a cached DOM is filtered as a copy, made by {@link EntityDescriptorCopier} on the
+     * calling thread. A copy which was modified by a filter, and so released its DOM, is to replace the original.
+     * 
+     * @param entities the EntityDescriptors to filter
+     * @param entityFilters the entity scoped filters to run
+     * @param updatedEntities map to which the EntityDescriptors rejected by a filter are added with a null value, and
+     *            those to be replaced by a modified copy with the copy as value
+     * 
+     * @return the number of EntityDescriptors rejected by a filter
+     * 
+     * @throws FilterException thrown if a filter fails, if the filtering is rejected by the executor or if it is
+     *             interrupted
+     */
+    private int filterEntitiesInParallel(List<EntityDescriptor> entities, List<MetadataFilter> entityFilters,
+            Map<EntityDescriptor, EntityDescriptor> updatedEntities) throws FilterException {
+        List<Future<EntityDescriptor>> filterings = new ArrayList<Future<EntityDescriptor>>(entities.size());
+        int rejected = 0;
+        try {
+            for (EntityDescriptor entity : entities) {
+                Element entityCopy = EntityDescriptorCopier.copyDOM(entity);
+                filterings.add(getFilterExecutor().submit(new EntityFiltering(entity, entityCopy, entityFilters)));
+            }
+
+            for (int i = 0; i < entities.size(); i++) {
+                EntityDescriptor entity = entities.get(i);
+                EntityDescriptor filtered = filterings.get(i).get();
+                if (filtered == null) {
+                    updatedEntities.put(entity, null);
+                    rejected++;
+                } else if (filtered != entity && filtered.getDOM() == null) {
+                    updatedEntities.put(entity, filtered);
+                }
+            }
+            return rejected;
+        } catch (RejectedExecutionException e) {
+            cancelFilterings(filterings);
+            log.error("EntityDescriptor filtering was rejected by the filter executor", e);
+            throw new FilterException("EntityDescriptor filtering was rejected by the filter executor", e);
+        } catch (InterruptedException e) {
+            cancelFilterings(filterings);
+            Thread.currentThread().interrupt();
+            throw new FilterException("Interrupted while filtering EntityDescriptors", e);
+        } catch (ExecutionException e) {
+            cancelFilterings(filterings);
+            if (e.getCause() instanceof FilterException) {
+                throw (FilterException) e.getCause();
+            }
+            log.error("Error filtering EntityDescriptors", e.getCause());
+            throw new FilterException("Error filtering EntityDescriptors", e);
+        }
+    }
+
+    /**
+     * Cancels any outstanding filterings.
+     * 
+     * @param filterings the filterings
+     */
+    private void cancelFilterings(List<Future<EntityDescriptor>> filterings) {
+        for (Future<EntityDescriptor> filtering : filterings) {
+            filtering.cancel(true);
+        }
+    }
+
+    /**
+     * Runs the given entity scoped filters, in order, on a single EntityDescriptor.
+     * 
+     * @param entity the EntityDescriptor to filter
+     * @param entityFilters the entity scoped filters to run
+     * 
+     * @return true if the EntityDescriptor is to be kept, false if it was rejected by one of the filters
+     * 
+     * @throws FilterException thrown if a filter fails
+     */
+    private boolean filterEntity(EntityDescriptor entity, List<MetadataFilter> entityFilters)
+            throws FilterException {
+        for (MetadataFilter filter : entityFilters) {
+            if (!((EntityScopedMetadataFilter) filter).filterEntity(entity)) {
+                log.trace("EntityDescriptor '{}' was rejected by filter {}", entity.getEntityID(), filter.getClass()
+                        .getName());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds every EntityDescriptor descendant of the given EntitiesDescriptor to the given list, in document order.
+     * 
+     * @param entitiesDescriptor the EntitiesDescriptor
+     * @param entities the list of EntityDescriptors
+     */
+    private void collectEntityDescriptors(EntitiesDescriptor entitiesDescriptor, List<EntityDescriptor> entities) {
+        entities.addAll(entitiesDescriptor.getEntityDescriptors());
+        for (EntitiesDescriptor entitiesChild : entitiesDescriptor.getEntitiesDescriptors()) {
+            collectEntityDescriptors(entitiesChild, entities);
+        }
+    }
+
+    /**
+     * Removes or replaces the given EntityDescriptors in the given EntitiesDescriptor and its descendants.
+     * 
+     * @param entitiesDescriptor the EntitiesDescriptor
+     * @param updatedEntities the EntityDescriptors to update, mapped to null to be removed or to their replacement
+     */
+    private void updateEntityDescriptors(EntitiesDescriptor entitiesDescriptor,
+            Map<EntityDescriptor, EntityDescriptor> updatedEntities) {
+        ListIterator<EntityDescriptor> entityIter = entitiesDescriptor.getEntityDescriptors().listIterator();
+        while (entityIter.hasNext()) {
+            EntityDescriptor entity = entityIter.next();
+            if (updatedEntities.containsKey(entity)) {
+                EntityDescriptor replacement = updatedEntities.get(entity);
+                if (replacement == null) {
+                    entityIter.remove();
+                } else {
+                    entityIter.set(replacement);
+                }
+            }
+        }
+
+        for (EntitiesDescriptor entitiesChild : entitiesDescriptor.getEntitiesDescriptors()) {
+            updateEntityDescriptors(entitiesChild, updatedEntities);
+        }
+    }
+
+    /**
+     * A task which runs the entity scoped filters on a single EntityDescriptor, or on a copy of it if it has a cached
+     * DOM. The result is the filtered EntityDescriptor or copy, or null if it was rejected.
+     */
+    private class EntityFiltering implements Callable<EntityDescriptor> {
+
+        /** EntityDescriptor to filter. */
+        private EntityDescriptor entity;
+
+        /** Copy of the DOM of the EntityDescriptor to filter, may be null. */
+        private Element entityCopy;
+
+        /** Entity scoped filters to run. */
+        private List<MetadataFilter> entityFilters;
+
+        /**
+         * Constructor.
+         * 
+         * @param entityDescriptor EntityDescriptor to filter
+         * @param copy copy of the DOM of the EntityDescriptor, as made by {@link EntityDescriptorCopier#copyDOM}, or
+         *            null if the EntityDescriptor has no cached DOM
+         * @param filtersToRun entity scoped filters to run
+         */
+        public EntityFiltering(EntityDescriptor entityDescriptor, Element copy, List<MetadataFilter> filtersToRun) {
+            entity = entityDescriptor;
+            entityCopy = copy;
+            entityFilters = filtersToRun;
+        }
+
+        /** {@inheritDoc} */
+        public EntityDescriptor call() throws FilterException {
+            EntityDescriptor filtered = entity;
+            if (entityCopy != null) {
+                filtered = EntityDescriptorCopier.unmarshallCopy(entityCopy);
+            }
+            if (filterEntity(filtered, entityFilters)) {
+                return filtered;
+            }
+            return null;
+        }
+    }
+}
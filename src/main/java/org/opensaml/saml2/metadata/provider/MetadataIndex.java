@@ -0,0 +1,371 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.opensaml.saml2.common.SAML2Helper;
+import org.opensaml.saml2.common.TimeBoundSAMLObject;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.XMLObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable index of the entity and entities descriptors contained within a metadata document.
+ *
+ * The index is built once, in its entirety, when constructed and is never modified afterwards. It may therefore be
+ * safely shared between threads once published through a volatile field or other synchronization point.
+ *
+ * Descriptors are indexed in the order in which {@link AbstractMetadataProvider} used to search the metadata, so that
+ * returning the first valid descriptor with a given entity ID, or name, returns the same descriptor as that search:
+ * the entity descriptors that are direct children of an entities descriptor are considered before those of its
+ * descendant entities descriptors, and an entities descriptor is considered before its descendants, the descendants of
+ * later children before those of earlier ones. If more than one descriptor carries the same entity ID, or name, every
+ * one of them is kept, in that order; {@link #getEntityDescriptor(String)} and {@link #getEntitiesDescriptor(String)}
+ * return the first one, regardless of its validity.
+ *
+ * The index also records, for every entity and entities descriptor, the earliest validUntil instant found anywhere
+ * within the descriptor, including the descriptor itself. A descriptor is therefore valid, in the sense of
+ * {@link SAML2Helper#isValid(XMLObject)}, exactly when the current time is before this instant, which allows validity
+ * to be checked without walking the descriptor on every lookup.
+ */
+public class MetadataIndex {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(MetadataIndex.class);
+
+    /** Metadata from which this index was built. */
+    private final XMLObject metadata;
+
+    /** Entity ID to entity descriptor index. */
+    private final Map<String, EntityDescriptor> entityDescriptors;
+
+    /** Name to entities descriptor index. */
+    private final Map<String, EntitiesDescriptor> entitiesDescriptors;
+
+    /** Every entity descriptor, in search order, of the entity IDs carried by more than one entity descriptor. */
+    private final Map<String, List<EntityDescriptor>> duplicateEntityDescriptors;
+
+    /** Every entities descriptor, in search order, of the names carried by more than one entities descriptor. */
+    private final Map<String, List<EntitiesDescriptor>> duplicateEntitiesDescriptors;
+
+    /** Earliest validUntil, in milliseconds since the epoch, within each entity and entities descriptor. */
+    private final Map<XMLObject, Long> validUntilInstants;
+
+    /**
+     * Constructor.
+     *
+     * @param indexedMetadata metadata to index, may be null
+     */
+    public MetadataIndex(XMLObject indexedMetadata) {
+        metadata = indexedMetadata;
+
+        HashMap<String, EntityDescriptor> entityIndex = new HashMap<String, EntityDescriptor>();
+        HashMap<String, EntitiesDescriptor> entitiesIndex = new HashMap<String, EntitiesDescriptor>();
+        duplicateEntityDescriptors = new HashMap<String, List<EntityDescriptor>>();
+        duplicateEntitiesDescriptors = new HashMap<String, List<EntitiesDescriptor>>();
+        validUntilInstants = new IdentityHashMap<XMLObject, Long>();
+        if (metadata != null) {
+            indexValidUntil(metadata);
+        }
+        if (metadata instanceof EntityDescriptor) {
+            indexEntityDescriptor((EntityDescriptor) metadata, entityIndex);
+        } else if (metadata instanceof EntitiesDescriptor) {
+            indexEntitiesDescriptorNames((EntitiesDescriptor) metadata, entitiesIndex);
+            indexEntityDescriptors((EntitiesDescriptor) metadata, entityIndex);
+        }
+
+        entityDescriptors = Collections.unmodifiableMap(entityIndex);
+        entitiesDescriptors = Collections.unmodifiableMap(entitiesIndex);
+        log.debug("Indexed {} entity descriptors and {} entities descriptors", entityDescriptors.size(),
+                entitiesDescriptors.size());
+    }
+
+    /**
+     * Gets the metadata from which this index was built.
+     *
+     * @return metadata from which this index was built, may be null
+     */
+    public XMLObject getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Gets the first entity descriptor with the given entity ID. No validity checking is performed.
+     *
+     * @param entityID the entity ID
+     *
+     * @return the entity descriptor or null if the metadata does not contain such an entity
+     */
+    public EntityDescriptor getEntityDescriptor(String entityID) {
+        if (entityID == null) {
+            return null;
+        }
+        return entityDescriptors.get(entityID);
+    }
+
+    /**
+     * Gets every entity descriptor with the given entity ID, in search order. No validity checking is performed.
+     *
+     * @param entityID the entity ID
+     *
+     * @return the entity descriptors, empty if the metadata does not contain such an entity
+     */
+    public List<EntityDescriptor> getEntityDescriptors(String entityID) {
+        return getDescriptors(entityID, entityDescriptors, duplicateEntityDescriptors);
+    }
+
+    /**
+     * Gets the first entities descriptor with the given name. No validity checking is performed.
+     *
+     * @param name the name of the entities descriptor
+     *
+     * @return the entities descriptor or null if the metadata does not contain such a descriptor
+     */
+    public EntitiesDescriptor getEntitiesDescriptor(String name) {
+        return entitiesDescriptors.get(name);
+    }
+
+    /**
+     * Gets every entities descriptor with the given name, in search order. No validity checking is performed.
+     *
+     * @param name the name of the entities descriptor
+     *
+     * @return the entities descriptors, empty if the metadata does not contain such a descriptor
+     */
+    public List<EntitiesDescriptor> getEntitiesDescriptors(String name) {
+        return getDescriptors(name, entitiesDescriptors, duplicateEntitiesDescriptors);
+    }
+
+    /**
+     * Gets an unmodifiable map of all indexed entity descriptors keyed by their entity ID. Only the first entity
+     * descriptor of each entity ID is included.
+     *
+     * @return all indexed entity descriptors
+     */
+    public Map<String, EntityDescriptor> getEntityDescriptors() {
+        return entityDescriptors;
+    }
+
+    /**
+     * Gets an unmodifiable map of all indexed entities descriptors keyed by their name. Only the first entities
+     * descriptor of each name is included.
+     *
+     * @return all indexed entities descriptors
+     */
+    public Map<String, EntitiesDescriptor> getEntitiesDescriptors() {
+        return entitiesDescriptors;
+    }
+
+    /**
+     * Gets the earliest validUntil instant within the given descriptor, including the descriptor itself.
+     *
+     * @param descriptor an entity or entities descriptor contained in the indexed metadata
+     *
+     * @return the earliest validUntil instant, in milliseconds since the epoch, {@link Long#MAX_VALUE} if neither the
+     *         descriptor nor any of its descendants has a validUntil, or {@link Long#MIN_VALUE} if the descriptor is
+     *         not part of the indexed metadata
+     */
+    public long getEffectiveValidUntil(XMLObject descriptor) {
+        Long validUntil = validUntilInstants.get(descriptor);
+        if (validUntil == null) {
+            return Long.MIN_VALUE;
+        }
+        return validUntil.longValue();
+    }
+
+    /**
+     * Checks whether the given descriptor is valid at the given instant. The result is the same as that of
+     * {@link SAML2Helper#isValid(XMLObject)} evaluated at that instant, provided the metadata has not been modified
+     * since it was indexed. Descriptors that are not part of the indexed metadata are checked with
+     * {@link SAML2Helper#isValid(XMLObject)}.
+     *
+     * @param descriptor an entity or entities descriptor
+     * @param now the instant, in milliseconds since the epoch, at which the validity is checked
+     *
+     * @return true if the descriptor is valid at the given instant, false otherwise
+     */
+    public boolean isValid(XMLObject descriptor, long now) {
+        Long validUntil = validUntilInstants.get(descriptor);
+        if (validUntil == null) {
+            return SAML2Helper.isValid(descriptor);
+        }
+        return now < validUntil.longValue();
+    }
+
+    /**
+     * Gets every descriptor with the given key, in search order.
+     *
+     * @param <T> type of descriptor
+     * @param key the entity ID or name
+     * @param firstDescriptors the first descriptor of each key
+     * @param duplicateDescriptors every descriptor of the keys carried by more than one descriptor
+     *
+     * @return the descriptors, empty if there is none
+     */
+    private <T extends XMLObject> List<T> getDescriptors(String key, Map<String, T> firstDescriptors,
+            Map<String, List<T>> duplicateDescriptors) {
+        if (key == null) {
+            return Collections.emptyList();
+        }
+
+        List<T> descriptors = duplicateDescriptors.get(key);
+        if (descriptors != null) {
+            return Collections.unmodifiableList(descriptors);
+        }
+
+        T descriptor = firstDescriptors.get(key);
+        if (descriptor == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(descriptor);
+    }
+
+    /**
+     * Computes the earliest validUntil instant within the given XMLObject, recording it for every entity and entities
+     * descriptor encountered.
+     *
+     * @param xmlObject the XMLObject
+     *
+     * @return the earliest validUntil instant, in milliseconds since the epoch, or {@link Long#MAX_VALUE} if there is
+     *         none
+     */
+    private long indexValidUntil(XMLObject xmlObject) {
+        long validUntil = Long.MAX_VALUE;
+        if (xmlObject instanceof TimeBoundSAMLObject) {
+            DateTime objectValidUntil = ((TimeBoundSAMLObject) xmlObject).getValidUntil();
+            if (objectValidUntil != null) {
+                validUntil = objectValidUntil.getMillis();
+            }
+        }
+
+        List<XMLObject> children = xmlObject.getOrderedChildren();
+        if (children != null) {
+            for (XMLObject child : children) {
+                if (child != null) {
+                    validUntil = Math.min(validUntil, indexValidUntil(child));
+                }
+            }
+        }
+
+        if (xmlObject instanceof EntityDescriptor || xmlObject instanceof EntitiesDescriptor) {
+            validUntilInstants.put(xmlObject, new Long(validUntil));
+        }
+        return validUntil;
+    }
+
+    /**
+     * Adds the entity descriptors that are descendants of the given entities descriptor to the index.
+     *
+     * @param descriptor the entities descriptor
+     * @param index the index being populated
+     */
+    private void indexEntityDescriptors(EntitiesDescriptor descriptor, Map<String, EntityDescriptor> index) {
+        List<EntityDescriptor> entityChildren = descriptor.getEntityDescriptors();
+        if (entityChildren != null) {
+            for (EntityDescriptor entityChild : entityChildren) {
+                indexEntityDescriptor(entityChild, index);
+            }
+        }
+
+        List<EntitiesDescriptor> entitiesChildren = descriptor.getEntitiesDescriptors();
+        if (entitiesChildren != null) {
+            for (EntitiesDescriptor entitiesChild : entitiesChildren) {
+                indexEntityDescriptors(entitiesChild, index);
+            }
+        }
+    }
+
+    /**
+     * Adds the given entity descriptor to the index, after any entity descriptor with the same ID already indexed.
+     *
+     * @param descriptor the entity descriptor
+     * @param index the index being populated
+     */
+    private void indexEntityDescriptor(EntityDescriptor descriptor, Map<String, EntityDescriptor> index) {
+        String entityID = descriptor.getEntityID();
+        if (entityID == null) {
+            log.debug("Ignoring entity descriptor without an entity ID");
+            return;
+        }
+
+        if (addDescriptor(entityID, descriptor, index, duplicateEntityDescriptors)) {
+            log.warn("Metadata contains more than one entity descriptor with the entity ID {}, the first valid one "
+                    + "is used", entityID);
+        }
+    }
+
+    /**
+     * Adds the given entities descriptor, and all of its named descendant entities descriptors, to the index. The
+     * descendants of later children are added before those of earlier ones.
+     *
+     * @param descriptor the entities descriptor
+     * @param index the index being populated
+     */
+    private void indexEntitiesDescriptorNames(EntitiesDescriptor descriptor, Map<String, EntitiesDescriptor> index) {
+        String name = descriptor.getName();
+        if (name != null) {
+            addDescriptor(name, descriptor, index, duplicateEntitiesDescriptors);
+        }
+
+        List<EntitiesDescriptor> entitiesChildren = descriptor.getEntitiesDescriptors();
+        if (entitiesChildren != null) {
+            ListIterator<EntitiesDescriptor> children = entitiesChildren.listIterator(entitiesChildren.size());
+            while (children.hasPrevious()) {
+                indexEntitiesDescriptorNames(children.previous(), index);
+            }
+        }
+    }
+
+    /**
+     * Adds a descriptor to the index, after any descriptor with the same key already indexed.
+     *
+     * @param <T> type of descriptor
+     * @param key the entity ID or name of the descriptor
+     * @param descriptor the descriptor
+     * @param firstDescriptors the first descriptor of each key
+     * @param duplicateDescriptors every descriptor of the keys carried by more than one descriptor
+     *
+     * @return true if a descriptor with the same key was already indexed
+     */
+    private <T extends XMLObject> boolean addDescriptor(String key, T descriptor, Map<String, T> firstDescriptors,
+            Map<String, List<T>> duplicateDescriptors) {
+        T firstDescriptor = firstDescriptors.get(key);
+        if (firstDescriptor == null) {
+            firstDescriptors.put(key, descriptor);
+            return false;
+        }
+
+        List<T> descriptors = duplicateDescriptors.get(key);
+        if (descriptors == null) {
+            descriptors = new ArrayList<T>(2);
+            descriptors.add(firstDescriptor);
+            duplicateDescriptors.put(key, descriptors);
+        }
+        descriptors.add(descriptor);
+        return true;
+    }
+}
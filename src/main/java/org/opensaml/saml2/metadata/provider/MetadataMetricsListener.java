@@ -0,0 +1,33 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.saml2.metadata.provider;
+
+/**
+ * A listener notified of the metrics of every completed refresh of a {@link BaseMetadataProvider}, for example to
+ * feed them to a monitoring system.
+ *
+ * Listeners are notified on the refreshing thread, while the provider may hold locks, so they should return quickly.
+ */
+public interface MetadataMetricsListener {
+
+    /**
+     * Called when a refresh of the metadata of a provider has completed, successfully or not.
+     *
+     * @param provider the provider whose metadata was refreshed
+     * @param metrics the metrics of the refresh
+     */
+    public void refreshCompleted(MetadataProvider provider, MetadataRefreshMetrics metrics);
+}
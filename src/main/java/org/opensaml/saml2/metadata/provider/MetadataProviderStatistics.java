@@ -0,0 +1,275 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.saml2.metadata.provider;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+
+/**
+ * Statistics about the refreshes of, and entity lookups against, the metadata of a provider.
+ *
+ * The statistics may be monitored through JMX by registering this object, which is a standard MBean, with an MBean
+ * server, for example:
+ *
+ * <pre>
+ * ManagementFactory.getPlatformMBeanServer().registerMBean(provider.getStatistics(),
+ *         new ObjectName(&quot;org.opensaml:type=MetadataProvider,name=federation&quot;));
+ * </pre>
+ */
+public class MetadataProviderStatistics implements MetadataProviderStatisticsMBean {
+
+    /** Number of entity lookups that found the entity. */
+    private final AtomicLong lookupHits;
+
+    /** Number of entity lookups that did not find the entity. */
+    private final AtomicLong lookupMisses;
+
+    /** Number of refreshes attempted. */
+    private long refreshCount;
+
+    /** Number of refreshes that failed. */
+    private long refreshFailureCount;
+
+    /** Number of refreshes that failed since the last successful refresh. */
+    private long consecutiveRefreshFailureCount;
+
+    /** Metrics of the last completed refresh. */
+    private MetadataRefreshMetrics lastRefresh;
+
+    /** Metrics of the last successful refresh. */
+    private MetadataRefreshMetrics lastSuccessfulRefresh;
+
+    /** Number of bytes downloaded by the last refresh that read new metadata. */
+    private long bytesDownloaded;
+
+    /** Size, in bytes, of the currently loaded metadata document. */
+    private long documentSize;
+
+    /** Number of EntityDescriptors in the currently loaded metadata. */
+    private int entityCount;
+
+    /** Time at which the currently loaded metadata expires, may be null. */
+    private DateTime expirationTime;
+
+    /** Constructor. */
+    public MetadataProviderStatistics() {
+        lookupHits = new AtomicLong();
+        lookupMisses = new AtomicLong();
+        bytesDownloaded = -1;
+        documentSize = -1;
+        entityCount = -1;
+    }
+
+    /**
+     * Records a completed refresh. A refresh which loaded the metadata from a local backup is counted as failed, but
+     * the statistics of the loaded metadata are updated.
+     *
+     * @param metrics the metrics of the refresh
+     */
+    public synchronized void recordRefresh(MetadataRefreshMetrics metrics) {
+        refreshCount++;
+        lastRefresh = metrics;
+        if (!metrics.isSuccessful() || metrics.isLoadedFromBackup()) {
+            refreshFailureCount++;
+            consecutiveRefreshFailureCount++;
+            if (!metrics.isSuccessful()) {
+                return;
+            }
+        } else {
+            consecutiveRefreshFailureCount = 0;
+            lastSuccessfulRefresh = metrics;
+        }
+
+        expirationTime = metrics.getExpirationTime();
+        if (metrics.getBytesDownloaded() != -1) {
+            bytesDownloaded = metrics.getBytesDownloaded();
+        }
+        if (metrics.getDocumentSize() != -1) {
+            documentSize = metrics.getDocumentSize();
+        }
+        if (metrics.getEntityCount() != -1) {
+            entityCount = metrics.getEntityCount();
+        }
+    }
+
+    /**
+     * Records an entity lookup.
+     *
+     * @param found whether the entity was found
+     */
+    public void recordLookup(boolean found) {
+        if (found) {
+            lookupHits.incrementAndGet();
+        } else {
+            lookupMisses.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the metrics of the last completed refresh.
+     *
+     * @return metrics of the last completed refresh, or null if no refresh has completed
+     */
+    public synchronized MetadataRefreshMetrics getLastRefreshMetrics() {
+        return lastRefresh;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long getRefreshCount() {
+        return refreshCount;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long getRefreshFailureCount() {
+        return refreshFailureCount;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long getConsecutiveRefreshFailureCount() {
+        return consecutiveRefreshFailureCount;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized Date getLastRefreshTime() {
+        if (lastRefresh == null) {
+            return null;
+        }
+        return new Date(lastRefresh.getEndTime());
+    }
+
+    /** {@inheritDoc} */
+    public synchronized Date getLastSuccessfulRefreshTime() {
+        if (lastSuccessfulRefresh == null) {
+            return null;
+        }
+        return new Date(lastSuccessfulRefresh.getEndTime());
+    }
+
+    /** {@inheritDoc} */
+    public synchronized boolean isLastRefreshSuccessful() {
+        return lastRefresh != null && lastRefresh.isSuccessful() && !lastRefresh.isLoadedFromBackup();
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long getLastRefreshDuration() {
+        if (lastRefresh == null) {
+            return -1;
+        }
+        return lastRefresh.getDuration();
+    }
+
+    /** {@inheritDoc} */
+    public long getLastFetchDuration() {
+        return getLastPhaseDuration(MetadataRefreshMetrics.FETCH_PHASE);
+    }
+
+    /** {@inheritDoc} */
+    public long getLastParseDuration() {
+        return getLastPhaseDuration(MetadataRefreshMetrics.PARSE_PHASE);
+    }
+
+    /** {@inheritDoc} */
+    public long getLastUnmarshallDuration() {
+        return getLastPhaseDuration(MetadataRefreshMetrics.UNMARSHALL_PHASE);
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long getLastFilterDuration() {
+        if (lastRefresh == null) {
+            return -1;
+        }
+        return lastRefresh.getFilterDuration();
+    }
+
+    /** {@inheritDoc} */
+    public long getLastIndexDuration() {
+        return getLastPhaseDuration(MetadataRefreshMetrics.INDEX_PHASE);
+    }
+
+    /** {@inheritDoc} */
+    public synchronized String[] getLastPhaseDurations() {
+        if (lastRefresh == null) {
+            return new String[0];
+        }
+
+        Map<String, Long> phaseDurations = lastRefresh.getPhaseDurations();
+        String[] durations = new String[phaseDurations.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> phase : phaseDurations.entrySet()) {
+            durations[i++] = phase.getKey() + "=" + phase.getValue();
+        }
+        return durations;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long getBytesDownloaded() {
+        return bytesDownloaded;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long getDocumentSize() {
+        return documentSize;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized int getEntityCount() {
+        return entityCount;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long getTimeUntilExpiration() {
+        if (expirationTime == null) {
+            return Long.MAX_VALUE;
+        }
+        return expirationTime.getMillis() - System.currentTimeMillis();
+    }
+
+    /** {@inheritDoc} */
+    public long getLookupHitCount() {
+        return lookupHits.get();
+    }
+
+    /** {@inheritDoc} */
+    public long getLookupMissCount() {
+        return lookupMisses.get();
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void resetCounters() {
+        lookupHits.set(0);
+        lookupMisses.set(0);
+        refreshCount = 0;
+        refreshFailureCount = 0;
+        consecutiveRefreshFailureCount = 0;
+    }
+
+    /**
+     * Gets the duration of a phase of the last refresh.
+     *
+     * @param phase the name of the phase
+     *
+     * @return duration, in milliseconds, of the phase, or -1 if it was not recorded
+     */
+    private synchronized long getLastPhaseDuration(String phase) {
+        if (lastRefresh == null) {
+            return -1;
+        }
+        return lastRefresh.getPhaseDuration(phase);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.saml2.metadata.provider;
+
+import java.util.Date;
+
+/**
+ * Management interface of {@link MetadataProviderStatistics}, allowing the refresh and lookup statistics of a metadata
+ * provider to be monitored through JMX. Durations are in milliseconds; values that are not known
+ * are reported as -1.
+ */
+public interface MetadataProviderStatisticsMBean {
+
+    /**
+     * Gets the number of refreshes attempted, whether or not they succeeded.
+     *
+     * @return number of refreshes attempted
+     */
+    public long getRefreshCount();
+
+    /**
+     * Gets the number of refreshes that failed, including those which could not read the metadata from its source and
+     * loaded it from a local backup instead.
+     *
+     * @return number of refreshes that failed
+     */
+    public long getRefreshFailureCount();
+
+    /**
+     * Gets the number of refreshes that failed, including those which loaded the metadata from a local backup, since
+     * the last successful refresh.
+     *
+     * @return number of refreshes that failed since the last successful refresh
+     */
+    public long getConsecutiveRefreshFailureCount();
+
+    /**
+     * Gets the time the last refresh completed.
+     *
+     * @return time the last refresh completed, or null if no refresh has completed
+     */
+    public Date getLastRefreshTime();
+
+    /**
+     * Gets the time the last successful refresh completed.
+     *
+     * @return time the last successful refresh completed, or null if no refresh has succeeded
+     */
+    public Date getLastSuccessfulRefreshTime();
+
+    /**
+     * Gets whether the last refresh succeeded, reading the metadata from its source rather than from a local backup.
+     *
+     * @return whether the last refresh succeeded
+     */
+    public boolean isLastRefreshSuccessful();
+
+    /**
+     * Gets the duration of the last refresh.
+     *
+     * @return duration of the last refresh
+     */
+    public long getLastRefreshDuration();
+
+    /**
+     * Gets the duration of the fetch phase of the last refresh.
+     *
+     * @return duration of the fetch phase of the last refresh
+     */
+    public long getLastFetchDuration();
+
+    /**
+     * Gets the duration of the parse phase of the last refresh.
+     *
+     * @return duration of the parse phase of the last refresh
+     */
+    public long getLastParseDuration();
+
+    /**
+     * Gets the duration of the unmarshall phase of the last refresh.
+     *
+     * @return duration of the unmarshall phase of the last refresh
+     */
+    public long getLastUnmarshallDuration();
+
+    /**
+     * Gets the combined duration of the filter phases of the last refresh.
+     *
+     * @return combined duration of the filter phases of the last refresh
+     */
+    public long getLastFilterDuration();
+
+    /**
+     * Gets the duration of the index phase of the last refresh.
+     *
+     * @return duration of the index phase of the last refresh
+     */
+    public long getLastIndexDuration();
+
+    /**
+     * Gets the duration of every phase of the last refresh, including each individual filter, as "phase=duration"
+     * strings.
+     *
+     * @return the durations of the phases of the last refresh
+     */
+    public String[] getLastPhaseDurations();
+
+    /**
+     * Gets the number of bytes downloaded by the last refresh that read new metadata.
+     *
+     * @return number of bytes downloaded
+     */
+    public long getBytesDownloaded();
+
+    /**
+     * Gets the size of the currently loaded metadata document.
+     *
+     * @return size, in bytes, of the metadata document
+     */
+    public long getDocumentSize();
+
+    /**
+     * Gets the number of EntityDescriptors in the currently loaded metadata.
+     *
+     * @return number of EntityDescriptors
+     */
+    public int getEntityCount();
+
+    /**
+     * Gets the time remaining until the currently loaded metadata expires.
+     *
+     * @return time remaining until the metadata expires, negative if it has expired, or Long.MAX_VALUE if no
+     *         expiration time is known
+     */
+    public long getTimeUntilExpiration();
+
+    /**
+     * Gets the number of entity lookups that found the entity.
+     *
+     * @return number of entity lookups that found the entity
+     */
+    public long getLookupHitCount();
+
+    /**
+     * Gets the number of entity lookups that did not find the entity.
+     *
+     * @return number of entity lookups that did not find the entity
+     */
+    public long getLookupMissCount();
+
+    /** Resets all counters, keeping the information about the currently loaded metadata. */
+    public void resetCounters();
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.saml2.metadata.provider;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+/**
+ * Metrics describing a single refresh of the metadata of a provider: how long each of its phases took, how much data
+ * was read and what metadata resulted.
+ *
+ * The metrics are recorded by the refreshing thread while the refresh is in progress and are not modified once the
+ * refresh has completed. Values that were not recorded, for example the number of bytes downloaded by a provider that
+ * reads a local file, are reported as -1.
+ */
+public class MetadataRefreshMetrics {
+
+    /** Phase during which the metadata is requested from its source, until the response is available. */
+    public static final String FETCH_PHASE = "fetch";
+
+    /** Phase during which the metadata is parsed into a DOM, including reading it from its source. */
+    public static final String PARSE_PHASE = "parse";
+
+    /** Phase during which the metadata DOM is unmarshalled. */
+    public static final String UNMARSHALL_PHASE = "unmarshall";
+
+    /** Phase during which the metadata is read, unmarshalled and filtered one entity at a time. */
+    public static final String STREAM_PHASE = "stream";
+
+    /** Prefix of the phases during which a metadata filter is applied, followed by the filter's class name. */
+    public static final String FILTER_PHASE_PREFIX = "filter:";
+
+    /** Phase during which the descriptor index of the metadata is built. */
+    public static final String INDEX_PHASE = "index";
+
+    /** Time, in milliseconds since the epoch, the refresh started. */
+    private final long startTime;
+
+    /** Time, in milliseconds since the epoch, the refresh completed; -1 while it is in progress. */
+    private long endTime;
+
+    /** Whether the refresh completed successfully. */
+    private boolean successful;
+
+    /** Whether the source reported the metadata had not changed, so that the cached metadata was kept. */
+    private boolean metadataUnchanged;
+
+    /** Whether the metadata could not be read from its source and was loaded from a local backup instead. */
+    private boolean loadedFromBackup;
+
+    /** Duration, in milliseconds, of each phase, in the order the phases were first recorded. */
+    private final Map<String, Long> phaseDurations;
+
+    /** Number of bytes read from the metadata source, before any content decoding. */
+    private long bytesDownloaded;
+
+    /** Size, in bytes, of the metadata document. */
+    private long documentSize;
+
+    /** Number of EntityDescriptors in the refreshed metadata. */
+    private int entityCount;
+
+    /** Time at which the refreshed metadata expires, may be null. */
+    private DateTime expirationTime;
+
+    /** Constructor. */
+    public MetadataRefreshMetrics() {
+        startTime = System.currentTimeMillis();
+        endTime = -1;
+        phaseDurations = new LinkedHashMap<String, Long>();
+        bytesDownloaded = -1;
+        documentSize = -1;
+        entityCount = -1;
+    }
+
+    /**
+     * Gets the name of the phase during which the given filter is applied.
+     *
+     * @param filter the filter
+     *
+     * @return the name of the phase during which the filter is applied
+     */
+    public static String getFilterPhase(MetadataFilter filter) {
+        String filterName = filter.getClass().getSimpleName();
+        if (filterName.length() == 0) {
+            filterName = filter.getClass().getName();
+        }
+        return FILTER_PHASE_PREFIX + filterName;
+    }
+
+    /**
+     * Records the duration of a phase of the refresh. Durations recorded for the same phase are added up.
+     *
+     * @param phase the name of the phase
+     * @param duration the duration, in milliseconds, of the phase
+     */
+    public void recordPhase(String phase, long duration) {
+        Long previousDuration = phaseDurations.get(phase);
+        if (previousDuration != null) {
+            duration += previousDuration;
+        }
+        phaseDurations.put(phase, duration);
+    }
+
+    /**
+     * Marks the refresh as completed.
+     *
+     * @param refreshSuccessful whether the refresh completed successfully
+     */
+    public void complete(boolean refreshSuccessful) {
+        endTime = System.currentTimeMillis();
+        successful = refreshSuccessful;
+    }
+
+    /**
+     * Gets the time the refresh started.
+     *
+     * @return time, in milliseconds since the epoch, the refresh started
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Gets the time the refresh completed.
+     *
+     * @return time, in milliseconds since the epoch, the refresh completed, or -1 if it is still in progress
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+
+    /**
+     * Gets the duration of the refresh.
+     *
+     * @return duration, in milliseconds, of the refresh, or -1 if it is still in progress
+     */
+    public long getDuration() {
+        if (endTime == -1) {
+            return -1;
+        }
+        return endTime - startTime;
+    }
+
+    /**
+     * Gets whether the refresh completed successfully.
+     *
+     * @return whether the refresh completed successfully
+     */
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    /**
+     * Gets whether the source reported that the metadata had not changed, so that the cached metadata was kept.
+     *
+     * @return whether the cached metadata was kept because it had not changed
+     */
+    public boolean isMetadataUnchanged() {
+        return metadataUnchanged;
+    }
+
+    /**
+     * Sets whether the source reported that the metadata had not changed, so that the cached metadata was kept.
+     *
+     * @param unchanged whether the cached metadata was kept because it had not changed
+     */
+    public void setMetadataUnchanged(boolean unchanged) {
+        metadataUnchanged = unchanged;
+    }
+
+    /**
+     * Gets whether the metadata could not be read from its source and was loaded from a local backup instead. Such a
+     * refresh may complete successfully but is counted as a failed refresh.
+     *
+     * @return whether the metadata was loaded from a local backup
+     */
+    public boolean isLoadedFromBackup() {
+        return loadedFromBackup;
+    }
+
+    /**
+     * Sets whether the metadata could not be read from its source and was loaded from a local backup instead.
+     *
+     * @param fromBackup whether the metadata was loaded from a local backup
+     */
+    public void setLoadedFromBackup(boolean fromBackup) {
+        loadedFromBackup = fromBackup;
+    }
+
+    /**
+     * Gets the duration of each recorded phase, in the order the phases were first recorded.
+     *
+     * @return unmodifiable map from phase name to duration in milliseconds
+     */
+    public Map<String, Long> getPhaseDurations() {
+        return Collections.unmodifiableMap(phaseDurations);
+    }
+
+    /**
+     * Gets the duration of a phase.
+     *
+     * @param phase the name of the phase
+     *
+     * @return duration, in milliseconds, of the phase, or -1 if it was not recorded
+     */
+    public long getPhaseDuration(String phase) {
+        Long duration = phaseDurations.get(phase);
+        if (duration == null) {
+            return -1;
+        }
+        return duration;
+    }
+
+    /**
+     * Gets the combined duration of all filter phases.
+     *
+     * @return duration, in milliseconds, of all filter phases, or -1 if none was recorded
+     */
+    public long getFilterDuration() {
+        long filterDuration = -1;
+        for (Map.Entry<String, Long> phase : phaseDurations.entrySet()) {
+            if (phase.getKey().startsWith(FILTER_PHASE_PREFIX)) {
+                filterDuration = Math.max(filterDuration, 0) + phase.getValue();
+            }
+        }
+        return filterDuration;
+    }
+
+    /**
+     * Gets the number of bytes read from the metadata source, before any content decoding.
+     *
+     * @return number of bytes read from the metadata source, or -1 if not recorded
+     */
+    public long getBytesDownloaded() {
+        return bytesDownloaded;
+    }
+
+    /**
+     * Sets the number of bytes read from the metadata source, before any content decoding.
+     *
+     * @param bytes number of bytes read from the metadata source
+     */
+    public void setBytesDownloaded(long bytes) {
+        bytesDownloaded = bytes;
+    }
+
+    /**
+     * Gets the size of the metadata document.
+     *
+     * @return size, in bytes, of the metadata document, or -1 if not recorded
+     */
+    public long getDocumentSize() {
+        return documentSize;
+    }
+
+    /**
+     * Sets the size of the metadata document.
+     *
+     * @param size size, in bytes, of the metadata document
+     */
+    public void setDocumentSize(long size) {
+        documentSize = size;
+    }
+
+    /**
+     * Gets the number of EntityDescriptors in the refreshed metadata.
+     *
+     * @return number of EntityDescriptors in the refreshed metadata, or -1 if not recorded
+     */
+    public int getEntityCount() {
+        return entityCount;
+    }
+
+    /**
+     * Sets the number of EntityDescriptors in the refreshed metadata.
+     *
+     * @param count number of EntityDescriptors in the refreshed metadata
+     */
+    public void setEntityCount(int count) {
+        entityCount = count;
+    }
+
+    /**
+     * Gets the time at which the refreshed metadata expires.
+     *
+     * @return time at which the refreshed metadata expires, may be null
+     */
+    public DateTime getExpirationTime() {
+        return expirationTime;
+    }
+
+    /**
+     * Sets the time at which the refreshed metadata expires.
+     *
+     * @param expiration time at which the refreshed metadata expires, may be null
+     */
+    public void setExpirationTime(DateTime expiration) {
+        expirationTime = expiration;
+    }
+
+    /** {@inheritDoc} */
+    public String toString() {
+        return "MetadataRefreshMetrics[successful=" + successful + ", unchanged=" + metadataUnchanged + ", fromBackup="
+                + loadedFromBackup + ", duration=" + getDuration() + "ms, phases=" + phaseDurations
+                + ", bytesDownloaded=" + bytesDownloaded + ", documentSize=" + documentSize + ", entities="
+                + entityCount + "]";
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.joda.time.DateTime;
+
+/**
+ * A snapshot of filtered metadata, together with the information needed to serve it immediately, that may be written
+ * to and read back from a file.
+ *
+ * The snapshot file starts with a magic number and a format version, followed by the snapshot creation time, the
+ * metadata expiration time, the HTTP cache validators of the metadata, the entity IDs contained in the metadata and
+ * the deflated UTF-8 serialization of the metadata. The file ends with a CRC-32 checksum of everything preceding it.
+ * A file with a different magic number or version, or an incorrect checksum, is rejected.
+ *
+ * The checksum only detects corruption. Since metadata read from a snapshot is not filtered again, the snapshot file
+ * must be protected against modification in the same way as the configuration of the metadata provider.
+ */
+public class MetadataSnapshot {
+
+    /** Current version of the snapshot format. */
+    public static final int VERSION = 1;
+
+    /** Magic number identifying a snapshot file, "OSMD". */
+    private static final int MAGIC = 0x4F534D44;
+
+    /** Time, in milliseconds since the epoch, the snapshot was created. */
+    private final long creationTime;
+
+    /** Expiration time of the metadata, may be null. */
+    private final DateTime expirationTime;
+
+    /** HTTP ETag of the metadata, may be null. */
+    private final String eTag;
+
+    /** HTTP Last-Modified date of the metadata, may be null. */
+    private final String lastModified;
+
+    /** Entity IDs contained in the metadata. */
+    private final List<String> entityIDs;
+
+    /** UTF-8 serialization of the metadata. */
+    private final byte[] metadata;
+
+    /**
+     * Constructor.
+     *
+     * @param serializedMetadata UTF-8 serialization of the metadata
+     * @param containedEntityIDs entity IDs contained in the metadata
+     * @param metadataExpiration expiration time of the metadata, may be null
+     * @param metadataETag HTTP ETag of the metadata, may be null
+     * @param metadataLastModified HTTP Last-Modified date of the metadata, may be null
+     */
+    public MetadataSnapshot(byte[] serializedMetadata, List<String> containedEntityIDs, DateTime metadataExpiration,
+            String metadataETag, String metadataLastModified) {
+        this(System.currentTimeMillis(), serializedMetadata, containedEntityIDs, metadataExpiration, metadataETag,
+                metadataLastModified);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param created time, in milliseconds since the epoch, the snapshot was created
+     * @param serializedMetadata UTF-8 serialization of the metadata
+     * @param containedEntityIDs entity IDs contained in the metadata
+     * @param metadataExpiration expiration time of the metadata, may be null
+     * @param metadataETag HTTP ETag of the metadata, may be null
+     * @param metadataLastModified HTTP Last-Modified date of the metadata, may be null
+     */
+    private MetadataSnapshot(long created, byte[] serializedMetadata, List<String> containedEntityIDs,
+            DateTime metadataExpiration, String metadataETag, String metadataLastModified) {
+        creationTime = created;
+        metadata = serializedMetadata;
+        entityIDs = Collections.unmodifiableList(new ArrayList<String>(containedEntityIDs));
+        expirationTime = metadataExpiration;
+        eTag = metadataETag;
+        lastModified = metadataLastModified;
+    }
+
+    /**
+     * Gets the time the snapshot was created.
+     *
+     * @return time, in milliseconds since the epoch, the snapshot was created
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * Gets the expiration time of the metadata.
+     *
+     * @return expiration time of the metadata, may be null
+     */
+    public DateTime getExpirationTime() {
+        return expirationTime;
+    }
+
+    /**
+     * Gets the HTTP ETag of the metadata.
+     *
+     * @return HTTP ETag of the metadata, may be null
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * Gets the HTTP Last-Modified date of the metadata.
+     *
+     * @return HTTP Last-Modified date of the metadata, may be null
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Gets the entity IDs contained in the metadata.
+     *
+     * @return unmodifiable list of the entity IDs contained in the metadata
+     */
+    public List<String> getEntityIDs() {
+        return entityIDs;
+    }
+
+    /**
+     * Gets a stream from which the UTF-8 serialization of the metadata can be read.
+     *
+     * @return stream from which the serialized metadata can be read
+     */
+    public InputStream getMetadataStream() {
+        return new ByteArrayInputStream(metadata);
+    }
+
+    /**
+     * Writes this snapshot to a file. The snapshot is first written to a temporary file, in the same directory, which
+     * then replaces the given file, so that readers never see a partially written snapshot.
+     *
+     * @param file file to write the snapshot to
+     *
+     * @throws IOException thrown if the snapshot can not be written
+     */
+    public void write(File file) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(metadata.length / 4 + 1024);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(creationTime);
+        out.writeLong(expirationTime == null ? Long.MIN_VALUE : expirationTime.getMillis());
+        writeOptionalString(out, eTag);
+        writeOptionalString(out, lastModified);
+        out.writeInt(entityIDs.size());
+        for (String entityID : entityIDs) {
+            out.writeUTF(entityID);
+        }
+
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream(metadata.length / 4 + 1024);
+        DeflaterOutputStream deflater = new DeflaterOutputStream(deflated);
+        try {
+            deflater.write(metadata);
+        } finally {
+            // also releases the native memory of the deflater
+            deflater.close();
+        }
+        out.writeInt(metadata.length);
+        out.writeInt(deflated.size());
+        deflated.writeTo(out);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.toByteArray());
+        out.writeLong(checksum.getValue());
+        out.flush();
+
+        File tempFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        try {
+            buffer.writeTo(fileOut);
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+
+        if (!tempFile.renameTo(file)) {
+            // some platforms do not allow renaming over an existing file
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException("Unable to replace snapshot file " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * Reads a snapshot from a file.
+     *
+     * @param file file to read the snapshot from
+     *
+     * @return the snapshot
+     *
+     * @throws IOException thrown if the file can not be read, is not a snapshot of the current version or is corrupt
+     */
+    public static MetadataSnapshot read(File file) throws IOException {
+        long length = file.length();
+        if (length < 8 || length > Integer.MAX_VALUE) {
+            throw new IOException("File " + file.getAbsolutePath() + " is not a metadata snapshot");
+        }
+
+        byte[] contents = new byte[(int) length];
+        DataInputStream fileIn = new DataInputStream(new FileInputStream(file));
+        try {
+            fileIn.readFully(contents);
+        } finally {
+            fileIn.close();
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(contents, 0, contents.length - 8);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+        in.skip(contents.length - 8);
+        if (in.readLong() != checksum.getValue()) {
+            throw new IOException("Metadata snapshot " + file.getAbsolutePath() + " is corrupt");
+        }
+
+        in = new DataInputStream(new ByteArrayInputStream(contents, 0, contents.length - 8));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("File " + file.getAbsolutePath() + " is not a metadata snapshot");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Metadata snapshot " + file.getAbsolutePath() + " is of unsupported version "
+                    + version);
+        }
+
+        long created = in.readLong();
+        long expiration = in.readLong();
+        String snapshotETag = readOptionalString(in);
+        String snapshotLastModified = readOptionalString(in);
+        int entityCount = in.readInt();
+        List<String> snapshotEntityIDs = new ArrayList<String>(entityCount);
+        for (int i = 0; i < entityCount; i++) {
+            snapshotEntityIDs.add(in.readUTF());
+        }
+
+        byte[] snapshotMetadata = new byte[in.readInt()];
+        byte[] deflated = new byte[in.readInt()];
+        in.readFully(deflated);
+        DataInputStream inflater = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(deflated)));
+        try {
+            inflater.readFully(snapshotMetadata);
+        } finally {
+            // also releases the native memory of the inflater
+            inflater.close();
+        }
+
+        return new MetadataSnapshot(created, snapshotMetadata, snapshotEntityIDs,
+                expiration == Long.MIN_VALUE ? null : new DateTime(expiration), snapshotETag, snapshotLastModified);
+    }
+
+    /**
+     * Writes a string that may be null.
+     *
+     * @param out stream to write to
+     * @param value string to write, may be null
+     *
+     * @throws IOException thrown if the string can not be written
+     */
+    private static void writeOptionalString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a string written by {@link #writeOptionalString(DataOutputStream, String)}.
+     *
+     * @param in stream to read from
+     *
+     * @return the string, may be null
+     *
+     * @throws IOException thrown if the string can not be read
+     */
+    private static String readOptionalString(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+}
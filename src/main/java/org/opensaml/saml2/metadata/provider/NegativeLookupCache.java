@@ -0,0 +1,182 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of identifiers, such as entity IDs, for which a lookup recently found nothing. Identifiers are
+ * remembered for a fixed time after which they are looked up again. Bounding the cache, by evicting the identifiers
+ * added first, ensures that lookups of many distinct, for example randomly generated, identifiers can not exhaust
+ * memory. Checking the cache does not lock, so that it may be consulted before every lookup.
+ * 
+ * The owner of the cache must {@link #clear()} it whenever the data being looked up changes. A lookup which started
+ * before the data changed may only find nothing because it read the old data; to keep such a lookup from hiding the
+ * new data, the generation is read, with {@link #getGeneration()}, before the lookup and passed to
+ * {@link #add(String, long)}, which ignores identifiers of a generation that has since been cleared.
+ */
+public class NegativeLookupCache {
+
+    /** Maximum number of identifiers in the cache. */
+    private final int maxEntries;
+
+    /** Time, in milliseconds, an identifier is remembered. */
+    private final long duration;
+
+    /** Expiration time, in milliseconds since the epoch, of each remembered identifier. */
+    private final ConcurrentHashMap<String, Long> entries;
+
+    /** Remembered identifiers, in the order they were added. */
+    private final ConcurrentLinkedQueue<String> insertionOrder;
+
+    /** Number of times the cache was cleared. */
+    private final AtomicLong generation;
+
+    /** Number of lookups of a remembered identifier. */
+    private final AtomicLong hits;
+
+    /**
+     * Constructor.
+     * 
+     * @param maxSize maximum number of identifiers remembered
+     * @param entryDuration time, in milliseconds, an identifier is remembered
+     */
+    public NegativeLookupCache(int maxSize, long entryDuration) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Maximum cache size must be greater than 0");
+        }
+        if (entryDuration <= 0) {
+            throw new IllegalArgumentException("Cache entry duration must be greater than 0");
+        }
+        maxEntries = maxSize;
+        duration = entryDuration;
+        entries = new ConcurrentHashMap<String, Long>();
+        insertionOrder = new ConcurrentLinkedQueue<String>();
+        generation = new AtomicLong();
+        hits = new AtomicLong();
+    }
+
+    /**
+     * Checks whether a lookup of the given identifier recently found nothing.
+     * 
+     * @param id the identifier
+     * 
+     * @return true if the identifier is remembered as not found, false otherwise
+     */
+    public boolean contains(String id) {
+        Long expiration = entries.get(id);
+        if (expiration == null || expiration.longValue() <= System.currentTimeMillis()) {
+            return false;
+        }
+
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gets the current generation of the cache, which changes whenever the cache is cleared.
+     * 
+     * @return the current generation of the cache
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Remembers that a lookup of the given identifier, started in the current generation, found nothing.
+     * 
+     * @param id the identifier
+     */
+    public void add(String id) {
+        add(id, getGeneration());
+    }
+
+    /**
+     * Remembers that a lookup of the given identifier found nothing, unless the cache was cleared since the lookup
+     * started.
+     * 
+     * @param id the identifier
+     * @param lookupGeneration the generation of the cache when the lookup started
+     */
+    public void add(String id, long lookupGeneration) {
+        if (id == null || lookupGeneration != generation.get()) {
+            return;
+        }
+
+        Long expiration = new Long(System.currentTimeMillis() + duration);
+        if (entries.put(id, expiration) == null) {
+            insertionOrder.add(id);
+        }
+
+        // a clear racing the put above may have missed it
+        if (lookupGeneration != generation.get()) {
+            if (entries.remove(id, expiration)) {
+                insertionOrder.remove(id);
+            }
+            return;
+        }
+
+        while (entries.size() > maxEntries) {
+            String eldest = insertionOrder.poll();
+            if (eldest == null) {
+                break;
+            }
+            entries.remove(eldest);
+        }
+    }
+
+    /**
+     * Forgets a remembered identifier. Unlike the other operations, this takes time proportional to the number of
+     * identifiers remembered.
+     * 
+     * @param id the identifier
+     */
+    public void remove(String id) {
+        if (id != null && entries.remove(id) != null) {
+            // keeps the insertion order bounded by the number of remembered identifiers
+            insertionOrder.remove(id);
+        }
+    }
+
+    /** Forgets all remembered identifiers. */
+    public void clear() {
+        generation.incrementAndGet();
+        entries.clear();
+        insertionOrder.clear();
+    }
+
+    /**
+     * Gets the number of identifiers currently remembered, including expired ones not yet removed.
+     * 
+     * @return number of identifiers currently remembered
+     */
+    public int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the number of lookups of a remembered identifier.
+     * 
+     * @return number of lookups of a remembered identifier
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+}
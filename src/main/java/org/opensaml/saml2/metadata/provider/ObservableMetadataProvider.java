@@ -48,4 +48,21 @@ public interface ObservableMetadataProvider extends MetadataProvider {
          */
         public void onEvent(MetadataProvider provider);
     }
+
+    /**
+     * An observer of metadata provider changes that is told which entities changed. Providers call
+     * {@link #onEvent(MetadataProvider, MetadataChangeEvent)}, rather than {@link #onEvent(MetadataProvider)}, on
+     * observers implementing this interface.
+     */
+    public interface ChangeObserver extends Observer {
+
+        /**
+         * Called when a provider signals an event has occured.
+         * 
+         * @param provider the provider being observed
+         * @param event the entities that changed, or null if the provider did not determine which entities changed,
+         *            in which case any entity may have changed
+         */
+        public void onEvent(MetadataProvider provider, MetadataChangeEvent event);
+    }
 }
\ No newline at end of file
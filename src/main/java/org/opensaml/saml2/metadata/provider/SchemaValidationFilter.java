@@ -16,27 +16,71 @@
 
 package org.opensaml.saml2.metadata.provider;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.validation.Schema;
 import javax.xml.validation.Validator;
 
 import org.opensaml.common.xml.SAMLSchemaBuilder;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.util.DatatypeHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
 
 /**
  * A metadata filter that schema validates an incoming metadata file.
+ *
+ * The compiled schema is shared, via {@link SAMLSchemaBuilder}, and the validators created from it are pooled and
+ * reused across refreshes. The pool is discarded whenever the schema is rebuilt because the registered extension
+ * schemas changed.
+ *
+ * By default the metadata is validated as a whole and any schema error causes the entire metadata to be rejected. If
+ * {@link #setValidateEntitiesIndividually(boolean)} is enabled each EntityDescriptor within an EntitiesDescriptor is
+ * validated on its own and only those EntityDescriptors which are not schema valid are removed from the metadata. In
+ * this mode content of an EntitiesDescriptor other than its EntityDescriptors, such as its Extensions, is not schema
+ * validated. If a validation executor is also set the EntityDescriptors are validated in parallel on that executor,
+ * each on a copy of its DOM made by the filtering thread, since DOM implementations are not safe for concurrent reads.
+ * Validating EntityDescriptors individually also makes this filter entity scoped for EntitiesDescriptors.
  */
-public class SchemaValidationFilter implements MetadataFilter {
+public class SchemaValidationFilter implements EntityScopedMetadataFilter {
 
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(SchemaValidationFilter.class);
 
+    /** Whether each EntityDescriptor is validated, and if invalid removed, individually. */
+    private boolean validateEntitiesIndividually;
+
+    /** Executor used to validate EntityDescriptors in parallel, may be null. */
+    private ExecutorService validationExecutor;
+
+    /** Maximum number of idle validators kept in the pool. */
+    private int maxPooledValidators;
+
+    /** Idle validators, all created from {@link #validatorPoolSchema}. */
+    private final LinkedList<Validator> validatorPool;
+
+    /** Schema from which the pooled validators were created. */
+    private Schema validatorPoolSchema;
+
     /**
      * Constructor.
-     * 
+     *
      * @param extensionSchemas classpath location of metadata extension schemas, may be null
      */
     public SchemaValidationFilter(String[] extensionSchemas) {
@@ -48,23 +92,351 @@ public class SchemaValidationFilter implements MetadataFilter {
                 }
             }
         }
+
+        maxPooledValidators = Runtime.getRuntime().availableProcessors();
+        validatorPool = new LinkedList<Validator>();
+    }
+
+    /**
+     * Gets whether each EntityDescriptor is validated, and if invalid removed, individually.
+     *
+     * @return whether each EntityDescriptor is validated individually
+     */
+    public boolean isValidateEntitiesIndividually() {
+        return validateEntitiesIndividually;
+    }
+
+    /**
+     * Sets whether each EntityDescriptor is validated, and if invalid removed, individually.
+     *
+     * @param individually whether each EntityDescriptor is validated individually
+     */
+    public void setValidateEntitiesIndividually(boolean individually) {
+        validateEntitiesIndividually = individually;
+    }
+
+    /**
+     * Gets the executor used to validate EntityDescriptors in parallel.
+     *
+     * @return the executor used to validate EntityDescriptors in parallel, or null if they are validated serially
+     */
+    public ExecutorService getValidationExecutor() {
+        return validationExecutor;
+    }
+
+    /**
+     * Sets the executor used to validate EntityDescriptors in parallel. The executor is only used if EntityDescriptors
+     * are validated individually. It is not shut down by this filter.
+     *
+     * @param executor the executor used to validate EntityDescriptors in parallel, or null to validate serially
+     */
+    public void setValidationExecutor(ExecutorService executor) {
+        validationExecutor = executor;
+    }
+
+    /**
+     * Gets the maximum number of idle validators kept for reuse.
+     *
+     * @return maximum number of idle validators kept for reuse
+     */
+    public int getMaxPooledValidators() {
+        return maxPooledValidators;
+    }
+
+    /**
+     * Sets the maximum number of idle validators kept for reuse. Defaults to the number of available processors.
+     *
+     * @param max maximum number of idle validators kept for reuse, 0 disables pooling
+     */
+    public void setMaxPooledValidators(int max) {
+        if (max < 0) {
+            throw new IllegalArgumentException("Maximum number of pooled validators may not be negative");
+        }
+        maxPooledValidators = max;
     }
 
     /** {@inheritDoc} */
     public void doFilter(XMLObject metadata) throws FilterException {
-        Validator schemaValidator = null;
+        Schema schema = getSchema();
+
+        if (isValidateEntitiesIndividually() && metadata instanceof EntitiesDescriptor) {
+            filterInvalidEntities(schema, (EntitiesDescriptor) metadata);
+            return;
+        }
+
+        try {
+            validate(schema, metadata.getDOM());
+        } catch (Exception e) {
+            log.error("Incoming metadata was not schema valid.", e);
+            throw new FilterException("Incoming metadata was not schema valid.", e);
+        }
+    }
+
+    /**
+     * Schema validates each EntityDescriptor descendant of the given EntitiesDescriptor and removes those that are not
+     * valid.
+     *
+     * @param schema schema used to validate the EntityDescriptors
+     * @param entitiesDescriptor the EntitiesDescriptor to filter
+     *
+     * @throws FilterException thrown if the validation is interrupted or fails unexpectedly
+     */
+    protected void filterInvalidEntities(Schema schema, EntitiesDescriptor entitiesDescriptor)
+            throws FilterException {
+        List<EntityDescriptor> entities = new ArrayList<EntityDescriptor>();
+        collectEntityDescriptors(entitiesDescriptor, entities);
+
+        Map<EntityDescriptor, Boolean> invalidEntities = new IdentityHashMap<EntityDescriptor, Boolean>();
+        if (getValidationExecutor() != null) {
+            validateInParallel(schema, entities, invalidEntities);
+        } else {
+            for (EntityDescriptor entity : entities) {
+                if (!isValid(schema, entity)) {
+                    invalidEntities.put(entity, Boolean.TRUE);
+                }
+            }
+        }
+
+        if (!invalidEntities.isEmpty()) {
+            removeEntityDescriptors(entitiesDescriptor, invalidEntities);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean isEntityScoped(XMLObject metadata) {
+        return isValidateEntitiesIndividually() && metadata instanceof EntitiesDescriptor;
+    }
+
+    /** {@inheritDoc} */
+    public boolean filterEntity(EntityDescriptor entityDescriptor) throws FilterException {
+        return isValid(getSchema(), entityDescriptor);
+    }
+
+    /**
+     * Gets the schema used to validate metadata.
+     *
+     * @return the schema used to validate metadata
+     *
+     * @throws FilterException thrown if the schema can not be built
+     */
+    private Schema getSchema() throws FilterException {
         try {
-            schemaValidator = SAMLSchemaBuilder.getSAML11Schema().newValidator();
+            return SAMLSchemaBuilder.getSAML11Schema();
         } catch (SAXException e) {
             log.error("Unable to build metadata validation schema", e);
             throw new FilterException("Unable to build metadata validation schema", e);
         }
+    }
+
+    /**
+     * Schema validates the given EntityDescriptors in parallel, using the validation executor.
+     *
+     * @param schema schema used to validate the EntityDescriptors
+     * @param entities the EntityDescriptors to validate
+     * @param invalidEntities map to which the EntityDescriptors that are not schema valid are added
+     *
+     * @throws FilterException thrown if the validation is interrupted or fails unexpectedly
+     */
+    private void validateInParallel(Schema schema, List<EntityDescriptor> entities,
+            Map<EntityDescriptor, Boolean> invalidEntities) throws FilterException {
+        List<Future<Boolean>> validations = new ArrayList<Future<Boolean>>(entities.size());
+        try {
+            for (EntityDescriptor entity : entities) {
+                validations.add(getValidationExecutor().submit(
+                        new EntityValidation(schema, entity.getEntityID(), EntityDescriptorCopier.copyDOM(entity))));
+            }
+        } catch (RejectedExecutionException e) {
+            cancelValidations(validations);
+            log.error("EntityDescriptor schema validation was rejected by the validation executor", e);
+            throw new FilterException("EntityDescriptor schema validation was rejected by the executor", e);
+        }
 
         try {
-            schemaValidator.validate(new DOMSource(metadata.getDOM()));
+            for (int i = 0; i < entities.size(); i++) {
+                if (!validations.get(i).get()) {
+                    invalidEntities.put(entities.get(i), Boolean.TRUE);
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelValidations(validations);
+            Thread.currentThread().interrupt();
+            throw new FilterException("Interrupted while schema validating EntityDescriptors", e);
+        } catch (ExecutionException e) {
+            cancelValidations(validations);
+            log.error("Error schema validating EntityDescriptors", e.getCause());
+            throw new FilterException("Error schema validating EntityDescriptors", e);
+        }
+    }
+
+    /**
+     * Cancels any outstanding validations.
+     *
+     * @param validations the validations
+     */
+    private void cancelValidations(List<Future<Boolean>> validations) {
+        for (Future<Boolean> validation : validations) {
+            validation.cancel(true);
+        }
+    }
+
+    /**
+     * Checks whether an EntityDescriptor is schema valid.
+     *
+     * @param schema schema used to validate the EntityDescriptor
+     * @param entity the EntityDescriptor to validate
+     *
+     * @return true if the EntityDescriptor is schema valid, false otherwise
+     */
+    protected boolean isValid(Schema schema, EntityDescriptor entity) {
+        return isValid(schema, entity.getEntityID(), entity.getDOM());
+    }
+
+    /**
+     * Checks whether the DOM of an EntityDescriptor is schema valid.
+     *
+     * @param schema schema used to validate the EntityDescriptor
+     * @param entityID ID of the entity, used for logging
+     * @param entityElement the DOM of the EntityDescriptor, or of a copy of it, may be null
+     *
+     * @return true if the EntityDescriptor is schema valid, false otherwise
+     */
+    private boolean isValid(Schema schema, String entityID, Element entityElement) {
+        try {
+            validate(schema, entityElement);
+            return true;
         } catch (Exception e) {
-            log.error("Incoming metadata was not schema valid.", e);
-            throw new FilterException("Incoming metadata was not schema valid.", e);
+            log.error("EntityDescriptor '{}' was not schema valid, removing it from the metadata: {}", entityID, e
+                    .getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Schema validates a DOM element using a pooled validator.
+     *
+     * @param schema schema used to validate the element
+     * @param element the element to validate
+     *
+     * @throws SAXException thrown if the element is not schema valid
+     * @throws IOException thrown if the element could not be read
+     */
+    protected void validate(Schema schema, Element element) throws SAXException, IOException {
+        if (element == null) {
+            throw new SAXException("Metadata has no DOM to validate");
+        }
+
+        Validator validator = borrowValidator(schema);
+        try {
+            validator.validate(new DOMSource(element));
+        } finally {
+            returnValidator(schema, validator);
+        }
+    }
+
+    /**
+     * Gets an idle validator for the given schema from the pool, or creates a new one if none is available.
+     *
+     * @param schema schema the validator validates against
+     *
+     * @return the validator
+     */
+    private Validator borrowValidator(Schema schema) {
+        synchronized (validatorPool) {
+            if (validatorPoolSchema != schema) {
+                validatorPool.clear();
+                validatorPoolSchema = schema;
+            }
+            if (!validatorPool.isEmpty()) {
+                return validatorPool.removeFirst();
+            }
+        }
+        return schema.newValidator();
+    }
+
+    /**
+     * Resets a validator and returns it to the pool, unless the pool is full or its schema has since been replaced.
+     *
+     * @param schema schema the validator validates against
+     * @param validator the validator
+     */
+    private void returnValidator(Schema schema, Validator validator) {
+        try {
+            validator.reset();
+        } catch (RuntimeException e) {
+            log.debug("Unable to reset schema validator, discarding it", e);
+            return;
+        }
+
+        synchronized (validatorPool) {
+            if (validatorPoolSchema == schema && validatorPool.size() < maxPooledValidators) {
+                validatorPool.addFirst(validator);
+            }
+        }
+    }
+
+    /**
+     * Adds every EntityDescriptor descendant of the given EntitiesDescriptor to the given list, in document order.
+     *
+     * @param entitiesDescriptor the EntitiesDescriptor
+     * @param entities the list of EntityDescriptors
+     */
+    private void collectEntityDescriptors(EntitiesDescriptor entitiesDescriptor, List<EntityDescriptor> entities) {
+        entities.addAll(entitiesDescriptor.getEntityDescriptors());
+        for (EntitiesDescriptor entitiesChild : entitiesDescriptor.getEntitiesDescriptors()) {
+            collectEntityDescriptors(entitiesChild, entities);
+        }
+    }
+
+    /**
+     * Removes the given EntityDescriptors from the given EntitiesDescriptor and its descendants.
+     *
+     * @param entitiesDescriptor the EntitiesDescriptor
+     * @param invalidEntities the EntityDescriptors to remove
+     */
+    private void removeEntityDescriptors(EntitiesDescriptor entitiesDescriptor,
+            Map<EntityDescriptor, Boolean> invalidEntities) {
+        Iterator<EntityDescriptor> entityIter = entitiesDescriptor.getEntityDescriptors().iterator();
+        while (entityIter.hasNext()) {
+            if (invalidEntities.containsKey(entityIter.next())) {
+                entityIter.remove();
+            }
+        }
+
+        for (EntitiesDescriptor entitiesChild : entitiesDescriptor.getEntitiesDescriptors()) {
+            removeEntityDescriptors(entitiesChild, invalidEntities);
+        }
+    }
+
+    /**
+     * A task which schema validates a copy of a single EntityDescriptor's DOM.
+     */
+    private class EntityValidation implements Callable<Boolean> {
+
+        /** Schema used to validate the EntityDescriptor. */
+        private Schema schema;
+
+        /** ID of the entity, used for logging. */
+        private String entityID;
+
+        /** Copy of the DOM of the EntityDescriptor to validate, null if it had no DOM. */
+        private Element entityCopy;
+
+        /**
+         * Constructor.
+         *
+         * @param validationSchema schema used to validate the EntityDescriptor
+         * @param id ID of the entity
+         * @param copy copy of the DOM of the EntityDescriptor, made by {@link EntityDescriptorCopier#copyDOM}
+         */
+        public EntityValidation(Schema validationSchema, String id, Element copy) {
+            schema = validationSchema;
+            entityID = id;
+            entityCopy = copy;
+        }
+
+        /** {@inheritDoc} */
+        public Boolean call() {
+            return isValid(schema, entityID, entityCopy);
         }
     }
-}
\ No newline at end of file
+}
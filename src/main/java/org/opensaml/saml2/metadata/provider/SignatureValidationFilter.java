@@ -16,7 +16,14 @@
 
 package org.opensaml.saml2.metadata.provider;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.opensaml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml2.metadata.EntityDescriptor;
@@ -33,11 +40,26 @@ import org.opensaml.xml.validation.ValidationException;
 import org.opensaml.xml.validation.Validator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
 
 /**
  * A metadata filter that validates XML signatures.
+ * 
+ * If a verification executor is set, via {@link #setVerificationExecutor(ExecutorService)}, the signatures of the
+ * signed EntityDescriptor children of an EntitiesDescriptor are verified in parallel on that executor. The signature
+ * of the EntitiesDescriptor itself is still verified before any of its children and children whose signature fails
+ * verification are removed exactly as they are when verifying serially. The signature trust engine, and any
+ * credential resolvers it uses, must be safe for concurrent use when a verification executor is used.
+ * 
+ * If a {@link VerifiedSignatureCache} is set, signatures that were verified and trusted during an earlier refresh
+ * are recognized and only their reference digests are recomputed; the signature value verification and trust engine
+ * evaluation are skipped.
+ * 
+ * The filter is entity scoped for an EntitiesDescriptor if signatures are not required and neither the
+ * EntitiesDescriptor nor any of its EntitiesDescriptor descendants is signed, so that only the signatures of
+ * EntityDescriptors are verified.
  */
-public class SignatureValidationFilter implements MetadataFilter {
+public class SignatureValidationFilter implements EntityScopedMetadataFilter {
     
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(SignatureValidationFilter.class);
@@ -54,6 +76,12 @@ public class SignatureValidationFilter implements MetadataFilter {
     /** Pre-validator for XML Signature instances. */
     private Validator<Signature> sigValidator;
 
+    /** Executor used to verify the signatures of sibling entity descriptors in parallel, may be null. */
+    private ExecutorService verificationExecutor;
+
+    /** Cache of previously verified and trusted signatures, may be null. */
+    private VerifiedSignatureCache signatureCache;
+
     /**
      * Constructor.
      * 
@@ -138,6 +166,48 @@ public class SignatureValidationFilter implements MetadataFilter {
         defaultCriteria = newCriteria;
     }
 
+    /**
+     * Gets the executor used to verify the signatures of sibling entity descriptors in parallel.
+     * 
+     * @return the executor used to verify signatures in parallel, or null if signatures are verified serially
+     */
+    public ExecutorService getVerificationExecutor() {
+        return verificationExecutor;
+    }
+
+    /**
+     * Sets the executor used to verify the signatures of sibling entity descriptors in parallel. The executor is not
+     * shut down by this filter.
+     * 
+     * @param executor the executor used to verify signatures in parallel, or null to verify signatures serially
+     */
+    public void setVerificationExecutor(ExecutorService executor) {
+        verificationExecutor = executor;
+    }
+
+    /**
+     * Gets the cache of previously verified and trusted signatures.
+     * 
+     * @return the cache of previously verified signatures, or null if signatures are always fully verified
+     */
+    public VerifiedSignatureCache getVerifiedSignatureCache() {
+        return signatureCache;
+    }
+
+    /**
+     * Sets the cache of previously verified and trusted signatures. The cache is bound to the trust engine of this
+     * filter, and so cleared if it was used with another trust engine; filters with different trust engines should
+     * not share a cache. It must also be cleared if the trust engine's trusted credentials change.
+     * 
+     * @param cache the cache of previously verified signatures, or null to always fully verify signatures
+     */
+    public void setVerifiedSignatureCache(VerifiedSignatureCache cache) {
+        if (cache != null) {
+            cache.bindTrustEngine(getSignatureTrustEngine());
+        }
+        signatureCache = cache;
+    }
+
     /** {@inheritDoc} */
     public void doFilter(XMLObject metadata) throws FilterException {
         SignableXMLObject signableMetadata = (SignableXMLObject) metadata;
@@ -165,6 +235,51 @@ public class SignatureValidationFilter implements MetadataFilter {
         }
     }
     
+    /** {@inheritDoc} */
+    public boolean isEntityScoped(XMLObject metadata) {
+        if (getRequireSignature() || !(metadata instanceof EntitiesDescriptor)) {
+            return false;
+        }
+        return !containsSignedEntityGroup((EntitiesDescriptor) metadata);
+    }
+
+    /** {@inheritDoc} */
+    public boolean filterEntity(EntityDescriptor entityDescriptor) throws FilterException {
+        if (!entityDescriptor.isSigned()) {
+            log.trace("EntityDescriptor member '{}' was not signed, skipping signature processing...",
+                    entityDescriptor.getEntityID());
+            return true;
+        }
+
+        try {
+            verifySignature(entityDescriptor, entityDescriptor.getEntityID(), false);
+            return true;
+        } catch (FilterException e) {
+            log.error("EntityDescriptor '{}' failed signature verification, removing from metadata provider",
+                    entityDescriptor.getEntityID());
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether the given EntitiesDescriptor, or any of its EntitiesDescriptor descendants, is signed.
+     * 
+     * @param entitiesDescriptor the EntitiesDescriptor
+     * 
+     * @return true if a signed EntitiesDescriptor was found
+     */
+    private boolean containsSignedEntityGroup(EntitiesDescriptor entitiesDescriptor) {
+        if (entitiesDescriptor.isSigned()) {
+            return true;
+        }
+        for (EntitiesDescriptor entitiesChild : entitiesDescriptor.getEntitiesDescriptors()) {
+            if (containsSignedEntityGroup(entitiesChild)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Process the signatures on the specified EntitiesDescriptor and any signed children.
      * 
@@ -181,6 +296,36 @@ public class SignatureValidationFilter implements MetadataFilter {
             verifySignature(entitiesDescriptor, entitiesDescriptor.getName(), true);
         }
         
+        if (getVerificationExecutor() != null) {
+            processEntityGroupMembersInParallel(entitiesDescriptor);
+        } else {
+            processEntityGroupMembers(entitiesDescriptor);
+        }
+        
+        Iterator<EntitiesDescriptor> entitiesIter = entitiesDescriptor.getEntitiesDescriptors().iterator();
+        while(entitiesIter.hasNext()) {
+            EntitiesDescriptor entitiesChild = entitiesIter.next();
+            log.trace("Processing EntitiesDescriptor member: {}", entitiesChild.getName());
+            try {
+                processEntityGroup(entitiesChild);
+            } catch (FilterException e) {
+               log.error("EntitiesDescriptor '{}' failed signature verification, removing from metadata provider", 
+                       entitiesChild.getName()); 
+               entitiesIter.remove();
+            }
+        }
+        
+    }
+    
+    /**
+     * Process the signatures on the EntityDescriptor children of the specified EntitiesDescriptor, one after the
+     * other.
+     * 
+     * If signature verification fails on a child, it will be removed from the entities descriptor group.
+     * 
+     * @param entitiesDescriptor the EntitiesDescriptor whose children are to be processed
+     */
+    protected void processEntityGroupMembers(EntitiesDescriptor entitiesDescriptor) {
         Iterator<EntityDescriptor> entityIter = entitiesDescriptor.getEntityDescriptors().iterator();
         while (entityIter.hasNext()) {
             EntityDescriptor entityChild = entityIter.next();
@@ -200,20 +345,85 @@ public class SignatureValidationFilter implements MetadataFilter {
                entityIter.remove();
             }
         }
-        
-        Iterator<EntitiesDescriptor> entitiesIter = entitiesDescriptor.getEntitiesDescriptors().iterator();
-        while(entitiesIter.hasNext()) {
-            EntitiesDescriptor entitiesChild = entitiesIter.next();
-            log.trace("Processing EntitiesDescriptor member: {}", entitiesChild.getName());
-            try {
-                processEntityGroup(entitiesChild);
-            } catch (FilterException e) {
-               log.error("EntitiesDescriptor '{}' failed signature verification, removing from metadata provider", 
-                       entitiesChild.getName()); 
-               entityIter.remove();
+    }
+    
+    /**
+     * Process the signatures on the EntityDescriptor children of the specified EntitiesDescriptor in parallel, using
+     * the verification executor.
+     * 
+     * If signature verification fails on a child, it will be removed from the entities descriptor group.
+     * 
+     * The DOM of the metadata document is not safe for concurrent use, so each child is verified on a copy of its own,
+     * made on the calling thread by {@link EntityDescriptorCopier}.
+     * 
+     * @param entitiesDescriptor the EntitiesDescriptor whose children are to be processed
+     * @throws FilterException thrown if the verification is interrupted, rejected by the executor or fails
+     *                          unexpectedly
+     */
+    protected void processEntityGroupMembersInParallel(EntitiesDescriptor entitiesDescriptor) 
+            throws FilterException {
+        List<EntityDescriptor> signedChildren = new ArrayList<EntityDescriptor>();
+        List<Future<Boolean>> verifications = new ArrayList<Future<Boolean>>();
+        try {
+            for (EntityDescriptor entityChild : entitiesDescriptor.getEntityDescriptors()) {
+                if (!entityChild.isSigned()) {
+                    log.trace("EntityDescriptor member '{}' was not signed, skipping signature processing...",
+                            entityChild.getEntityID());
+                    continue;
+                }
+                log.trace("Submitting signed EntityDescriptor member for verification: {}",
+                        entityChild.getEntityID());
+                signedChildren.add(entityChild);
+                verifications.add(getVerificationExecutor().submit(
+                        new EntitySignatureVerification(entityChild.getEntityID(),
+                                EntityDescriptorCopier.copyDOM(entityChild))));
             }
+        } catch (RejectedExecutionException e) {
+            cancelVerifications(verifications);
+            log.error("EntityDescriptor signature verification was rejected by the verification executor", e);
+            throw new FilterException("EntityDescriptor signature verification was rejected by the executor", e);
         }
         
+        if (signedChildren.isEmpty()) {
+            return;
+        }
+        
+        try {
+            int nextSignedChild = 0;
+            Iterator<EntityDescriptor> entityIter = entitiesDescriptor.getEntityDescriptors().iterator();
+            while (entityIter.hasNext() && nextSignedChild < signedChildren.size()) {
+                EntityDescriptor entityChild = entityIter.next();
+                if (entityChild != signedChildren.get(nextSignedChild)) {
+                    continue;
+                }
+                
+                if (!verifications.get(nextSignedChild).get()) {
+                    log.error("EntityDescriptor '{}' failed signature verification, removing from metadata provider",
+                            entityChild.getEntityID());
+                    entityIter.remove();
+                }
+                nextSignedChild++;
+            }
+        } catch (InterruptedException e) {
+            cancelVerifications(verifications);
+            Thread.currentThread().interrupt();
+            throw new FilterException("Interrupted while verifying EntityDescriptor signatures", e);
+        } catch (ExecutionException e) {
+            cancelVerifications(verifications);
+            log.error("Error verifying EntityDescriptor signatures", e.getCause());
+            throw new FilterException("Error verifying EntityDescriptor signatures", e);
+        }
+    }
+    
+    /**
+     * Cancels any outstanding signature verifications.
+     * 
+     * @param verifications the signature verifications
+     */
+    private void cancelVerifications(List<Future<Boolean>> verifications) {
+        for (Future<Boolean> verification : verifications) {
+            verification.cancel(true);
+        }
     }
 
     /**
@@ -241,11 +451,31 @@ public class SignatureValidationFilter implements MetadataFilter {
         
         performPreValidation(signature, metadataEntryName);
         
+        VerifiedSignatureCache cache = getVerifiedSignatureCache();
+        String cacheKey = null;
+        if (cache != null) {
+            cache.bindTrustEngine(getSignatureTrustEngine());
+            cacheKey = cache.computeKey(signature, metadataEntryName);
+            if (cacheKey != null && cache.contains(cacheKey)) {
+                if (cache.verifyReferences(cacheKey, signature)) {
+                    log.trace("Signature for metadata entry {} was previously trusted and its references verified",
+                            metadataEntryName);
+                    return;
+                }
+                log.error("Signature references for previously trusted metadata entry {} failed verification",
+                        metadataEntryName);
+                throw new FilterException("Signature reference verification failed for metadata entry");
+            }
+        }
+        
         CriteriaSet criteriaSet = buildCriteriaSet(signedMetadata, metadataEntryName, isEntityGroup);
         
         try {
             if ( getSignatureTrustEngine().validate(signature, criteriaSet) ) {
                 log.trace("Signature trust establishment succeeded for metadata entry {}", metadataEntryName);
+                if (cache != null) {
+                    cache.add(cacheKey);
+                }
                 return;
             } else {
                 log.error("Signature trust establishment failed for metadata entry {}", metadataEntryName);
@@ -304,4 +534,42 @@ public class SignatureValidationFilter implements MetadataFilter {
         
         return newCriteriaSet;
     }
+    
+    /**
+     * Verification of the signature of a single EntityDescriptor, on a copy of its DOM. The result is true if the
+     * signature was verified, false if it failed verification.
+     */
+    private class EntitySignatureVerification implements Callable<Boolean> {
+        
+        /** The ID of the entity whose signature is to be verified. */
+        private String entityID;
+        
+        /** Copy of the DOM of the entity whose signature is to be verified. */
+        private Element entityCopy;
+        
+        /**
+         * Constructor.
+         * 
+         * @param id the ID of the entity whose signature is to be verified
+         * @param copy copy of the DOM of the entity, as made by {@link EntityDescriptorCopier#copyDOM}
+         */
+        public EntitySignatureVerification(String id, Element copy) {
+            entityID = id;
+            entityCopy = copy;
+        }
+        
+        /** {@inheritDoc} */
+        public Boolean call() {
+            try {
+                if (entityCopy == null) {
+                    log.error("EntityDescriptor '{}' has no DOM to verify its signature against", entityID);
+                    return Boolean.FALSE;
+                }
+                verifySignature(EntityDescriptorCopier.unmarshallCopy(entityCopy), entityID, false);
+                return Boolean.TRUE;
+            } catch (FilterException e) {
+                return Boolean.FALSE;
+            }
+        }
+    }
 }
\ No newline at end of file
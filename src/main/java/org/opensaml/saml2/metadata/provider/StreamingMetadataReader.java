@@ -0,0 +1,407 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.parse.ParserPool;
+import org.opensaml.xml.parse.XMLParserException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+import org.xml.sax.helpers.NamespaceSupport;
+
+/**
+ * Reads a metadata document as a stream of SAX events without ever building a DOM for the whole document.
+ *
+ * Each EntityDescriptor element is cut out of the stream into its own, small, DOM document and handed to an
+ * {@link EntityProcessor} as soon as its end tag is read. Every namespace declaration in scope at the EntityDescriptor
+ * is copied on to the cut out element so that it may be unmarshalled, and its signature canonicalized, exactly as if
+ * it were still part of the complete document. Everything else in the document, the EntitiesDescriptor groups and
+ * their Extensions and Signature elements, is kept in a skeleton DOM returned once the whole stream has been read.
+ *
+ * Peak memory use is therefore bound by the size of the largest single entity plus the skeleton rather than by the
+ * size of the complete document. Comments and processing instructions are not retained.
+ *
+ * Like a hardened {@link ParserPool}, the reader rejects documents containing a DOCTYPE declaration and never resolves
+ * external entities.
+ */
+public class StreamingMetadataReader {
+
+    /** SAX parser features, and their values, hardening the parser against DTD and external entity processing. */
+    private static final Object[][] SECURITY_FEATURES = {
+        {"http://apache.org/xml/features/disallow-doctype-decl", Boolean.TRUE},
+        {"http://xml.org/sax/features/external-general-entities", Boolean.FALSE},
+        {"http://xml.org/sax/features/external-parameter-entities", Boolean.FALSE},
+        {"http://apache.org/xml/features/nonvalidating/load-external-dtd", Boolean.FALSE},
+    };
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(StreamingMetadataReader.class);
+
+    /** Pool of parsers used to create the DOM documents. */
+    private ParserPool parserPool;
+
+    /** Factory used to create the SAX parser reading the metadata stream. */
+    private SAXParserFactory saxParserFactory;
+
+    /**
+     * Constructor.
+     *
+     * @param pool pool of parsers used to create the DOM documents holding the cut out elements
+     */
+    public StreamingMetadataReader(ParserPool pool) {
+        if (pool == null) {
+            throw new IllegalArgumentException("Parser pool may not be null");
+        }
+        parserPool = pool;
+
+        saxParserFactory = SAXParserFactory.newInstance();
+        saxParserFactory.setNamespaceAware(true);
+        saxParserFactory.setValidating(false);
+        try {
+            saxParserFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        } catch (Exception e) {
+            log.warn("SAX parser factory does not support secure processing", e);
+        }
+        for (Object[] feature : SECURITY_FEATURES) {
+            try {
+                saxParserFactory.setFeature((String) feature[0], (Boolean) feature[1]);
+            } catch (Exception e) {
+                log.warn("SAX parser factory does not support feature {}, external entities are still refused",
+                        feature[0]);
+            }
+        }
+    }
+
+    /**
+     * Reads the given metadata stream. The stream is not closed by this method.
+     *
+     * @param metadataInput the metadata stream
+     * @param processor the processor to which each EntityDescriptor is handed
+     *
+     * @return the skeleton document containing everything but the EntityDescriptor elements, its document element is
+     *         null if the document element of the metadata was an EntityDescriptor
+     *
+     * @throws XMLParserException thrown if the metadata can not be read or parsed or the entity processor fails
+     */
+    public Document read(InputStream metadataInput, EntityProcessor processor) throws XMLParserException {
+        try {
+            SAXParser saxParser = saxParserFactory.newSAXParser();
+            SplittingHandler handler = new SplittingHandler(processor);
+            saxParser.parse(metadataInput, handler);
+            return handler.getSkeleton();
+        } catch (ParserConfigurationException e) {
+            throw new XMLParserException("Unable to create SAX parser", e);
+        } catch (SAXException e) {
+            if (e.getException() instanceof XMLParserException) {
+                throw (XMLParserException) e.getException();
+            }
+            throw new XMLParserException("Unable to parse metadata", e);
+        } catch (IOException e) {
+            throw new XMLParserException("Unable to read metadata", e);
+        }
+    }
+
+    /**
+     * Processor of EntityDescriptor elements cut out of a metadata stream.
+     */
+    public interface EntityProcessor {
+
+        /**
+         * Processes an EntityDescriptor element. The element is the document element of its own DOM document.
+         *
+         * @param entityElement the EntityDescriptor element
+         * @param parentElement the element, within the skeleton document, of the EntitiesDescriptor that contained the
+         *            entity or null if the entity was the document element of the metadata
+         *
+         * @throws XMLParserException thrown if the entity can not be processed, this aborts reading the stream
+         */
+        public void processEntity(Element entityElement, Element parentElement) throws XMLParserException;
+    }
+
+    /**
+     * SAX handler that builds the skeleton document and cuts out each EntityDescriptor.
+     */
+    private class SplittingHandler extends DefaultHandler {
+
+        /** Processor to which each EntityDescriptor is handed. */
+        private EntityProcessor entityProcessor;
+
+        /** In scope namespace declarations. */
+        private NamespaceSupport namespaces;
+
+        /** Prefix/namespace pairs declared for the next element. */
+        private ArrayList<String[]> pendingDeclarations;
+
+        /** Skeleton document. */
+        private Document skeleton;
+
+        /** Current node within the skeleton document. */
+        private Node skeletonNode;
+
+        /** Document holding the EntityDescriptor currently being read, null if not within an entity. */
+        private Document entityDocument;
+
+        /** Current node within the entity document. */
+        private Node entityNode;
+
+        /** Skeleton element of the EntitiesDescriptor containing the entity currently being read. */
+        private Element entityParent;
+
+        /**
+         * Constructor.
+         *
+         * @param processor processor to which each EntityDescriptor is handed
+         */
+        public SplittingHandler(EntityProcessor processor) {
+            entityProcessor = processor;
+            namespaces = new NamespaceSupport();
+            pendingDeclarations = new ArrayList<String[]>();
+        }
+
+        /**
+         * Gets the skeleton document.
+         *
+         * @return the skeleton document
+         */
+        public Document getSkeleton() {
+            return skeleton;
+        }
+
+        /** {@inheritDoc} */
+        public void startDocument() throws SAXException {
+            try {
+                skeleton = parserPool.newDocument();
+                skeletonNode = skeleton;
+            } catch (XMLParserException e) {
+                throw new SAXException(e);
+            }
+        }
+
+        /**
+         * Refuses to resolve any external entity, in case the SAX parser does not support the features disabling them.
+         *
+         * @param publicId public identifier of the entity
+         * @param systemId system identifier of the entity
+         *
+         * @return never returns
+         *
+         * @throws SAXException always thrown
+         */
+        public InputSource resolveEntity(String publicId, String systemId) throws SAXException {
+            throw new SAXException("Metadata may not reference external entities, refusing to resolve " + systemId);
+        }
+
+        /** {@inheritDoc} */
+        public void startPrefixMapping(String prefix, String uri) throws SAXException {
+            pendingDeclarations.add(new String[] { prefix, uri });
+        }
+
+        /** {@inheritDoc} */
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                throws SAXException {
+            namespaces.pushContext();
+            for (String[] declaration : pendingDeclarations) {
+                namespaces.declarePrefix(declaration[0], declaration[1]);
+            }
+
+            Element element;
+            if (entityDocument != null) {
+                element = createElement(entityDocument, uri, qName, attributes);
+                declareNamespaces(element, pendingDeclarations);
+                entityNode.appendChild(element);
+                entityNode = element;
+            } else if (EntityDescriptor.DEFAULT_ELEMENT_LOCAL_NAME.equals(localName)
+                    && EntityDescriptor.DEFAULT_ELEMENT_NAME.getNamespaceURI().equals(uri)) {
+                try {
+                    entityDocument = parserPool.newDocument();
+                } catch (XMLParserException e) {
+                    throw new SAXException(e);
+                }
+                element = createElement(entityDocument, uri, qName, attributes);
+                declareInScopeNamespaces(element);
+                entityDocument.appendChild(element);
+                entityNode = element;
+                if (skeletonNode instanceof Element) {
+                    entityParent = (Element) skeletonNode;
+                } else {
+                    entityParent = null;
+                }
+            } else {
+                element = createElement(skeleton, uri, qName, attributes);
+                declareNamespaces(element, pendingDeclarations);
+                skeletonNode.appendChild(element);
+                skeletonNode = element;
+            }
+
+            pendingDeclarations.clear();
+        }
+
+        /** {@inheritDoc} */
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            namespaces.popContext();
+
+            if (entityDocument != null) {
+                if (entityNode == entityDocument.getDocumentElement()) {
+                    Element entityElement = entityDocument.getDocumentElement();
+                    entityDocument = null;
+                    entityNode = null;
+                    try {
+                        entityProcessor.processEntity(entityElement, entityParent);
+                    } catch (XMLParserException e) {
+                        throw new SAXException(e);
+                    }
+                } else {
+                    entityNode = entityNode.getParentNode();
+                }
+            } else {
+                skeletonNode = skeletonNode.getParentNode();
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (entityDocument != null) {
+                appendText(entityDocument, entityNode, ch, start, length);
+            } else if (skeletonNode instanceof Element) {
+                appendText(skeleton, skeletonNode, ch, start, length);
+            }
+        }
+
+        /** {@inheritDoc} */
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            characters(ch, start, length);
+        }
+
+        /**
+         * Creates an element, and its attributes, within the given document.
+         *
+         * @param document document that will own the element
+         * @param uri namespace of the element
+         * @param qName qualified name of the element
+         * @param attributes attributes of the element
+         *
+         * @return the created element
+         */
+        private Element createElement(Document document, String uri, String qName, Attributes attributes) {
+            Element element = document.createElementNS(emptyToNull(uri), qName);
+            for (int i = 0; i < attributes.getLength(); i++) {
+                element.setAttributeNS(emptyToNull(attributes.getURI(i)), attributes.getQName(i), attributes
+                        .getValue(i));
+            }
+            return element;
+        }
+
+        /**
+         * Adds namespace declaration attributes to an element.
+         *
+         * @param element the element
+         * @param declarations the prefix/namespace pairs to declare
+         */
+        private void declareNamespaces(Element element, ArrayList<String[]> declarations) {
+            for (String[] declaration : declarations) {
+                declareNamespace(element, declaration[0], declaration[1]);
+            }
+        }
+
+        /**
+         * Adds a namespace declaration attribute, for every namespace currently in scope, to an element.
+         *
+         * @param element the element
+         */
+        private void declareInScopeNamespaces(Element element) {
+            Enumeration<?> prefixes = namespaces.getPrefixes();
+            while (prefixes.hasMoreElements()) {
+                String prefix = (String) prefixes.nextElement();
+                if (!XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+                    declareNamespace(element, prefix, namespaces.getURI(prefix));
+                }
+            }
+
+            String defaultNamespace = namespaces.getURI("");
+            if (defaultNamespace != null && defaultNamespace.length() > 0) {
+                declareNamespace(element, "", defaultNamespace);
+            }
+        }
+
+        /**
+         * Adds a namespace declaration attribute to an element.
+         *
+         * @param element the element
+         * @param prefix the namespace prefix, an empty string for the default namespace
+         * @param uri the namespace URI
+         */
+        private void declareNamespace(Element element, String prefix, String uri) {
+            if (prefix == null || prefix.length() == 0) {
+                element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE, uri);
+            } else {
+                element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, XMLConstants.XMLNS_ATTRIBUTE + ":"
+                        + prefix, uri);
+            }
+        }
+
+        /**
+         * Appends character data to a node, merging it with a preceding text node if there is one.
+         *
+         * @param document document owning the node
+         * @param node the node
+         * @param ch the characters
+         * @param start start position within the character array
+         * @param length number of characters to use
+         */
+        private void appendText(Document document, Node node, char[] ch, int start, int length) {
+            String text = new String(ch, start, length);
+            Node lastChild = node.getLastChild();
+            if (lastChild != null && lastChild.getNodeType() == Node.TEXT_NODE) {
+                ((Text) lastChild).appendData(text);
+            } else {
+                node.appendChild(document.createTextNode(text));
+            }
+        }
+
+        /**
+         * Converts an empty string to null.
+         *
+         * @param value the string
+         *
+         * @return null if the string was null or empty, the string otherwise
+         */
+        private String emptyToNull(String value) {
+            if (value == null || value.length() == 0) {
+                return null;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.xml.security.exceptions.XMLSecurityException;
+import org.apache.xml.security.signature.SignedInfo;
+import org.apache.xml.security.signature.XMLSignature;
+import org.opensaml.xml.signature.Signature;
+import org.opensaml.xml.signature.SignatureTrustEngine;
+import org.opensaml.xml.signature.impl.SignatureImpl;
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded, least recently used, cache of metadata signatures that have been established as trusted.
+ *
+ * Entries are keyed by a SHA-256 digest of the metadata entry name, the SignatureValue, the canonicalized SignedInfo
+ * and every Reference DigestValue of the signature. Keying on the complete SignedInfo, rather than on the digest values
+ * alone, ensures that a cached signature value is only reused for exactly the references, transforms and algorithms
+ * it was verified over. A signature found in the cache has already been cryptographically verified, and its
+ * signing key trusted, so the signature value verification and trust evaluation need not be repeated. The reference
+ * digests, however, bind the signature to the signed content and must always be recomputed; see
+ * {@link #verifyReferences(String, Signature)}.
+ *
+ * Entries expire after a fixed lifetime, so that a signature is again evaluated by the trust engine once in a while
+ * and a credential which is no longer trusted, or no longer valid, stops being accepted. The cache is bound to the
+ * trust engine which established the trust in its signatures, via {@link #bindTrustEngine(SignatureTrustEngine)},
+ * and is cleared whenever it is bound to another one. It must also be cleared, via {@link #clear()}, if the trusted
+ * credentials of the trust engine change.
+ */
+public class VerifiedSignatureCache {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(VerifiedSignatureCache.class);
+
+    /** Default lifetime, in milliseconds, of cache entries: 1 hour. */
+    public static final long DEFAULT_ENTRY_LIFETIME = 60 * 60 * 1000;
+
+    /** Maximum number of entries in the cache. */
+    private final int maxEntries;
+
+    /** Time, in milliseconds, a signature is cached. */
+    private final long entryLifetime;
+
+    /** Expiration time, in milliseconds since the epoch, of each cached signature key, in least recently used order. */
+    private final LinkedHashMap<String, Long> entries;
+
+    /** Trust engine which established the trust in the cached signatures, may be null. */
+    private SignatureTrustEngine trustEngine;
+
+    /** Number of lookups that found a cached entry. */
+    private long hits;
+
+    /** Number of lookups that did not find a cached entry. */
+    private long misses;
+
+    /** Number of entries evicted because the cache was full. */
+    private long evictions;
+
+    /**
+     * Constructor. Signatures are cached for {@link #DEFAULT_ENTRY_LIFETIME}.
+     *
+     * @param maxSize maximum number of signatures held in the cache
+     */
+    public VerifiedSignatureCache(int maxSize) {
+        this(maxSize, DEFAULT_ENTRY_LIFETIME);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxSize maximum number of signatures held in the cache
+     * @param lifetime time, in milliseconds, a signature is cached
+     */
+    public VerifiedSignatureCache(int maxSize, long lifetime) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Maximum cache size must be greater than 0");
+        }
+        if (lifetime <= 0) {
+            throw new IllegalArgumentException("Cache entry lifetime must be greater than 0");
+        }
+        maxEntries = maxSize;
+        entryLifetime = lifetime;
+        entries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+
+            /** Serial version UID. */
+            private static final long serialVersionUID = -2854213455717640163L;
+
+            /** {@inheritDoc} */
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > maxEntries) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Computes the cache key of a signature.
+     *
+     * @param signature the signature
+     * @param metadataEntryName the EntityDescriptor entityID or EntitiesDescriptor Name of the signed element
+     *
+     * @return the cache key or null if no key could be computed for the signature
+     */
+    public String computeKey(Signature signature, String metadataEntryName) {
+        if (!(signature instanceof SignatureImpl) || ((SignatureImpl) signature).getXMLSignature() == null) {
+            return null;
+        }
+
+        try {
+            XMLSignature xmlSignature = ((SignatureImpl) signature).getXMLSignature();
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (metadataEntryName != null) {
+                digest.update(metadataEntryName.getBytes("UTF-8"));
+            }
+            digest.update((byte) 0);
+            digest.update(xmlSignature.getSignatureValue());
+
+            SignedInfo signedInfo = xmlSignature.getSignedInfo();
+            digest.update((byte) 0);
+            digest.update(signedInfo.getCanonicalizedOctetStream());
+            for (int i = 0; i < signedInfo.getLength(); i++) {
+                digest.update((byte) 0);
+                digest.update(signedInfo.item(i).getDigestValue());
+            }
+
+            return Base64.encodeBytes(digest.digest(), Base64.DONT_BREAK_LINES);
+        } catch (NoSuchAlgorithmException e) {
+            log.error("SHA-256 is not supported, unable to cache signatures", e);
+        } catch (UnsupportedEncodingException e) {
+            log.error("UTF-8 is not supported, unable to cache signatures", e);
+        } catch (XMLSecurityException e) {
+            log.debug("Unable to read signature or digest value, signature will not be cached", e);
+        }
+        return null;
+    }
+
+    /**
+     * Binds the cache to the trust engine which establishes the trust in the signatures added to it. If the cache was
+     * bound to another trust engine, the signatures it trusted are removed.
+     *
+     * @param engine the trust engine
+     */
+    public synchronized void bindTrustEngine(SignatureTrustEngine engine) {
+        if (trustEngine != engine) {
+            if (trustEngine != null) {
+                log.debug("Signature trust engine changed, clearing verified signature cache");
+            }
+            entries.clear();
+            trustEngine = engine;
+        }
+    }
+
+    /**
+     * Checks whether a signature, identified by its cache key, is in the cache and has not expired. A lookup that
+     * finds nothing is counted as a miss; a lookup that finds the signature is only counted as a hit once its
+     * references have been verified, via {@link #verifyReferences(String, Signature)}.
+     *
+     * @param key the signature's cache key
+     *
+     * @return true if the signature has previously been verified and trusted
+     */
+    public synchronized boolean contains(String key) {
+        if (key != null) {
+            Long expiration = entries.get(key);
+            if (expiration != null) {
+                if (expiration.longValue() > System.currentTimeMillis()) {
+                    return true;
+                }
+                entries.remove(key);
+            }
+        }
+        misses++;
+        return false;
+    }
+
+    /**
+     * Adds a verified, and trusted, signature to the cache.
+     *
+     * @param key the signature's cache key
+     */
+    public synchronized void add(String key) {
+        if (key != null) {
+            entries.put(key, new Long(System.currentTimeMillis() + entryLifetime));
+        }
+    }
+
+    /**
+     * Recomputes the digests of every reference of a signature found in the cache and compares them with the
+     * DigestValues within the signature. The lookup is counted as a hit if every reference digest matched and as a
+     * miss otherwise.
+     *
+     * @param key the signature's cache key
+     * @param signature the signature
+     *
+     * @return true if every reference digest matched, false otherwise
+     */
+    public boolean verifyReferences(String key, Signature signature) {
+        boolean verified = verifyReferences(signature);
+        synchronized (this) {
+            if (verified) {
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+        return verified;
+    }
+
+    /**
+     * Recomputes the digests of every reference of the signature and compares them with the DigestValues within the
+     * signature.
+     *
+     * @param signature the signature
+     *
+     * @return true if every reference digest matched, false otherwise
+     */
+    public boolean verifyReferences(Signature signature) {
+        if (!(signature instanceof SignatureImpl) || ((SignatureImpl) signature).getXMLSignature() == null) {
+            return false;
+        }
+
+        try {
+            return ((SignatureImpl) signature).getXMLSignature().getSignedInfo().verifyReferences();
+        } catch (XMLSecurityException e) {
+            log.debug("Unable to verify signature references", e);
+            return false;
+        }
+    }
+
+    /** Removes all entries from the cache. */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Gets the number of signatures in the cache.
+     *
+     * @return number of signatures in the cache
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the number of lookups that found a cached signature.
+     *
+     * @return number of lookups that found a cached signature
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of lookups that did not find a cached signature.
+     *
+     * @return number of lookups that did not find a cached signature
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Gets the number of signatures evicted from the cache because it was full.
+     *
+     * @return number of signatures evicted from the cache
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+}
@@ -16,25 +16,42 @@
 
 package org.opensaml.security;
 
-import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.xml.namespace.QName;
 
 import org.opensaml.Configuration;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml2.metadata.KeyDescriptor;
 import org.opensaml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml2.metadata.provider.ChainingMetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataChangeEvent;
 import org.opensaml.saml2.metadata.provider.MetadataProvider;
 import org.opensaml.saml2.metadata.provider.MetadataProviderException;
 import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
+import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.security.CriteriaSet;
 import org.opensaml.xml.security.SecurityException;
 import org.opensaml.xml.security.credential.AbstractCriteriaFilteringCredentialResolver;
@@ -43,8 +60,11 @@ import org.opensaml.xml.security.credential.Credential;
 import org.opensaml.xml.security.credential.UsageType;
 import org.opensaml.xml.security.criteria.EntityIDCriteria;
 import org.opensaml.xml.security.criteria.UsageCriteria;
+import org.opensaml.xml.security.credential.CredentialContext;
+import org.opensaml.xml.security.keyinfo.KeyInfoCredentialContext;
 import org.opensaml.xml.security.keyinfo.KeyInfoCredentialResolver;
 import org.opensaml.xml.security.keyinfo.KeyInfoCriteria;
+import org.opensaml.xml.security.x509.BasicX509Credential;
 import org.opensaml.xml.util.DatatypeHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,26 +80,89 @@ import org.slf4j.LoggerFactory;
  * absent from the criteria set, the effective value {@link UsageType#UNSPECIFIED} will be used for credential
  * resolution.
  * 
- * This credential resolver will cache the resolved the credentials in a memory-sensitive cache. If the metadata
- * provider is an {@link ObservableMetadataProvider} this resolver will also clear its cache when the underlying
- * metadata changes.
+ * This credential resolver will cache the resolved the credentials. The cache is split into segments, each guarded by
+ * its own lock, and is bounded both in size, evicting the least recently used credentials of a segment once it is
+ * full, and in time, re-resolving credentials once they are older than the cache entry lifetime. Concurrent requests
+ * for credentials that are not cached are resolved only once, the other requesters waiting for the result.
+ * 
+ * If the metadata provider is an {@link ObservableMetadataProvider} this resolver will also invalidate its cached
+ * credentials when the underlying metadata changes. If the provider reports which entities changed, see
+ * {@link ObservableMetadataProvider.ChangeObserver}, only the credentials of those entities are invalidated. The
+ * cached credentials of the other entities remain in use; the first time each is used after the change it is rebound
+ * to the corresponding KeyDescriptor of the new metadata, without resolving its KeyInfo again, so that no cached
+ * credential keeps the previous metadata reachable. If the provider does not report which entities changed, only the
+ * credentials of entities whose EntityDescriptor is still the one the credentials were resolved from are kept.
+ * 
+ * If eager credential resolution is enabled, via {@link #setEagerCredentialResolution(boolean)}, the KeyInfo of every
+ * KeyDescriptor in the metadata is resolved into credentials whenever the metadata changes, optionally in parallel
+ * using the executor set via {@link #setCredentialResolutionExecutor(ExecutorService)}. The resulting immutable
+ * snapshot replaces the previous one once complete, and credentials for the KeyDescriptors it contains are taken from
+ * it rather than being resolved on first use.
+ * 
+ * The X.509 certificates of resolved credentials are interned, see {@link X509CertificateInterner}, so that identical
+ * certificates published by several entities, or by successive versions of the metadata, share a single instance.
  */
 public class MetadataCredentialResolver extends AbstractCriteriaFilteringCredentialResolver {
 
+    /** Number of segments the credential cache is split into, must be a power of two. */
+    private static final int CACHE_SEGMENTS = 16;
+
+    /** Number of KeyDescriptors resolved by a single task when resolving all credentials in parallel. */
+    private static final int RESOLUTION_BATCH_SIZE = 64;
+
     /** Class logger. */
     private final Logger log = LoggerFactory.getLogger(MetadataCredentialResolver.class);
 
     /** Metadata provider from which to fetch the credentials. */
     private MetadataProvider metadata;
 
-    /** Cache of resolved credentials. [MetadataCacheKey, Credentials] */
-    private Map<MetadataCacheKey, SoftReference<Collection<Credential>>> cache;
+    /** Segments of the cache of resolved credentials. */
+    private final CacheSegment[] cacheSegments;
+
+    /** Credential resolutions currently in progress. */
+    private final ConcurrentHashMap<MetadataCacheKey, FutureTask<CacheEntry>> pendingResolutions;
+
+    /** Number of metadata change events received, used to detect cache entries that need to be revalidated. */
+    private final AtomicInteger metadataGeneration;
+
+    /** Metadata generation started by the most recent change event that did not report which entities changed. */
+    private volatile int lastUntrackedGeneration;
+
+    /** Number of times cached credentials were invalidated, used to discard credentials resolved before that. */
+    private final AtomicInteger cacheInvalidations;
+
+    /** Lock formerly used to synchronize access to the credential cache, kept for subclasses. */
+    private final ReadWriteLock rwlock;
+
+    /** Maximum number of cache entries, default value: 5000. */
+    private volatile int maxCacheSize;
+
+    /** Maximum time, in milliseconds, credentials are cached, default value: 1 hour. */
+    private volatile long cacheEntryLifetime;
+
+    /** Number of lookups that found cached credentials. */
+    private final AtomicLong cacheHits;
+
+    /** Number of lookups that did not find cached credentials. */
+    private final AtomicLong cacheMisses;
+
+    /** Number of cache entries evicted because the cache was full. */
+    private final AtomicLong cacheEvictions;
 
     /** Credential resolver used to resolve credentials from role descriptor KeyInfo elements. */
     private KeyInfoCredentialResolver keyInfoCredentialResolver;
-    
-    /** Lock used to synchronize access to the credential cache. */
-    private ReadWriteLock rwlock;
+
+    /** Whether the credentials of all KeyDescriptors are resolved whenever the metadata changes. */
+    private volatile boolean eagerCredentialResolution;
+
+    /** Executor used to resolve the credentials of all KeyDescriptors in parallel, may be null. */
+    private ExecutorService credentialResolutionExecutor;
+
+    /** Credentials resolved in advance, indexed by KeyDescriptor, or null if credentials are resolved on use. */
+    private volatile Map<KeyDescriptor, Collection<Credential>> credentialSnapshot;
+
+    /** Interner used to share identical certificates between credentials, may be null. */
+    private X509CertificateInterner certificateInterner;
 
     /**
      * Constructor.
@@ -95,12 +178,24 @@ public class MetadataCredentialResolver extends AbstractCriteriaFilteringCredent
         }
         metadata = metadataProvider;
 
-        cache = new HashMap<MetadataCacheKey, SoftReference<Collection<Credential>>>();
+        cacheSegments = new CacheSegment[CACHE_SEGMENTS];
+        for (int i = 0; i < cacheSegments.length; i++) {
+            cacheSegments[i] = new CacheSegment();
+        }
+        pendingResolutions = new ConcurrentHashMap<MetadataCacheKey, FutureTask<CacheEntry>>();
+        metadataGeneration = new AtomicInteger();
+        cacheInvalidations = new AtomicInteger();
+        rwlock = new ReentrantReadWriteLock();
+        maxCacheSize = 5000;
+        cacheEntryLifetime = 60 * 60 * 1000;
+        cacheHits = new AtomicLong();
+        cacheMisses = new AtomicLong();
+        cacheEvictions = new AtomicLong();
 
         keyInfoCredentialResolver = Configuration.getGlobalSecurityConfiguration()
                 .getDefaultKeyInfoCredentialResolver();
-        
-        rwlock = new ReentrantReadWriteLock();
+
+        certificateInterner = new X509CertificateInterner();
 
         if (metadata instanceof ObservableMetadataProvider) {
             ObservableMetadataProvider observable = (ObservableMetadataProvider) metadataProvider;
@@ -126,15 +221,310 @@ public class MetadataCredentialResolver extends AbstractCriteriaFilteringCredent
     public void setKeyInfoCredentialResolver(KeyInfoCredentialResolver keyInfoResolver) {
         keyInfoCredentialResolver = keyInfoResolver;
     }
-    
+
     /**
      * Get the lock instance used to synchronize access to the credential cache.
      * 
      * @return a read-write lock instance
+     * 
+     * @deprecated the credential cache is split into segments, each guarded by its own lock, and no longer uses this
+     *             lock
      */
     protected ReadWriteLock getReadWriteLock() {
         return rwlock;
     }
+    
+    /**
+     * Gets whether the credentials of all KeyDescriptors are resolved whenever the metadata changes.
+     * 
+     * @return whether the credentials of all KeyDescriptors are resolved whenever the metadata changes
+     */
+    public boolean isEagerCredentialResolution() {
+        return eagerCredentialResolution;
+    }
+
+    /**
+     * Sets whether the credentials of all KeyDescriptors are resolved whenever the metadata changes. Enabling eager
+     * resolution immediately resolves the credentials of the current metadata.
+     * 
+     * @param eager whether the credentials of all KeyDescriptors are resolved whenever the metadata changes
+     */
+    public void setEagerCredentialResolution(boolean eager) {
+        eagerCredentialResolution = eager;
+        if (eager) {
+            resolveAllCredentials();
+        } else {
+            credentialSnapshot = null;
+        }
+    }
+
+    /**
+     * Gets the executor used to resolve the credentials of all KeyDescriptors in parallel.
+     * 
+     * @return the executor used to resolve credentials in parallel, or null if credentials are resolved serially
+     */
+    public ExecutorService getCredentialResolutionExecutor() {
+        return credentialResolutionExecutor;
+    }
+
+    /**
+     * Sets the executor used to resolve the credentials of all KeyDescriptors in parallel. The executor is not shut
+     * down by this resolver.
+     * 
+     * @param executor the executor used to resolve credentials in parallel, or null to resolve credentials serially
+     */
+    public void setCredentialResolutionExecutor(ExecutorService executor) {
+        credentialResolutionExecutor = executor;
+    }
+
+    /**
+     * Gets the interner used to share identical certificates between resolved credentials.
+     * 
+     * @return the certificate interner, or null if certificates are not interned
+     */
+    public X509CertificateInterner getCertificateInterner() {
+        return certificateInterner;
+    }
+
+    /**
+     * Sets the interner used to share identical certificates between resolved credentials. An interner may be shared
+     * by several credential resolvers.
+     * 
+     * @param interner the certificate interner, or null if certificates should not be interned
+     */
+    public void setCertificateInterner(X509CertificateInterner interner) {
+        certificateInterner = interner;
+    }
+
+    /**
+     * Gets the maximum number of cache entries, each holding the credentials of one entity, role, protocol and usage.
+     * 
+     * @return maximum number of cache entries
+     */
+    public int getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of cache entries, each holding the credentials of one entity, role, protocol and usage.
+     * 
+     * @param size maximum number of cache entries
+     */
+    public void setMaxCacheSize(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Maximum cache size must be greater than 0");
+        }
+        maxCacheSize = size;
+    }
+
+    /**
+     * Gets the maximum time, in milliseconds, credentials are cached.
+     * 
+     * @return maximum time, in milliseconds, credentials are cached
+     */
+    public long getCacheEntryLifetime() {
+        return cacheEntryLifetime;
+    }
+
+    /**
+     * Sets the maximum time, in milliseconds, credentials are cached.
+     * 
+     * @param lifetime maximum time, in milliseconds, credentials are cached
+     */
+    public void setCacheEntryLifetime(long lifetime) {
+        if (lifetime <= 0) {
+            throw new IllegalArgumentException("Cache entry lifetime must be greater than 0");
+        }
+        cacheEntryLifetime = lifetime;
+    }
+
+    /**
+     * Gets the number of credential lookups that were answered from the cache.
+     * 
+     * @return number of credential lookups that were answered from the cache
+     */
+    public long getCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Gets the number of credential lookups that required the credentials to be resolved from metadata.
+     * 
+     * @return number of credential lookups that required the credentials to be resolved from metadata
+     */
+    public long getCacheMissCount() {
+        return cacheMisses.get();
+    }
+
+    /**
+     * Gets the number of cache entries evicted because the cache was full.
+     * 
+     * @return number of cache entries evicted because the cache was full
+     */
+    public long getCacheEvictionCount() {
+        return cacheEvictions.get();
+    }
+
+    /**
+     * Gets the number of entries currently in the cache.
+     * 
+     * @return number of entries currently in the cache
+     */
+    public int getCacheSize() {
+        int size = 0;
+        for (CacheSegment segment : cacheSegments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * Removes the cached credentials of an entity.
+     * 
+     * @param entityID ID of the entity whose credentials are removed from the cache
+     */
+    public void invalidateCredentials(String entityID) {
+        invalidateCredentials(Collections.singleton(entityID));
+    }
+
+    /**
+     * Removes the cached credentials of a set of entities.
+     * 
+     * @param entityIDs IDs of the entities whose credentials are removed from the cache
+     */
+    public void invalidateCredentials(Set<String> entityIDs) {
+        if (entityIDs.isEmpty()) {
+            return;
+        }
+        // advance the stamp before removing entries so resolutions in progress do not add stale entries afterwards
+        cacheInvalidations.incrementAndGet();
+        int removed = 0;
+        for (CacheSegment segment : cacheSegments) {
+            removed += segment.removeEntities(entityIDs);
+        }
+        log.debug("Removed {} cached credential sets of {} entities", removed, entityIDs.size());
+    }
+
+    /** Removes all cached credentials. */
+    public void clearCache() {
+        cacheInvalidations.incrementAndGet();
+        for (CacheSegment segment : cacheSegments) {
+            segment.clear();
+        }
+        log.debug("Credential cache cleared");
+    }
+
+    /**
+     * Resolves the credentials of every KeyDescriptor in the current metadata and publishes them as the snapshot used
+     * by subsequent credential resolutions. KeyDescriptors whose credentials can not be resolved are left out of the
+     * snapshot, their credentials are resolved on use.
+     */
+    public void resolveAllCredentials() {
+        long start = System.currentTimeMillis();
+        List<KeyDescriptor> keyDescriptors = new ArrayList<KeyDescriptor>();
+        try {
+            collectKeyDescriptors(metadata, keyDescriptors);
+        } catch (MetadataProviderException e) {
+            log.error("Unable to read metadata, credentials will be resolved on use", e);
+            credentialSnapshot = null;
+            return;
+        }
+
+        Map<KeyDescriptor, Collection<Credential>> snapshot;
+        snapshot = new IdentityHashMap<KeyDescriptor, Collection<Credential>>(keyDescriptors.size());
+        ExecutorService executor = getCredentialResolutionExecutor();
+        if (executor == null || keyDescriptors.size() <= RESOLUTION_BATCH_SIZE) {
+            snapshot.putAll(new KeyDescriptorResolution(keyDescriptors).call());
+        } else {
+            List<Future<Map<KeyDescriptor, Collection<Credential>>>> resolutions =
+                new ArrayList<Future<Map<KeyDescriptor, Collection<Credential>>>>();
+            for (int i = 0; i < keyDescriptors.size(); i += RESOLUTION_BATCH_SIZE) {
+                int end = Math.min(keyDescriptors.size(), i + RESOLUTION_BATCH_SIZE);
+                List<KeyDescriptor> batch = keyDescriptors.subList(i, end);
+                resolutions.add(executor.submit(new KeyDescriptorResolution(batch)));
+            }
+
+            try {
+                for (Future<Map<KeyDescriptor, Collection<Credential>>> resolution : resolutions) {
+                    snapshot.putAll(resolution.get());
+                }
+            } catch (InterruptedException e) {
+                cancelResolutions(resolutions);
+                Thread.currentThread().interrupt();
+                log.error("Interrupted while resolving credentials, credentials will be resolved on use");
+                credentialSnapshot = null;
+                return;
+            } catch (ExecutionException e) {
+                cancelResolutions(resolutions);
+                log.error("Error resolving credentials, credentials will be resolved on use", e.getCause());
+                credentialSnapshot = null;
+                return;
+            }
+        }
+
+        if (eagerCredentialResolution) {
+            credentialSnapshot = Collections.unmodifiableMap(snapshot);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        log.info("Resolved credentials of {} KeyDescriptors in {}ms", keyDescriptors.size(), elapsed);
+    }
+
+    /**
+     * Cancels credential resolutions that have not yet completed.
+     * 
+     * @param resolutions the credential resolutions
+     */
+    private void cancelResolutions(List<Future<Map<KeyDescriptor, Collection<Credential>>>> resolutions) {
+        for (Future<Map<KeyDescriptor, Collection<Credential>>> resolution : resolutions) {
+            resolution.cancel(true);
+        }
+    }
+
+    /**
+     * Collects every KeyDescriptor, containing a KeyInfo, of the metadata of a provider. The metadata of the members
+     * of a {@link ChainingMetadataProvider} is read from each member directly.
+     * 
+     * @param provider the metadata provider
+     * @param keyDescriptors list to which the KeyDescriptors are added
+     * 
+     * @throws MetadataProviderException thrown if the metadata can not be read
+     */
+    private void collectKeyDescriptors(MetadataProvider provider, List<KeyDescriptor> keyDescriptors)
+            throws MetadataProviderException {
+        if (provider instanceof ChainingMetadataProvider) {
+            for (MetadataProvider member : ((ChainingMetadataProvider) provider).getProviders()) {
+                collectKeyDescriptors(member, keyDescriptors);
+            }
+        } else {
+            collectKeyDescriptors(provider.getMetadata(), keyDescriptors);
+        }
+    }
+
+    /**
+     * Collects every KeyDescriptor, containing a KeyInfo, of a metadata element and its descendants.
+     * 
+     * @param metadataElement an EntitiesDescriptor or EntityDescriptor, may be null
+     * @param keyDescriptors list to which the KeyDescriptors are added
+     */
+    private void collectKeyDescriptors(XMLObject metadataElement, List<KeyDescriptor> keyDescriptors) {
+        if (metadataElement instanceof EntitiesDescriptor) {
+            EntitiesDescriptor entitiesDescriptor = (EntitiesDescriptor) metadataElement;
+            for (EntitiesDescriptor child : entitiesDescriptor.getEntitiesDescriptors()) {
+                collectKeyDescriptors(child, keyDescriptors);
+            }
+            for (EntityDescriptor child : entitiesDescriptor.getEntityDescriptors()) {
+                collectKeyDescriptors(child, keyDescriptors);
+            }
+        } else if (metadataElement instanceof EntityDescriptor) {
+            for (RoleDescriptor roleDescriptor : ((EntityDescriptor) metadataElement).getRoleDescriptors()) {
+                for (KeyDescriptor keyDescriptor : roleDescriptor.getKeyDescriptors()) {
+                    if (keyDescriptor.getKeyInfo() != null) {
+                        keyDescriptors.add(keyDescriptor);
+                    }
+                }
+            }
+        }
+    }
 
     /** {@inheritDoc} */
     protected Iterable<Credential> resolveFromSource(CriteriaSet criteriaSet) throws SecurityException {
@@ -157,8 +547,10 @@ public class MetadataCredentialResolver extends AbstractCriteriaFilteringCredent
         Collection<Credential> credentials = retrieveFromCache(cacheKey);
 
         if (credentials == null) {
-            credentials = retrieveFromMetadata(entityID, role, protocol, usage);
-            cacheCredentials(cacheKey, credentials);
+            cacheMisses.incrementAndGet();
+            credentials = resolveCredentials(cacheKey);
+        } else {
+            cacheHits.incrementAndGet();
         }
 
         return credentials;
@@ -195,26 +587,238 @@ public class MetadataCredentialResolver extends AbstractCriteriaFilteringCredent
      */
     protected Collection<Credential> retrieveFromCache(MetadataCacheKey cacheKey) {
         log.debug("Attempting to retrieve credentials from cache using index: {}", cacheKey);
-        Lock readLock = getReadWriteLock().readLock();
-        readLock.lock();
-        log.trace("Read lock over cache acquired");
-        try {
-            if (cache.containsKey(cacheKey)) {
-                SoftReference<Collection<Credential>> reference = cache.get(cacheKey);
-                if (reference.get() != null) {
+        CacheSegment segment = getCacheSegment(cacheKey);
+        CacheEntry entry = segment.get(cacheKey);
+        if (entry != null) {
+            if (System.currentTimeMillis() - entry.getCreationTime() > cacheEntryLifetime) {
+                log.debug("Cached credentials with index {} have expired", cacheKey);
+                segment.remove(cacheKey, entry);
+            } else {
+                CacheEntry currentEntry = revalidate(cacheKey, entry);
+                if (currentEntry == null) {
+                    log.debug("Metadata of entity {} has changed, cached credentials are invalid", cacheKey.id);
+                    segment.remove(cacheKey, entry);
+                } else {
                     log.debug("Retrieved credentials from cache using index: {}", cacheKey);
-                    return reference.get();
+                    return currentEntry.getCredentials();
                 }
             }
-        } finally {
-            readLock.unlock();
-            log.trace("Read lock over cache released");
         }
 
         log.debug("Unable to retrieve credentials from cache using index: {}", cacheKey);
         return null;
     }
 
+    /**
+     * Adds resolved credentials to the cache.
+     * 
+     * @param cacheKey the key for caching the credentials
+     * @param credentials collection of credentials to cache
+     * 
+     * @deprecated credentials are added to the cache when they are resolved
+     */
+    protected void cacheCredentials(MetadataCacheKey cacheKey, Collection<Credential> credentials) {
+        int invalidation = cacheInvalidations.get();
+        int generation = metadataGeneration.get();
+        EntityDescriptor entityDescriptor = null;
+        try {
+            entityDescriptor = metadata.getEntityDescriptor(cacheKey.id);
+        } catch (MetadataProviderException e) {
+            log.debug("Unable to read metadata of entity " + cacheKey.id, e);
+        }
+        if (getCacheSegment(cacheKey).put(cacheKey, new CacheEntry(credentials, entityDescriptor, generation),
+                invalidation)) {
+            log.debug("Added new credential collection to cache with key: {}", cacheKey);
+        }
+    }
+
+    /**
+     * Checks whether a cache entry reflects the current metadata. An entry created before the most recent metadata
+     * change event is still current if the entity's EntityDescriptor is the one the credentials were resolved from.
+     * Otherwise, if every change event since the entry was created reported the entities that changed, the entity did
+     * not change and the entry is rebound to the entity's current EntityDescriptor.
+     * 
+     * @param cacheKey the key of the cache entry
+     * @param entry the cache entry
+     * 
+     * @return the cache entry reflecting the current metadata, or null if the entry is no longer valid
+     */
+    private CacheEntry revalidate(MetadataCacheKey cacheKey, CacheEntry entry) {
+        int invalidation = cacheInvalidations.get();
+        int generation = metadataGeneration.get();
+        if (entry.getGeneration() == generation) {
+            return entry;
+        }
+
+        EntityDescriptor entityDescriptor;
+        try {
+            entityDescriptor = metadata.getEntityDescriptor(cacheKey.id);
+        } catch (MetadataProviderException e) {
+            log.debug("Unable to read metadata of entity " + cacheKey.id, e);
+            return null;
+        }
+        if (entityDescriptor == entry.getEntityDescriptor()) {
+            entry.setGeneration(generation);
+            return entry;
+        }
+        if (entityDescriptor == null || entry.getGeneration() < lastUntrackedGeneration) {
+            return null;
+        }
+
+        CacheEntry reboundEntry = rebind(entry, entityDescriptor, generation);
+        if (reboundEntry != null) {
+            log.debug("Rebound cached credentials with index {} to the current metadata", cacheKey);
+            getCacheSegment(cacheKey).replace(cacheKey, entry, reboundEntry, invalidation);
+        }
+        return reboundEntry;
+    }
+
+    /**
+     * Rebinds the credentials of a cache entry, resolved from a previous, but identical, version of an entity's
+     * metadata, to the corresponding KeyDescriptors of the entity's current EntityDescriptor.
+     * 
+     * @param entry the cache entry
+     * @param entityDescriptor the current EntityDescriptor of the entity
+     * @param generation the current metadata generation
+     * 
+     * @return the rebound cache entry, or null if a credential could not be rebound
+     */
+    private CacheEntry rebind(CacheEntry entry, EntityDescriptor entityDescriptor, int generation) {
+        Collection<Credential> reboundCredentials = new HashSet<Credential>();
+        for (Credential credential : entry.getCredentials()) {
+            Credential reboundCredential = rebindCredential(credential, entityDescriptor);
+            if (reboundCredential == null) {
+                return null;
+            }
+            reboundCredentials.add(reboundCredential);
+        }
+        return new CacheEntry(reboundCredentials, entityDescriptor, generation, entry.getCreationTime());
+    }
+
+    /**
+     * Copies a credential resolved from a KeyDescriptor of a previous version of an entity's metadata, replacing its
+     * metadata and KeyInfo contexts with ones referring to the KeyDescriptor at the same position in the entity's
+     * current EntityDescriptor. The key material of the credential is shared with the copy.
+     * 
+     * @param credential the credential
+     * @param entityDescriptor the current EntityDescriptor of the entity
+     * 
+     * @return the rebound credential, or null if the credential can not be rebound
+     */
+    private Credential rebindCredential(Credential credential, EntityDescriptor entityDescriptor) {
+        SAMLMDCredentialContext mdContext = credential.getCredentalContextSet().get(SAMLMDCredentialContext.class);
+        if (mdContext == null || mdContext.getKeyDescriptor() == null) {
+            return null;
+        }
+        KeyDescriptor keyDescriptor = findKeyDescriptor(mdContext.getKeyDescriptor(), entityDescriptor);
+        if (keyDescriptor == null) {
+            return null;
+        }
+
+        BasicCredential reboundCredential;
+        if (credential instanceof BasicX509Credential) {
+            BasicX509Credential x509Credential = (BasicX509Credential) credential;
+            BasicX509Credential reboundX509Credential = new BasicX509Credential();
+            reboundX509Credential.setEntityCertificate(x509Credential.getEntityCertificate());
+            reboundX509Credential.setEntityCertificateChain(x509Credential.getEntityCertificateChain());
+            reboundX509Credential.setCRLs(x509Credential.getCRLs());
+            reboundCredential = reboundX509Credential;
+        } else if (credential.getClass() == BasicCredential.class) {
+            reboundCredential = new BasicCredential();
+        } else {
+            return null;
+        }
+
+        BasicCredential basicCredential = (BasicCredential) credential;
+        reboundCredential.setEntityId(basicCredential.getEntityId());
+        reboundCredential.setUsageType(basicCredential.getUsageType());
+        reboundCredential.setPublicKey(basicCredential.getPublicKey());
+        reboundCredential.setPrivateKey(basicCredential.getPrivateKey());
+        reboundCredential.setSecretKey(basicCredential.getSecretKey());
+        reboundCredential.getKeyNames().addAll(basicCredential.getKeyNames());
+        for (CredentialContext context : basicCredential.getCredentalContextSet()) {
+            if (context instanceof SAMLMDCredentialContext) {
+                reboundCredential.getCredentalContextSet().add(new SAMLMDCredentialContext(keyDescriptor));
+            } else if (context instanceof KeyInfoCredentialContext) {
+                reboundCredential.getCredentalContextSet().add(
+                        new KeyInfoCredentialContext(keyDescriptor.getKeyInfo()));
+            } else {
+                reboundCredential.getCredentalContextSet().add(context);
+            }
+        }
+        return reboundCredential;
+    }
+
+    /**
+     * Finds the KeyDescriptor of an EntityDescriptor which is at the same position as a KeyDescriptor of a previous
+     * version of the entity's metadata.
+     * 
+     * @param previousKeyDescriptor the KeyDescriptor of the previous version of the entity's metadata
+     * @param entityDescriptor the current EntityDescriptor of the entity
+     * 
+     * @return the corresponding KeyDescriptor, or null if there is none
+     */
+    private KeyDescriptor findKeyDescriptor(KeyDescriptor previousKeyDescriptor, EntityDescriptor entityDescriptor) {
+        XMLObject previousRole = previousKeyDescriptor.getParent();
+        if (!(previousRole instanceof RoleDescriptor) || !(previousRole.getParent() instanceof EntityDescriptor)) {
+            return null;
+        }
+        int roleIndex = ((EntityDescriptor) previousRole.getParent()).getRoleDescriptors().indexOf(previousRole);
+        int keyIndex = ((RoleDescriptor) previousRole).getKeyDescriptors().indexOf(previousKeyDescriptor);
+
+        List<RoleDescriptor> roles = entityDescriptor.getRoleDescriptors();
+        if (roleIndex < 0 || roleIndex >= roles.size()
+                || !roles.get(roleIndex).getElementQName().equals(previousRole.getElementQName())) {
+            return null;
+        }
+        List<KeyDescriptor> keyDescriptors = roles.get(roleIndex).getKeyDescriptors();
+        if (keyIndex < 0 || keyIndex >= keyDescriptors.size()) {
+            return null;
+        }
+        return keyDescriptors.get(keyIndex);
+    }
+
+    /**
+     * Resolves credentials from metadata and caches them. If the same credentials are already being resolved the
+     * result of that resolution is awaited, otherwise they are resolved by the calling thread.
+     * 
+     * @param cacheKey the key identifying the credentials
+     * 
+     * @return the resolved credentials
+     * 
+     * @throws SecurityException thrown if the credentials can not be resolved
+     */
+    private Collection<Credential> resolveCredentials(MetadataCacheKey cacheKey) throws SecurityException {
+        FutureTask<CacheEntry> resolution = new FutureTask<CacheEntry>(new CredentialResolution(cacheKey));
+        FutureTask<CacheEntry> pendingResolution = pendingResolutions.putIfAbsent(cacheKey, resolution);
+        if (pendingResolution == null) {
+            try {
+                resolution.run();
+            } finally {
+                pendingResolutions.remove(cacheKey, resolution);
+            }
+            pendingResolution = resolution;
+        } else {
+            log.debug("Credentials with index {} are already being resolved, waiting for them", cacheKey);
+        }
+
+        try {
+            return pendingResolution.get().getCredentials();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SecurityException("Interrupted while waiting for credentials of entity " + cacheKey.id, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SecurityException) {
+                throw (SecurityException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new SecurityException("Unable to resolve credentials of entity " + cacheKey.id, e.getCause());
+        }
+    }
+
     /**
      * Retrieves credentials from the provided metadata.
      * 
@@ -251,22 +855,15 @@ public class MetadataCredentialResolver extends AbstractCriteriaFilteringCredent
                 }
                 if (matchUsage(mdUsage, usage)) {
                     if (keyDescriptor.getKeyInfo() != null) {
-                        CriteriaSet critSet = new CriteriaSet();
-                        critSet.add(new KeyInfoCriteria(keyDescriptor.getKeyInfo()));
-
-                        Iterable<Credential> creds = getKeyInfoCredentialResolver().resolve(critSet);
-                        if(credentials == null){
-                            continue;
+                        Collection<Credential> creds = null;
+                        Map<KeyDescriptor, Collection<Credential>> snapshot = credentialSnapshot;
+                        if (snapshot != null) {
+                            creds = snapshot.get(keyDescriptor);
                         }
-                        for (Credential cred : creds) {
-                            if (cred instanceof BasicCredential) {
-                                BasicCredential basicCred = (BasicCredential) cred;
-                                basicCred.setEntityId(entityID);
-                                basicCred.setUsageType(mdUsage);
-                                basicCred.getCredentalContextSet().add(new SAMLMDCredentialContext(keyDescriptor));
-                            }
-                            credentials.add(cred);
+                        if (creds == null) {
+                            creds = resolveKeyDescriptor(entityID, keyDescriptor, mdUsage);
                         }
+                        credentials.addAll(creds);
                     }
                 }
             }
@@ -276,6 +873,77 @@ public class MetadataCredentialResolver extends AbstractCriteriaFilteringCredent
         return credentials;
     }
 
+    /**
+     * Resolves the credentials of a KeyDescriptor from its KeyInfo.
+     * 
+     * @param entityID entityID of the credential owner
+     * @param keyDescriptor the KeyDescriptor
+     * @param mdUsage the usage of the KeyDescriptor
+     * 
+     * @return the resolved credentials
+     * 
+     * @throws SecurityException thrown if the key, certificate, or CRL information is represented in an unsupported
+     *             format
+     */
+    protected Collection<Credential> resolveKeyDescriptor(String entityID, KeyDescriptor keyDescriptor,
+            UsageType mdUsage) throws SecurityException {
+        List<Credential> credentials = new ArrayList<Credential>();
+
+        CriteriaSet critSet = new CriteriaSet();
+        critSet.add(new KeyInfoCriteria(keyDescriptor.getKeyInfo()));
+        Iterable<Credential> creds = getKeyInfoCredentialResolver().resolve(critSet);
+        if (creds == null) {
+            return credentials;
+        }
+
+        for (Credential cred : creds) {
+            if (cred instanceof BasicCredential) {
+                BasicCredential basicCred = (BasicCredential) cred;
+                basicCred.setEntityId(entityID);
+                basicCred.setUsageType(mdUsage);
+                basicCred.getCredentalContextSet().add(new SAMLMDCredentialContext(keyDescriptor));
+            }
+            if (cred instanceof BasicX509Credential) {
+                internCertificates((BasicX509Credential) cred);
+            }
+            credentials.add(cred);
+        }
+        return credentials;
+    }
+
+    /**
+     * Replaces the certificates of a credential with their interned instances.
+     * 
+     * @param credential the credential
+     */
+    private void internCertificates(BasicX509Credential credential) {
+        X509CertificateInterner interner = getCertificateInterner();
+        if (interner == null) {
+            return;
+        }
+
+        X509Certificate entityCertificate = credential.getEntityCertificate();
+        if (entityCertificate != null) {
+            X509Certificate internedCertificate = interner.intern(entityCertificate);
+            if (internedCertificate != entityCertificate) {
+                boolean certificateKey = entityCertificate.getPublicKey().equals(credential.getPublicKey());
+                credential.setEntityCertificate(internedCertificate);
+                if (certificateKey) {
+                    credential.setPublicKey(internedCertificate.getPublicKey());
+                }
+            }
+        }
+
+        Collection<X509Certificate> chain = credential.getEntityCertificateChain();
+        if (chain != null && !chain.isEmpty()) {
+            List<X509Certificate> internedChain = new ArrayList<X509Certificate>(chain.size());
+            for (X509Certificate certificate : chain) {
+                internedChain.add(interner.intern(certificate));
+            }
+            credential.setEntityCertificateChain(internedChain);
+        }
+    }
+
     /**
      * Match usage enum type values from metadata KeyDescriptor and from credential criteria.
      * 
@@ -325,21 +993,316 @@ public class MetadataCredentialResolver extends AbstractCriteriaFilteringCredent
     }
 
     /**
-     * Adds resolved credentials to the cache.
+     * Gets the cache segment responsible for a cache key.
      * 
-     * @param cacheKey the key for caching the credentials
-     * @param credentials collection of credentials to cache
+     * @param cacheKey the cache key
+     * 
+     * @return the cache segment responsible for the key
      */
-    protected void cacheCredentials(MetadataCacheKey cacheKey, Collection<Credential> credentials) {
-        Lock writeLock = getReadWriteLock().writeLock();
-        writeLock.lock();
-        log.trace("Write lock over cache acquired");
-        try {
-            cache.put(cacheKey, new SoftReference<Collection<Credential>>(credentials));
-            log.debug("Added new credential collection to cache with key: {}", cacheKey);
-        } finally {
-            writeLock.unlock();
-            log.trace("Write lock over cache released"); 
+    private CacheSegment getCacheSegment(MetadataCacheKey cacheKey) {
+        int hash = cacheKey.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return cacheSegments[hash & (CACHE_SEGMENTS - 1)];
+    }
+
+    /**
+     * Resolves the credentials identified by a cache key from metadata and adds them to the cache.
+     */
+    private class CredentialResolution implements Callable<CacheEntry> {
+
+        /** Key identifying the credentials to resolve. */
+        private final MetadataCacheKey cacheKey;
+
+        /**
+         * Constructor.
+         * 
+         * @param key key identifying the credentials to resolve
+         */
+        public CredentialResolution(MetadataCacheKey key) {
+            cacheKey = key;
+        }
+
+        /** {@inheritDoc} */
+        public CacheEntry call() throws SecurityException {
+            // read the stamps before the metadata so a concurrent change causes revalidation and a concurrent
+            // invalidation keeps the entry out of the cache
+            int invalidation = cacheInvalidations.get();
+            int generation = metadataGeneration.get();
+            EntityDescriptor entityDescriptor;
+            try {
+                entityDescriptor = metadata.getEntityDescriptor(cacheKey.id);
+            } catch (MetadataProviderException e) {
+                log.error("Unable to read metadata from provider", e);
+                throw new SecurityException("Unable to read metadata provider", e);
+            }
+
+            Collection<Credential> credentials = retrieveFromMetadata(cacheKey.id, cacheKey.role, cacheKey.protocol,
+                    cacheKey.usage);
+            CacheEntry entry = new CacheEntry(credentials, entityDescriptor, generation);
+            if (getCacheSegment(cacheKey).put(cacheKey, entry, invalidation)) {
+                log.debug("Added new credential collection to cache with key: {}", cacheKey);
+            } else {
+                log.debug("Cache was invalidated while resolving credentials with key {}, not caching them", cacheKey);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Resolves the credentials of a batch of KeyDescriptors.
+     */
+    private class KeyDescriptorResolution implements Callable<Map<KeyDescriptor, Collection<Credential>>> {
+
+        /** KeyDescriptors to resolve. */
+        private final List<KeyDescriptor> keyDescriptors;
+
+        /**
+         * Constructor.
+         * 
+         * @param descriptors KeyDescriptors to resolve
+         */
+        public KeyDescriptorResolution(List<KeyDescriptor> descriptors) {
+            keyDescriptors = descriptors;
+        }
+
+        /** {@inheritDoc} */
+        public Map<KeyDescriptor, Collection<Credential>> call() {
+            Map<KeyDescriptor, Collection<Credential>> resolved;
+            resolved = new IdentityHashMap<KeyDescriptor, Collection<Credential>>(keyDescriptors.size());
+            for (KeyDescriptor keyDescriptor : keyDescriptors) {
+                XMLObject roleDescriptor = keyDescriptor.getParent();
+                if (roleDescriptor == null || !(roleDescriptor.getParent() instanceof EntityDescriptor)) {
+                    continue;
+                }
+                String entityID = ((EntityDescriptor) roleDescriptor.getParent()).getEntityID();
+
+                UsageType mdUsage = keyDescriptor.getUse();
+                if (mdUsage == null) {
+                    mdUsage = UsageType.UNSPECIFIED;
+                }
+
+                try {
+                    resolved.put(keyDescriptor, Collections.unmodifiableCollection(resolveKeyDescriptor(entityID,
+                            keyDescriptor, mdUsage)));
+                } catch (SecurityException e) {
+                    log.warn("Unable to resolve credentials of a KeyDescriptor of entity " + entityID, e);
+                }
+            }
+            return resolved;
+        }
+    }
+
+    /**
+     * Credentials resolved from metadata, together with the EntityDescriptor they were resolved from.
+     */
+    private static class CacheEntry {
+
+        /** The resolved credentials. */
+        private final Collection<Credential> credentials;
+
+        /** EntityDescriptor the credentials were resolved from, null if the entity was not found. */
+        private final WeakReference<EntityDescriptor> entityDescriptor;
+
+        /** Time, in milliseconds since the epoch, the credentials were resolved. */
+        private final long creationTime;
+
+        /** Metadata generation the entry was last known to be current in. */
+        private volatile int generation;
+
+        /**
+         * Constructor.
+         * 
+         * @param resolvedCredentials the resolved credentials
+         * @param descriptor EntityDescriptor the credentials were resolved from, may be null
+         * @param metadataGeneration metadata generation the credentials were resolved in
+         */
+        public CacheEntry(Collection<Credential> resolvedCredentials, EntityDescriptor descriptor,
+                int metadataGeneration) {
+            this(resolvedCredentials, descriptor, metadataGeneration, System.currentTimeMillis());
+        }
+
+        /**
+         * Constructor.
+         * 
+         * @param resolvedCredentials the resolved credentials
+         * @param descriptor EntityDescriptor the credentials were resolved from, may be null
+         * @param metadataGeneration metadata generation the credentials were resolved in
+         * @param resolutionTime time, in milliseconds since the epoch, the credentials were resolved
+         */
+        public CacheEntry(Collection<Credential> resolvedCredentials, EntityDescriptor descriptor,
+                int metadataGeneration, long resolutionTime) {
+            credentials = Collections.unmodifiableCollection(resolvedCredentials);
+            if (descriptor != null) {
+                entityDescriptor = new WeakReference<EntityDescriptor>(descriptor);
+            } else {
+                entityDescriptor = null;
+            }
+            creationTime = resolutionTime;
+            generation = metadataGeneration;
+        }
+
+        /**
+         * Gets the resolved credentials.
+         * 
+         * @return unmodifiable collection of the resolved credentials
+         */
+        public Collection<Credential> getCredentials() {
+            return credentials;
+        }
+
+        /**
+         * Gets the EntityDescriptor the credentials were resolved from.
+         * 
+         * @return EntityDescriptor the credentials were resolved from, null if the entity was not found or the
+         *         descriptor is no longer in use
+         */
+        public EntityDescriptor getEntityDescriptor() {
+            if (entityDescriptor == null) {
+                return null;
+            }
+            return entityDescriptor.get();
+        }
+
+        /**
+         * Gets the time the credentials were resolved.
+         * 
+         * @return time, in milliseconds since the epoch, the credentials were resolved
+         */
+        public long getCreationTime() {
+            return creationTime;
+        }
+
+        /**
+         * Gets the metadata generation the entry was last known to be current in.
+         * 
+         * @return metadata generation the entry was last known to be current in
+         */
+        public int getGeneration() {
+            return generation;
+        }
+
+        /**
+         * Sets the metadata generation the entry is known to be current in.
+         * 
+         * @param metadataGeneration metadata generation the entry is known to be current in
+         */
+        public void setGeneration(int metadataGeneration) {
+            generation = metadataGeneration;
+        }
+    }
+
+    /**
+     * A segment of the credential cache, holding its entries in least recently used order.
+     */
+    private class CacheSegment {
+
+        /** Entries of this segment, in least recently used order. */
+        private final LinkedHashMap<MetadataCacheKey, CacheEntry> entries;
+
+        /** Constructor. */
+        public CacheSegment() {
+            entries = new LinkedHashMap<MetadataCacheKey, CacheEntry>(16, 0.75f, true);
+        }
+
+        /**
+         * Gets a cache entry.
+         * 
+         * @param cacheKey the key of the entry
+         * 
+         * @return the entry or null
+         */
+        public synchronized CacheEntry get(MetadataCacheKey cacheKey) {
+            return entries.get(cacheKey);
+        }
+
+        /**
+         * Adds a cache entry, evicting the least recently used entries if the segment is full. The entry is not added
+         * if cached credentials were invalidated after it was resolved.
+         * 
+         * @param cacheKey the key of the entry
+         * @param entry the entry
+         * @param invalidation number of cache invalidations before the entry was resolved
+         * 
+         * @return true if the entry was added
+         */
+        public synchronized boolean put(MetadataCacheKey cacheKey, CacheEntry entry, int invalidation) {
+            // invalidations advance the stamp before taking the segment lock, so an entry put before the removal is
+            // removed by it and one put after it is rejected here
+            if (cacheInvalidations.get() != invalidation) {
+                return false;
+            }
+            entries.put(cacheKey, entry);
+
+            int maxEntries = Math.max(1, (maxCacheSize + CACHE_SEGMENTS - 1) / CACHE_SEGMENTS);
+            Iterator<CacheEntry> entryIterator = entries.values().iterator();
+            while (entries.size() > maxEntries && entryIterator.hasNext()) {
+                entryIterator.next();
+                entryIterator.remove();
+                cacheEvictions.incrementAndGet();
+            }
+            return true;
+        }
+
+        /**
+         * Replaces a cache entry if it has not been replaced or removed since it was read, and cached credentials have
+         * not been invalidated since then.
+         * 
+         * @param cacheKey the key of the entry
+         * @param entry the entry to replace
+         * @param newEntry the replacement entry
+         * @param invalidation number of cache invalidations before the entry was read
+         */
+        public synchronized void replace(MetadataCacheKey cacheKey, CacheEntry entry, CacheEntry newEntry,
+                int invalidation) {
+            if (cacheInvalidations.get() == invalidation && entries.get(cacheKey) == entry) {
+                entries.put(cacheKey, newEntry);
+            }
+        }
+
+        /**
+         * Removes a cache entry if it has not been replaced.
+         * 
+         * @param cacheKey the key of the entry
+         * @param entry the entry
+         */
+        public synchronized void remove(MetadataCacheKey cacheKey, CacheEntry entry) {
+            if (entries.get(cacheKey) == entry) {
+                entries.remove(cacheKey);
+            }
+        }
+
+        /**
+         * Removes the entries of a set of entities.
+         * 
+         * @param entityIDs IDs of the entities
+         * 
+         * @return number of entries removed
+         */
+        public synchronized int removeEntities(Set<String> entityIDs) {
+            int removed = 0;
+            Iterator<MetadataCacheKey> keyIterator = entries.keySet().iterator();
+            while (keyIterator.hasNext()) {
+                if (entityIDs.contains(keyIterator.next().id)) {
+                    keyIterator.remove();
+                    removed++;
+                }
+            }
+            return removed;
+        }
+
+        /** Removes all entries. */
+        public synchronized void clear() {
+            entries.clear();
+        }
+
+        /**
+         * Gets the number of entries.
+         * 
+         * @return number of entries
+         */
+        public synchronized int size() {
+            return entries.size();
         }
     }
 
@@ -428,21 +1391,38 @@ public class MetadataCredentialResolver extends AbstractCriteriaFilteringCredent
     }
 
     /**
-     * An observer that clears the credential cache if the underlying metadata changes.
+     * An observer that, when the underlying metadata changes, invalidates the cached credentials of the entities that
+     * changed and causes all other cached credentials to be revalidated. If the change event does not report which
+     * entities changed, revalidated entries are kept only if the entity's EntityDescriptor is still the one they were
+     * resolved from; otherwise they are rebound to the entity's current EntityDescriptor. Either way no entry keeps a
+     * replaced metadata tree reachable through the KeyDescriptors of its credential contexts.
      */
-    protected class MetadataProviderObserver implements ObservableMetadataProvider.Observer {
+    protected class MetadataProviderObserver implements ObservableMetadataProvider.ChangeObserver {
 
         /** {@inheritDoc} */
         public void onEvent(MetadataProvider provider) {
-            Lock writeLock = getReadWriteLock().writeLock();
-            writeLock.lock();
-            log.trace("Write lock over cache acquired");
-            try {
-                cache.clear();
-                log.info("Credential cache cleared");
-            } finally {
-                writeLock.unlock();
-                log.trace("Write lock over cache released"); 
+            onEvent(provider, null);
+        }
+
+        /** {@inheritDoc} */
+        public void onEvent(MetadataProvider provider, MetadataChangeEvent event) {
+            if (event == null) {
+                synchronized (metadataGeneration) {
+                    // published before the generation advances, so no entry of the previous generation is rebound
+                    lastUntrackedGeneration = metadataGeneration.get() + 1;
+                    metadataGeneration.incrementAndGet();
+                }
+                log.info("Metadata changed, cached credentials will be revalidated");
+            } else {
+                invalidateCredentials(event.getChangedEntityIDs());
+                synchronized (metadataGeneration) {
+                    metadataGeneration.incrementAndGet();
+                }
+                log.info("Metadata changed, cached credentials of changed entities invalidated, others will be "
+                        + "rebound to the new metadata: {}", event);
+            }
+            if (isEagerCredentialResolution()) {
+                resolveAllCredentials();
             }
         }
     }
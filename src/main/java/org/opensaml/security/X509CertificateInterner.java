@@ -0,0 +1,272 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.security;
+
+import java.io.ByteArrayInputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opensaml.xml.util.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Interns X.509 certificates so that identical certificates, for example the signing certificate shared by the
+ * entities of a hosting provider, or the unchanged certificates of metadata that is refreshed, are represented by a
+ * single {@link X509Certificate} instance, and so a single {@link java.security.PublicKey} instance.
+ *
+ * Certificates are identified by the SHA-256 digest of their DER encoding. Interned certificates are only weakly
+ * referenced and are dropped once no longer in use elsewhere.
+ */
+public class X509CertificateInterner {
+
+    /** Class logger. */
+    private final Logger log = LoggerFactory.getLogger(X509CertificateInterner.class);
+
+    /** Interned certificates, indexed by the digest of their DER encoding. */
+    private final Map<String, CertificateReference> certificates;
+
+    /** Queue of references to certificates that are no longer in use. */
+    private final ReferenceQueue<X509Certificate> collectedCertificates;
+
+    /** Number of certificates passed to this interner. */
+    private long lookups;
+
+    /** Number of certificates for which an already interned certificate was returned. */
+    private long hits;
+
+    /** Constructor. */
+    public X509CertificateInterner() {
+        certificates = new HashMap<String, CertificateReference>();
+        collectedCertificates = new ReferenceQueue<X509Certificate>();
+    }
+
+    /**
+     * Gets the interned instance of a certificate. If no identical certificate has been interned the given
+     * certificate becomes the interned instance.
+     *
+     * @param certificate the certificate, may be null
+     *
+     * @return the interned instance of the certificate, or the given certificate if it can not be encoded
+     */
+    public X509Certificate intern(X509Certificate certificate) {
+        if (certificate == null) {
+            return null;
+        }
+
+        String digest;
+        try {
+            digest = computeDigest(certificate.getEncoded());
+        } catch (CertificateEncodingException e) {
+            log.debug("Unable to encode certificate, it will not be interned", e);
+            return certificate;
+        }
+        if (digest == null) {
+            return certificate;
+        }
+
+        synchronized (this) {
+            X509Certificate interned = lookup(digest, true);
+            if (interned != null) {
+                return interned;
+            }
+            certificates.put(digest, new CertificateReference(digest, certificate, collectedCertificates));
+            return certificate;
+        }
+    }
+
+    /**
+     * Gets the interned instance of a DER encoded certificate. The certificate is only decoded if no identical
+     * certificate has been interned.
+     *
+     * @param encodedCertificate the DER encoded certificate
+     *
+     * @return the interned instance of the certificate
+     *
+     * @throws CertificateException thrown if the certificate can not be decoded
+     */
+    public X509Certificate intern(byte[] encodedCertificate) throws CertificateException {
+        String digest = computeDigest(encodedCertificate);
+        if (digest != null) {
+            synchronized (this) {
+                X509Certificate interned = lookup(digest, true);
+                if (interned != null) {
+                    return interned;
+                }
+            }
+        }
+
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        X509Certificate certificate = (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(
+                encodedCertificate));
+        if (digest == null) {
+            return certificate;
+        }
+
+        synchronized (this) {
+            // the certificate was already counted, only check whether it was interned while it was decoded
+            X509Certificate interned = lookup(digest, false);
+            if (interned != null) {
+                return interned;
+            }
+            certificates.put(digest, new CertificateReference(digest, certificate, collectedCertificates));
+            return certificate;
+        }
+    }
+
+    /**
+     * Gets the number of certificates currently interned.
+     *
+     * @return number of certificates currently interned
+     */
+    public synchronized int getSize() {
+        purgeCollectedCertificates();
+        return certificates.size();
+    }
+
+    /**
+     * Gets the number of certificates passed to this interner.
+     *
+     * @return number of certificates passed to this interner
+     */
+    public synchronized long getLookupCount() {
+        return lookups;
+    }
+
+    /**
+     * Gets the number of certificates for which an already interned, identical, certificate was returned.
+     *
+     * @return number of certificates for which an already interned certificate was returned
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Gets the fraction of the certificates passed to this interner that were duplicates of an already interned
+     * certificate.
+     *
+     * @return fraction, between 0 and 1, of certificates that were duplicates
+     */
+    public synchronized double getDeduplicationRatio() {
+        if (lookups == 0) {
+            return 0;
+        }
+        return (double) hits / lookups;
+    }
+
+    /** Removes all interned certificates. */
+    public synchronized void clear() {
+        certificates.clear();
+        purgeCollectedCertificates();
+    }
+
+    /**
+     * Looks up an interned certificate, updating the lookup statistics. Must be called while holding the lock of this
+     * interner.
+     *
+     * @param digest the digest of the certificate
+     * @param countLookup whether the lookup is counted, false if the certificate was already counted
+     *
+     * @return the interned certificate or null
+     */
+    private X509Certificate lookup(String digest, boolean countLookup) {
+        purgeCollectedCertificates();
+        if (countLookup) {
+            lookups++;
+        }
+        CertificateReference reference = certificates.get(digest);
+        if (reference != null) {
+            X509Certificate interned = reference.get();
+            if (interned != null) {
+                hits++;
+                return interned;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the entries of certificates that are no longer in use. Must be called while holding the lock of this
+     * interner.
+     */
+    private void purgeCollectedCertificates() {
+        CertificateReference reference = (CertificateReference) collectedCertificates.poll();
+        while (reference != null) {
+            if (certificates.get(reference.getDigest()) == reference) {
+                certificates.remove(reference.getDigest());
+            }
+            reference = (CertificateReference) collectedCertificates.poll();
+        }
+    }
+
+    /**
+     * Computes the digest identifying a certificate.
+     *
+     * @param encodedCertificate the DER encoded certificate
+     *
+     * @return the digest or null if it can not be computed
+     */
+    private String computeDigest(byte[] encodedCertificate) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.encodeBytes(digest.digest(encodedCertificate), Base64.DONT_BREAK_LINES);
+        } catch (NoSuchAlgorithmException e) {
+            log.error("SHA-256 is not supported, unable to intern certificates", e);
+            return null;
+        }
+    }
+
+    /**
+     * A weak reference to an interned certificate that remembers the certificate's digest.
+     */
+    private static class CertificateReference extends WeakReference<X509Certificate> {
+
+        /** Digest of the certificate. */
+        private final String digest;
+
+        /**
+         * Constructor.
+         *
+         * @param certificateDigest digest of the certificate
+         * @param certificate the certificate
+         * @param queue queue the reference is registered with
+         */
+        public CertificateReference(String certificateDigest, X509Certificate certificate,
+                ReferenceQueue<X509Certificate> queue) {
+            super(certificate, queue);
+            digest = certificateDigest;
+        }
+
+        /**
+         * Gets the digest of the certificate.
+         *
+         * @return digest of the certificate
+         */
+        public String getDigest() {
+            return digest;
+        }
+    }
+}
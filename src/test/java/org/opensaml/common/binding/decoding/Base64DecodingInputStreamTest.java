@@ -0,0 +1,82 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.common.binding.decoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.opensaml.common.BaseTestCase;
+import org.opensaml.xml.util.Base64;
+
+/**
+ * Tests for {@link Base64DecodingInputStream}.
+ */
+public class Base64DecodingInputStreamTest extends BaseTestCase {
+
+    /**
+     * Tests that data of every padding length is decoded to the bytes it encodes.
+     */
+    public void testDecoding() throws IOException {
+        for (int length = 0; length < 64; length++) {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = (byte) (i * 37);
+            }
+            String encoded = Base64.encodeBytes(data);
+            assertTrue("Data of length " + length + " was not decoded correctly", Arrays.equals(data,
+                    readAll(new Base64DecodingInputStream(encoded))));
+        }
+    }
+
+    /**
+     * Tests that invalid data is rejected.
+     */
+    public void testInvalidData() {
+        String[] invalid = { "QUJD*", "Q", "QQ==QQ", "=QUJ" };
+        for (String encoded : invalid) {
+            try {
+                readAll(new Base64DecodingInputStream(encoded));
+                fail("Invalid Base64 data '" + encoded + "' was decoded");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * Reads a stream to its end, one byte and then blocks at a time.
+     *
+     * @param in the stream
+     *
+     * @return the contents of the stream
+     */
+    private byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int first = in.read();
+        if (first == -1) {
+            return out.toByteArray();
+        }
+        out.write(first);
+        byte[] buffer = new byte[5];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
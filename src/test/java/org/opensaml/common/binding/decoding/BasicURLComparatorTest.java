@@ -0,0 +1,134 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.common.binding.decoding;
+
+import java.net.URISyntaxException;
+
+import org.opensaml.common.BaseTestCase;
+
+/**
+ * Tests for {@link BasicURLComparator}.
+ */
+public class BasicURLComparatorTest extends BaseTestCase {
+
+    /** Comparator under test. */
+    private BasicURLComparator comparator;
+
+    /** Number of URLs normalized by the comparator under test, if it counts them. */
+    private int normalizations;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        comparator = new BasicURLComparator();
+    }
+
+    /**
+     * Tests URLs which are equivalent.
+     */
+    public void testEquivalentURLs() throws URISyntaxException {
+        assertTrue(comparator.compare("https://sp.example.org/acs", "https://sp.example.org/acs"));
+        assertTrue(comparator.compare("HTTPS://SP.Example.ORG/acs", "https://sp.example.org/acs"));
+        assertTrue(comparator.compare("https://sp.example.org:443/acs", "https://sp.example.org/acs"));
+        assertTrue(comparator.compare("http://sp.example.org:80/acs", "http://sp.example.org/acs"));
+        assertTrue(comparator.compare("https://sp.example.org/a%63s", "https://sp.example.org/acs"));
+        assertTrue(comparator.compare("https://sp.example.org", "https://sp.example.org/"));
+        assertTrue(comparator.compare("https://sp_1.example.org:8443/acs", "https://SP_1.example.org:8443/acs"));
+    }
+
+    /**
+     * Tests URLs which are not equivalent.
+     */
+    public void testDifferentURLs() throws URISyntaxException {
+        assertFalse(comparator.compare("https://sp.example.org/acs", "http://sp.example.org/acs"));
+        assertFalse(comparator.compare("https://sp.example.org:8443/acs", "https://sp.example.org/acs"));
+        assertFalse(comparator.compare("https://sp.example.org/ACS", "https://sp.example.org/acs"));
+        assertFalse(comparator.compare("https://idp.example.org/acs", "https://sp.example.org/acs"));
+        assertFalse(comparator.compare("https://sp.example.org/acs?x=1", "https://sp.example.org/acs"));
+        assertFalse(comparator.compare("https://sp.example.org/a%3Fb", "https://sp.example.org/a?b"));
+    }
+
+    /**
+     * Tests that malformed URLs are rejected.
+     */
+    public void testMalformedURLs() {
+        try {
+            comparator.compare("urn:example:acs", "https://sp.example.org/acs");
+            fail("Opaque URI was accepted");
+        } catch (URISyntaxException e) {
+            assertEquals("urn:example:acs", e.getInput());
+        }
+
+        try {
+            comparator.compare("https://sp.example.org/acs", "https://sp.example.org/a cs");
+            fail("Malformed URL was accepted");
+        } catch (URISyntaxException e) {
+            assertEquals("https://sp.example.org/a cs", e.getInput());
+        }
+    }
+
+    /**
+     * Tests that at most the configured number of receiver endpoints are cached.
+     */
+    public void testEndpointCache() throws URISyntaxException {
+        comparator = new BasicURLComparator(2);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(comparator.compare("https://sp.example.org/acs" + i, "https://sp.example.org/acs" + i));
+        }
+        assertEquals("Unexpected number of cached endpoints", 2, comparator.getCachedEndpointCount());
+    }
+
+    /**
+     * Tests that the least recently used receiver endpoint is evicted from a full cache.
+     */
+    public void testEndpointCacheEviction() throws URISyntaxException {
+        comparator = new BasicURLComparator(2) {
+
+            /** {@inheritDoc} */
+            protected NormalizedURL normalize(String url) throws URISyntaxException {
+                normalizations++;
+                return super.normalize(url);
+            }
+        };
+        comparator.compare("https://sp.example.org/acs0", "https://sp.example.org/acs0");
+        comparator.compare("https://sp.example.org/acs1", "https://sp.example.org/acs1");
+        comparator.compare("https://sp.example.org/acs0", "https://sp.example.org/acs0");
+        comparator.compare("https://sp.example.org/acs2", "https://sp.example.org/acs2");
+
+        normalizations = 0;
+        comparator.compare("https://sp.example.org/acs0", "https://sp.example.org/acs0");
+        assertEquals("Recently used endpoint was evicted", 1, normalizations);
+        comparator.compare("https://sp.example.org/acs1", "https://sp.example.org/acs1");
+        assertEquals("Least recently used endpoint was not evicted", 3, normalizations);
+    }
+
+    /**
+     * Tests that host names are compared as written rather than resolved: {@link java.net.URL#equals(Object)}, which
+     * resolves host names, considers URLs of localhost and of 127.0.0.1 equal, while they differ here, and hosts in
+     * the reserved .invalid domain, which can not be resolved, are still compared.
+     */
+    public void testNoHostResolution() throws URISyntaxException {
+        assertFalse("Resolved host names were compared", comparator.compare("http://localhost/acs",
+                "http://127.0.0.1/acs"));
+        assertFalse("Resolved host names were compared", comparator.compare("http://127.0.0.1/acs",
+                "http://localhost/acs"));
+
+        assertTrue(comparator.compare("https://SP.unresolvable.invalid:443/SAML2/POST",
+                "https://sp.unresolvable.invalid/SAML2/POST"));
+        assertFalse(comparator.compare("https://sp.unresolvable.invalid/SAML2/POST",
+                "https://idp.unresolvable.invalid/SAML2/POST"));
+    }
+}
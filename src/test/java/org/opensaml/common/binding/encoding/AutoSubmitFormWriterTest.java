@@ -0,0 +1,80 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.common.binding.encoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.opensaml.common.BaseTestCase;
+
+/**
+ * Tests for {@link AutoSubmitFormWriter}.
+ */
+public class AutoSubmitFormWriterTest extends BaseTestCase {
+
+    /**
+     * Tests that the action and controls are written, in order and HTML escaped, as UTF-8.
+     */
+    public void testWriteForm() throws IOException {
+        Map<String, String> controls = new LinkedHashMap<String, String>();
+        controls.put("RelayState", "<a href='x'>\u00e9 & \"y\"</a>");
+        controls.put("Omitted", null);
+        controls.put("SAMLResponse", "PHNhbWw+");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new AutoSubmitFormWriter(out).writeForm("https://sp.example.org/acs?a=1&b=2", controls);
+        String page = new String(out.toByteArray(), "UTF-8");
+
+        assertTrue("Page does not submit the form", page.indexOf("onload=\"document.forms[0].submit()\"") != -1);
+        assertTrue("Action not found",
+                page.indexOf("<form action=\"https://sp.example.org/acs?a=1&amp;b=2\" method=\"post\">") != -1);
+
+        int relayState = page.indexOf("<input type=\"hidden\" name=\"RelayState\" "
+                + "value=\"&lt;a href=&#39;x&#39;&gt;\u00e9 &amp; &quot;y&quot;&lt;/a&gt;\"/>");
+        int response = page.indexOf("<input type=\"hidden\" name=\"SAMLResponse\" value=\"PHNhbWw+\"/>");
+        assertTrue("RelayState not found", relayState != -1);
+        assertTrue("SAMLResponse not found", response != -1);
+        assertTrue("Controls out of order", relayState < response);
+        assertEquals("Control with null value was written", -1, page.indexOf("Omitted"));
+        assertTrue("Page not complete", page.endsWith("</html>\n"));
+    }
+
+    /**
+     * Tests that a control value streamed through the writer returned by startControl is HTML escaped.
+     */
+    public void testStreamedControl() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AutoSubmitFormWriter form = new AutoSubmitFormWriter(out);
+        form.startForm("https://sp.example.org/acs");
+        Writer value = form.startControl("SAMLResponse");
+        value.write("PHN".toCharArray());
+        value.write("<\">", 1, 1);
+        value.write('&');
+        value.close();
+        form.endControl();
+        form.writeControl("RelayState", "relay");
+        form.endForm();
+        String page = new String(out.toByteArray(), "UTF-8");
+
+        assertTrue("Streamed control not found",
+                page.indexOf("<input type=\"hidden\" name=\"SAMLResponse\" value=\"PHN&quot;&amp;\"/>") != -1);
+        assertTrue("RelayState not found",
+                page.indexOf("<input type=\"hidden\" name=\"RelayState\" value=\"relay\"/>") != -1);
+    }
+}
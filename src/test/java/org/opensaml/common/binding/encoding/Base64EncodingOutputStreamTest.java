@@ -0,0 +1,94 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.common.binding.encoding;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.opensaml.common.BaseTestCase;
+import org.opensaml.xml.util.Base64;
+
+/**
+ * Tests for {@link Base64EncodingOutputStream}.
+ */
+public class Base64EncodingOutputStreamTest extends BaseTestCase {
+
+    /**
+     * Tests that data of every padding length, written at once and byte by byte, is encoded as by {@link Base64}.
+     */
+    public void testEncoding() throws IOException {
+        for (int length = 0; length < 64; length++) {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = (byte) (i * 37);
+            }
+            String expected = Base64.encodeBytes(data, Base64.DONT_BREAK_LINES);
+
+            StringWriter writer = new StringWriter();
+            Base64EncodingOutputStream out = new Base64EncodingOutputStream(writer, 8);
+            out.write(data, 0, data.length);
+            out.finish();
+            assertEquals("Unexpected encoding of " + length + " bytes", expected, writer.toString());
+
+            writer = new StringWriter();
+            out = new Base64EncodingOutputStream(writer, 8);
+            for (int i = 0; i < length; i++) {
+                out.write(data[i]);
+            }
+            out.close();
+            assertEquals("Unexpected encoding of " + length + " single bytes", expected, writer.toString());
+        }
+    }
+
+    /**
+     * Tests that data written in chunks not aligned to Base64 quanta is encoded as by {@link Base64}.
+     */
+    public void testUnalignedWrites() throws IOException {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+
+        StringWriter writer = new StringWriter();
+        Base64EncodingOutputStream out = new Base64EncodingOutputStream(writer);
+        int offset = 0;
+        int chunk = 1;
+        while (offset < data.length) {
+            int length = Math.min(chunk, data.length - offset);
+            out.write(data, offset, length);
+            offset += length;
+            chunk = chunk % 7 + 1;
+        }
+        out.finish();
+
+        assertEquals("Unexpected encoding", Base64.encodeBytes(data, Base64.DONT_BREAK_LINES), writer.toString());
+    }
+
+    /**
+     * Tests that no more data may be written once the encoding is finished.
+     */
+    public void testWriteAfterFinish() throws IOException {
+        Base64EncodingOutputStream out = new Base64EncodingOutputStream(new StringWriter());
+        out.write(1);
+        out.finish();
+        try {
+            out.write(2);
+            fail("Data was written after the encoding was finished");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -212,6 +212,38 @@ public class HTTPRedirectDeflateDecoderTest extends BaseTestCase {
         }
     }
     
+    /**
+     * Tests that a message which inflates to more than the maximum inflated message size is rejected.
+     */
+    public void testMaxInflatedMessageSize() throws Exception {
+        StringBuilder message = new StringBuilder("<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\"");
+        for (int i = 0; i < 100000; i++) {
+            message.append(' ');
+        }
+        message.append("/>");
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        DeflaterOutputStream deflaterStream = new DeflaterOutputStream(bytesOut, new Deflater(Deflater.DEFLATED, true));
+        deflaterStream.write(message.toString().getBytes("UTF-8"));
+        deflaterStream.finish();
+        httpRequest.setParameter("SAMLRequest", Base64.encodeBytes(bytesOut.toByteArray(), Base64.DONT_BREAK_LINES));
+
+        HTTPRedirectDeflateDecoder boundedDecoder = new HTTPRedirectDeflateDecoder();
+        boundedDecoder.setMaxInflatedMessageSize(8192);
+        try {
+            boundedDecoder.decode(messageContext);
+            fail("Message exceeding the maximum inflated size was decoded");
+        } catch (MessageDecodingException e) {
+            // expected
+        }
+
+        // the inflater was returned to the pool, a valid message can still be decoded
+        AuthnRequest samlRequest = (AuthnRequest) unmarshallElement("/data/org/opensaml/saml2/binding/AuthnRequest.xml");
+        samlRequest.setDestination(null);
+        httpRequest.setParameter("SAMLRequest", encodeMessage(samlRequest));
+        boundedDecoder.decode(messageContext);
+        assertTrue(messageContext.getInboundSAMLMessage() instanceof AuthnRequest);
+    }
+
     private void populateRequestURL(MockHttpServletRequest request, String requestURL) {
         URL url = null;
         try {
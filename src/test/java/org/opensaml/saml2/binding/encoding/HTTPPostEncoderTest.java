@@ -24,12 +24,15 @@ import org.opensaml.common.SAMLObjectBuilder;
 import org.opensaml.common.SAMLVersion;
 import org.opensaml.common.binding.BasicSAMLMessageContext;
 import org.opensaml.saml2.core.AuthnRequest;
+import org.opensaml.saml2.core.Issuer;
 import org.opensaml.saml2.core.Response;
 import org.opensaml.saml2.core.Status;
 import org.opensaml.saml2.core.StatusCode;
 import org.opensaml.saml2.metadata.AssertionConsumerService;
 import org.opensaml.saml2.metadata.Endpoint;
 import org.opensaml.ws.transport.http.HttpServletResponseAdapter;
+import org.opensaml.xml.util.Base64;
+import org.opensaml.xml.util.XMLHelper;
 import org.springframework.mock.web.MockHttpServletResponse;
 
 /**
@@ -137,4 +140,100 @@ public class HTTPPostEncoderTest extends BaseTestCase {
         assertEquals("Unexpected cache controls", "no-cache, no-store", response.getHeader("Cache-control"));
         assertEquals(-243324550, response.getContentAsString().hashCode());
     }
+
+    /**
+     * Tests encoding a SAML message without a Velocity template.
+     * 
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    public void testRequestEncodingWithoutVelocity() throws Exception {
+        SAMLObjectBuilder<AuthnRequest> responseBuilder = (SAMLObjectBuilder<AuthnRequest>) builderFactory
+                .getBuilder(AuthnRequest.DEFAULT_ELEMENT_NAME);
+        AuthnRequest samlMessage = responseBuilder.buildObject();
+        samlMessage.setID("foo");
+        samlMessage.setVersion(SAMLVersion.VERSION_20);
+        samlMessage.setIssueInstant(new DateTime(0));
+
+        SAMLObjectBuilder<Endpoint> endpointBuilder = (SAMLObjectBuilder<Endpoint>) builderFactory
+                .getBuilder(AssertionConsumerService.DEFAULT_ELEMENT_NAME);
+        Endpoint samlEndpoint = endpointBuilder.buildObject();
+        samlEndpoint.setLocation("http://example.org/sso?a=1&b=2");
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        HttpServletResponseAdapter outTransport = new HttpServletResponseAdapter(response, false);
+
+        BasicSAMLMessageContext messageContext = new BasicSAMLMessageContext();
+        messageContext.setOutboundMessageTransport(outTransport);
+        messageContext.setPeerEntityEndpoint(samlEndpoint);
+        messageContext.setOutboundSAMLMessage(samlMessage);
+        messageContext.setRelayState("\"><script>relay</script>");
+
+        HTTPPostEncoder encoder = new HTTPPostEncoder();
+        encoder.encode(messageContext);
+
+        assertEquals("Unexpected content type", "text/html", response.getContentType());
+        assertEquals("Unexpected character encoding", response.getCharacterEncoding(), "UTF-8");
+        assertEquals("Unexpected cache controls", "no-cache, no-store", response.getHeader("Cache-control"));
+
+        String form = response.getContentAsString();
+        String encodedMessage = Base64.encodeBytes(XMLHelper.nodeToString(samlMessage.getDOM()).getBytes("UTF-8"),
+                Base64.DONT_BREAK_LINES);
+        assertTrue("Form action not found", form.indexOf("action=\"http://example.org/sso?a=1&amp;b=2\"") != -1);
+        assertTrue("SAMLRequest not found",
+                form.indexOf("name=\"SAMLRequest\" value=\"" + encodedMessage + "\"") != -1);
+        assertTrue("RelayState not escaped", form
+                .indexOf("name=\"RelayState\" value=\"&quot;&gt;&lt;script&gt;relay&lt;/script&gt;\"") != -1);
+    }
+
+    /**
+     * Tests that a message streamed into the POST body is serialized as UTF-8, regardless of the platform's default
+     * character set.
+     * 
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    public void testStreamedResponseEncoding() throws Exception {
+        SAMLObjectBuilder<Issuer> issuerBuilder = (SAMLObjectBuilder<Issuer>) builderFactory
+                .getBuilder(Issuer.DEFAULT_ELEMENT_NAME);
+        Issuer issuer = issuerBuilder.buildObject();
+        issuer.setValue("urn:example:\u00e9metteur:\u6771\u4eac");
+
+        SAMLObjectBuilder<Response> responseBuilder = (SAMLObjectBuilder<Response>) builderFactory
+                .getBuilder(Response.DEFAULT_ELEMENT_NAME);
+        Response samlMessage = responseBuilder.buildObject();
+        samlMessage.setID("foo");
+        samlMessage.setVersion(SAMLVersion.VERSION_20);
+        samlMessage.setIssueInstant(new DateTime(0));
+        samlMessage.setIssuer(issuer);
+
+        SAMLObjectBuilder<Endpoint> endpointBuilder = (SAMLObjectBuilder<Endpoint>) builderFactory
+                .getBuilder(AssertionConsumerService.DEFAULT_ELEMENT_NAME);
+        Endpoint samlEndpoint = endpointBuilder.buildObject();
+        samlEndpoint.setLocation("http://example.org");
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        HttpServletResponseAdapter outTransport = new HttpServletResponseAdapter(response, false);
+
+        BasicSAMLMessageContext messageContext = new BasicSAMLMessageContext();
+        messageContext.setOutboundMessageTransport(outTransport);
+        messageContext.setPeerEntityEndpoint(samlEndpoint);
+        messageContext.setOutboundSAMLMessage(samlMessage);
+
+        HTTPPostEncoder encoder = new HTTPPostEncoder();
+        encoder.encode(messageContext);
+
+        String form = response.getContentAsString();
+        String prefix = "name=\"SAMLResponse\" value=\"";
+        int start = form.indexOf(prefix);
+        assertTrue("SAMLResponse not found", start != -1);
+        start += prefix.length();
+        String encodedMessage = form.substring(start, form.indexOf('"', start));
+        String message = new String(Base64.decode(encodedMessage), "UTF-8");
+
+        assertEquals("Unexpected message", XMLHelper.nodeToString(samlMessage.getDOM()), message);
+        assertTrue("Issuer was not serialized as UTF-8",
+                message.indexOf("urn:example:\u00e9metteur:\u6771\u4eac") > 0);
+        assertEquals("RelayState was written", -1, form.indexOf("RelayState"));
+    }
 }
\ No newline at end of file
@@ -16,14 +16,20 @@
 
 package org.opensaml.saml2.binding.encoding;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.net.URL;
 import java.security.KeyPair;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.joda.time.DateTime;
 import org.opensaml.common.BaseTestCase;
 import org.opensaml.common.SAMLObjectBuilder;
 import org.opensaml.common.SAMLVersion;
 import org.opensaml.common.binding.BasicSAMLMessageContext;
+import org.opensaml.common.binding.decoding.Base64DecodingInputStream;
+import org.opensaml.saml2.core.Issuer;
 import org.opensaml.saml2.core.Response;
 import org.opensaml.saml2.core.Status;
 import org.opensaml.saml2.core.StatusCode;
@@ -148,4 +154,43 @@ public class HTTPRedirectDeflateEncoderTest extends BaseTestCase {
         // Note: to test that actual signature is cryptographically correct, really need a known good test vector.
         // Need to verify that we're signing over the right data in the right byte[] encoded form.
     }
+
+    /**
+     * Tests that the message is serialized as UTF-8, regardless of the platform's default character set, and that
+     * the encoder can be used repeatedly.
+     * 
+     * @throws Exception
+     */
+    @SuppressWarnings("unchecked")
+    public void testDeflateAndBase64Encode() throws Exception {
+        SAMLObjectBuilder<Issuer> issuerBuilder = (SAMLObjectBuilder<Issuer>) builderFactory
+                .getBuilder(Issuer.DEFAULT_ELEMENT_NAME);
+        Issuer issuer = issuerBuilder.buildObject();
+        issuer.setValue("urn:example:\u00e9metteur:\u6771\u4eac");
+
+        SAMLObjectBuilder<Response> responseBuilder = (SAMLObjectBuilder<Response>) builderFactory
+                .getBuilder(Response.DEFAULT_ELEMENT_NAME);
+        Response samlMessage = responseBuilder.buildObject();
+        samlMessage.setID("foo");
+        samlMessage.setVersion(SAMLVersion.VERSION_20);
+        samlMessage.setIssueInstant(new DateTime(0));
+        samlMessage.setIssuer(issuer);
+
+        HTTPRedirectDeflateEncoder encoder = new HTTPRedirectDeflateEncoder();
+        String first = encoder.deflateAndBase64Encode(samlMessage);
+        String second = encoder.deflateAndBase64Encode(samlMessage);
+        assertEquals("Repeated encodings differ", first, second);
+
+        InputStream in = new InflaterInputStream(new Base64DecodingInputStream(first), new Inflater(true));
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            inflated.write(buffer, 0, read);
+        }
+        String message = new String(inflated.toByteArray(), "UTF-8");
+
+        assertTrue("Issuer was not serialized as UTF-8",
+                message.indexOf("urn:example:\u00e9metteur:\u6771\u4eac") > 0);
+    }
 }
\ No newline at end of file
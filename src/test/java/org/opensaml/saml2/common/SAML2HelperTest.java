@@ -0,0 +1,97 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.opensaml.saml2.common;
+
+import org.joda.time.DateTime;
+import org.opensaml.common.BaseTestCase;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+
+/**
+ * Tests for {@link SAML2Helper}.
+ */
+public class SAML2HelperTest extends BaseTestCase {
+
+    /** Instant the expirations are computed relative to. */
+    private DateTime now;
+
+    /** Metadata whose expiration is computed. */
+    private EntitiesDescriptor entities;
+
+    /** Child of the metadata whose expiration is computed. */
+    private EntityDescriptor entity;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        now = new DateTime();
+        entities = (EntitiesDescriptor) buildXMLObject(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+        entity = (EntityDescriptor) buildXMLObject(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        entity.setEntityID("urn:example:entity");
+        entities.getEntityDescriptors().add(entity);
+    }
+
+    /**
+     * Tests that the given expiration is returned if the metadata carries neither a validUntil nor a cacheDuration.
+     */
+    public void testNoExpiration() {
+        DateTime defaultExpiration = now.plusHours(24);
+        assertEquals("Default expiration was not returned", defaultExpiration, SAML2Helper.getEarliestExpiration(
+                entities, defaultExpiration, now));
+        assertNull("Expiration was returned for metadata without expiration", SAML2Helper.getEarliestExpiration(
+                entities, null, now));
+    }
+
+    /**
+     * Tests that a validUntil earlier than the given expiration is returned.
+     */
+    public void testValidUntil() {
+        DateTime validUntil = now.plusHours(2);
+        entities.setValidUntil(validUntil);
+        assertEquals("validUntil was not returned", validUntil, SAML2Helper.getEarliestExpiration(entities, now
+                .plusHours(24), now));
+        assertEquals("Earlier default expiration was not returned", now.plusHours(1), SAML2Helper
+                .getEarliestExpiration(entities, now.plusHours(1), now));
+    }
+
+    /**
+     * Tests that the cacheDuration of a descendant, added to the given current time, is returned if it is the earliest
+     * expiration.
+     */
+    public void testCacheDuration() {
+        entities.setValidUntil(now.plusHours(2));
+        entity.setCacheDuration(new Long(30 * 60 * 1000));
+        assertEquals("cacheDuration was not returned", now.plusMinutes(30), SAML2Helper.getEarliestExpiration(
+                entities, now.plusHours(24), now));
+
+        entity.setCacheDuration(new Long(3 * 60 * 60 * 1000));
+        assertEquals("Earlier validUntil was not returned", now.plusHours(2), SAML2Helper.getEarliestExpiration(
+                entities, now.plusHours(24), now));
+    }
+
+    /**
+     * Tests that the earliest expiration is computed relative to the current time.
+     */
+    public void testCurrentTime() {
+        entity.setCacheDuration(new Long(60 * 1000));
+        assertTrue("Expiration was not computed relative to the current time", SAML2Helper.getEarliestExpiration(
+                entities).isAfterNow());
+        assertEquals("Expiration was not computed relative to the given time", now.plusMinutes(1), SAML2Helper
+                .getEarliestExpiration(entities, null, now));
+    }
+}
@@ -16,6 +16,8 @@
 
 package org.opensaml.saml2.metadata.impl;
 
+import java.util.List;
+
 import javax.xml.namespace.QName;
 
 import org.joda.time.DateTime;
@@ -32,6 +34,7 @@ import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml2.metadata.IDPSSODescriptor;
 import org.opensaml.saml2.metadata.Organization;
 import org.opensaml.saml2.metadata.PDPDescriptor;
+import org.opensaml.saml2.metadata.RoleDescriptor;
 import org.opensaml.saml2.metadata.SPSSODescriptor;
 import org.opensaml.xml.io.MarshallingException;
 import org.opensaml.xml.signature.Signature;
@@ -192,6 +195,46 @@ public class EntityDescriptorTest extends BaseSAMLObjectProviderTestCase {
         assertEquals(expectedChildElementsDOM, descriptor);
     }
 
+    /**
+     * Tests that role lookups by protocol reflect modifications of the roles and of their supported protocols.
+     */
+    public void testRoleProtocolLookup() {
+        EntityDescriptor descriptor = (EntityDescriptor) buildXMLObject(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        IDPSSODescriptor idp = (IDPSSODescriptor) buildXMLObject(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        idp.addSupportedProtocol(SAMLConstants.SAML20P_NS);
+        descriptor.getRoleDescriptors().add(idp);
+
+        List<RoleDescriptor> roles = descriptor.getRoleDescriptors(IDPSSODescriptor.DEFAULT_ELEMENT_NAME,
+                SAMLConstants.SAML20P_NS);
+        assertEquals("IDPSSODescriptor count", 1, roles.size());
+        roles.clear();
+        assertEquals("Modifying a returned list changed the lookup", 1, descriptor.getRoleDescriptors(
+                IDPSSODescriptor.DEFAULT_ELEMENT_NAME, SAMLConstants.SAML20P_NS).size());
+        assertSame("IDPSSODescriptor", idp, descriptor.getIDPSSODescriptor(SAMLConstants.SAML20P_NS));
+        assertSame("First IDPSSODescriptor", idp, descriptor.getRoleDescriptor(IDPSSODescriptor.DEFAULT_ELEMENT_NAME,
+                SAMLConstants.SAML20P_NS));
+        assertNull("SPSSODescriptor", descriptor.getSPSSODescriptor(SAMLConstants.SAML20P_NS));
+        assertNull("First SPSSODescriptor", descriptor.getRoleDescriptor(SPSSODescriptor.DEFAULT_ELEMENT_NAME,
+                SAMLConstants.SAML20P_NS));
+        assertNull("IDPSSODescriptor for SAML 1.1", descriptor.getIDPSSODescriptor(SAMLConstants.SAML11P_NS));
+
+        idp.addSupportedProtocol(SAMLConstants.SAML11P_NS);
+        assertSame("IDPSSODescriptor for SAML 1.1", idp, descriptor.getIDPSSODescriptor(SAMLConstants.SAML11P_NS));
+
+        SPSSODescriptor sp = (SPSSODescriptor) buildXMLObject(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        sp.addSupportedProtocol(SAMLConstants.SAML20P_NS);
+        descriptor.getRoleDescriptors(SPSSODescriptor.DEFAULT_ELEMENT_NAME).add(sp);
+        assertSame("SPSSODescriptor", sp, descriptor.getSPSSODescriptor(SAMLConstants.SAML20P_NS));
+
+        idp.removeSupportedProtocol(SAMLConstants.SAML20P_NS);
+        assertNull("IDPSSODescriptor", descriptor.getIDPSSODescriptor(SAMLConstants.SAML20P_NS));
+
+        descriptor.getRoleDescriptors().remove(sp);
+        assertNull("SPSSODescriptor", descriptor.getSPSSODescriptor(SAMLConstants.SAML20P_NS));
+        assertEquals("IDPSSODescriptor count", 1, descriptor.getRoleDescriptors(IDPSSODescriptor.DEFAULT_ELEMENT_NAME,
+                SAMLConstants.SAML11P_NS).size());
+    }
+
     /**
      * Build a Signature skeleton to use in marshalling unit tests.
      * 
@@ -17,6 +17,7 @@
 package org.opensaml.saml2.metadata.provider;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.net.URL;
 import java.util.List;
 
@@ -80,4 +81,117 @@ public class ChainingMetadataProviderTest extends BaseTestCase {
         RoleDescriptor role = metadataProvider.getRole(entityID, IDPSSODescriptor.DEFAULT_ELEMENT_NAME, supportedProtocol);
         assertNotNull("Roles for entity descriptor was null", role);
     }
+
+    /**
+     * Tests that lookups answered from the merged index return the descriptor of the first provider, and that the
+     * index follows changes to the registered providers.
+     */
+    public void testMergedIndex() throws Exception {
+        URL mdURL = ChainingMetadataProviderTest.class
+                .getResource("/data/org/opensaml/saml2/metadata/InCommon-metadata.xml");
+        FilesystemMetadataProvider firstProvider = new FilesystemMetadataProvider(new File(mdURL.toURI()));
+        firstProvider.setParserPool(parser);
+        firstProvider.initialize();
+        FilesystemMetadataProvider secondProvider = new FilesystemMetadataProvider(new File(mdURL.toURI()));
+        secondProvider.setParserPool(parser);
+        secondProvider.initialize();
+
+        ChainingMetadataProvider chain = new ChainingMetadataProvider();
+        chain.setMergedIndexEnabled(true);
+        chain.addMetadataProvider(firstProvider);
+        chain.addMetadataProvider(secondProvider);
+
+        EntityDescriptor descriptor = chain.getEntityDescriptor(entityID);
+        assertNotNull("Retrieved entity descriptor was null", descriptor);
+        assertSame("Descriptor was not taken from the first provider", firstProvider.getEntityDescriptor(entityID),
+                descriptor);
+        assertSame("Entities descriptor was not taken from the first provider", firstProvider
+                .getEntitiesDescriptor("urn:mace:incommon"), chain.getEntitiesDescriptor("urn:mace:incommon"));
+        assertNull("Unknown entity was found", chain.getEntityDescriptor("urn:example:unknown"));
+
+        chain.removeMetadataProvider(firstProvider);
+        assertSame("Descriptor was not taken from the remaining provider", secondProvider
+                .getEntityDescriptor(entityID), chain.getEntityDescriptor(entityID));
+
+        for (ObservableMetadataProvider.Observer observer : secondProvider.getObservers()) {
+            observer.onEvent(secondProvider);
+        }
+        assertSame("Index was not rebuilt after the provider changed", secondProvider.getEntityDescriptor(entityID),
+                chain.getEntityDescriptor(entityID));
+    }
+
+    /**
+     * Tests that the merged index re-indexes a provider, which refreshes its metadata when it is retrieved, once the
+     * provider's metadata expires.
+     */
+    public void testMergedIndexReindexesExpiredMetadata() throws Exception {
+        StubHTTPServer server = new StubHTTPServer();
+        server.start();
+        try {
+            server.setResponse(200, ("<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" "
+                    + "entityID=\"https://idp.example.org/idp\"/>").getBytes("UTF-8"));
+            HTTPMetadataProvider httpProvider = new HTTPMetadataProvider(server.getURL("/metadata"), 1000 * 5);
+            httpProvider.setParserPool(parser);
+            httpProvider.setMaxCacheDuration(1);
+            httpProvider.initialize();
+
+            ChainingMetadataProvider chain = new ChainingMetadataProvider();
+            chain.setMergedIndexEnabled(true);
+            chain.addMetadataProvider(httpProvider);
+            assertNotNull("Entity was not found", chain.getEntityDescriptor("https://idp.example.org/idp"));
+
+            server.setResponse(200, ("<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" "
+                    + "entityID=\"https://sp.example.org/sp\"/>").getBytes("UTF-8"));
+            assertNull("Unexpired metadata was re-indexed", chain.getEntityDescriptor("https://sp.example.org/sp"));
+
+            Thread.sleep(1500);
+            assertNotNull("Expired metadata was not re-indexed", chain
+                    .getEntityDescriptor("https://sp.example.org/sp"));
+            assertNull("Replaced entity was found", chain.getEntityDescriptor("https://idp.example.org/idp"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Tests that a provider without a metadata document is queried in turn when the merged index is enabled.
+     */
+    public void testMergedIndexWithDynamicProvider() throws Exception {
+        File metadataDirectory = File.createTempFile("metadata", "");
+        metadataDirectory.delete();
+        metadataDirectory.mkdir();
+        FilesystemDynamicMetadataProvider dynamicProvider = new FilesystemDynamicMetadataProvider(metadataDirectory);
+        dynamicProvider.setParserPool(parser);
+        String dynamicEntityID = "https://idp.example.org/idp";
+        File entityFile = dynamicProvider.getMetadataFile(dynamicEntityID);
+        FileOutputStream out = new FileOutputStream(entityFile);
+        try {
+            out.write(("<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\""
+                    + dynamicEntityID + "\"/>").getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        try {
+            URL mdURL = ChainingMetadataProviderTest.class
+                    .getResource("/data/org/opensaml/saml2/metadata/InCommon-metadata.xml");
+            FilesystemMetadataProvider fileProvider = new FilesystemMetadataProvider(new File(mdURL.toURI()));
+            fileProvider.setParserPool(parser);
+            fileProvider.initialize();
+
+            ChainingMetadataProvider chain = new ChainingMetadataProvider();
+            chain.setMergedIndexEnabled(true);
+            chain.addMetadataProvider(dynamicProvider);
+            chain.addMetadataProvider(fileProvider);
+
+            EntityDescriptor dynamicDescriptor = chain.getEntityDescriptor(dynamicEntityID);
+            assertNotNull("Entity of the dynamic provider was not found", dynamicDescriptor);
+            assertEquals("Unexpected entity ID", dynamicEntityID, dynamicDescriptor.getEntityID());
+            assertSame("Descriptor was not taken from the indexed provider", fileProvider
+                    .getEntityDescriptor(entityID), chain.getEntityDescriptor(entityID));
+        } finally {
+            entityFile.delete();
+            metadataDirectory.delete();
+        }
+    }
 }
\ No newline at end of file
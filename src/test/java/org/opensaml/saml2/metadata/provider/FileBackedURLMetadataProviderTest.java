@@ -70,4 +70,35 @@ public class FileBackedURLMetadataProviderTest extends BaseTestCase {
         badProvider.initialize();
         assertNotNull(badProvider.getMetadata());
     }
+
+    /**
+     * Tests that streamed metadata is backed up as it was downloaded, so that it can be filtered again when read from
+     * the backup file.
+     */
+    public void testGetStreamedMetadata() throws MetadataProviderException {
+        new File(backupFilePath).delete();
+        FileBackedHTTPMetadataProvider streamingProvider = new FileBackedHTTPMetadataProvider(inCommonMDURL,
+                1000 * 5, backupFilePath);
+        streamingProvider.setParserPool(parser);
+        streamingProvider.setStreamingIngestion(true);
+        streamingProvider.initialize();
+        EntitiesDescriptor descriptor = (EntitiesDescriptor) streamingProvider.getMetadata();
+        assertNotNull("Retrieved metadata was null", descriptor);
+
+        File backupFile = new File(backupFilePath);
+        assertTrue("Backup file contains no data", backupFile.length() > 0);
+        File[] leftovers = backupFile.getAbsoluteFile().getParentFile().listFiles();
+        for (File leftover : leftovers) {
+            assertFalse("Temporary backup file was left behind", leftover.getName().startsWith(backupFile.getName())
+                    && leftover.getName().endsWith(".tmp"));
+        }
+
+        FileBackedHTTPMetadataProvider badProvider = new FileBackedHTTPMetadataProvider(badMDURL, 1000 * 5,
+                backupFilePath);
+        badProvider.setParserPool(parser);
+        badProvider.setStreamingIngestion(true);
+        badProvider.initialize();
+        assertEquals("Backed up metadata differs", descriptor.getEntityDescriptors().size(),
+                ((EntitiesDescriptor) badProvider.getMetadata()).getEntityDescriptors().size());
+    }
 }
\ No newline at end of file
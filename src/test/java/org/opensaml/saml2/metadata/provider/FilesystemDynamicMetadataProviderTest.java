@@ -0,0 +1,132 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.opensaml.common.BaseTestCase;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+
+/**
+ * Tests for {@link FilesystemDynamicMetadataProvider}.
+ */
+public class FilesystemDynamicMetadataProviderTest extends BaseTestCase {
+
+    private File metadataDirectory;
+
+    private FilesystemDynamicMetadataProvider metadataProvider;
+
+    private String entityID;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        entityID = "https://idp.example.org/idp";
+
+        metadataDirectory = File.createTempFile("metadata", "");
+        metadataDirectory.delete();
+        metadataDirectory.mkdir();
+
+        metadataProvider = new FilesystemDynamicMetadataProvider(metadataDirectory);
+        metadataProvider.setParserPool(parser);
+        writeEntity(entityID);
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        File[] files = metadataDirectory.listFiles();
+        for (File file : files) {
+            file.delete();
+        }
+        metadataDirectory.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Tests that entities are resolved from their files and cached.
+     */
+    public void testGetEntityDescriptor() throws MetadataProviderException {
+        EntityDescriptor descriptor = metadataProvider.getEntityDescriptor(entityID);
+        assertNotNull("Retrieved entity descriptor was null", descriptor);
+        assertEquals("Entity's ID does not match requested ID", entityID, descriptor.getEntityID());
+        assertSame("Entity descriptor was not cached", descriptor, metadataProvider.getEntityDescriptor(entityID));
+        assertEquals("Unexpected cache size", 1, metadataProvider.getCacheSize());
+        assertNull("Dynamic provider returned a metadata document", metadataProvider.getMetadata());
+    }
+
+    /**
+     * Tests that unknown entities are remembered for the negative cache duration.
+     */
+    public void testNegativeCaching() throws Exception {
+        String unknownEntityID = "https://unknown.example.org/sp";
+        assertNull("Unknown entity was resolved", metadataProvider.getEntityDescriptor(unknownEntityID));
+
+        writeEntity(unknownEntityID);
+        assertNull("Unknown entity was not negatively cached", metadataProvider.getEntityDescriptor(unknownEntityID));
+
+        metadataProvider.removeCachedEntity(unknownEntityID);
+        assertNotNull("Entity was not resolved after its removal from the cache", metadataProvider
+                .getEntityDescriptor(unknownEntityID));
+    }
+
+    /**
+     * Tests that the cache is bounded.
+     */
+    public void testCacheSize() throws Exception {
+        metadataProvider.setMaxCacheSize(2);
+        for (int i = 0; i < 5; i++) {
+            writeEntity("https://sp" + i + ".example.org/sp");
+            metadataProvider.getEntityDescriptor("https://sp" + i + ".example.org/sp");
+        }
+        assertEquals("Cache exceeded its maximum size", 2, metadataProvider.getCacheSize());
+    }
+
+    /**
+     * Tests that unknown entities are bounded separately and do not evict known entities.
+     */
+    public void testNegativeCacheSize() throws Exception {
+        metadataProvider.setMaxCacheSize(2);
+        metadataProvider.setMaxNegativeCacheSize(2);
+        EntityDescriptor descriptor = metadataProvider.getEntityDescriptor(entityID);
+        for (int i = 0; i < 5; i++) {
+            assertNull("Unknown entity was resolved", metadataProvider.getEntityDescriptor("https://unknown" + i
+                    + ".example.org/sp"));
+        }
+        assertEquals("Negative cache exceeded its maximum size", 2, metadataProvider.getNegativeCacheSize());
+        assertEquals("Unknown entities were cached as known entities", 1, metadataProvider.getCacheSize());
+        assertSame("Known entity was evicted", descriptor, metadataProvider.getEntityDescriptor(entityID));
+    }
+
+    /**
+     * Writes the metadata file of an entity.
+     * 
+     * @param id ID of the entity
+     */
+    private void writeEntity(String id) throws IOException {
+        String metadata = "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"" + id
+                + "\"/>";
+        FileOutputStream out = new FileOutputStream(metadataProvider.getMetadataFile(id));
+        try {
+            out.write(metadata.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -17,10 +17,20 @@
 package org.opensaml.saml2.metadata.provider;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.namespace.QName;
+
 import org.opensaml.common.BaseTestCase;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml2.metadata.IDPSSODescriptor;
 import org.opensaml.saml2.metadata.RoleDescriptor;
@@ -46,6 +56,86 @@ public class FilesystemMetadataProviderTest extends BaseTestCase {
         metadataProvider.initialize();
     }
 
+    /**
+     * Tests that metadata read one entity at a time is equivalent to metadata parsed as a whole.
+     */
+    public void testStreamingIngestion() throws Exception {
+        URL mdURL = FilesystemMetadataProviderTest.class.getResource("/data/org/opensaml/saml2/metadata/InCommon-metadata.xml");
+        FilesystemMetadataProvider streamingProvider = new FilesystemMetadataProvider(new File(mdURL.toURI()));
+        streamingProvider.setParserPool(parser);
+        streamingProvider.setStreamingIngestion(true);
+        streamingProvider.initialize();
+
+        EntitiesDescriptor expected = (EntitiesDescriptor) metadataProvider.getMetadata();
+        EntitiesDescriptor streamed = (EntitiesDescriptor) streamingProvider.getMetadata();
+        assertEquals("Unexpected group name", expected.getName(), streamed.getName());
+        assertEquals("Unexpected number of entities", expected.getEntityDescriptors().size(), streamed
+                .getEntityDescriptors().size());
+        for (int i = 0; i < expected.getEntityDescriptors().size(); i++) {
+            assertEquals("Entities were not in document order", expected.getEntityDescriptors().get(i).getEntityID(),
+                    streamed.getEntityDescriptors().get(i).getEntityID());
+        }
+
+        EntityDescriptor descriptor = streamingProvider.getEntityDescriptor(entityID);
+        assertNotNull("Retrieved entity descriptor was null", descriptor);
+        assertSame("Entity was not attached to its group", streamed, descriptor.getParent());
+        RoleDescriptor role = streamingProvider.getRole(entityID, IDPSSODescriptor.DEFAULT_ELEMENT_NAME,
+                supportedProtocol);
+        assertNotNull("Roles for entity descriptor was null", role);
+    }
+
+    /**
+     * Tests that the metrics of a refresh are recorded, passed to the metrics listeners and exposed through JMX.
+     */
+    public void testRefreshMetrics() throws Exception {
+        URL mdURL = FilesystemMetadataProviderTest.class.getResource("/data/org/opensaml/saml2/metadata/InCommon-metadata.xml");
+        File mdFile = new File(mdURL.toURI());
+        FilesystemMetadataProvider instrumentedProvider = new FilesystemMetadataProvider(mdFile);
+        instrumentedProvider.setParserPool(parser);
+        List<QName> retainedRoles = new ArrayList<QName>();
+        retainedRoles.add(IDPSSODescriptor.DEFAULT_ELEMENT_NAME);
+        MetadataFilterChain filterChain = new MetadataFilterChain();
+        filterChain.getFilters().add(new EntityRoleFilter(retainedRoles));
+        instrumentedProvider.setMetadataFilter(filterChain);
+        final List<MetadataRefreshMetrics> refreshes = new ArrayList<MetadataRefreshMetrics>();
+        instrumentedProvider.getMetricsListeners().add(new MetadataMetricsListener() {
+            public void refreshCompleted(MetadataProvider provider, MetadataRefreshMetrics metrics) {
+                refreshes.add(metrics);
+            }
+        });
+        instrumentedProvider.initialize();
+
+        assertEquals("Unexpected number of refreshes reported", 1, refreshes.size());
+        MetadataRefreshMetrics metrics = refreshes.get(0);
+        assertTrue("Refresh was not successful", metrics.isSuccessful());
+        assertEquals("Unexpected document size", mdFile.length(), metrics.getDocumentSize());
+        assertTrue("Parse phase was not recorded", metrics.getPhaseDuration(MetadataRefreshMetrics.PARSE_PHASE) >= 0);
+        assertTrue("Unmarshall phase was not recorded", metrics
+                .getPhaseDuration(MetadataRefreshMetrics.UNMARSHALL_PHASE) >= 0);
+        assertTrue("Filter phase was not recorded", metrics.getPhaseDuration("filter:EntityRoleFilter") >= 0);
+        assertTrue("Index phase was not recorded", metrics.getPhaseDuration(MetadataRefreshMetrics.INDEX_PHASE) >= 0);
+        EntitiesDescriptor metadata = (EntitiesDescriptor) instrumentedProvider.getMetadata();
+        assertEquals("Unexpected entity count", metadata.getEntityDescriptors().size(), metrics.getEntityCount());
+
+        assertNotNull(instrumentedProvider.getEntityDescriptor(entityID));
+        assertNull(instrumentedProvider.getEntityDescriptor("urn:example:unknown"));
+        MetadataProviderStatistics statistics = instrumentedProvider.getStatistics();
+        assertEquals("Unexpected refresh count", 1, statistics.getRefreshCount());
+        assertEquals("Unexpected failure count", 0, statistics.getRefreshFailureCount());
+        assertEquals("Unexpected lookup hit count", 1, statistics.getLookupHitCount());
+        assertEquals("Unexpected lookup miss count", 1, statistics.getLookupMissCount());
+
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.opensaml:type=MetadataProvider,name=testRefreshMetrics");
+        mbeanServer.registerMBean(statistics, name);
+        try {
+            assertEquals("Unexpected entity count exposed through JMX", metrics.getEntityCount(), mbeanServer
+                    .getAttribute(name, "EntityCount"));
+        } finally {
+            mbeanServer.unregisterMBean(name);
+        }
+    }
+
     /**
      * Tests the {@link HTTPMetadataProvider#getEntityDescriptor(String)} method.
      */
@@ -71,4 +161,126 @@ public class FilesystemMetadataProviderTest extends BaseTestCase {
         RoleDescriptor role = metadataProvider.getRole(entityID, IDPSSODescriptor.DEFAULT_ELEMENT_NAME, supportedProtocol);
         assertNotNull("Roles for entity descriptor was null", role);
     }
+
+    /**
+     * Tests that a provider in background refresh mode reloads a changed file without being asked for its metadata.
+     */
+    public void testBackgroundRefresh() throws Exception {
+        URL inCommonURL = FilesystemMetadataProviderTest.class.getResource("/data/org/opensaml/saml2/metadata/InCommon-metadata.xml");
+        URL ukURL = FilesystemMetadataProviderTest.class.getResource("/data/org/opensaml/saml2/metadata/ukfederation-metadata.xml");
+        File mdFile = File.createTempFile("metadata", ".xml");
+        mdFile.deleteOnExit();
+        copy(new File(inCommonURL.toURI()), mdFile);
+
+        FilesystemMetadataProvider backgroundProvider = new FilesystemMetadataProvider(mdFile);
+        backgroundProvider.setParserPool(parser);
+        backgroundProvider.setBackgroundRefresh(true);
+        backgroundProvider.setPollInterval(50);
+        backgroundProvider.setSettleDelay(0);
+        backgroundProvider.initialize();
+        try {
+            assertNotNull("Entity was not loaded", backgroundProvider.getEntityDescriptor(entityID));
+
+            copy(new File(ukURL.toURI()), mdFile);
+            mdFile.setLastModified(System.currentTimeMillis() + 60 * 1000);
+            for (int i = 0; i < 100 && backgroundProvider.getEntityDescriptor(entityID) != null; i++) {
+                Thread.sleep(50);
+            }
+            assertNull("Changed file was not reloaded", backgroundProvider.getEntityDescriptor(entityID));
+        } finally {
+            backgroundProvider.destroy();
+            mdFile.delete();
+        }
+    }
+
+    /**
+     * Tests that a refresh reports exactly the entities that were added, removed and modified.
+     */
+    public void testEntityChangeEvents() throws Exception {
+        File mdFile = File.createTempFile("metadata", ".xml");
+        mdFile.deleteOnExit();
+        writeEntities(mdFile, new String[] { "<EntityDescriptor entityID=\"urn:example:unchanged\"/>",
+                "<EntityDescriptor entityID=\"urn:example:modified\" ID=\"version1\"/>",
+                "<EntityDescriptor entityID=\"urn:example:removed\"/>", });
+
+        FilesystemMetadataProvider trackingProvider = new FilesystemMetadataProvider(mdFile);
+        trackingProvider.setParserPool(parser);
+        trackingProvider.setTrackEntityChanges(true);
+        final List<MetadataChangeEvent> events = new ArrayList<MetadataChangeEvent>();
+        trackingProvider.getObservers().add(new ObservableMetadataProvider.ChangeObserver() {
+            public void onEvent(MetadataProvider provider) {
+                fail("Change observer was not passed the entity changes");
+            }
+
+            public void onEvent(MetadataProvider provider, MetadataChangeEvent event) {
+                events.add(event);
+            }
+        });
+        try {
+            trackingProvider.initialize();
+            assertEquals("Initial load event count", 1, events.size());
+            assertEquals("Initially added entities", 3, events.get(0).getAddedEntityIDs().size());
+
+            writeEntities(mdFile, new String[] { "<EntityDescriptor entityID=\"urn:example:unchanged\"/>",
+                    "<EntityDescriptor entityID=\"urn:example:modified\" ID=\"version2\"/>",
+                    "<EntityDescriptor entityID=\"urn:example:added\"/>", });
+            mdFile.setLastModified(System.currentTimeMillis() + 60 * 1000);
+            trackingProvider.getMetadata();
+
+            assertEquals("Refresh event count", 2, events.size());
+            MetadataChangeEvent event = events.get(1);
+            assertEquals("Added entities", 1, event.getAddedEntityIDs().size());
+            assertTrue("Added entity", event.getAddedEntityIDs().contains("urn:example:added"));
+            assertEquals("Removed entities", 1, event.getRemovedEntityIDs().size());
+            assertTrue("Removed entity", event.getRemovedEntityIDs().contains("urn:example:removed"));
+            assertEquals("Modified entities", 1, event.getModifiedEntityIDs().size());
+            assertTrue("Modified entity", event.getModifiedEntityIDs().contains("urn:example:modified"));
+        } finally {
+            trackingProvider.destroy();
+            mdFile.delete();
+        }
+    }
+
+    /**
+     * Writes an EntitiesDescriptor containing the given entities to a file.
+     * 
+     * @param file file to write to
+     * @param entities the serialized EntityDescriptors
+     */
+    private void writeEntities(File file, String[] entities) throws IOException {
+        StringBuilder metadata = new StringBuilder();
+        metadata.append("<EntitiesDescriptor xmlns=\"urn:oasis:names:tc:SAML:2.0:metadata\">");
+        for (String entity : entities) {
+            metadata.append(entity);
+        }
+        metadata.append("</EntitiesDescriptor>");
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(metadata.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Copies a file.
+     * 
+     * @param source file to copy
+     * @param destination file to copy to
+     */
+    private void copy(File source, File destination) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        FileOutputStream out = new FileOutputStream(destination);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.opensaml.saml2.metadata.provider;
+
+import org.opensaml.common.BaseTestCase;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+
+/**
+ * Tests for {@link HTTPDynamicMetadataProvider}, fetching entity metadata from a stub metadata server.
+ */
+public class HTTPDynamicMetadataProviderTest extends BaseTestCase {
+
+    private String entityID;
+
+    private StubHTTPServer server;
+
+    private HTTPDynamicMetadataProvider metadataProvider;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        entityID = "https://idp.example.org/idp";
+
+        server = new StubHTTPServer();
+        server.start();
+
+        metadataProvider = new HTTPDynamicMetadataProvider(server.getURL("/entities/"
+                + AbstractDynamicMetadataProvider.SHA1_PLACEHOLDER), 5000);
+        metadataProvider.setParserPool(parser);
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    /**
+     * Tests that entities are fetched from the metadata server and cached.
+     */
+    public void testGetEntityDescriptor() throws Exception {
+        server.setResponse(200, getEntityMetadata(entityID).getBytes("UTF-8"));
+        EntityDescriptor descriptor = metadataProvider.getEntityDescriptor(entityID);
+        assertNotNull("Retrieved entity descriptor was null", descriptor);
+        assertEquals("Entity's ID does not match requested ID", entityID, descriptor.getEntityID());
+        assertNotNull("Metadata was not requested", server.getRequestHeader("Accept"));
+
+        assertSame("Entity descriptor was not cached", descriptor, metadataProvider.getEntityDescriptor(entityID));
+        assertEquals("Cached entity was fetched again", 1, server.getRequestCount());
+    }
+
+    /**
+     * Tests that a 404 response marks the entity as unknown and that unknown entities are negatively cached.
+     */
+    public void testNotFound() throws Exception {
+        server.setResponse(404, new byte[0]);
+        assertNull("Unknown entity was resolved", metadataProvider.getEntityDescriptor(entityID));
+        assertEquals("Unexpected negative cache size", 1, metadataProvider.getNegativeCacheSize());
+
+        server.setResponse(200, getEntityMetadata(entityID).getBytes("UTF-8"));
+        assertNull("Unknown entity was not negatively cached", metadataProvider.getEntityDescriptor(entityID));
+        assertEquals("Negatively cached entity was fetched again", 1, server.getRequestCount());
+    }
+
+    /**
+     * Tests that responses other than 200 and 404 are errors and that failed fetches are not cached.
+     */
+    public void testErrorStatus() throws Exception {
+        server.setResponse(500, getEntityMetadata(entityID).getBytes("UTF-8"));
+        try {
+            metadataProvider.getEntityDescriptor(entityID);
+            fail("Metadata of a response with status 500 was accepted");
+        } catch (MetadataProviderException e) {
+            // expected
+        }
+        assertEquals("Failed fetch was negatively cached", 0, metadataProvider.getNegativeCacheSize());
+
+        server.setResponse(200, getEntityMetadata(entityID).getBytes("UTF-8"));
+        assertNotNull("Entity was not resolved after a failed fetch", metadataProvider.getEntityDescriptor(entityID));
+    }
+
+    /**
+     * Tests that responses larger than the maximum response size are rejected.
+     */
+    public void testMaxResponseSize() throws Exception {
+        byte[] metadata = getEntityMetadata(entityID).getBytes("UTF-8");
+        metadataProvider.setMaxResponseSize(metadata.length - 1);
+        server.setResponse(200, metadata);
+        try {
+            metadataProvider.getEntityDescriptor(entityID);
+            fail("Response larger than the maximum response size was accepted");
+        } catch (MetadataProviderException e) {
+            // expected
+        }
+        assertEquals("Oversized entity was cached", 0, metadataProvider.getCacheSize());
+
+        metadataProvider.setMaxResponseSize(metadata.length);
+        assertNotNull("Entity within the maximum response size was not resolved", metadataProvider
+                .getEntityDescriptor(entityID));
+    }
+
+    /**
+     * Tests that more than two concurrent connections to the metadata server are allowed.
+     */
+    public void testMaxConnections() {
+        assertEquals("Unexpected default maximum number of connections", 20, metadataProvider.getMaxConnections());
+        metadataProvider.setMaxConnections(50);
+        assertEquals("Maximum number of connections was not set", 50, metadataProvider.getMaxConnections());
+        try {
+            metadataProvider.setMaxConnections(0);
+            fail("Maximum number of connections of 0 was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Gets the metadata of an entity.
+     * 
+     * @param id ID of the entity
+     * 
+     * @return the metadata of the entity
+     */
+    private String getEntityMetadata(String id) {
+        return "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" entityID=\"" + id + "\"/>";
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.joda.time.DateTime;
+import org.opensaml.common.BaseTestCase;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.xml.XMLObject;
+import org.opensaml.xml.io.UnmarshallingException;
+
+/**
+ * Tests for {@link HTTPMetadataProvider} that do not require a remote metadata server.
+ */
+public class HTTPMetadataProviderTest extends BaseTestCase {
+
+    /** Metadata served by the stub server. */
+    private static final String METADATA = "<md:EntityDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" "
+            + "entityID=\"urn:example:entity\"/>";
+
+    /** Last modification date served with the metadata. */
+    private static final String LAST_MODIFIED = "Wed, 15 Oct 2008 10:00:00 GMT";
+
+    /** URL of the metadata, never contacted. */
+    private String metadataURL;
+
+    /** Server answering the fetches of the providers under test. */
+    private StubHTTPServer server;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        metadataURL = "http://metadata.example.org:8080/metadata";
+        server = new StubHTTPServer();
+        server.start();
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        server.stop();
+        super.tearDown();
+    }
+
+    /**
+     * Tests that the refresh delay is a fraction of the time until the metadata expires, bounded by the minimum and
+     * maximum refresh delay.
+     */
+    public void testRefreshDelayBounds() throws Exception {
+        HTTPMetadataProvider provider = new HTTPMetadataProvider(metadataURL, 1000);
+        provider.setRefreshDelayJitter(0);
+        long minDelay = provider.getMinRefreshDelay();
+        long maxDelay = provider.getMaxRefreshDelay();
+
+        assertEquals("Delay without metadata was not the minimum delay", minDelay, provider.computeRefreshDelay());
+
+        long untilExpiration = 2 * 60 * 60 * 1000;
+        restore(provider, untilExpiration);
+        long delay = provider.computeRefreshDelay();
+        long expectedDelay = (long) (untilExpiration * provider.getRefreshDelayFactor());
+        assertTrue("Delay " + delay + " was not the fraction of the time until expiration",
+                delay <= expectedDelay && delay > expectedDelay - 1000);
+
+        restore(provider, 24 * 60 * 60 * 1000);
+        assertEquals("Delay was not bounded by the maximum delay", maxDelay, provider.computeRefreshDelay());
+
+        restore(provider, 60 * 1000);
+        assertEquals("Delay was not bounded by the minimum delay", minDelay, provider.computeRefreshDelay());
+
+        restore(provider, -60 * 60 * 1000);
+        assertEquals("Delay for expired metadata was not the minimum delay", minDelay, provider.computeRefreshDelay());
+    }
+
+    /**
+     * Tests that jitter only shortens the refresh delay and never below the minimum refresh delay.
+     */
+    public void testRefreshDelayJitter() throws Exception {
+        HTTPMetadataProvider provider = new HTTPMetadataProvider(metadataURL, 1000);
+        provider.setRefreshDelayJitter(0.5f);
+        long minDelay = provider.getMinRefreshDelay();
+        long maxDelay = provider.getMaxRefreshDelay();
+
+        long untilExpiration = 2 * 60 * 60 * 1000;
+        restore(provider, untilExpiration);
+        long unjitteredDelay = (long) (untilExpiration * provider.getRefreshDelayFactor());
+        for (int i = 0; i < 100; i++) {
+            long delay = provider.computeRefreshDelay();
+            assertTrue("Jittered delay " + delay + " out of bounds",
+                    delay <= unjitteredDelay && delay > unjitteredDelay / 2 - 1000);
+        }
+
+        restore(provider, 24 * 60 * 60 * 1000);
+        for (int i = 0; i < 100; i++) {
+            long delay = provider.computeRefreshDelay();
+            assertTrue("Jittered delay " + delay + " exceeded the maximum delay", delay <= maxDelay);
+            assertTrue("Jittered delay " + delay + " was not jittered down from the maximum delay",
+                    delay >= maxDelay / 2);
+        }
+
+        // 6 minutes before jitter, so jitter would take most delays below the 5 minute minimum
+        restore(provider, 8 * 60 * 1000);
+        for (int i = 0; i < 100; i++) {
+            long delay = provider.computeRefreshDelay();
+            assertTrue("Jittered delay " + delay + " was below the minimum delay", delay >= minDelay);
+            assertTrue("Jittered delay " + delay + " out of bounds", delay <= 6 * 60 * 1000);
+        }
+    }
+
+    /**
+     * Tests that a background refresh is retried after a failed refresh and that previously fetched metadata continues
+     * to be served while refreshes fail.
+     */
+    public void testRetryAfterFailedRefresh() throws Exception {
+        ScriptedHTTPMetadataProvider provider = new ScriptedHTTPMetadataProvider(metadataURL);
+        provider.setRefreshAhead(true);
+        provider.setMinRefreshDelay(20);
+        provider.setMaxRefreshDelay(50);
+        try {
+            provider.setFailing(true);
+            try {
+                provider.initialize();
+                fail("Initialization succeeded although the metadata could not be fetched");
+            } catch (MetadataProviderException e) {
+                // expected
+            }
+            assertNull("Metadata was served although none could be fetched", provider.getMetadata());
+            assertTrue("Failed initial fetch was not retried", provider.awaitFetchCount(3));
+
+            EntityDescriptor metadata = buildEntityDescriptor();
+            provider.setMetadata(metadata);
+            provider.setFailing(false);
+            int fetchCount = provider.getFetchCount();
+            assertTrue("Metadata was not refreshed after failed refreshes", provider.awaitFetchCount(fetchCount + 2));
+            assertSame("Refreshed metadata was not served", metadata, provider.getMetadata());
+
+            provider.setFailing(true);
+            fetchCount = provider.getFetchCount();
+            assertTrue("Failed refresh was not retried", provider.awaitFetchCount(fetchCount + 3));
+            assertSame("Previously fetched metadata was not served while refreshes failed", metadata, provider
+                    .getMetadata());
+
+            provider.setFailing(false);
+            fetchCount = provider.getFetchCount();
+            assertTrue("Metadata was not refreshed after failed refreshes", provider.awaitFetchCount(fetchCount + 2));
+        } finally {
+            provider.destroy();
+        }
+    }
+
+    /**
+     * Tests that a not modified response only recomputes the expiration time of the cached metadata.
+     */
+    public void testNotModified() throws Exception {
+        HTTPMetadataProvider provider = initializeProvider();
+        XMLObject metadata = provider.getMetadata();
+        EntityDescriptor entity = provider.getEntityDescriptor("urn:example:entity");
+        DateTime expirationTime = provider.getExpirationTime();
+        assertNotNull("Metadata was not fetched", metadata);
+        assertNotNull("Fetched metadata was not indexed", entity);
+
+        server.setResponse(304, new byte[0]);
+        assertNull("Metadata was returned for a not modified response", provider.fetchMetadata());
+        assertEquals("Request was not conditional on the entity tag", "\"v1\"", server
+                .getRequestHeader("If-None-Match"));
+        assertEquals("Request was not conditional on the last modification date", LAST_MODIFIED, server
+                .getRequestHeader("If-Modified-Since"));
+
+        provider.setMaxCacheDuration(60);
+        provider.loadMetadata();
+        assertSame("Cached metadata was replaced", metadata, provider.getMetadata());
+        assertSame("Cached metadata was indexed again", entity, provider.getEntityDescriptor("urn:example:entity"));
+        assertEquals("Unexpected refresh count", 2, provider.getRefreshCount());
+        assertEquals("Unexpected not modified refresh count", 1, provider.getNotModifiedRefreshCount());
+        assertTrue("Expiration time was not recomputed", provider.getExpirationTime().isBefore(expirationTime));
+
+        provider.loadMetadata();
+        assertEquals("Entity tag of the cached metadata was dropped", "\"v1\"", server
+                .getRequestHeader("If-None-Match"));
+    }
+
+    /**
+     * Tests that the entity tag and last modification date of a response are only used for conditional requests once
+     * the response was successfully unmarshalled.
+     */
+    public void testValidatorsKeptAfterUnmarshalling() throws Exception {
+        HTTPMetadataProvider provider = initializeProvider();
+        XMLObject metadata = provider.getMetadata();
+
+        server.setResponse(200, "not metadata".getBytes("UTF-8"));
+        server.addResponseHeader("ETag", "\"v2\"");
+        try {
+            provider.loadMetadata();
+            fail("Malformed metadata was loaded");
+        } catch (MetadataProviderException e) {
+            // expected
+        }
+        assertNull("Entity tag of malformed metadata was kept", provider.getFetchedMetadataETag());
+        assertSame("Cached metadata was replaced", metadata, provider.getMetadata());
+
+        server.setResponse(304, new byte[0]);
+        provider.loadMetadata();
+        assertEquals("Request was not conditional on the entity tag of the cached metadata", "\"v1\"", server
+                .getRequestHeader("If-None-Match"));
+
+        server.setResponse(200, METADATA.getBytes("UTF-8"));
+        server.addResponseHeader("ETag", "\"v2\"");
+        provider.loadMetadata();
+        assertEquals("Entity tag of the fetched metadata was not kept", "\"v2\"", provider.getFetchedMetadataETag());
+        assertNotSame("Cached metadata was not replaced", metadata, provider.getMetadata());
+
+        server.setResponse(304, new byte[0]);
+        provider.loadMetadata();
+        assertEquals("Request was not conditional on the new entity tag", "\"v2\"", server
+                .getRequestHeader("If-None-Match"));
+        assertNull("Request was conditional on the last modification date of replaced metadata", server
+                .getRequestHeader("If-Modified-Since"));
+    }
+
+    /**
+     * Tests that gzip, x-gzip, and deflate encoded metadata is decoded.
+     */
+    public void testContentEncoding() throws Exception {
+        HTTPMetadataProvider provider = newProvider();
+        String[] encodings = { "gzip", "x-gzip", "deflate", "identity" };
+        for (String encoding : encodings) {
+            server.setResponse(200, encode(encoding, METADATA.getBytes("UTF-8")));
+            server.addResponseHeader("Content-Encoding", encoding);
+            EntityDescriptor entity = (EntityDescriptor) provider.fetchMetadata();
+            assertEquals("Metadata with content encoding " + encoding + " was not decoded", "urn:example:entity",
+                    entity.getEntityID());
+            assertEquals("Compressed metadata was not accepted", "gzip,deflate", server
+                    .getRequestHeader("Accept-Encoding"));
+        }
+
+        provider.setCompressionEnabled(false);
+        server.setResponse(200, METADATA.getBytes("UTF-8"));
+        provider.fetchMetadata();
+        assertNull("Compressed metadata was accepted", server.getRequestHeader("Accept-Encoding"));
+    }
+
+    /**
+     * Tests that metadata with an unsupported content encoding is rejected.
+     */
+    public void testUnsupportedContentEncoding() throws Exception {
+        HTTPMetadataProvider provider = newProvider();
+        server.setResponse(200, METADATA.getBytes("UTF-8"));
+        server.addResponseHeader("Content-Encoding", "compress");
+        try {
+            provider.fetchMetadata();
+            fail("Metadata with an unsupported content encoding was accepted");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Tests that responses other than 200 and 304 are rejected and that the cached metadata is kept.
+     */
+    public void testErrorStatus() throws Exception {
+        HTTPMetadataProvider provider = initializeProvider();
+        XMLObject metadata = provider.getMetadata();
+
+        int[] statuses = { 204, 404, 500 };
+        for (int status : statuses) {
+            server.setResponse(status, METADATA.getBytes("UTF-8"));
+            try {
+                provider.fetchMetadata();
+                fail("Metadata of a response with status " + status + " was accepted");
+            } catch (IOException e) {
+                // expected
+            }
+
+            try {
+                provider.loadMetadata();
+                fail("Metadata of a response with status " + status + " was loaded");
+            } catch (MetadataProviderException e) {
+                // expected
+            }
+            assertSame("Cached metadata was replaced", metadata, provider.getMetadata());
+        }
+        assertEquals("Failed refreshes were counted", 1, provider.getRefreshCount());
+    }
+
+    /**
+     * Creates a provider fetching metadata from the stub server.
+     * 
+     * @return the provider
+     * 
+     * @throws MetadataProviderException thrown if the provider can not be created
+     */
+    private HTTPMetadataProvider newProvider() throws MetadataProviderException {
+        HTTPMetadataProvider provider = new HTTPMetadataProvider(server.getURL("/metadata"), 5000);
+        provider.setParserPool(parser);
+        return provider;
+    }
+
+    /**
+     * Creates and initializes a provider that fetched metadata with the entity tag "v1" and a last modification date
+     * from the stub server.
+     * 
+     * @return the provider
+     * 
+     * @throws Exception thrown if the provider can not be initialized
+     */
+    private HTTPMetadataProvider initializeProvider() throws Exception {
+        server.setResponse(200, METADATA.getBytes("UTF-8"));
+        server.addResponseHeader("ETag", "\"v1\"");
+        server.addResponseHeader("Last-Modified", LAST_MODIFIED);
+        HTTPMetadataProvider provider = newProvider();
+        provider.initialize();
+        return provider;
+    }
+
+    /**
+     * Encodes data with the given content encoding.
+     * 
+     * @param encoding the content encoding
+     * @param data the data to encode
+     * 
+     * @return the encoded data
+     * 
+     * @throws IOException thrown if the data can not be encoded
+     */
+    private byte[] encode(String encoding, byte[] data) throws IOException {
+        if ("identity".equals(encoding)) {
+            return data;
+        }
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        OutputStream out;
+        if ("deflate".equals(encoding)) {
+            out = new DeflaterOutputStream(encoded);
+        } else {
+            out = new GZIPOutputStream(encoded);
+        }
+        out.write(data);
+        out.close();
+        return encoded.toByteArray();
+    }
+
+    /**
+     * Caches metadata that expires after the given amount of time.
+     * 
+     * @param provider the provider to cache the metadata in
+     * @param untilExpiration milliseconds until the metadata expires
+     */
+    private void restore(HTTPMetadataProvider provider, long untilExpiration) {
+        provider.restoreMetadata(buildEntityDescriptor(), new DateTime().plus(untilExpiration), null, null);
+    }
+
+    /**
+     * Builds a minimal entity descriptor.
+     * 
+     * @return the entity descriptor
+     */
+    private EntityDescriptor buildEntityDescriptor() {
+        EntityDescriptor entity = (EntityDescriptor) buildXMLObject(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+        entity.setEntityID("urn:example:entity");
+        return entity;
+    }
+
+    /**
+     * A provider that, instead of contacting the remote server, either fails or returns preset metadata.
+     */
+    private static class ScriptedHTTPMetadataProvider extends HTTPMetadataProvider {
+
+        /** Longest time, in milliseconds, to wait for a fetch. */
+        private static final long FETCH_TIMEOUT = 10 * 1000;
+
+        /** Whether fetches fail. */
+        private volatile boolean failing;
+
+        /** Metadata returned by successful fetches. */
+        private volatile XMLObject metadata;
+
+        /** Number of attempted fetches. */
+        private int fetchCount;
+
+        /**
+         * Constructor.
+         * 
+         * @param metadataURL URL of the metadata, never contacted
+         * 
+         * @throws MetadataProviderException thrown if the URL is not a valid URL
+         */
+        public ScriptedHTTPMetadataProvider(String metadataURL) throws MetadataProviderException {
+            super(metadataURL, 1000);
+        }
+
+        /**
+         * Sets whether fetches fail.
+         * 
+         * @param fail whether fetches fail
+         */
+        public void setFailing(boolean fail) {
+            failing = fail;
+        }
+
+        /**
+         * Sets the metadata returned by successful fetches.
+         * 
+         * @param newMetadata metadata returned by successful fetches
+         */
+        public void setMetadata(XMLObject newMetadata) {
+            metadata = newMetadata;
+        }
+
+        /**
+         * Gets the number of attempted fetches.
+         * 
+         * @return number of attempted fetches
+         */
+        public int getFetchCount() {
+            synchronized (this) {
+                return fetchCount;
+            }
+        }
+
+        /**
+         * Waits until at least the given number of fetches have been attempted.
+         * 
+         * @param count number of fetches to wait for
+         * 
+         * @return true if the fetches were attempted, false if the wait timed out
+         * 
+         * @throws InterruptedException thrown if the wait is interrupted
+         */
+        public boolean awaitFetchCount(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + FETCH_TIMEOUT;
+            synchronized (this) {
+                while (fetchCount < count) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    wait(remaining);
+                }
+                return true;
+            }
+        }
+
+        /** {@inheritDoc} */
+        protected XMLObject fetchMetadata() throws IOException, UnmarshallingException {
+            synchronized (this) {
+                fetchCount++;
+                notifyAll();
+            }
+            if (failing) {
+                throw new IOException("Metadata server unavailable");
+            }
+            return metadata;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.namespace.QName;
+
+import org.opensaml.common.BaseTestCase;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
+import org.opensaml.xml.XMLObject;
+
+/**
+ * Unit tests for {@link MetadataFilterChain}.
+ */
+public class MetadataFilterChainTest extends BaseTestCase {
+
+    /** Location of the test metadata. */
+    private String metadataFile;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        metadataFile = "/data/org/opensaml/saml2/metadata/InCommon-metadata.xml";
+    }
+
+    /**
+     * Tests that entity scoped filters run in parallel by the chain give the same result as the filters run on their
+     * own.
+     */
+    public void testEntityScopedFilters() throws Exception {
+        ArrayList<QName> retainedRoles = new ArrayList<QName>();
+        retainedRoles.add(SPSSODescriptor.DEFAULT_ELEMENT_NAME);
+
+        EntitiesDescriptor expected = (EntitiesDescriptor) unmarshallElement(metadataFile);
+        new EntityRoleFilter(retainedRoles).doFilter(expected);
+        new EntityIDFilter("edu").doFilter(expected);
+
+        CountingFilter countingFilter = new CountingFilter();
+        List<MetadataFilter> filters = new ArrayList<MetadataFilter>();
+        filters.add(new EntityRoleFilter(retainedRoles));
+        filters.add(new EntityIDFilter("edu"));
+        filters.add(countingFilter);
+        MetadataFilterChain chain = new MetadataFilterChain();
+        chain.setFilters(filters);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            chain.setFilterExecutor(executor);
+            EntitiesDescriptor filtered = (EntitiesDescriptor) unmarshallElement(metadataFile);
+            chain.doFilter(filtered);
+
+            assertEquals("Filtered entities differ", getEntityIDs(expected), getEntityIDs(filtered));
+            assertEquals("Rejected entities were passed to later filters", filtered.getEntityDescriptors().size(),
+                    countingFilter.getFilteredEntities());
+            for (int i = 0; i < expected.getEntityDescriptors().size(); i++) {
+                assertEquals("Roles of filtered entity differ", expected.getEntityDescriptors().get(i)
+                        .getRoleDescriptors().size(), filtered.getEntityDescriptors().get(i).getRoleDescriptors()
+                        .size());
+                assertSame("Filtered entity has the wrong parent", filtered, filtered.getEntityDescriptors().get(i)
+                        .getParent());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests that a filtering rejected by the executor fails the chain.
+     */
+    public void testRejectedFiltering() throws Exception {
+        List<MetadataFilter> filters = new ArrayList<MetadataFilter>();
+        filters.add(new EntityIDFilter("edu"));
+        MetadataFilterChain chain = new MetadataFilterChain();
+        chain.setFilters(filters);
+
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        executor.shutdown();
+        chain.setFilterExecutor(executor);
+        try {
+            chain.doFilter(unmarshallElement(metadataFile));
+            fail("Chain passed, should have failed");
+        } catch (FilterException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Gets the IDs of the entities directly contained in an EntitiesDescriptor, in document order.
+     * 
+     * @param entitiesDescriptor the EntitiesDescriptor
+     * 
+     * @return the entity IDs
+     */
+    private List<String> getEntityIDs(EntitiesDescriptor entitiesDescriptor) {
+        List<String> entityIDs = new ArrayList<String>();
+        for (EntityDescriptor entity : entitiesDescriptor.getEntityDescriptors()) {
+            entityIDs.add(entity.getEntityID());
+        }
+        return entityIDs;
+    }
+
+    /**
+     * An entity scoped filter which keeps the entities whose ID contains a given string.
+     */
+    private static class EntityIDFilter implements EntityScopedMetadataFilter {
+
+        /** String the kept entity IDs contain. */
+        private String keptSubstring;
+
+        /**
+         * Constructor.
+         * 
+         * @param substring string the kept entity IDs contain
+         */
+        public EntityIDFilter(String substring) {
+            keptSubstring = substring;
+        }
+
+        /** {@inheritDoc} */
+        public boolean isEntityScoped(XMLObject metadata) {
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        public boolean filterEntity(EntityDescriptor entityDescriptor) {
+            return entityDescriptor.getEntityID().indexOf(keptSubstring) >= 0;
+        }
+
+        /** {@inheritDoc} */
+        public void doFilter(XMLObject metadata) throws FilterException {
+            EntitiesDescriptor entitiesDescriptor = (EntitiesDescriptor) metadata;
+            List<EntityDescriptor> entities = new ArrayList<EntityDescriptor>(entitiesDescriptor
+                    .getEntityDescriptors());
+            for (EntityDescriptor entity : entities) {
+                if (!filterEntity(entity)) {
+                    entitiesDescriptor.getEntityDescriptors().remove(entity);
+                }
+            }
+        }
+    }
+
+    /**
+     * An entity scoped filter which counts the entities it filters.
+     */
+    private static class CountingFilter implements EntityScopedMetadataFilter {
+
+        /** Number of entities filtered. */
+        private AtomicInteger filteredEntities = new AtomicInteger();
+
+        /**
+         * Gets the number of entities filtered.
+         * 
+         * @return number of entities filtered
+         */
+        public int getFilteredEntities() {
+            return filteredEntities.get();
+        }
+
+        /** {@inheritDoc} */
+        public boolean isEntityScoped(XMLObject metadata) {
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        public boolean filterEntity(EntityDescriptor entityDescriptor) {
+            filteredEntities.incrementAndGet();
+            return true;
+        }
+
+        /** {@inheritDoc} */
+        public void doFilter(XMLObject metadata) {
+            filteredEntities.addAndGet(((EntitiesDescriptor) metadata).getEntityDescriptors().size());
+        }
+    }
+}
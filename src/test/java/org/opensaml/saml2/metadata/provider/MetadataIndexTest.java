@@ -0,0 +1,196 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.opensaml.common.BaseTestCase;
+import org.opensaml.saml2.common.SAML2Helper;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml2.metadata.RoleDescriptor;
+
+/**
+ * Tests for {@link MetadataIndex}.
+ */
+public class MetadataIndexTest extends BaseTestCase {
+
+    private FilesystemMetadataProvider metadataProvider;
+    private String entityID;
+    private String entitiesName;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        entityID = "urn:mace:incommon:washington.edu";
+        entitiesName = "urn:mace:incommon";
+
+        URL mdURL = MetadataIndexTest.class.getResource("/data/org/opensaml/saml2/metadata/InCommon-metadata.xml");
+        File mdFile = new File(mdURL.toURI());
+
+        metadataProvider = new FilesystemMetadataProvider(mdFile);
+        metadataProvider.setParserPool(parser);
+        metadataProvider.initialize();
+    }
+
+    /**
+     * Tests that the index contains every entity descriptor in the metadata.
+     */
+    public void testIndexContents() throws MetadataProviderException {
+        EntitiesDescriptor metadata = (EntitiesDescriptor) metadataProvider.getMetadata();
+        MetadataIndex index = new MetadataIndex(metadata);
+
+        assertSame("Index not built from expected metadata", metadata, index.getMetadata());
+        HashSet<String> seenIDs = new HashSet<String>();
+        for (EntityDescriptor descriptor : metadata.getEntityDescriptors()) {
+            // the metadata contains duplicate entity IDs, the first one must win
+            if (seenIDs.add(descriptor.getEntityID())) {
+                assertSame("Indexed descriptor was not the first one in the metadata", descriptor, index
+                        .getEntityDescriptor(descriptor.getEntityID()));
+            }
+        }
+        assertEquals("Unexpected number of indexed entities", seenIDs.size(), index.getEntityDescriptors().size());
+
+        assertSame("Root entities descriptor was not indexed", metadata, index.getEntitiesDescriptor(entitiesName));
+        assertNull("Unknown entity was found in index", index.getEntityDescriptor("urn:example:unknown"));
+        assertNull("Null entity ID was found in index", index.getEntityDescriptor(null));
+    }
+
+    /**
+     * Tests that the provider serves lookups from the index built at refresh time.
+     */
+    public void testProviderLookup() throws MetadataProviderException {
+        EntityDescriptor descriptor = metadataProvider.getEntityDescriptor(entityID);
+        assertNotNull("Retrieved entity descriptor was null", descriptor);
+        assertSame("Lookups did not return the same descriptor instance", descriptor, metadataProvider
+                .getEntityDescriptor(entityID));
+
+        EntitiesDescriptor group = metadataProvider.getEntitiesDescriptor(entitiesName);
+        assertNotNull("Retrieved entities descriptor was null", group);
+        assertNull("Unknown entities descriptor was returned", metadataProvider
+                .getEntitiesDescriptor("urn:example:unknown"));
+    }
+
+    /**
+     * Tests that every descriptor carrying a duplicate entity ID or name is indexed and that lookups return the same
+     * descriptor as the search of the metadata tree previously used by {@link AbstractMetadataProvider}: the first
+     * valid entity descriptor and, for nested entities descriptors, the last valid one.
+     */
+    public void testDuplicates() throws Exception {
+        String expired = "validUntil=\"2000-01-01T00:00:00Z\"";
+        String metadataDocument = "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" "
+                + "Name=\"urn:example:group\">"
+                + "<md:EntitiesDescriptor>"
+                + "<md:EntityDescriptor entityID=\"urn:example:entity\" " + expired + "/>"
+                + "</md:EntitiesDescriptor>"
+                + "<md:EntitiesDescriptor Name=\"urn:example:nested\">"
+                + "<md:EntityDescriptor entityID=\"urn:example:other\"/>"
+                + "</md:EntitiesDescriptor>"
+                + "<md:EntitiesDescriptor Name=\"urn:example:nested\" " + expired + ">"
+                + "<md:EntityDescriptor entityID=\"urn:example:entity\"/>"
+                + "</md:EntitiesDescriptor>"
+                + "</md:EntitiesDescriptor>";
+        File mdFile = File.createTempFile("metadata", ".xml");
+        try {
+            FileOutputStream out = new FileOutputStream(mdFile);
+            try {
+                out.write(metadataDocument.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+
+            FilesystemMetadataProvider duplicatesProvider = new FilesystemMetadataProvider(mdFile);
+            duplicatesProvider.setParserPool(parser);
+            duplicatesProvider.setMaintainExpiredMetadata(true);
+            duplicatesProvider.setRequireValidMetadata(true);
+            duplicatesProvider.initialize();
+
+            EntitiesDescriptor metadata = (EntitiesDescriptor) duplicatesProvider.getMetadata();
+            EntitiesDescriptor firstGroup = metadata.getEntitiesDescriptors().get(1);
+            EntitiesDescriptor secondGroup = metadata.getEntitiesDescriptors().get(2);
+            EntityDescriptor expiredEntity = metadata.getEntitiesDescriptors().get(0).getEntityDescriptors().get(0);
+            EntityDescriptor validEntity = secondGroup.getEntityDescriptors().get(0);
+
+            MetadataIndex index = new MetadataIndex(metadata);
+            List<EntityDescriptor> entities = index.getEntityDescriptors("urn:example:entity");
+            assertEquals("Duplicate entity descriptor was not indexed", 2, entities.size());
+            assertSame("Entity descriptors not in search order", expiredEntity, entities.get(0));
+            assertSame("Entity descriptors not in search order", validEntity, entities.get(1));
+            assertSame("First entity descriptor was not returned", expiredEntity, index
+                    .getEntityDescriptor("urn:example:entity"));
+            List<EntitiesDescriptor> groups = index.getEntitiesDescriptors("urn:example:nested");
+            assertEquals("Duplicate entities descriptor was not indexed", 2, groups.size());
+            assertSame("Later nested entities descriptor was not searched first", secondGroup, groups.get(0));
+            assertSame("Entities descriptors not in search order", firstGroup, groups.get(1));
+            assertTrue("Unknown entity was found in index", index.getEntityDescriptors("urn:example:unknown")
+                    .isEmpty());
+
+            assertSame("First valid entity descriptor was not returned", validEntity, duplicatesProvider
+                    .getEntityDescriptor("urn:example:entity"));
+            assertSame("First valid entities descriptor was not returned", firstGroup, duplicatesProvider
+                    .getEntitiesDescriptor("urn:example:nested"));
+
+            duplicatesProvider.setRequireValidMetadata(false);
+            assertSame("First entity descriptor was not returned", expiredEntity, duplicatesProvider
+                    .getEntityDescriptor("urn:example:entity"));
+            assertSame("Last nested entities descriptor was not returned", secondGroup, duplicatesProvider
+                    .getEntitiesDescriptor("urn:example:nested"));
+        } finally {
+            mdFile.delete();
+        }
+    }
+
+    /**
+     * Tests that the precomputed validity agrees with {@link SAML2Helper#isValid(org.opensaml.xml.XMLObject)}.
+     */
+    public void testEffectiveValidUntil() throws MetadataProviderException {
+        EntitiesDescriptor metadata = (EntitiesDescriptor) metadataProvider.getMetadata();
+        EntityDescriptor descriptor = metadataProvider.getEntityDescriptor(entityID);
+        RoleDescriptor role = descriptor.getRoleDescriptors().get(0);
+
+        MetadataIndex index = new MetadataIndex(metadata);
+        long now = System.currentTimeMillis();
+        assertEquals("Entity without validUntil was not valid", Long.MAX_VALUE, index
+                .getEffectiveValidUntil(descriptor));
+        assertTrue("Entity without validUntil was not valid", index.isValid(descriptor, now));
+
+        DateTime future = new DateTime().plusHours(1);
+        role.setValidUntil(future);
+        index = new MetadataIndex(metadata);
+        now = System.currentTimeMillis();
+        assertEquals("Role validUntil was not propagated to entity", future.getMillis(), index
+                .getEffectiveValidUntil(descriptor));
+        assertEquals("Role validUntil was not propagated to group", future.getMillis(), index
+                .getEffectiveValidUntil(metadata));
+        assertEquals("Precomputed validity differs", SAML2Helper.isValid(descriptor), index.isValid(descriptor, now));
+        assertTrue("Entity was not valid before its role expired", index.isValid(descriptor, now));
+
+        DateTime past = new DateTime().minusHours(1);
+        role.setValidUntil(past);
+        index = new MetadataIndex(metadata);
+        now = System.currentTimeMillis();
+        assertEquals("Precomputed validity differs", SAML2Helper.isValid(descriptor), index.isValid(descriptor, now));
+        assertFalse("Entity with an expired role was valid", index.isValid(descriptor, now));
+        assertFalse("Group containing an expired role was valid", index.isValid(metadata, now));
+    }
+}
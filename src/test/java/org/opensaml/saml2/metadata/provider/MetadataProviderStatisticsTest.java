@@ -0,0 +1,51 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import org.opensaml.common.BaseTestCase;
+
+/**
+ * Tests for {@link MetadataProviderStatistics}.
+ */
+public class MetadataProviderStatisticsTest extends BaseTestCase {
+
+    /**
+     * Tests that a refresh which loaded the metadata from a local backup is counted as failed, while the statistics
+     * of the loaded metadata are updated.
+     */
+    public void testBackupRefreshCountedAsFailure() {
+        MetadataProviderStatistics statistics = new MetadataProviderStatistics();
+
+        MetadataRefreshMetrics successful = new MetadataRefreshMetrics();
+        successful.complete(true);
+        statistics.recordRefresh(successful);
+        assertTrue("Refresh was not successful", statistics.isLastRefreshSuccessful());
+
+        MetadataRefreshMetrics fromBackup = new MetadataRefreshMetrics();
+        fromBackup.setLoadedFromBackup(true);
+        fromBackup.setEntityCount(42);
+        fromBackup.complete(true);
+        statistics.recordRefresh(fromBackup);
+
+        assertFalse("Refresh from backup was successful", statistics.isLastRefreshSuccessful());
+        assertEquals("Unexpected failure count", 1, statistics.getRefreshFailureCount());
+        assertEquals("Unexpected consecutive failure count", 1, statistics.getConsecutiveRefreshFailureCount());
+        assertEquals("Entity count of the backup metadata was not recorded", 42, statistics.getEntityCount());
+        assertEquals("Refresh from backup was recorded as the last successful one", successful.getEndTime(),
+                statistics.getLastSuccessfulRefreshTime().getTime());
+    }
+}
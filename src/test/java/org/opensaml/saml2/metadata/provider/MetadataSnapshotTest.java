@@ -0,0 +1,107 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.joda.time.DateTime;
+import org.opensaml.common.BaseTestCase;
+
+/**
+ * Tests for {@link MetadataSnapshot}.
+ */
+public class MetadataSnapshotTest extends BaseTestCase {
+
+    private File snapshotFile;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        snapshotFile = File.createTempFile("metadata", ".snapshot");
+        snapshotFile.deleteOnExit();
+    }
+
+    /** {@inheritDoc} */
+    protected void tearDown() throws Exception {
+        snapshotFile.delete();
+        super.tearDown();
+    }
+
+    /**
+     * Tests that a written snapshot is read back unchanged.
+     */
+    public void testRoundTrip() throws IOException {
+        byte[] metadata = "<md:EntityDescriptor entityID=\"urn:example:entity\"/>".getBytes("UTF-8");
+        DateTime expiration = new DateTime().plusDays(1);
+        MetadataSnapshot snapshot = new MetadataSnapshot(metadata, Arrays.asList(new String[] { "urn:example:entity" }),
+                expiration, "\"etag\"", null);
+        snapshot.write(snapshotFile);
+
+        MetadataSnapshot readSnapshot = MetadataSnapshot.read(snapshotFile);
+        assertEquals("Creation time differs", snapshot.getCreationTime(), readSnapshot.getCreationTime());
+        assertEquals("Expiration time differs", expiration.getMillis(), readSnapshot.getExpirationTime().getMillis());
+        assertEquals("ETag differs", "\"etag\"", readSnapshot.getETag());
+        assertNull("Last-Modified date differs", readSnapshot.getLastModified());
+        assertEquals("Entity IDs differ", snapshot.getEntityIDs(), readSnapshot.getEntityIDs());
+        assertTrue("Metadata differs", Arrays.equals(metadata, readAll(readSnapshot.getMetadataStream())));
+    }
+
+    /**
+     * Tests that a corrupted snapshot is rejected.
+     */
+    public void testCorruptSnapshot() throws IOException {
+        byte[] metadata = "<md:EntityDescriptor entityID=\"urn:example:entity\"/>".getBytes("UTF-8");
+        new MetadataSnapshot(metadata, Arrays.asList(new String[] { "urn:example:entity" }), null, null, null)
+                .write(snapshotFile);
+
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        file.seek(20);
+        int value = file.read();
+        file.seek(20);
+        file.write(value ^ 0xFF);
+        file.close();
+
+        try {
+            MetadataSnapshot.read(snapshotFile);
+            fail("Corrupt snapshot was read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Reads a stream to its end.
+     *
+     * @param in the stream
+     *
+     * @return the contents of the stream
+     */
+    private byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
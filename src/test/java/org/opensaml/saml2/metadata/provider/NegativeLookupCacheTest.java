@@ -0,0 +1,90 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.opensaml.saml2.metadata.provider;
+
+import org.opensaml.common.BaseTestCase;
+
+/**
+ * Tests for {@link NegativeLookupCache}.
+ */
+public class NegativeLookupCacheTest extends BaseTestCase {
+
+    /**
+     * Tests that remembered identifiers are found until they expire or the cache is cleared.
+     */
+    public void testContains() throws Exception {
+        NegativeLookupCache cache = new NegativeLookupCache(10, 100);
+        assertFalse("Unknown identifier was found", cache.contains("urn:example:unknown"));
+
+        cache.add("urn:example:unknown");
+        assertTrue("Remembered identifier was not found", cache.contains("urn:example:unknown"));
+        assertEquals("Unexpected hit count", 1, cache.getHitCount());
+
+        cache.clear();
+        assertFalse("Identifier was found after the cache was cleared", cache.contains("urn:example:unknown"));
+
+        cache.add("urn:example:unknown");
+        Thread.sleep(150);
+        assertFalse("Expired identifier was found", cache.contains("urn:example:unknown"));
+    }
+
+    /**
+     * Tests that the cache is bounded.
+     */
+    public void testMaxSize() {
+        NegativeLookupCache cache = new NegativeLookupCache(2, 60 * 1000);
+        for (int i = 0; i < 5; i++) {
+            cache.add("urn:example:unknown:" + i);
+        }
+        assertEquals("Cache exceeded its maximum size", 2, cache.getSize());
+        assertTrue("Most recent identifier was evicted", cache.contains("urn:example:unknown:4"));
+        assertFalse("Least recent identifier was not evicted", cache.contains("urn:example:unknown:0"));
+    }
+
+    /**
+     * Tests that a removed identifier is forgotten and, when added again, is evicted as the most recent identifier.
+     */
+    public void testRemove() {
+        NegativeLookupCache cache = new NegativeLookupCache(2, 60 * 1000);
+        cache.add("urn:example:unknown:0");
+        cache.add("urn:example:unknown:1");
+        cache.remove("urn:example:unknown:0");
+        assertFalse("Removed identifier was found", cache.contains("urn:example:unknown:0"));
+        assertEquals("Unexpected cache size", 1, cache.getSize());
+
+        cache.add("urn:example:unknown:0");
+        cache.add("urn:example:unknown:2");
+        assertEquals("Cache exceeded its maximum size", 2, cache.getSize());
+        assertTrue("Re-added identifier was evicted before older ones", cache.contains("urn:example:unknown:0"));
+        assertFalse("Least recent identifier was not evicted", cache.contains("urn:example:unknown:1"));
+    }
+
+    /**
+     * Tests that identifiers not found before the cache was cleared are not remembered.
+     */
+    public void testStaleGeneration() {
+        NegativeLookupCache cache = new NegativeLookupCache(10, 60 * 1000);
+        long generation = cache.getGeneration();
+        cache.clear();
+        cache.add("urn:example:unknown", generation);
+        assertFalse("Identifier of a cleared generation was remembered", cache.contains("urn:example:unknown"));
+        assertEquals("Cache is not empty", 0, cache.getSize());
+
+        cache.add("urn:example:unknown", cache.getGeneration());
+        assertTrue("Remembered identifier was not found", cache.contains("urn:example:unknown"));
+    }
+}
@@ -16,8 +16,14 @@
 
 package org.opensaml.saml2.metadata.provider;
 
+import java.io.File;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import org.opensaml.common.BaseTestCase;
 import org.opensaml.saml2.metadata.EntitiesDescriptor;
+import org.opensaml.saml2.metadata.EntityDescriptor;
 
 /**
  * Unit tests for {@link SchemaValidationFilter}.
@@ -42,4 +48,72 @@ public class SchemaValidationFilterTest extends BaseTestCase {
 
         EntitiesDescriptor descriptor = (EntitiesDescriptor) metadataProvider.getMetadata();
     }
+
+    /**
+     * Tests that an invalid entity descriptor is removed, rather than the whole metadata rejected, when entities are
+     * validated individually.
+     */
+    public void testValidateEntitiesIndividually() throws Exception {
+        SchemaValidationFilter filter = new SchemaValidationFilter(null);
+        filter.setValidateEntitiesIndividually(true);
+        checkInvalidEntityRemoved(filter);
+    }
+
+    /**
+     * Tests that an invalid entity descriptor is removed when entities are validated individually and in parallel.
+     */
+    public void testValidateEntitiesInParallel() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            SchemaValidationFilter filter = new SchemaValidationFilter(null);
+            filter.setValidateEntitiesIndividually(true);
+            filter.setValidationExecutor(executor);
+            checkInvalidEntityRemoved(filter);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Tests that a validation rejected by the validation executor fails the filter.
+     */
+    public void testRejectedValidation() throws Exception {
+        EntitiesDescriptor metadata = (EntitiesDescriptor) unmarshallElement(
+                "/data/org/opensaml/saml2/metadata/ukfederation-metadata.xml");
+
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        executor.shutdown();
+        SchemaValidationFilter filter = new SchemaValidationFilter(null);
+        filter.setValidateEntitiesIndividually(true);
+        filter.setValidationExecutor(executor);
+        try {
+            filter.doFilter(metadata);
+            fail("Filter passed validation, should have failed");
+        } catch (FilterException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Loads metadata, makes one of its entity descriptors schema invalid and checks that the filter removes it.
+     * 
+     * @param filter the filter to test
+     */
+    private void checkInvalidEntityRemoved(SchemaValidationFilter filter) throws Exception {
+        URL mdURL = SchemaValidationFilterTest.class
+                .getResource("/data/org/opensaml/saml2/metadata/ukfederation-metadata.xml");
+        FilesystemMetadataProvider metadataProvider = new FilesystemMetadataProvider(new File(mdURL.toURI()));
+        metadataProvider.setParserPool(parser);
+        metadataProvider.initialize();
+
+        EntitiesDescriptor metadata = (EntitiesDescriptor) metadataProvider.getMetadata();
+        EntityDescriptor invalidEntity = metadata.getEntityDescriptors().get(0);
+        invalidEntity.getDOM().setAttributeNS(null, "notAllowed", "true");
+
+        filter.doFilter(metadata);
+
+        assertFalse("Invalid entity descriptor was not removed", metadata.getEntityDescriptors().contains(
+                invalidEntity));
+        assertFalse("All entity descriptors were removed", metadata.getEntityDescriptors().isEmpty());
+    }
 }
\ No newline at end of file
@@ -16,17 +16,23 @@
 
 package org.opensaml.saml2.metadata.provider;
 
+import java.io.File;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.opensaml.Configuration;
 import org.opensaml.common.BaseTestCase;
+import org.opensaml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.xml.XMLObject;
 import org.opensaml.xml.io.UnmarshallingException;
 import org.opensaml.xml.parse.XMLParserException;
 import org.opensaml.xml.security.SecurityHelper;
 import org.opensaml.xml.security.SecurityTestHelper;
+import org.opensaml.xml.security.credential.Credential;
 import org.opensaml.xml.security.credential.StaticCredentialResolver;
 import org.opensaml.xml.security.x509.X509Credential;
 import org.opensaml.xml.signature.SignatureTrustEngine;
@@ -104,6 +110,75 @@ public class SignatureValidationFilterTest extends BaseTestCase {
         }
     }
     
+    public void testValidSWITCHParallel() throws UnmarshallingException {
+        XMLObject xmlObject = unmarshallerFactory.getUnmarshaller(switchMDDocumentValid
+                .getDocumentElement()).unmarshall(switchMDDocumentValid.getDocumentElement());
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        SignatureValidationFilter filter = new SignatureValidationFilter(switchSigTrustEngine);
+        filter.setVerificationExecutor(executor);
+        try {
+            filter.doFilter(xmlObject);
+        } catch (FilterException e) {
+            fail("Filter failed validation, should have succeeded: " + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    public void testInvalidSWITCHParallel() throws UnmarshallingException {
+        XMLObject xmlObject = unmarshallerFactory.getUnmarshaller(switchMDDocumentInvalid
+                .getDocumentElement()).unmarshall(switchMDDocumentInvalid.getDocumentElement());
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        SignatureValidationFilter filter = new SignatureValidationFilter(switchSigTrustEngine);
+        filter.setVerificationExecutor(executor);
+        try {
+            filter.doFilter(xmlObject);
+            fail("Filter passed validation, should have failed");
+        } catch (FilterException e) {
+            // do nothing, should fail
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    public void testValidSWITCHCached() throws UnmarshallingException, XMLParserException {
+        VerifiedSignatureCache cache = new VerifiedSignatureCache(10);
+        SignatureValidationFilter filter = new SignatureValidationFilter(switchSigTrustEngine);
+        filter.setVerifiedSignatureCache(cache);
+        
+        for (int i = 0; i < 2; i++) {
+            Document mdDoc = parser.parse(SignatureValidationFilterTest.class.getResourceAsStream(switchMDFileValid));
+            XMLObject xmlObject = unmarshallerFactory.getUnmarshaller(mdDoc.getDocumentElement()).unmarshall(
+                    mdDoc.getDocumentElement());
+            try {
+                filter.doFilter(xmlObject);
+            } catch (FilterException e) {
+                fail("Filter failed validation, should have succeeded: " + e.getMessage());
+            }
+        }
+        
+        assertEquals("Unexpected number of cached signatures", 1, cache.getSize());
+        assertEquals("Unexpected number of cache misses", 1, cache.getMissCount());
+        assertEquals("Unexpected number of cache hits", 1, cache.getHitCount());
+        
+        SignatureValidationFilter otherFilter = new SignatureValidationFilter(new ExplicitKeySignatureTrustEngine(
+                new StaticCredentialResolver(new ArrayList<Credential>()), 
+                Configuration.getGlobalSecurityConfiguration().getDefaultKeyInfoCredentialResolver()));
+        otherFilter.setVerifiedSignatureCache(cache);
+        assertEquals("Cache was not cleared for another trust engine", 0, cache.getSize());
+    }
+    
+    public void testVerifiedSignatureCacheExpiry() throws InterruptedException {
+        VerifiedSignatureCache cache = new VerifiedSignatureCache(10, 50);
+        cache.add("key");
+        assertTrue("Signature was not cached", cache.contains("key"));
+        Thread.sleep(100);
+        assertFalse("Expired signature was found", cache.contains("key"));
+        assertEquals("Unexpected number of cache hits", 0, cache.getHitCount());
+    }
+    
     public void testInvalidSWITCHStandalone() throws UnmarshallingException {
         XMLObject xmlObject = unmarshallerFactory.getUnmarshaller(switchMDDocumentInvalid
                 .getDocumentElement()).unmarshall(switchMDDocumentInvalid.getDocumentElement());
@@ -164,6 +239,61 @@ public class SignatureValidationFilterTest extends BaseTestCase {
         }
     }
     
+    /**
+     * Tests that signed EntityDescriptor members are verified in parallel on copies of their DOM, and that the members
+     * which fail verification are removed.
+     */
+    public void testSignedMembersParallel() throws XMLParserException, CertificateException {
+        X509Certificate cert = SecurityTestHelper.buildJavaX509Cert(openIDCertBase64);
+        X509Credential cred = SecurityHelper.getSimpleCredential(cert, null);
+        StaticCredentialResolver credResolver = new StaticCredentialResolver(cred);
+        SignatureTrustEngine trustEngine = new ExplicitKeySignatureTrustEngine(credResolver, 
+                Configuration.getGlobalSecurityConfiguration().getDefaultKeyInfoCredentialResolver());
+        
+        EntitiesDescriptor group = (EntitiesDescriptor) buildXMLObject(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+        group.getEntityDescriptors().add((EntityDescriptor) unmarshallElement(openIDFileValid));
+        group.getEntityDescriptors().add((EntityDescriptor) unmarshallElement(openIDFileInvalid));
+        EntityDescriptor valid = group.getEntityDescriptors().get(0);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        SignatureValidationFilter filter = new SignatureValidationFilter(trustEngine);
+        filter.setVerificationExecutor(executor);
+        try {
+            filter.doFilter(group);
+        } catch (FilterException e) {
+            fail("Filter failed validation, should have succeeded: " + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals("Invalid member was not removed", 1, group.getEntityDescriptors().size());
+        assertSame("Valid member was not kept", valid, group.getEntityDescriptors().get(0));
+    }
+    
+    /**
+     * Tests that a verification rejected by the executor fails the filter.
+     */
+    public void testRejectedVerification() throws CertificateException {
+        X509Certificate cert = SecurityTestHelper.buildJavaX509Cert(openIDCertBase64);
+        X509Credential cred = SecurityHelper.getSimpleCredential(cert, null);
+        StaticCredentialResolver credResolver = new StaticCredentialResolver(cred);
+        SignatureTrustEngine trustEngine = new ExplicitKeySignatureTrustEngine(credResolver, 
+                Configuration.getGlobalSecurityConfiguration().getDefaultKeyInfoCredentialResolver());
+        
+        EntitiesDescriptor group = (EntitiesDescriptor) buildXMLObject(EntitiesDescriptor.DEFAULT_ELEMENT_NAME);
+        group.getEntityDescriptors().add((EntityDescriptor) unmarshallElement(openIDFileValid));
+        
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        executor.shutdown();
+        SignatureValidationFilter filter = new SignatureValidationFilter(trustEngine);
+        filter.setVerificationExecutor(executor);
+        try {
+            filter.doFilter(group);
+            fail("Filter passed validation, should have failed");
+        } catch (FilterException e) {
+            // expected
+        }
+    }
+    
     public void testEntityDescriptorWithProvider() throws CertificateException, XMLParserException, UnmarshallingException {
         X509Certificate cert = SecurityTestHelper.buildJavaX509Cert(openIDCertBase64);
         X509Credential cred = SecurityHelper.getSimpleCredential(cert, null);
@@ -217,4 +347,41 @@ public class SignatureValidationFilterTest extends BaseTestCase {
         }
     }
 
+    /**
+     * Tests that metadata that can not be verified one entity at a time is rejected, rather than accepted unverified,
+     * when it is streamed.
+     */
+    public void testStreamingFailsClosed() throws Exception {
+        File signedAggregate = new File(SignatureValidationFilterTest.class.getResource(switchMDFileInvalid).toURI());
+        FilesystemMetadataProvider mdProvider = new FilesystemMetadataProvider(signedAggregate);
+        mdProvider.setParserPool(parser);
+        mdProvider.setRequireValidMetadata(false);
+        mdProvider.setStreamingIngestion(true);
+        SignatureValidationFilter filter = new SignatureValidationFilter(switchSigTrustEngine);
+        filter.setRequireSignature(false);
+        mdProvider.setMetadataFilter(filter);
+        try {
+            mdProvider.initialize();
+            fail("Streamed metadata with a signed EntitiesDescriptor was accepted");
+        } catch (MetadataProviderException e) {
+            // expected
+        }
+
+        File unsignedAggregate = new File(SignatureValidationFilterTest.class.getResource(
+                "/data/org/opensaml/saml2/metadata/InCommon-metadata.xml").toURI());
+        mdProvider = new FilesystemMetadataProvider(unsignedAggregate);
+        mdProvider.setParserPool(parser);
+        mdProvider.setRequireValidMetadata(false);
+        mdProvider.setStreamingIngestion(true);
+        filter = new SignatureValidationFilter(switchSigTrustEngine);
+        filter.setRequireSignature(true);
+        mdProvider.setMetadataFilter(filter);
+        try {
+            mdProvider.initialize();
+            fail("Streamed metadata was accepted although a signature was required");
+        } catch (MetadataProviderException e) {
+            // expected
+        }
+    }
+
 }
\ No newline at end of file
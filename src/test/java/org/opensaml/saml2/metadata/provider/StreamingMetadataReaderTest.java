@@ -0,0 +1,111 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.opensaml.saml2.metadata.provider;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opensaml.common.BaseTestCase;
+import org.opensaml.xml.parse.XMLParserException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Tests for {@link StreamingMetadataReader}.
+ */
+public class StreamingMetadataReaderTest extends BaseTestCase {
+
+    /** Entity IDs of the processed entities. */
+    private List<String> entityIDs;
+
+    /** Processor recording the ID of each entity. */
+    private StreamingMetadataReader.EntityProcessor processor;
+
+    /** {@inheritDoc} */
+    protected void setUp() throws Exception {
+        super.setUp();
+        entityIDs = new ArrayList<String>();
+        processor = new StreamingMetadataReader.EntityProcessor() {
+            public void processEntity(Element entityElement, Element parentElement) {
+                entityIDs.add(entityElement.getAttributeNS(null, "entityID"));
+            }
+        };
+    }
+
+    /**
+     * Tests that entities are cut out of the stream and the groups are kept in the skeleton.
+     */
+    public void testRead() throws Exception {
+        String metadata = "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" Name=\"group\">"
+                + "<md:EntityDescriptor entityID=\"urn:example:one\"/>"
+                + "<md:EntityDescriptor entityID=\"urn:example:two\"/>" + "</md:EntitiesDescriptor>";
+
+        Document skeleton = new StreamingMetadataReader(parser).read(toStream(metadata), processor);
+
+        assertEquals("Unexpected entities", 2, entityIDs.size());
+        assertEquals("Unexpected group", "group", skeleton.getDocumentElement().getAttributeNS(null, "Name"));
+        assertNull("Entities were kept in the skeleton", skeleton.getDocumentElement().getFirstChild());
+    }
+
+    /**
+     * Tests that a document with a DOCTYPE declaration is rejected.
+     */
+    public void testDoctypeRejected() throws Exception {
+        String metadata = "<!DOCTYPE md:EntitiesDescriptor [<!ENTITY name \"group\">]>"
+                + "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" Name=\"&name;\">"
+                + "<md:EntityDescriptor entityID=\"urn:example:one\"/>" + "</md:EntitiesDescriptor>";
+        try {
+            new StreamingMetadataReader(parser).read(toStream(metadata), processor);
+            fail("Document with a DOCTYPE declaration was read");
+        } catch (XMLParserException e) {
+            // expected
+        }
+        assertTrue("Entity was processed", entityIDs.isEmpty());
+    }
+
+    /**
+     * Tests that an external entity is never resolved.
+     */
+    public void testExternalEntityRejected() throws Exception {
+        File secret = File.createTempFile("secret", ".txt");
+        secret.deleteOnExit();
+        String metadata = "<!DOCTYPE md:EntitiesDescriptor [<!ENTITY secret SYSTEM \"" + secret.toURI() + "\">]>"
+                + "<md:EntitiesDescriptor xmlns:md=\"urn:oasis:names:tc:SAML:2.0:metadata\" Name=\"&secret;\">"
+                + "<md:EntityDescriptor entityID=\"urn:example:one\"/>" + "</md:EntitiesDescriptor>";
+        try {
+            new StreamingMetadataReader(parser).read(toStream(metadata), processor);
+            fail("Document with an external entity was read");
+        } catch (XMLParserException e) {
+            // expected
+        } finally {
+            secret.delete();
+        }
+    }
+
+    /**
+     * Converts a string to a UTF-8 encoded stream.
+     *
+     * @param document the string
+     *
+     * @return the stream
+     */
+    private ByteArrayInputStream toStream(String document) throws IOException {
+        return new ByteArrayInputStream(document.getBytes("UTF-8"));
+    }
+}
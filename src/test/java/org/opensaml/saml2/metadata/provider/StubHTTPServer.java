@@ -0,0 +1,231 @@
+/*
+ * Copyright 2008 University Corporation for Advanced Internet Development, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.opensaml.saml2.metadata.provider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An HTTP server, bound to the loopback interface, that answers every request with a preset response. Used to test
+ * HTTP metadata providers without contacting a remote metadata server.
+ */
+public class StubHTTPServer implements Runnable {
+
+    /** Socket the server accepts connections on. */
+    private ServerSocket serverSocket;
+
+    /** Thread accepting connections. */
+    private Thread acceptThread;
+
+    /** Status code of the response. */
+    private int responseStatus;
+
+    /** Header lines of the response, excluding Content-Length and Connection. */
+    private List<String> responseHeaders;
+
+    /** Body of the response. */
+    private byte[] responseBody;
+
+    /** Header lines of the most recent request. */
+    private List<String> requestHeaders;
+
+    /** Number of requests answered. */
+    private int requestCount;
+
+    /**
+     * Constructor.
+     * 
+     * @throws IOException thrown if the server socket can not be bound
+     */
+    public StubHTTPServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        responseHeaders = new ArrayList<String>();
+        requestHeaders = new ArrayList<String>();
+        setResponse(404, new byte[0]);
+    }
+
+    /** Starts accepting connections. */
+    public void start() {
+        acceptThread = new Thread(this, "StubHTTPServer on port " + serverSocket.getLocalPort());
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Stops accepting connections.
+     * 
+     * @throws Exception thrown if the server can not be stopped
+     */
+    public void stop() throws Exception {
+        serverSocket.close();
+        if (acceptThread != null) {
+            acceptThread.join(10 * 1000);
+        }
+    }
+
+    /**
+     * Gets the URL of the given path on this server.
+     * 
+     * @param path the absolute path
+     * 
+     * @return the URL of the path
+     */
+    public String getURL(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + path;
+    }
+
+    /**
+     * Sets the response to subsequent requests. Any previously added response headers are dropped.
+     * 
+     * @param status status code of the response
+     * @param body body of the response
+     */
+    public synchronized void setResponse(int status, byte[] body) {
+        responseStatus = status;
+        responseBody = body;
+        responseHeaders.clear();
+    }
+
+    /**
+     * Adds a header to the response to subsequent requests.
+     * 
+     * @param name name of the header
+     * @param value value of the header
+     */
+    public synchronized void addResponseHeader(String name, String value) {
+        responseHeaders.add(name + ": " + value);
+    }
+
+    /**
+     * Gets the number of requests answered.
+     * 
+     * @return number of requests answered
+     */
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    /**
+     * Gets the value of a header of the most recent request.
+     * 
+     * @param name name of the header
+     * 
+     * @return the header value or null if the most recent request did not contain the header
+     */
+    public synchronized String getRequestHeader(String name) {
+        String prefix = name.toLowerCase() + ":";
+        for (String header : requestHeaders) {
+            if (header.toLowerCase().startsWith(prefix)) {
+                return header.substring(prefix.length()).trim();
+            }
+        }
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+
+            try {
+                answer(socket);
+            } catch (IOException e) {
+                // the client went away, nothing to answer
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a request and writes the preset response. The connection is closed after the response.
+     * 
+     * @param socket the connection to the client
+     * 
+     * @throws IOException thrown if the request can not be read or the response can not be written
+     */
+    private void answer(Socket socket) throws IOException {
+        List<String> headers = new ArrayList<String>();
+        InputStream in = socket.getInputStream();
+        String line = readLine(in);
+        while (line != null && line.length() > 0) {
+            headers.add(line);
+            line = readLine(in);
+        }
+
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        synchronized (this) {
+            requestHeaders = headers;
+            requestCount++;
+
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(responseStatus).append(" Stub\r\n");
+            for (String header : responseHeaders) {
+                head.append(header).append("\r\n");
+            }
+            head.append("Content-Length: ").append(responseBody.length).append("\r\n");
+            head.append("Connection: close\r\n\r\n");
+            response.write(head.toString().getBytes("ISO-8859-1"));
+            response.write(responseBody);
+        }
+
+        OutputStream out = socket.getOutputStream();
+        out.write(response.toByteArray());
+        out.flush();
+    }
+
+    /**
+     * Reads a CRLF terminated line.
+     * 
+     * @param in the stream to read from
+     * 
+     * @return the line, without its terminator, or null if the stream ended
+     * 
+     * @throws IOException thrown if the line can not be read
+     */
+    private String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int read = in.read();
+        if (read == -1) {
+            return null;
+        }
+        while (read != -1 && read != '\n') {
+            if (read != '\r') {
+                line.append((char) read);
+            }
+            read = in.read();
+        }
+        return line.toString();
+    }
+}
@@ -16,9 +16,16 @@
 
 package org.opensaml.security;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import javax.xml.namespace.QName;
@@ -29,7 +36,11 @@ import org.opensaml.saml2.metadata.EntitiesDescriptor;
 import org.opensaml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml2.metadata.IDPSSODescriptor;
 import org.opensaml.saml2.metadata.RoleDescriptor;
+import org.opensaml.saml2.metadata.SPSSODescriptor;
 import org.opensaml.saml2.metadata.provider.DOMMetadataProvider;
+import org.opensaml.saml2.metadata.provider.FilesystemMetadataProvider;
+import org.opensaml.saml2.metadata.provider.MetadataChangeEvent;
+import org.opensaml.saml2.metadata.provider.ObservableMetadataProvider;
 import org.opensaml.xml.security.BasicSecurityConfiguration;
 import org.opensaml.xml.security.CriteriaSet;
 import org.opensaml.xml.security.SecurityConfiguration;
@@ -511,7 +522,195 @@ public class MetadataCredentialResolverTest extends BaseTestCase {
             }
         }
     }
-    
+
+    /**
+     * Test that resolved credentials are cached, survive a metadata change event that did not change the entity, and
+     * are re-resolved once invalidated.
+     * 
+     * @throws SecurityException
+     */
+    public void testCredentialCache() throws SecurityException {
+        Credential credential = mdResolver.resolveSingle(criteriaSet);
+        assertNotNull("No credential resolved", credential);
+        assertEquals("Cache miss count", 1, mdResolver.getCacheMissCount());
+        assertEquals("Cache size", 1, mdResolver.getCacheSize());
+
+        assertSame("Credential was not cached", credential, mdResolver.resolveSingle(criteriaSet));
+        assertEquals("Cache hit count", 1, mdResolver.getCacheHitCount());
+
+        for (ObservableMetadataProvider.Observer observer : mdProvider.getObservers()) {
+            observer.onEvent(mdProvider);
+        }
+        assertSame("Credential of unchanged entity was invalidated", credential, mdResolver.resolveSingle(criteriaSet));
+        assertEquals("Cache miss count", 1, mdResolver.getCacheMissCount());
+
+        MetadataChangeEvent event = new MetadataChangeEvent(Collections.<String> emptySet(), Collections
+                .<String> emptySet(), Collections.singleton("urn:example.org:otherEntity"));
+        for (ObservableMetadataProvider.Observer observer : mdProvider.getObservers()) {
+            if (observer instanceof ObservableMetadataProvider.ChangeObserver) {
+                ((ObservableMetadataProvider.ChangeObserver) observer).onEvent(mdProvider, event);
+            }
+        }
+        assertSame("Credential of unchanged entity was invalidated", credential, mdResolver.resolveSingle(criteriaSet));
+        assertEquals("Cache miss count", 1, mdResolver.getCacheMissCount());
+
+        mdResolver.invalidateCredentials(idpEntityID);
+        assertEquals("Cache size", 0, mdResolver.getCacheSize());
+        assertNotNull("No credential resolved", mdResolver.resolveSingle(criteriaSet));
+        assertEquals("Cache miss count", 2, mdResolver.getCacheMissCount());
+    }
+
+    /**
+     * Test that, when a provider tracking entity changes refreshes its metadata, the cached credentials of an
+     * unchanged entity are still used, but refer to the new metadata, while those of a changed entity are re-resolved.
+     * 
+     * @throws Exception
+     */
+    public void testCredentialCacheAcrossRefresh() throws Exception {
+        InputStream mdStream = MetadataCredentialResolverTest.class.getResourceAsStream(mdFileName);
+        ByteArrayOutputStream mdBytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int read = mdStream.read(buffer); read != -1; read = mdStream.read(buffer)) {
+            mdBytes.write(buffer, 0, read);
+        }
+        mdStream.close();
+        String mdXML = mdBytes.toString("UTF-8");
+
+        File mdFile = File.createTempFile("metadata", ".xml");
+        mdFile.deleteOnExit();
+        writeFile(mdFile, mdXML);
+        FilesystemMetadataProvider fileProvider = new FilesystemMetadataProvider(mdFile);
+        fileProvider.setParserPool(parser);
+        fileProvider.setTrackEntityChanges(true);
+        fileProvider.initialize();
+        MetadataCredentialResolver fileResolver = new MetadataCredentialResolver(fileProvider);
+
+        mdCriteria.setProtocol(protocolBar);
+        CriteriaSet spCriteriaSet = new CriteriaSet();
+        spCriteriaSet.add(new EntityIDCriteria("http://sp.example.org/"));
+        spCriteriaSet.add(new MetadataCriteria(SPSSODescriptor.DEFAULT_ELEMENT_NAME, null));
+        Credential idpCredential = fileResolver.resolveSingle(criteriaSet);
+        Credential spCredential = fileResolver.resolveSingle(spCriteriaSet);
+        assertNotNull("No IdP credential resolved", idpCredential);
+        assertNotNull("No SP credential resolved", spCredential);
+        assertEquals("Cache miss count", 2, fileResolver.getCacheMissCount());
+
+        // change only the SP's metadata
+        writeFile(mdFile, mdXML.replace("https://sp.example.org/Shibboleth.sso/POST",
+                "https://sp.example.org/Shibboleth.sso/SAML/POST"));
+        mdFile.setLastModified(System.currentTimeMillis() + 60 * 1000);
+        EntitiesDescriptor refreshedMetadata = (EntitiesDescriptor) fileProvider.getMetadata();
+
+        Credential reboundCredential = fileResolver.resolveSingle(criteriaSet);
+        assertEquals("Cache hit count", 1, fileResolver.getCacheHitCount());
+        assertEquals("Cache miss count", 2, fileResolver.getCacheMissCount());
+        assertSame("Key of unchanged entity was re-resolved", idpCredential.getPublicKey(), reboundCredential
+                .getPublicKey());
+        SAMLMDCredentialContext mdContext = reboundCredential.getCredentalContextSet().get(
+                SAMLMDCredentialContext.class);
+        assertSame("Credential of unchanged entity refers to the previous metadata", refreshedMetadata, mdContext
+                .getRoleDescriptor().getParent().getParent());
+        assertSame("Rebound credential was not cached", reboundCredential, fileResolver.resolveSingle(criteriaSet));
+
+        assertNotNull("No SP credential resolved", fileResolver.resolveSingle(spCriteriaSet));
+        assertEquals("Cache miss count", 3, fileResolver.getCacheMissCount());
+    }
+
+    /**
+     * Test that credentials resolved while the cache is cleared are returned but not cached.
+     * 
+     * @throws SecurityException
+     */
+    public void testCacheClearedDuringResolution() throws SecurityException {
+        mdResolver = new MetadataCredentialResolver(mdProvider) {
+
+            /** {@inheritDoc} */
+            protected Collection<Credential> retrieveFromMetadata(String entityID, QName role, String protocol,
+                    UsageType usage) throws SecurityException {
+                clearCache();
+                return super.retrieveFromMetadata(entityID, role, protocol, usage);
+            }
+        };
+
+        assertNotNull("No credential resolved", mdResolver.resolveSingle(criteriaSet));
+        assertEquals("Credentials resolved before the cache was cleared were cached", 0, mdResolver.getCacheSize());
+    }
+
+    /**
+     * Test that credentials resolved in advance are used, and match the credentials resolved on use.
+     * 
+     * @throws SecurityException
+     */
+    public void testEagerCredentialResolution() throws SecurityException {
+        List<Credential> lazilyResolved = new ArrayList<Credential>();
+        for (Credential credential : mdResolver.resolve(criteriaSet)) {
+            lazilyResolved.add(credential);
+        }
+
+        MetadataCredentialResolver eagerResolver = new MetadataCredentialResolver(mdProvider);
+        eagerResolver.setEagerCredentialResolution(true);
+        List<Credential> eagerlyResolved = new ArrayList<Credential>();
+        for (Credential credential : eagerResolver.resolve(criteriaSet)) {
+            eagerlyResolved.add(credential);
+            checkContextAndID(credential, idpEntityID, idpRole);
+        }
+        assertEquals("Incorrect number of credentials resolved", lazilyResolved.size(), eagerlyResolved.size());
+
+        eagerResolver.clearCache();
+        for (Credential credential : eagerResolver.resolve(criteriaSet)) {
+            assertTrue("Credential was not taken from the resolved snapshot", eagerlyResolved.contains(credential));
+        }
+    }
+
+    /**
+     * Test that identical certificates are interned, including across credential resolutions.
+     * 
+     * @throws Exception
+     */
+    public void testCertificateInterning() throws Exception {
+        X509CertificateInterner interner = new X509CertificateInterner();
+        X509Certificate certificate = SecurityTestHelper.buildJavaX509Cert(idpRSACertBase64);
+        assertSame("First certificate was not interned", certificate, interner.intern(certificate));
+        assertSame("Identical certificate was not deduplicated", certificate, interner.intern(SecurityTestHelper
+                .buildJavaX509Cert(idpRSACertBase64)));
+        assertNotSame("Different certificate was deduplicated", certificate, interner.intern(idpDSACert));
+        assertEquals("Interned certificate count", 2, interner.getSize());
+        assertEquals("Deduplication ratio", 1.0 / 3, interner.getDeduplicationRatio(), 0.0001);
+
+        X509CertificateInterner encodedInterner = new X509CertificateInterner();
+        X509Certificate decoded = encodedInterner.intern(certificate.getEncoded());
+        assertEquals("Lookup count", 1, encodedInterner.getLookupCount());
+        assertSame("Identical encoded certificate was not deduplicated", decoded, encodedInterner.intern(certificate
+                .getEncoded()));
+        assertEquals("Lookup count", 2, encodedInterner.getLookupCount());
+        assertEquals("Hit count", 1, encodedInterner.getHitCount());
+
+        mdCriteria.setProtocol(protocolBar);
+        X509Credential credential = (X509Credential) mdResolver.resolveSingle(criteriaSet);
+        mdResolver.clearCache();
+        X509Credential reresolvedCredential = (X509Credential) mdResolver.resolveSingle(criteriaSet);
+        assertNotSame("Credential was not re-resolved", credential, reresolvedCredential);
+        assertSame("Certificate was not interned", credential.getEntityCertificate(), reresolvedCredential
+                .getEntityCertificate());
+    }
+
+    /**
+     * Writes a string to a file as UTF-8.
+     * 
+     * @param file the file
+     * @param content the content to write
+     * 
+     * @throws Exception thrown if the file can not be written
+     */
+    private void writeFile(File file, String content) throws Exception {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
     /**
      * Check expected entity ID and also that expected data is available from the metadata context.
      * 